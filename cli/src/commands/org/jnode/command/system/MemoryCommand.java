@@ -24,6 +24,8 @@ import java.io.PrintWriter;
 
 import org.jnode.shell.AbstractCommand;
 import org.jnode.util.NumberUtils;
+import org.jnode.vm.classmgr.VmSharedConstants;
+import org.jnode.vm.facade.VmUtils;
 
 /**
  * @author Ewout Prangsma (epr@users.sourceforge.net)
@@ -34,7 +36,9 @@ public class MemoryCommand extends AbstractCommand {
     private static final String str_total = "Total memory";
     private static final String str_used  = "Used memory";
     private static final String str_free  = "Free memory";
+    private static final String str_const = "Constants";
     private static final String fmt_info  = "%12s: %s%n";
+    private static final String fmt_const = "%12s: %d of %d strings shared, %s%s net saved%n";
     
     public static void main(String[] args) throws Exception {
         new MemoryCommand().execute(args);
@@ -53,5 +57,9 @@ public class MemoryCommand extends AbstractCommand {
         out.format(fmt_info, str_total, NumberUtils.toBinaryByte(rt.totalMemory()));
         out.format(fmt_info, str_used, NumberUtils.toBinaryByte(rt.totalMemory() - rt.freeMemory()));
         out.format(fmt_info, str_free, NumberUtils.toBinaryByte(rt.freeMemory()));
+        final VmSharedConstants constants = VmUtils.getVm().getSharedStatics().getSharedConstants();
+        final long saved = constants.getSavedBytes();
+        out.format(fmt_const, str_const, constants.getSharedCount(), constants.getLookupCount(),
+            (saved < 0) ? "-" : "", NumberUtils.toBinaryByte(Math.abs(saved)));
     }
 }
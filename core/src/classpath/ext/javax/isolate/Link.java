@@ -191,6 +191,57 @@ public abstract class Link {
 
     }
 
+    /**
+     * Receives copies of up to length messages sent on this Link, in the order
+     * in which they were sent.
+     * 
+     * The current thread will block in this method until at least one message
+     * is available. All messages that are available at that time, up to the
+     * given length, are then transferred at once.
+     * 
+     * See {@link #receive()} for the handling of closed links, interrupts and
+     * failures.
+     * 
+     * This method is a JNode extension.
+     * 
+     * @param messages the array in which the received messages are stored
+     * @param offset the index of the first received message in messages
+     * @param length the maximum number of messages to receive
+     * @return the number of received messages, this is at least 1
+     */
+    public int receive(LinkMessage[] messages, int offset, int length) throws ClosedLinkException,
+            IllegalStateException, InterruptedIOException, IOException {
+        if ((offset < 0) || (length <= 0) || (offset + length > messages.length)) {
+            throw new IndexOutOfBoundsException();
+        }
+        messages[offset] = receive();
+        return 1;
+    }
+
+    /**
+     * Sends the given messages on this Link, in order.
+     * 
+     * On a link created by {@link #newAsyncLink(Isolate, Isolate, int)} this
+     * method returns as soon as the last message has been queued. On other
+     * links it returns when the receiver has picked up all messages.
+     * 
+     * See {@link #send(LinkMessage)} for the handling of closed links,
+     * interrupts and failures.
+     * 
+     * This method is a JNode extension.
+     * 
+     * @param messages
+     * @throws ClosedLinkException
+     * @throws InterruptedIOException
+     * @throws IOException
+     */
+    public void send(LinkMessage[] messages) throws ClosedLinkException,
+            InterruptedIOException, IOException {
+        for (LinkMessage message : messages) {
+            send(message);
+        }
+    }
+
     /**
      * Tests this Link for equality with the given object. Returns true if and
      * only if other is not null and denotes the same link as this, with respect
@@ -229,4 +280,23 @@ public abstract class Link {
             throws ClosedLinkException {
         return VmLink.newLink(sender.getImpl(), receiver.getImpl());
     }
+
+    /**
+     * Creates a new asynchronous data link between the given pair of Isolate
+     * instances. Unlike the links returned by {@link #newLink(Isolate, Isolate)},
+     * a sender does not wait for the receiver to pick up its message, unless
+     * capacity messages are already waiting to be received.
+     * 
+     * This method is a JNode extension.
+     * 
+     * @param sender
+     * @param receiver
+     * @param capacity the maximum number of queued messages
+     * @return
+     * @throws ClosedLinkException
+     */
+    public static Link newAsyncLink(Isolate sender, Isolate receiver, int capacity)
+            throws ClosedLinkException {
+        return VmLink.newAsyncLink(sender.getImpl(), receiver.getImpl(), capacity);
+    }
 }
@@ -110,6 +110,19 @@ public abstract class LinkMessage {
         return LinkMessageFactory.newDataMessage(bytes, offset, length);
     }
     
+    /**
+     * Creates a data message that hands the given bytes off to the receiver
+     * without copying them. The sender must not modify the bytes once the
+     * message has been sent.
+     * 
+     * This method is a JNode extension.
+     */
+    public static LinkMessage newHandOffDataMessage(byte[] bytes,
+            int offset,
+            int length) {
+        return LinkMessageFactory.newHandOffDataMessage(bytes, offset, length);
+    }
+    
     public static LinkMessage newIsolateMessage(Isolate isolate) {
         return LinkMessageFactory.newIsolateMessage(isolate.getImpl());
     }
@@ -129,4 +142,16 @@ public abstract class LinkMessage {
     public static LinkMessage newStringMessage(String string) {
         return LinkMessageFactory.newStringMessage(string);
     }
+    
+    /**
+     * Creates a string message whose string is moved to the heap shared by all
+     * isolates, so it is not copied when the message is received. The shared
+     * string is never garbage collected, so this is meant for strings that are
+     * sent many times.
+     * 
+     * This method is a JNode extension.
+     */
+    public static LinkMessage newSharedStringMessage(String string) {
+        return LinkMessageFactory.newSharedStringMessage(string);
+    }
 }
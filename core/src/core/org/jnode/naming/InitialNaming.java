@@ -83,6 +83,16 @@ public final class InitialNaming {
         NAME_SPACE = namespace;
     }
 
+    /**
+     * Has the {@link NameSpace} used for storing services been defined?
+     * It is not when running outside of JNode without an emulated environment.
+     *
+     * @return {@code true} if there is a namespace.
+     */
+    public static boolean hasNameSpace() {
+        return (NAME_SPACE != null);
+    }
+
     /**
      * Bind a given service in the namespace under a given name.
      *
@@ -45,6 +45,12 @@ public interface ResourceManager {
      */
     public static final int MEMMODE_ALLOC_DMA = 0x01;
 
+    /**
+     * Allocate memory from the free memory blocks of the VM. The blocks are
+     * given back when the resource is released.
+     */
+    public static final int MEMMODE_ALLOC_BLOCKS = 0x02;
+
     /**
      * Claim a range of IO ports.
      * <p/>
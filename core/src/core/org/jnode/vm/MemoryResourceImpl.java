@@ -91,6 +91,10 @@ class MemoryResourceImpl extends Region implements MemoryResource {
      * Offset relative to my parent
      */
     private final Offset offset;
+    /**
+     * Was the memory allocated from the {@link MemoryBlockManager}?
+     */
+    private boolean blocks;
 
     /**
      * Create a new instance
@@ -163,6 +167,15 @@ class MemoryResourceImpl extends Region implements MemoryResource {
             } else {
                 throw new ResourceNotFreeException();
             }
+        } else if (mode == ResourceManager.MEMMODE_ALLOC_BLOCKS) {
+            final Address ptr = MemoryBlockManager.allocateBlock(size);
+            if (ptr == null) {
+                throw new ResourceNotFreeException("No free memory blocks");
+            }
+            final MemoryResourceImpl res = new MemoryResourceImpl(null, owner, ptr, size);
+            res.blocks = true;
+            resources = add(resources, res);
+            return res;
         } else {
             // Find a range
             Address ptr;
@@ -759,6 +772,9 @@ class MemoryResourceImpl extends Region implements MemoryResource {
                 synchronized (getClass()) {
                     resources = remove(resources, this);
                 }
+                if (blocks) {
+                    MemoryBlockManager.freeBlock(start, size);
+                }
             }
         }
     }
@@ -458,6 +458,12 @@ public final class Unsafe {
     @Internal
     public static native void idle();
 
+    /**
+     * Full memory barrier: the stores before it are visible to other processors
+     * and devices before the loads after it are performed.
+     */
+    public static native void memoryBarrier();
+
     /**
      * Cause the system to stop TODO Protect me again
      */
@@ -248,6 +248,9 @@ public final class ClassDecoder {
         final int cpcount = data.getChar();
         // allocate enough space for the CP
         final byte[] tags = new byte[cpcount];
+        // indexes of the entries referred to by not yet patched entries
+        final int[] refs = new int[cpcount];
+        final VmSharedConstants constants = sharedStatics.getSharedConstants();
         final VmCP cp = new VmCP(cpcount);
         for (int i = 1; i < cpcount; i++) {
             final int tag = data.get() & 0xFF;
@@ -283,11 +286,11 @@ public final class ClassDecoder {
                     break;
                 case 7:
                     // class
-                    cp.setInt(i, data.getChar());
+                    refs[i] = data.getChar();
                     break;
                 case 8:
                     // String
-                    cp.setInt(i, data.getChar());
+                    refs[i] = data.getChar();
                     break;
                 case 9: // Fieldref
                 case 10: // Methodref
@@ -295,7 +298,7 @@ public final class ClassDecoder {
                 {
                     final int clsIdx = data.getChar();
                     final int ntIdx = data.getChar();
-                    cp.setInt(i, clsIdx << 16 | ntIdx);
+                    refs[i] = clsIdx << 16 | ntIdx;
                     break;
                 }
                 case 12:
@@ -303,7 +306,7 @@ public final class ClassDecoder {
                 {
                     final int nIdx = data.getChar();
                     final int dIdx = data.getChar();
-                    cp.setInt(i, nIdx << 16 | dIdx);
+                    refs[i] = nIdx << 16 | dIdx;
                     break;
                 }
                 default:
@@ -317,7 +320,7 @@ public final class ClassDecoder {
             switch (tags[i]) {
                 case 7: {
                     // Class
-                    final int idx = cp.getInt(i);
+                    final int idx = refs[i];
                     final VmConstClass constClass = new VmConstClass(cp
                         .getUTF8(idx));
                     cp.setConstClass(i, constClass);
@@ -325,11 +328,8 @@ public final class ClassDecoder {
                 }
                 case 8: {
                     // String
-                    final int idx = cp.getInt(i);
-                    final int staticsIdx = sharedStatics
-                        .allocConstantStringField(cp.getUTF8(idx));
-                    final VmConstString constStr = new VmConstString(staticsIdx);
-                    cp.setString(i, constStr);
+                    final int idx = refs[i];
+                    cp.setString(i, constants.getString(cp.getUTF8(idx)));
                     break;
                 }
             }
@@ -339,9 +339,9 @@ public final class ClassDecoder {
         for (int i = 1; i < cpcount; i++) {
             final int tag = tags[i];
             if ((tag >= 9) && (tag <= 11)) {
-                final int v = cp.getInt(i);
+                final int v = refs[i];
                 final VmConstClass constClass = cp.getConstClass(v >>> 16);
-                final int nat = cp.getInt(v & 0xFFFF);
+                final int nat = refs[v & 0xFFFF];
                 final String name = cp.getUTF8(nat >>> 16);
                 final String descriptor = cp.getUTF8(nat & 0xFFFF);
                 switch (tag) {
@@ -364,16 +364,6 @@ public final class ClassDecoder {
             }
         }
 
-        // Cleanup the unwantend entries
-        for (int i = 1; i < cpcount; i++) {
-            switch (tags[i]) {
-                case 12:
-                    // Name and Type
-                    cp.reset(i);
-                    break;
-            }
-        }
-
         final int classModifiers = data.getChar();
 
         final VmConstClass this_class = cp.getConstClass(data.getChar());
@@ -427,7 +417,7 @@ public final class ClassDecoder {
                 byte[] buf = new byte[length];
                 data.slice().get(buf);
                 cls.setRawAnnotations(buf);
-                rVisAnn = readRuntimeAnnotations(data, cp, true, clc);
+                rVisAnn = readRuntimeAnnotations(data, cp, eagerAnnotations(), clc);
             } else if (VmArray.equals(RuntimeInvisibleAnnotationsAttrName,
                 attrName)) {
                 rInvisAnn = readRuntimeAnnotations(data, cp, false, clc);
@@ -439,7 +429,9 @@ public final class ClassDecoder {
                 skip(data, length);
             }
         }
-        cls.setRuntimeAnnotations(rVisAnn);
+        if (eagerAnnotations()) {
+            cls.setRuntimeAnnotations(rVisAnn);
+        }
         cls.setSourceFile(sourceFile);
         cls.setSignature(signature);
         if (rInvisAnn != null) {
@@ -522,17 +514,34 @@ public final class ClassDecoder {
         return nativeMethod.getBytecode();
     }
 
+    /**
+     * Decode the retained code-attribute of the given method.
+     * This is called on the first request for the bytecode of a method
+     * whose code-attribute was not decoded when its class was defined.
+     *
+     * @param method
+     * @return The decoded bytecode
+     */
+    static final VmByteCode decodeBytecode(VmMethod method) {
+        synchronized (method) {
+            final ByteBuffer rawCode = method.getRawCode();
+            if (rawCode != null) {
+                final VmCP cp = method.getDeclaringClass().getCP();
+                method.setBytecode(readCode(rawCode.duplicate(), cp, method));
+            }
+            return method.getBytecode();
+        }
+    }
+
     /**
      * Decode the data of a code-attribute
      *
      * @param data
-     * @param cls
      * @param cp
      * @param method
      * @return The read code
      */
-    private static final VmByteCode readCode(ByteBuffer data, VmType cls,
-                                             VmCP cp, VmMethod method) {
+    private static final VmByteCode readCode(ByteBuffer data, VmCP cp, VmMethod method) {
 
         final int maxStack = data.getChar();
         final int noLocals = data.getChar();
@@ -551,7 +560,20 @@ public final class ClassDecoder {
                 handlerPC, catchType);
         }
 
-        // Read the attributes
+        // The attributes are decoded on demand
+        return new VmByteCode(method, code, noLocals, maxStack, etable,
+            data.slice());
+    }
+
+    /**
+     * Decode the line number and local variable tables from the attributes
+     * of a code-attribute.
+     *
+     * @param data
+     * @param cp
+     * @param bc
+     */
+    static final void readCodeAttributes(ByteBuffer data, VmCP cp, VmByteCode bc) {
         VmLineNumberMap lnTable = null;
         VmLocalVariableTable lvTable = VmLocalVariableTable.EMPTY;
         final int acount = data.getChar();
@@ -566,9 +588,44 @@ public final class ClassDecoder {
                 skip(data, len);
             }
         }
+        bc.setDebugTables(lnTable, lvTable);
+    }
 
-        return new VmByteCode(method, code, noLocals, maxStack, etable,
-            lnTable, lvTable);
+    /**
+     * Decode the retained runtime visible annotations of the given element.
+     *
+     * @param element
+     * @return The annotations
+     */
+    static final VmAnnotation[] decodeRuntimeAnnotations(VmAnnotatedElement element) {
+        final byte[] raw = element.getRawAnnotations();
+        if (raw == null) {
+            return VmAnnotation.EMPTY_ARR;
+        }
+        final ByteBuffer data = ByteBuffer.wrap(raw);
+        if (element instanceof VmType) {
+            final VmType<?> type = (VmType<?>) element;
+            return readRuntimeAnnotations(data, type.getCP(), true, type.getLoader());
+        }
+        final VmMember member = (VmMember) element;
+        final VmType<?> declaringClass = member.getDeclaringClass();
+        if (member instanceof VmMethod) {
+            return readRuntimeAnnotations2(data, declaringClass.getCP(), true,
+                declaringClass.getLoader(), declaringClass);
+        } else {
+            return readRuntimeAnnotations(data, declaringClass.getCP(), true,
+                declaringClass.getLoader());
+        }
+    }
+
+    /**
+     * Should runtime visible annotations be decoded when the class is defined?
+     * Otherwise they are decoded from the raw annotations on first use.
+     *
+     * @return {@code true} while the boot image is being written.
+     */
+    private static final boolean eagerAnnotations() {
+        return VmUtils.isWritingImage();
     }
 
     /**
@@ -654,7 +711,11 @@ public final class ClassDecoder {
                         RuntimeVisibleAnnotationsAttrName, attrName)) {
                         rawAnnotations = new byte[length];
                         data.slice().get(rawAnnotations);
-                        rVisAnn = readRuntimeAnnotations(data, cp, true, loader);
+                        if (eagerAnnotations()) {
+                            rVisAnn = readRuntimeAnnotations(data, cp, true, loader);
+                        } else {
+                            skip(data, length);
+                        }
                     } else if (VmArray.equals(
                         RuntimeInvisibleAnnotationsAttrName, attrName)) {
                         readRuntimeAnnotations(data, cp, false, loader);
@@ -804,7 +865,9 @@ public final class ClassDecoder {
                         break;
                 }
             }
-            fs.setRuntimeAnnotations(fd.rVisAnn);
+            if (eagerAnnotations()) {
+                fs.setRuntimeAnnotations(fd.rVisAnn);
+            }
             fs.setRawAnnotations(fd.rawAnnotations);
         }
 
@@ -944,7 +1007,12 @@ public final class ClassDecoder {
                     String attrName = cp.getUTF8(data.getChar());
                     int length = data.getInt();
                     if (VmArray.equals(CodeAttrName, attrName)) {
-                        mts.setBytecode(readCode(data, cls, cp, mts));
+                        final ByteBuffer code = readBytes(data, length);
+                        if (VmUtils.isWritingImage()) {
+                            mts.setBytecode(readCode(code, cp, mts));
+                        } else {
+                            mts.setRawCode(code);
+                        }
                     } else if (VmArray.equals(ExceptionsAttrName, attrName)) {
                         mts.setExceptions(readExceptions(data, cls, cp));
                     } else if (VmArray.equals(RuntimeVisibleAnnotationsAttrName, attrName)) {
@@ -952,9 +1020,15 @@ public final class ClassDecoder {
                         data.slice().get(buf);
                         mts.setRawAnnotations(buf);
 
-                        //todo will get obsolate with openjdk based annotation support
-                        //rVisAnn = readRuntimeAnnotations(data, cp, true, cl);
-                        rVisAnn = readRuntimeAnnotations2(data, cp, true, cl, cls);
+                        if (eagerAnnotations()) {
+                            //todo will get obsolate with openjdk based annotation support
+                            //rVisAnn = readRuntimeAnnotations(data, cp, true, cl);
+                            rVisAnn = readRuntimeAnnotations2(data, cp, true, cl, cls);
+                        } else {
+                            // Only the annotation types are needed for the pragma flags,
+                            // the element values are decoded on demand.
+                            rVisAnn = readRuntimeAnnotations(data, cp, false, cl);
+                        }
 
                     } else if (VmArray.equals(RuntimeInvisibleAnnotationsAttrName, attrName)) {
                         rInvisAnn = readRuntimeAnnotations(data, cp, false, cl);
@@ -991,7 +1065,9 @@ public final class ClassDecoder {
                         skip(data, length);
                     }
                 }
-                mts.setRuntimeAnnotations(rVisAnn);
+                if (eagerAnnotations()) {
+                    mts.setRuntimeAnnotations(rVisAnn);
+                }
                 if (rVisAnn != null) {
                     mts.addPragmaFlags(getMethodPragmaFlags(rVisAnn, cls
                         .getName()));
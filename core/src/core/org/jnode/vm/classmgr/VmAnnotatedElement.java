@@ -54,11 +54,27 @@ abstract class VmAnnotatedElement extends VmSystemObject implements
         }
     }
 
+    /**
+     * Gets the runtime annotations. If these have not been set, they are
+     * decoded from the raw annotations on first use.
+     *
+     * @return the runtime annotations
+     */
+    private VmAnnotation[] getRuntimeAnnotations() {
+        VmAnnotation[] runtimeAnnotations = this.runtimeAnnotations;
+        if (runtimeAnnotations == null) {
+            runtimeAnnotations = ClassDecoder.decodeRuntimeAnnotations(this);
+            this.runtimeAnnotations = runtimeAnnotations;
+        }
+        return runtimeAnnotations;
+    }
+
     /**
      * @see java.lang.reflect.AnnotatedElement#getAnnotation(java.lang.Class)
      */
     @PrivilegedActionPragma
     public final <T extends Annotation> T getAnnotation(Class<T> annotationClass) {
+        final VmAnnotation[] runtimeAnnotations = getRuntimeAnnotations();
         if (runtimeAnnotations.length > 0) {
             final VmClassLoader loader = getLoader();
             final VmType<T> reqType = VmType.fromClass(annotationClass);
@@ -109,6 +125,7 @@ abstract class VmAnnotatedElement extends VmSystemObject implements
      * @see java.lang.reflect.AnnotatedElement#getDeclaredAnnotations()
      */
     public final Annotation[] getDeclaredAnnotations() {
+        final VmAnnotation[] runtimeAnnotations = getRuntimeAnnotations();
         final int max = runtimeAnnotations.length;
         final Annotation[] arr = new Annotation[max];
         if (max > 0) {
@@ -130,6 +147,7 @@ abstract class VmAnnotatedElement extends VmSystemObject implements
     @PrivilegedActionPragma
     public final boolean isAnnotationPresent(
         Class<? extends Annotation> annotationClass) {
+        final VmAnnotation[] runtimeAnnotations = getRuntimeAnnotations();
         if (runtimeAnnotations.length > 0) {
             final VmClassLoader loader = getLoader();
             final VmType<?> reqType = VmType.fromClass((Class<? extends Annotation>) annotationClass);
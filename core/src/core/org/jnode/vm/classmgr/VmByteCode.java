@@ -52,9 +52,26 @@ public final class VmByteCode extends AbstractCode {
     private char maxStack;
     
     /**
-     * Bytecode of this method. This is a ByteBuffer or byte[]
+     * Bytecode of this method. This is a ByteBuffer or byte[].
+     * If it is a byte[], it may be the array holding the entire class file,
+     * in which case the bytecode starts at bytecodeOffset.
      */
-    private Object bytecode;
+    private final Object bytecode;
+
+    /**
+     * Offset of the bytecode in the bytecode array
+     */
+    private final int bytecodeOffset;
+
+    /**
+     * Length of the bytecode
+     */
+    private final char bytecodeLength;
+
+    /**
+     * Read-only view on the bytecode, created on first use
+     */
+    private transient ByteBuffer view;
     
     /**
      * Exception handler table
@@ -69,7 +86,13 @@ public final class VmByteCode extends AbstractCode {
     /**
      * Local variable table
      */
-    private final VmLocalVariableTable lvTable;
+    private VmLocalVariableTable lvTable;
+
+    /**
+     * Attributes of the code-attribute from which the line number table and
+     * local variable table are decoded on first use. Set to {@code null} once decoded.
+     */
+    private ByteBuffer attributes;
     
     /**
      * Data used by the native code compilers
@@ -91,13 +114,20 @@ public final class VmByteCode extends AbstractCode {
                       VmLocalVariableTable lvTable) {
         this.method = method;
         this.cp = method.getDeclaringClass().getCP();
+        this.bytecodeLength = (char) bytecode.limit();
         if (VmUtils.isWritingImage()) {
             final byte[] buildBytecode = new byte[bytecode.limit()];
             bytecode.get(buildBytecode);
             bytecode.rewind();
             this.bytecode = buildBytecode;
+            this.bytecodeOffset = 0;
+        } else if (bytecode.hasArray()) {
+            // Refer to the array of the class file instead of keeping a buffer object
+            this.bytecode = bytecode.array();
+            this.bytecodeOffset = bytecode.arrayOffset();
         } else {
             this.bytecode = bytecode;
+            this.bytecodeOffset = 0;
         }
         this.noLocals = (char) noLocals;
         this.maxStack = (char) maxStack;
@@ -108,22 +138,43 @@ public final class VmByteCode extends AbstractCode {
     }
 
     /**
-     * Gets the actual bytecode.
-     * Do not change the contents of the given array!
+     * Create a new instance whose line number table and local variable table
+     * are decoded from the given code-attribute attributes on first use.
+     *
+     * @param method
+     * @param bytecode
+     * @param noLocals
+     * @param maxStack
+     * @param eTable
+     * @param attributes
+     */
+    VmByteCode(VmMethod method, ByteBuffer bytecode, int noLocals, int maxStack,
+               VmInterpretedExceptionHandler[] eTable, ByteBuffer attributes) {
+        this(method, bytecode, noLocals, maxStack, eTable, null, null);
+        this.attributes = attributes;
+        if (VmUtils.isWritingImage()) {
+            decodeDebugTables();
+        }
+    }
+
+    /**
+     * Gets the actual bytecode, in a read-only buffer of its own.
      *
      * @return the code
      */
     public ByteBuffer getBytecode() {
-        final Object bytecode = this.bytecode;
-        if (bytecode instanceof ByteBuffer) {
-            return ((ByteBuffer) bytecode).duplicate();
-        } else {
-            final ByteBuffer buf = ByteBuffer.wrap((byte[]) bytecode);
-            if (VmUtils.isRunningVm()) {
-                this.bytecode = buf;
+        ByteBuffer view = this.view;
+        if (view == null) {
+            final Object bytecode = this.bytecode;
+            if (bytecode instanceof ByteBuffer) {
+                view = ((ByteBuffer) bytecode).asReadOnlyBuffer();
+            } else {
+                view = ByteBuffer.wrap((byte[]) bytecode, bytecodeOffset, bytecodeLength).slice().asReadOnlyBuffer();
             }
-            return buf.duplicate();
+            this.view = view;
         }
+        // Every caller gets its own position
+        return view.duplicate();
     }
 
     /**
@@ -132,12 +183,7 @@ public final class VmByteCode extends AbstractCode {
      * @return the length
      */
     public int getLength() {
-        final Object bytecode = this.bytecode;
-        if (bytecode instanceof ByteBuffer) {
-            return ((ByteBuffer) bytecode).limit();
-        } else {
-            return ((byte[]) bytecode).length;
-        }
+        return bytecodeLength;
     }
 
     /**
@@ -202,6 +248,9 @@ public final class VmByteCode extends AbstractCode {
      * @return the line number table
      */
     public VmLineNumberMap getLineNrs() {
+        if (attributes != null) {
+            decodeDebugTables();
+        }
         return lnTable;
     }
 
@@ -213,7 +262,7 @@ public final class VmByteCode extends AbstractCode {
      * number can be found.
      */
     public int getLineNr(int pc) {
-        final VmLineNumberMap lnTable = this.lnTable;
+        final VmLineNumberMap lnTable = getLineNrs();
         if (lnTable != null) {
             return lnTable.findLineNr(pc);
         } else {
@@ -270,10 +319,36 @@ public final class VmByteCode extends AbstractCode {
      * @return The variable or {@code null} if not found.
      */
     public final VmLocalVariable getVariable(int pc, int index) {
-        return lvTable.getVariable(pc, index);
+        return getLocalVariableTable().getVariable(pc, index);
     }
 
     public final VmLocalVariableTable getLocalVariableTable() {
+        if (attributes != null) {
+            decodeDebugTables();
+        }
         return lvTable;
     }
+
+    /**
+     * Decode the line number table and local variable table from
+     * the retained attributes.
+     */
+    private void decodeDebugTables() {
+        final ByteBuffer attributes = this.attributes;
+        if (attributes != null) {
+            ClassDecoder.readCodeAttributes(attributes.duplicate(), cp, this);
+            this.attributes = null;
+        }
+    }
+
+    /**
+     * Sets the decoded line number table and local variable table.
+     *
+     * @param lnTable
+     * @param lvTable
+     */
+    final void setDebugTables(VmLineNumberMap lnTable, VmLocalVariableTable lvTable) {
+        this.lnTable = lnTable;
+        this.lvTable = lvTable;
+    }
 }
@@ -21,6 +21,7 @@
 package org.jnode.vm.classmgr;
 
 import java.lang.reflect.Member;
+import java.nio.ByteBuffer;
 import org.jnode.annotation.MagicPermission;
 import org.jnode.annotation.PrivilegedActionPragma;
 import org.jnode.vm.InternString;
@@ -64,6 +65,11 @@ public abstract class VmMethod extends VmMember implements VmSharedStaticsEntry
      */
     private VmByteCode bytecode;
 
+    /**
+     * Code-attribute from which the bytecode is decoded on first use
+     */
+    private ByteBuffer rawCode;
+
     /**
      * The compiled code (if any)
      */
@@ -156,6 +162,10 @@ public abstract class VmMethod extends VmMember implements VmSharedStaticsEntry
      * @return The current bytecode
      */
     public final VmByteCode getBytecode() {
+        final VmByteCode bytecode = this.bytecode;
+        if ((bytecode == null) && (rawCode != null)) {
+            return ClassDecoder.decodeBytecode(this);
+        }
         return bytecode;
     }
 
@@ -167,15 +177,39 @@ public abstract class VmMethod extends VmMember implements VmSharedStaticsEntry
      */
     public final void setBytecode(VmByteCode bc) {
         this.bytecode = bc;
+        this.rawCode = null;
         bc.lock();
     }
 
+    /**
+     * Gets the code-attribute that has not yet been decoded into bytecode.
+     *
+     * @return the code-attribute, or {@code null} once the bytecode is decoded.
+     */
+    final ByteBuffer getRawCode() {
+        return rawCode;
+    }
+
+    /**
+     * Sets the code-attribute from which the bytecode is decoded on first use.
+     *
+     * @param rawCode
+     */
+    final void setRawCode(ByteBuffer rawCode) {
+        this.rawCode = rawCode;
+    }
+
     /**
      * Get the number of bytes in the byte-codes for this method.
      *
      * @return Length of bytecode
      */
     public final int getBytecodeSize() {
+        final ByteBuffer rawCode = this.rawCode;
+        if ((bytecode == null) && (rawCode != null)) {
+            // Skip max_stack and max_locals to read code_length
+            return rawCode.getInt(4);
+        }
         return (bytecode == null) ? 0 : bytecode.getLength();
     }
 
@@ -0,0 +1,252 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.vm.classmgr;
+
+import org.jnode.vm.facade.VmUtils;
+import org.jnode.vm.objects.VmSystemObject;
+
+/**
+ * Table of the string constants that are shared by all constant pools of the
+ * VM. Equal string constants are represented by a single VmConstString and
+ * share a single slot in the shared statics table.
+ * <p/>
+ * The table is an open addressing hash table held in two plain arrays, so it
+ * costs two references per entry and can be emitted into the boot image as is.
+ * Numeric constants are not shared; their keys would cost more than the
+ * constants themselves.
+ */
+public final class VmSharedConstants extends VmSystemObject {
+
+    /**
+     * The payload size of a VmConstString.
+     */
+    private static final int STRING_PAYLOAD = 4;
+
+    /**
+     * The initial capacity of the table, a power of 2
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The maximum number of shared strings. Strings beyond this
+     * are allocated per constant pool, as if they were not shared.
+     */
+    private static final int MAX_SIZE = 1 << 16;
+
+    /**
+     * The statics table in which string constants are allocated
+     */
+    private final VmSharedStatics statics;
+
+    /**
+     * Size of an object reference and of a slot in the statics table
+     */
+    private final int slotSize;
+
+    /**
+     * The values of the shared string constants, by hash of the string
+     */
+    private String[] keys;
+
+    /**
+     * The shared string constants, at the same index as their value in keys
+     */
+    private VmConstString[] values;
+
+    /**
+     * Number of shared strings
+     */
+    private int size;
+
+    /**
+     * Has this table been emitted into the boot image?
+     */
+    private transient boolean emitted;
+
+    /**
+     * Number of constants requested
+     */
+    private int lookups;
+
+    /**
+     * Number of constants that were served from this table
+     */
+    private int sharedLookups;
+
+    /**
+     * Initialize this instance.
+     *
+     * @param statics
+     * @param slotSize
+     */
+    VmSharedConstants(VmSharedStatics statics, int slotSize) {
+        this.statics = statics;
+        this.slotSize = slotSize;
+        this.keys = new String[INITIAL_CAPACITY];
+        this.values = new VmConstString[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Gets the shared string constant with the given value. If the string is
+     * not yet known, it is allocated in the shared statics table.
+     *
+     * @param value An interned string
+     * @return the constant
+     */
+    final synchronized VmConstString getString(String value) {
+        lookups++;
+        final int index = indexOf(keys, value);
+        VmConstString c = values[index];
+        if (c != null) {
+            sharedLookups++;
+            return c;
+        }
+        c = new VmConstString(statics.allocConstantStringField(value));
+        // Strings added after the table has been emitted into the boot image
+        // would not be part of the image
+        if ((size < MAX_SIZE) && !(emitted && VmUtils.isWritingImage())) {
+            keys[index] = value;
+            values[index] = c;
+            size++;
+            if (size * 4 > keys.length * 3) {
+                grow();
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Gets the number of constants that have been requested from this table.
+     *
+     * @return the number of lookups
+     */
+    public final synchronized int getLookupCount() {
+        return lookups;
+    }
+
+    /**
+     * Gets the number of requested constants that were served by an already
+     * existing shared constant.
+     *
+     * @return the number of shared lookups
+     */
+    public final synchronized int getSharedCount() {
+        return sharedLookups;
+    }
+
+    /**
+     * Gets the number of distinct constants in this table.
+     *
+     * @return the number of constants
+     */
+    public final synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the estimated number of heap and statics bytes that are saved by
+     * sharing the constants, minus the size of this table itself.
+     * Every shared lookup saves a VmConstString and a statics slot.
+     *
+     * @return the number of bytes, negative if the table costs more than it saves
+     */
+    public final synchronized long getSavedBytes() {
+        final long saved = (long) sharedLookups * (objectSize(STRING_PAYLOAD) + slotSize);
+        final long overhead = objectSize(6 * slotSize) + 2 * arraySize(keys.length);
+        return saved - overhead;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return "lookups=" + getLookupCount() + ", shared=" + getSharedCount() + ", size=" + getSize()
+            + ", saved=" + getSavedBytes();
+    }
+
+    /**
+     * @see org.jnode.vm.objects.VmSystemObject#verifyBeforeEmit()
+     */
+    public void verifyBeforeEmit() {
+        super.verifyBeforeEmit();
+        emitted = true;
+    }
+
+    /**
+     * Double the capacity of the table.
+     */
+    private void grow() {
+        final String[] oldKeys = keys;
+        final VmConstString[] oldValues = values;
+        final String[] newKeys = new String[oldKeys.length * 2];
+        final VmConstString[] newValues = new VmConstString[newKeys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                final int index = indexOf(newKeys, oldKeys[i]);
+                newKeys[index] = oldKeys[i];
+                newValues[index] = oldValues[i];
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    /**
+     * Gets the index of the given string in the given table, or the index of
+     * the free entry where it should be stored.
+     *
+     * @param table
+     * @param value
+     * @return the index
+     */
+    private static int indexOf(String[] table, String value) {
+        final int mask = table.length - 1;
+        int index = value.hashCode() & mask;
+        while (true) {
+            final String key = table[index];
+            if ((key == null) || key.equals(value)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Gets the aligned size of an object with the given payload.
+     *
+     * @param payload the size of the fields of the object
+     * @return the size in bytes
+     */
+    private int objectSize(int payload) {
+        final int size = ObjectLayout.HEADER_SLOTS * slotSize + payload;
+        return (size + ObjectLayout.OBJECT_ALIGN - 1) & ~(ObjectLayout.OBJECT_ALIGN - 1);
+    }
+
+    /**
+     * Gets the aligned size of an array of references.
+     *
+     * @param length the length of the array
+     * @return the size in bytes
+     */
+    private int arraySize(int length) {
+        return objectSize((VmArray.DATA_OFFSET + length) * slotSize);
+    }
+}
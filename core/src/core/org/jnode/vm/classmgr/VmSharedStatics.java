@@ -34,12 +34,27 @@ public final class VmSharedStatics extends VmStatics {
      */
     private static final int SIZE = 1 << 17;
 
+    /**
+     * Constants shared by all constant pools
+     */
+    private final VmSharedConstants sharedConstants;
+
     /**
      * @param arch
      * @param resolver
      */
     public VmSharedStatics(VmArchitecture arch, ObjectResolver resolver) {
         super(arch, resolver, SIZE);
+        this.sharedConstants = new VmSharedConstants(this, arch.getReferenceSize());
+    }
+
+    /**
+     * Gets the table of constants that are shared by all constant pools.
+     *
+     * @return the shared constants
+     */
+    public final VmSharedConstants getSharedConstants() {
+        return sharedConstants;
     }
 
 }
@@ -0,0 +1,37 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.vm.facade;
+
+/**
+ * Listener that is notified after each garbage collection.
+ */
+public interface GCListener {
+
+    /**
+     * A garbage collection has finished. This method is called on a thread of
+     * the heap manager after the collection, so it should return quickly.
+     * Collections that finish while the listeners are being notified may be
+     * reported by a single call.
+     *
+     * @param stats the statistics of the heap manager, including the last collection
+     */
+    void gcFinished(GCStatistics stats);
+}
@@ -26,5 +26,41 @@ package org.jnode.vm.facade;
  */
 public interface GCStatistics {
 
+    /**
+     * Gets the number of completed collections.
+     *
+     * @return the collection count
+     */
+    long getCollectionCount();
+
+    /**
+     * Gets the accumulated duration of all collections in milliseconds.
+     *
+     * @return the collection time
+     */
+    long getCollectionTime();
+
+    /**
+     * Gets the start time of the last collection, in milliseconds since
+     * the system was booted.
+     *
+     * @return the start time of the last collection
+     */
+    long getLastStartTime();
+
+    /**
+     * Gets the pause time of the last collection in milliseconds.
+     *
+     * @return the duration of the last collection
+     */
+    long getLastDuration();
+
+    /**
+     * Gets the number of bytes freed by the last collection.
+     *
+     * @return the number of freed bytes
+     */
+    long getLastFreedBytes();
+
     public abstract String toString();
 }
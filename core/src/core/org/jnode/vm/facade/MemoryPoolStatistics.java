@@ -0,0 +1,115 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.vm.facade;
+
+/**
+ * Usage data of a memory pool managed by the heap manager.
+ * All sizes are in bytes.
+ */
+public interface MemoryPoolStatistics {
+
+    /**
+     * Gets the name of this pool.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Gets the initial size of this pool, or -1 if undefined.
+     *
+     * @return the initial size
+     */
+    long getInit();
+
+    /**
+     * Gets the amount of memory used by objects in this pool.
+     *
+     * @return the used size
+     */
+    long getUsed();
+
+    /**
+     * Gets the amount of memory reserved for this pool.
+     *
+     * @return the committed size
+     */
+    long getCommitted();
+
+    /**
+     * Gets the maximum size of this pool, or -1 if undefined.
+     *
+     * @return the maximum size
+     */
+    long getMax();
+
+    /**
+     * Gets the highest used size since the VM was started or since
+     * the peak was reset.
+     *
+     * @return the peak used size
+     */
+    long getPeakUsed();
+
+    /**
+     * Gets the committed size at the time of the peak used size.
+     *
+     * @return the committed size at the peak
+     */
+    long getPeakCommitted();
+
+    /**
+     * Reset the peak used size to the current used size.
+     */
+    void resetPeakUsage();
+
+    /**
+     * Gets the used size just before the last collection, or -1 if there
+     * has not been a collection.
+     *
+     * @return the used size before the last collection
+     */
+    long getUsedBeforeGC();
+
+    /**
+     * Gets the committed size just before the last collection, or -1 if there
+     * has not been a collection.
+     *
+     * @return the committed size before the last collection
+     */
+    long getCommittedBeforeGC();
+
+    /**
+     * Gets the used size just after the last collection, or -1 if there
+     * has not been a collection.
+     *
+     * @return the used size after the last collection
+     */
+    long getUsedAfterGC();
+
+    /**
+     * Gets the committed size just after the last collection, or -1 if there
+     * has not been a collection.
+     *
+     * @return the committed size after the last collection
+     */
+    long getCommittedAfterGC();
+}
@@ -103,6 +103,27 @@ public interface VmHeapManager {
      */
     GCStatistics getStatistics();
 
+    /**
+     * Get the usage data of the memory pools of this heap.
+     *
+     * @return the memory pools, an empty array if this heap manager has no pool data
+     */
+    MemoryPoolStatistics[] getMemoryPoolStatistics();
+
+    /**
+     * Add a listener that is notified after each garbage collection.
+     *
+     * @param listener
+     */
+    void addGCListener(GCListener listener);
+
+    /**
+     * Remove a listener that was added by {@link #addGCListener(GCListener)}.
+     *
+     * @param listener
+     */
+    void removeGCListener(GCListener listener);
+
     /**
      * Set this heap's flags
      *
@@ -124,6 +145,25 @@ public interface VmHeapManager {
      */
     void gc();
 
+    /**
+     * Place a deeply immutable object in the shared heap, so it can be referenced
+     * from any isolate without copying. The returned object is never garbage
+     * collected and is not visited when live objects are marked.
+     *
+     * @param obj the object to share
+     * @return the shared object, or obj itself if this heap manager has no shared heap.
+     * @throws IllegalArgumentException if obj is not deeply immutable.
+     */
+    Object shareObject(Object obj);
+
+    /**
+     * Is the given object located in the shared heap.
+     *
+     * @param obj
+     * @return {@code true} if obj is a shared object, {@code false} otherwise.
+     */
+    boolean isSharedObject(Object obj);
+
     /**
      * Gets the size of all memory in bytes.
      *
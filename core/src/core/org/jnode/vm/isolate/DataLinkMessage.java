@@ -29,10 +29,21 @@ final class DataLinkMessage extends LinkMessageImpl {
 
     private final int length;
 
+    /**
+     * If true, the ownership of bytes is handed off to the receiver
+     * and the bytes are not copied.
+     */
+    private final boolean handOff;
+
     DataLinkMessage(byte[] bytes, int offset, int length) {
+        this(bytes, offset, length, false);
+    }
+
+    DataLinkMessage(byte[] bytes, int offset, int length, boolean handOff) {
         this.bytes = bytes;
         this.offset = offset;
         this.length = length;
+        this.handOff = handOff;
     }
 
     /**
@@ -40,11 +51,29 @@ final class DataLinkMessage extends LinkMessageImpl {
      */
     @Override
     LinkMessageImpl cloneMessage() {
+        if (handOff) {
+            // The sender no longer uses the bytes, so the receiver can have them
+            return this;
+        }
         final byte[] data = new byte[length];
         System.arraycopy(bytes, offset, data, 0, length);
         return new DataLinkMessage(data, 0, length);
     }
 
+    /**
+     * @see org.jnode.vm.isolate.LinkMessageImpl#detachMessage()
+     */
+    @Override
+    LinkMessageImpl detachMessage() {
+        if (handOff) {
+            return this;
+        }
+        // Only the receiver gets the copy, so it can be handed off
+        final byte[] data = new byte[length];
+        System.arraycopy(bytes, offset, data, 0, length);
+        return new DataLinkMessage(data, 0, length, true);
+    }
+
     /**
      * @see javax.isolate.LinkMessage#containsData()
      */
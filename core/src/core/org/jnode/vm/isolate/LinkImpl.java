@@ -105,6 +105,23 @@ final class LinkImpl extends Link {
         vmLink.send(message);
     }
 
+    /**
+     * @see javax.isolate.Link#receive(javax.isolate.LinkMessage[], int, int)
+     */
+    @Override
+    public int receive(LinkMessage[] messages, int offset, int length)
+        throws ClosedLinkException, IllegalStateException, InterruptedIOException, IOException {
+        return vmLink.receive(messages, offset, length);
+    }
+
+    /**
+     * @see javax.isolate.Link#send(javax.isolate.LinkMessage[])
+     */
+    @Override
+    public void send(LinkMessage[] messages) throws ClosedLinkException, InterruptedIOException, IOException {
+        vmLink.send(messages);
+    }
+
     /**
      * @see javax.isolate.Link#toString()
      */
@@ -26,6 +26,8 @@ import java.net.Socket;
 import javax.isolate.Link;
 import javax.isolate.LinkMessage;
 
+import org.jnode.vm.facade.VmUtils;
+
 
 public final class LinkMessageFactory {
 
@@ -49,6 +51,18 @@ public final class LinkMessageFactory {
         return new DataLinkMessage(bytes, offset, length);
     }
 
+    /**
+     * Create a LinkMessage that hands the given data off to the receiver
+     * without copying it. The sender must not modify the bytes after
+     * the message has been sent.
+     *
+     * @param bytes
+     * @return the LinkMessage
+     */
+    public static LinkMessage newHandOffDataMessage(byte[] bytes, int offset, int length) {
+        return new DataLinkMessage(bytes, offset, length, true);
+    }
+
     /**
      * Create a LinkMessage containing the given isolate.
      *
@@ -95,4 +109,15 @@ public final class LinkMessageFactory {
     public static LinkMessage newStringMessage(String string) {
         return new StringLinkMessage(string);
     }
+
+    /**
+     * Create a LinkMessage containing the given string. The string is moved
+     * to the shared heap, so the receiver gets it without copying.
+     *
+     * @param string
+     * @return the LinkMessage
+     */
+    public static LinkMessage newSharedStringMessage(String string) {
+        return new StringLinkMessage((String) VmUtils.getVm().getHeapManager().shareObject(string));
+    }
 }
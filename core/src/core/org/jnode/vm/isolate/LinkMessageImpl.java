@@ -38,6 +38,16 @@ abstract class LinkMessageImpl extends LinkMessage {
      */
     abstract LinkMessageImpl cloneMessage();
 
+    /**
+     * Gets a message that no longer refers to data the sender can still change,
+     * so it can be queued after the sender has returned.
+     *
+     * @return this message, or a copy of it
+     */
+    LinkMessageImpl detachMessage() {
+        return this;
+    }
+
     /**
      * Block the current thread, until this message has its received flag set.
      */
@@ -20,6 +20,7 @@
  
 package org.jnode.vm.isolate;
 
+import org.jnode.vm.facade.VmUtils;
 
 final class StringLinkMessage extends LinkMessageImpl {
 
@@ -39,6 +40,10 @@ final class StringLinkMessage extends LinkMessageImpl {
      */
     @Override
     LinkMessageImpl cloneMessage() {
+        if (VmUtils.getVm().getHeapManager().isSharedObject(value)) {
+            // Shared strings are immutable and reachable from every isolate
+            return this;
+        }
         return new StringLinkMessage(new String(value));
     }
 
@@ -22,8 +22,6 @@ package org.jnode.vm.isolate;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import javax.isolate.ClosedLinkException;
 import javax.isolate.Link;
@@ -32,14 +30,43 @@ import javax.isolate.LinkMessage;
 
 /**
  * Shared implementation of javax.isolate.Link
+ * <p/>
+ * A link is either synchronous or asynchronous. On a synchronous link a sender
+ * blocks until the receiver has picked up its message. On an asynchronous link
+ * messages are queued in a bounded ring buffer and a sender only blocks while
+ * the buffer is full.
  *
  * @author Ewout Prangsma (epr@users.sourceforge.net)
  */
 public final class VmLink {
 
+    /**
+     * Initial size of the message buffer of a synchronous link
+     */
+    private static final int INITIAL_BUFFER_SIZE = 4;
+
     private final VmIsolateLocal<LinkImpl> linkHolder = new VmIsolateLocal<LinkImpl>();
 
-    private final Queue<LinkMessageImpl> messages = new LinkedList<LinkMessageImpl>();
+    /**
+     * Ring buffer of messages that have been sent, but not yet received
+     */
+    private LinkMessageImpl[] messages;
+
+    /**
+     * Index in messages of the oldest message
+     */
+    private int head;
+
+    /**
+     * Number of messages in the ring buffer
+     */
+    private int count;
+
+    /**
+     * Maximum number of queued messages of an asynchronous link,
+     * 0 for a synchronous link.
+     */
+    private final int capacity;
 
     private boolean closed = false;
 
@@ -58,7 +85,28 @@ public final class VmLink {
         if (sender == receiver) {
             throw new IllegalArgumentException("sender == receiver");
         }
-        VmLink vmLink = new VmLink(sender, receiver);
+        VmLink vmLink = new VmLink(sender, receiver, 0);
+        return vmLink.asLink();
+    }
+
+    /**
+     * Create a new asynchronous data link between the given isolates.
+     * Up to capacity messages can be sent on this link before the sender
+     * blocks waiting for the receiver.
+     *
+     * @param sender
+     * @param receiver
+     * @param capacity the maximum number of queued messages
+     * @return the new Link
+     */
+    public static Link newAsyncLink(VmIsolate sender, VmIsolate receiver, int capacity) {
+        if (sender == receiver) {
+            throw new IllegalArgumentException("sender == receiver");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        VmLink vmLink = new VmLink(sender, receiver, capacity);
         return vmLink.asLink();
     }
 
@@ -69,10 +117,13 @@ public final class VmLink {
     /**
      * @param sender
      * @param receiver
+     * @param capacity the maximum number of queued messages, 0 for a synchronous link
      */
-    VmLink(VmIsolate sender, VmIsolate receiver) {
+    VmLink(VmIsolate sender, VmIsolate receiver, int capacity) {
         this.sender = sender;
         this.receiver = receiver;
+        this.capacity = capacity;
+        this.messages = new LinkMessageImpl[(capacity > 0) ? capacity : INITIAL_BUFFER_SIZE];
     }
 
     /**
@@ -116,6 +167,15 @@ public final class VmLink {
         return !closed;
     }
 
+    /**
+     * Is this an asynchronous link.
+     *
+     * @return {@code true} if senders do not wait for their messages to be received.
+     */
+    public final boolean isAsync() {
+        return (capacity > 0);
+    }
+
     /**
      * @return the receiver
      */
@@ -182,29 +242,56 @@ public final class VmLink {
      */
     final LinkMessage receive() throws ClosedLinkException,
         IllegalStateException, InterruptedIOException, IOException {
-        if (VmIsolate.currentIsolate() != receiver) {
-            // Current isolate is not the receiver
-            throw new IllegalStateException();
+        checkReceiver();
+        final LinkMessageImpl message;
+        synchronized (this) {
+            waitForMessages();
+            message = poll();
         }
-        if (this.closed) {
-            throw new ClosedLinkException();
+        // Copy the message before a waiting sender may change it
+        final LinkMessageImpl copy = message.cloneMessage();
+        if (capacity == 0) {
+            message.notifyReceived();
         }
-        final LinkMessageImpl message;
+        return copy;
+    }
+
+    /**
+     * Receives copies of up to length messages sent on this Link.
+     * <p/>
+     * The current thread will block in this method until at least one message
+     * is available. All messages that are available at that time, up to the
+     * given length, are then transferred in one go.
+     * <p/>
+     * See {@link #receive()} for the handling of closed links and interrupts.
+     *
+     * @param messages the array in which the received messages are stored
+     * @param offset   the index of the first received message in messages
+     * @param length   the maximum number of messages to receive
+     * @return the number of received messages, this is at least 1
+     */
+    final int receive(LinkMessage[] messages, int offset, int length) throws ClosedLinkException,
+        IllegalStateException, InterruptedIOException, IOException {
+        if ((offset < 0) || (length <= 0) || (offset + length > messages.length)) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkReceiver();
+        final int cnt;
         synchronized (this) {
-            while (messages.isEmpty()) {
-                if (this.closed) {
-                    throw new ClosedLinkException();
-                }
-                try {
-                    wait();
-                } catch (InterruptedException ex) {
-                    throw new InterruptedIOException();
-                }
+            waitForMessages();
+            cnt = Math.min(length, count);
+            for (int i = 0; i < cnt; i++) {
+                messages[offset + i] = poll();
+            }
+        }
+        for (int i = 0; i < cnt; i++) {
+            final LinkMessageImpl message = (LinkMessageImpl) messages[offset + i];
+            messages[offset + i] = message.cloneMessage();
+            if (capacity == 0) {
+                message.notifyReceived();
             }
-            message = messages.poll();
         }
-        message.notifyReceived();
-        return message.cloneMessage();
+        return cnt;
     }
 
     /**
@@ -217,6 +304,10 @@ public final class VmLink {
      * will occur and no object will be transferred. But if an exception occurs
      * on the receive(), the sender will see a successful transfer.
      * <p/>
+     * On an asynchronous link this method returns as soon as the message is
+     * queued. The data of the message is copied before it is queued, unless it
+     * is handed off, so the sender can reuse its buffer right away.
+     * <p/>
      * If the receiving isolate becomes terminated after this method is invoked
      * but before it returns, the link will be closed, a ClosedLinkException
      * will be thrown, any subsequent attempts to use send() will result in a
@@ -260,28 +351,70 @@ public final class VmLink {
      */
     final void send(LinkMessage message) throws ClosedLinkException,
         InterruptedIOException, IOException {
-        if (VmIsolate.currentIsolate() != sender) {
-            // Current isolate is not the sender for this message
-            throw new UnsupportedOperationException();
-        }
-        if (this.closed) {
-            throw new ClosedLinkException();
-        }
+        checkSender();
         final LinkMessageImpl messageImpl = (LinkMessageImpl) message;
+        final LinkMessageImpl queued = (capacity > 0) ? messageImpl.detachMessage() : messageImpl;
         synchronized (this) {
-            if (this.closed) {
-                throw new ClosedLinkException();
-            }
+            waitForSpace();
             // Send message
-            messages.add(messageImpl);
+            add(queued);
             notifyAll();
         }
 
-        // Wait for the message to be picked up by the receiver
-        try {
-            messageImpl.waitUntilReceived();
-        } catch (InterruptedException ex) {
-            throw new InterruptedIOException();
+        if (capacity == 0) {
+            // Wait for the message to be picked up by the receiver
+            try {
+                messageImpl.waitUntilReceived();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Sends the given messages on this Link.
+     * <p/>
+     * On an asynchronous link, the messages are queued in as few steps as
+     * the space in the link allows, and this method returns as soon as the last
+     * message is queued. On a synchronous link, all messages are queued at once
+     * and this method returns when the receiver has picked up all of them.
+     * <p/>
+     * See {@link #send(LinkMessage)} for the handling of closed links and interrupts.
+     *
+     * @param messages
+     * @throws ClosedLinkException
+     * @throws InterruptedIOException
+     * @throws IOException
+     */
+    final void send(LinkMessage[] messages) throws ClosedLinkException,
+        InterruptedIOException, IOException {
+        checkSender();
+        final int length = messages.length;
+        final LinkMessageImpl[] queued = new LinkMessageImpl[length];
+        for (int i = 0; i < length; i++) {
+            final LinkMessageImpl message = (LinkMessageImpl) messages[i];
+            queued[i] = (capacity > 0) ? message.detachMessage() : message;
+        }
+        int sent = 0;
+        while (sent < length) {
+            synchronized (this) {
+                waitForSpace();
+                do {
+                    add(queued[sent++]);
+                } while ((sent < length) && ((capacity == 0) || (count < capacity)));
+                notifyAll();
+            }
+        }
+
+        if (capacity == 0) {
+            // Wait for the messages to be picked up by the receiver
+            try {
+                for (LinkMessage message : messages) {
+                    ((LinkMessageImpl) message).waitUntilReceived();
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
         }
     }
 
@@ -296,8 +429,108 @@ public final class VmLink {
     public final synchronized void sendStatus(LinkMessage message) {
         if (!this.closed) {
             // Send message
-            messages.add((LinkMessageImpl) message);
+            add((LinkMessageImpl) message);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Check that the current isolate is the receiver of this link and
+     * that this link is open.
+     */
+    private void checkReceiver() throws ClosedLinkException {
+        if (VmIsolate.currentIsolate() != receiver) {
+            // Current isolate is not the receiver
+            throw new IllegalStateException();
+        }
+        if (this.closed) {
+            throw new ClosedLinkException();
+        }
+    }
+
+    /**
+     * Check that the current isolate is the sender of this link and
+     * that this link is open.
+     */
+    private void checkSender() throws ClosedLinkException {
+        if (VmIsolate.currentIsolate() != sender) {
+            // Current isolate is not the sender for this message
+            throw new UnsupportedOperationException();
+        }
+        if (this.closed) {
+            throw new ClosedLinkException();
+        }
+    }
+
+    /**
+     * Wait until there is at least one message in the ring buffer.
+     * The caller must hold the lock on this link.
+     */
+    private void waitForMessages() throws ClosedLinkException, InterruptedIOException {
+        while (count == 0) {
+            if (this.closed) {
+                throw new ClosedLinkException();
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Wait until there is space for at least one message in the ring buffer.
+     * The caller must hold the lock on this link.
+     */
+    private void waitForSpace() throws ClosedLinkException, InterruptedIOException {
+        while ((capacity > 0) && (count >= capacity) && !this.closed) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (this.closed) {
+            throw new ClosedLinkException();
+        }
+    }
+
+    /**
+     * Add a message to the tail of the ring buffer, growing the buffer if needed.
+     * The caller must hold the lock on this link.
+     *
+     * @param message
+     */
+    private void add(LinkMessageImpl message) {
+        if (count == messages.length) {
+            // Status messages may exceed the capacity of an asynchronous link
+            final LinkMessageImpl[] newMessages = new LinkMessageImpl[count * 2];
+            for (int i = 0; i < count; i++) {
+                newMessages[i] = messages[(head + i) % count];
+            }
+            messages = newMessages;
+            head = 0;
+        }
+        messages[(head + count) % messages.length] = message;
+        count++;
+    }
+
+    /**
+     * Remove the message at the head of the ring buffer.
+     * If a sender is waiting for space, it is notified.
+     * The caller must hold the lock on this link.
+     *
+     * @return the message
+     */
+    private LinkMessageImpl poll() {
+        final LinkMessageImpl message = messages[head];
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        count--;
+        if ((capacity > 0) && (count == capacity - 1)) {
             notifyAll();
         }
+        return message;
     }
 }
@@ -32,8 +32,10 @@ import org.jnode.vm.classmgr.VmClassLoader;
 import org.jnode.vm.classmgr.VmClassType;
 import org.jnode.vm.classmgr.VmNormalClass;
 import org.jnode.vm.classmgr.VmType;
+import org.jnode.vm.facade.GCListener;
 import org.jnode.vm.facade.GCStatistics;
 import org.jnode.vm.facade.HeapStatistics;
+import org.jnode.vm.facade.MemoryPoolStatistics;
 import org.jnode.vm.facade.ObjectFilter;
 import org.jnode.vm.facade.VmProcessor;
 import org.jnode.vm.facade.VmWriteBarrier;
@@ -78,6 +80,11 @@ public abstract class VmHeapManager extends VmSystemObject implements org.jnode.
      */
     private VmWriteBarrier writeBarrier;
 
+    /**
+     * Listeners notified after each garbage collection, replaced on every change
+     */
+    private GCListener[] gcListeners;
+
     /**
      * Initialize this instance
      */
@@ -225,6 +232,22 @@ public abstract class VmHeapManager extends VmSystemObject implements org.jnode.
         return newObj;
     }
 
+    /**
+     * This heap manager has no shared heap, so the object itself is returned.
+     *
+     * {@inheritDoc}
+     */
+    public Object shareObject(Object object) {
+        return object;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSharedObject(Object object) {
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -318,6 +341,72 @@ public abstract class VmHeapManager extends VmSystemObject implements org.jnode.
      */
     public abstract GCStatistics getStatistics();
 
+    /**
+     * This heap manager has no memory pool data.
+     *
+     * {@inheritDoc}
+     */
+    public MemoryPoolStatistics[] getMemoryPoolStatistics() {
+        return new MemoryPoolStatistics[0];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final synchronized void addGCListener(GCListener listener) {
+        final GCListener[] old = gcListeners;
+        final int cnt = (old == null) ? 0 : old.length;
+        final GCListener[] list = new GCListener[cnt + 1];
+        if (cnt > 0) {
+            System.arraycopy(old, 0, list, 0, cnt);
+        }
+        list[cnt] = listener;
+        gcListeners = list;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public final synchronized void removeGCListener(GCListener listener) {
+        final GCListener[] old = gcListeners;
+        if (old == null) {
+            return;
+        }
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == listener) {
+                if (old.length == 1) {
+                    gcListeners = null;
+                } else {
+                    final GCListener[] list = new GCListener[old.length - 1];
+                    System.arraycopy(old, 0, list, 0, i);
+                    System.arraycopy(old, i + 1, list, i, list.length - i);
+                    gcListeners = list;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notify all GC listeners that a garbage collection has finished.
+     * Errors thrown by a listener are reported and do not stop the others.
+     */
+    protected final void notifyGCListeners() {
+        final GCListener[] list = gcListeners;
+        if (list != null) {
+            final GCStatistics stats = getStatistics();
+            for (GCListener l : list) {
+                try {
+                    l.gcFinished(stats);
+                } catch (Throwable ex) {
+                    Unsafe.debug("Error in GC listener: ");
+                    Unsafe.debug(ex.toString());
+                    Unsafe.debug('\n');
+                }
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
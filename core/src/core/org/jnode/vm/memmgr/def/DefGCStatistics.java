@@ -28,7 +28,11 @@ import org.jnode.vm.objects.VmSystemObject;
  */
 final class DefGCStatistics extends VmSystemObject implements GCStatistics {
 
+    long collectionCount;
+    long collectionTime;
     long lastGCTime;
+    long lastStartTime;
+    long lastDuration;
     long lastMarkDuration;
     int lastMarkIterations;
     long lastSweepDuration;
@@ -37,8 +41,31 @@ final class DefGCStatistics extends VmSystemObject implements GCStatistics {
     long lastFreedBytes;
     long lastMarkedObjects;
 
+    public long getCollectionCount() {
+        return collectionCount;
+    }
+
+    public long getCollectionTime() {
+        return collectionTime;
+    }
+
+    public long getLastStartTime() {
+        return lastStartTime;
+    }
+
+    public long getLastDuration() {
+        return lastDuration;
+    }
+
+    public long getLastFreedBytes() {
+        return lastFreedBytes;
+    }
+
     public String toString() {
-        return "lastGCTime          " + lastGCTime + '\n' +
+        return "collectionCount     " + collectionCount + '\n' +
+            "collectionTime      " + collectionTime + '\n' +
+            "lastGCTime          " + lastGCTime + '\n' +
+            "lastDuration        " + lastDuration + '\n' +
             "lastMarkIterations  " + lastMarkIterations + '\n' +
             "lastMarkDuration    " + lastMarkDuration + '\n' +
             "lastSweepDuration   " + lastSweepDuration + '\n' +
@@ -0,0 +1,227 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.vm.memmgr.def;
+
+import org.jnode.vm.MemoryBlockManager;
+import org.jnode.vm.facade.MemoryPoolStatistics;
+import org.jnode.vm.objects.VmSystemObject;
+
+/**
+ * Usage data of one group of heaps of the default heap manager.
+ */
+final class DefMemoryPool extends VmSystemObject implements MemoryPoolStatistics {
+
+    /** The boot heap */
+    static final int BOOT_HEAP = 0;
+
+    /** The heaps used for normal allocations */
+    static final int NORMAL_HEAPS = 1;
+
+    /** The heap used for allocations during a GC */
+    static final int GC_HEAP = 2;
+
+    /** The heaps holding shared objects */
+    static final int SHARED_HEAPS = 3;
+
+    private final DefaultHeapManager heapManager;
+
+    private final String name;
+
+    private final int kind;
+
+    private final long init;
+
+    private long peakUsed;
+
+    private long peakCommitted;
+
+    private long usedBeforeGC = -1;
+
+    private long committedBeforeGC = -1;
+
+    private long usedAfterGC = -1;
+
+    private long committedAfterGC = -1;
+
+    DefMemoryPool(DefaultHeapManager heapManager, String name, int kind) {
+        this.heapManager = heapManager;
+        this.name = name;
+        this.kind = kind;
+        this.init = getCommitted();
+        updatePeak();
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getName()
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getInit()
+     */
+    public long getInit() {
+        return init;
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getUsed()
+     */
+    public long getUsed() {
+        if (kind == BOOT_HEAP) {
+            return heapManager.getBootHeap().getSize();
+        }
+        long used = 0;
+        for (VmDefaultHeap h = getFirstHeap(); h != null; h = getNextHeap(h)) {
+            used += h.getSize() - h.getFreeSize().toLong();
+        }
+        return used;
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getCommitted()
+     */
+    public long getCommitted() {
+        if (kind == BOOT_HEAP) {
+            return heapManager.getBootHeap().getSize();
+        }
+        long size = 0;
+        for (VmDefaultHeap h = getFirstHeap(); h != null; h = getNextHeap(h)) {
+            size += h.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Only the normal heaps and the shared heaps grow. The normal heaps
+     * can take all free memory blocks.
+     *
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getMax()
+     */
+    public long getMax() {
+        switch (kind) {
+            case NORMAL_HEAPS:
+                return getCommitted() + MemoryBlockManager.getFreeMemory();
+            case SHARED_HEAPS:
+                return -1;
+            default:
+                return getCommitted();
+        }
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getPeakUsed()
+     */
+    public synchronized long getPeakUsed() {
+        updatePeak();
+        return peakUsed;
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getPeakCommitted()
+     */
+    public synchronized long getPeakCommitted() {
+        updatePeak();
+        return peakCommitted;
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#resetPeakUsage()
+     */
+    public synchronized void resetPeakUsage() {
+        peakUsed = 0;
+        updatePeak();
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getUsedBeforeGC()
+     */
+    public long getUsedBeforeGC() {
+        return usedBeforeGC;
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getCommittedBeforeGC()
+     */
+    public long getCommittedBeforeGC() {
+        return committedBeforeGC;
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getUsedAfterGC()
+     */
+    public long getUsedAfterGC() {
+        return usedAfterGC;
+    }
+
+    /**
+     * @see org.jnode.vm.facade.MemoryPoolStatistics#getCommittedAfterGC()
+     */
+    public long getCommittedAfterGC() {
+        return committedAfterGC;
+    }
+
+    /**
+     * Record the usage at the start of a collection. This is also the
+     * highest usage since the previous collection.
+     * This method is called by the GC thread while all other threads are stopped.
+     */
+    final void gcStarted() {
+        usedBeforeGC = getUsed();
+        committedBeforeGC = getCommitted();
+        updatePeak();
+    }
+
+    /**
+     * Record the usage at the end of a collection.
+     * This method is called by the GC thread while all other threads are stopped.
+     */
+    final void gcFinished() {
+        usedAfterGC = getUsed();
+        committedAfterGC = getCommitted();
+    }
+
+    private void updatePeak() {
+        final long used = getUsed();
+        if (used > peakUsed) {
+            peakUsed = used;
+            peakCommitted = getCommitted();
+        }
+    }
+
+    private VmDefaultHeap getFirstHeap() {
+        switch (kind) {
+            case NORMAL_HEAPS:
+                return heapManager.getFirstNormalHeap();
+            case GC_HEAP:
+                return heapManager.getGCHeap();
+            case SHARED_HEAPS:
+                return heapManager.getSharedHeapList();
+            default:
+                return null;
+        }
+    }
+
+    private VmDefaultHeap getNextHeap(VmDefaultHeap heap) {
+        return (kind == GC_HEAP) ? null : heap.getNext();
+    }
+}
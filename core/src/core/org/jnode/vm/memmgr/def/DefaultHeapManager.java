@@ -21,6 +21,8 @@
 package org.jnode.vm.memmgr.def;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 import org.jnode.annotation.Inline;
 import org.jnode.annotation.MagicPermission;
@@ -30,11 +32,15 @@ import org.jnode.vm.VmMagic;
 import org.jnode.vm.classmgr.ObjectFlags;
 import org.jnode.vm.classmgr.ObjectLayout;
 import org.jnode.vm.classmgr.VmClassLoader;
+import org.jnode.vm.classmgr.VmArray;
+import org.jnode.vm.classmgr.VmArrayClass;
 import org.jnode.vm.classmgr.VmClassType;
+import org.jnode.vm.classmgr.VmField;
 import org.jnode.vm.classmgr.VmNormalClass;
 import org.jnode.vm.classmgr.VmType;
 import org.jnode.vm.facade.GCStatistics;
 import org.jnode.vm.facade.HeapStatistics;
+import org.jnode.vm.facade.MemoryPoolStatistics;
 import org.jnode.vm.facade.ObjectFilter;
 import org.jnode.vm.facade.ObjectVisitor;
 import org.jnode.vm.facade.VmProcessor;
@@ -43,6 +49,8 @@ import org.jnode.vm.memmgr.VmHeapManager;
 import org.jnode.vm.scheduler.Monitor;
 import org.vmmagic.unboxed.Address;
 import org.vmmagic.unboxed.Extent;
+import org.vmmagic.unboxed.ObjectReference;
+import org.vmmagic.unboxed.Offset;
 import org.vmmagic.unboxed.Word;
 
 @MagicPermission
@@ -53,6 +61,16 @@ public final class DefaultHeapManager extends VmHeapManager {
      */
     public static final int DEFAULT_HEAP_SIZE = 16 * 1024 * 1024;
 
+    /**
+     * Default size in bytes of a new shared heap
+     */
+    public static final int DEFAULT_SHARED_HEAP_SIZE = 1024 * 1024;
+
+    /**
+     * The reference offsets of objects without references
+     */
+    private static final int[] NO_REFERENCES = new int[0];
+
     /**
      * When this percentage of the free memory has been allocated, a GC is
      * triggered (0..1.0)
@@ -74,6 +92,11 @@ public final class DefaultHeapManager extends VmHeapManager {
      */
     private FinalizerThread finalizerThread;
 
+    /**
+     * The thread that notifies the GC listeners
+     */
+    private GCNotificationThread gcNotificationThread;
+
     /**
      * Monitor to synchronize heap access
      */
@@ -104,6 +127,22 @@ public final class DefaultHeapManager extends VmHeapManager {
      */
     private VmDefaultHeap gcHeap;
 
+    /**
+     * Linked list of the heaps holding shared objects. These heaps are
+     * not part of heapList, so they are never swept.
+     */
+    private VmDefaultHeap sharedHeapList;
+
+    /**
+     * The shared heap currently used for allocation
+     */
+    private VmDefaultHeap currentSharedHeap;
+
+    /**
+     * The memory pools reported to the management interfaces
+     */
+    private DefMemoryPool[] memoryPools;
+
     /**
      * The class of the default heap type. Set by initialize
      */
@@ -160,9 +199,233 @@ public final class DefaultHeapManager extends VmHeapManager {
             }
             heap = heap.getNext();
         }
+        return isSharedObject(ptr);
+    }
+
+    /**
+     * Is the given address the address of an object in a shared heap?
+     *
+     * @param ptr
+     * @return boolean
+     */
+    private boolean isSharedObject(Address ptr) {
+        VmDefaultHeap heap = sharedHeapList;
+        while (heap != null) {
+            if (heap.isObject(ptr)) {
+                return true;
+            }
+            heap = heap.getNext();
+        }
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSharedObject(Object object) {
+        return (object != null) && isSharedObject(ObjectReference.fromObject(object).toAddress());
+    }
+
+    /**
+     * Place a copy of the given object in the shared heap.
+     * <p/>
+     * The object is deeply immutable if all its reference instance fields are
+     * final, and all objects it refers to are deeply immutable. Primitive
+     * instance fields may be written, since they are often used as caches
+     * (e.g. String.hash). Arrays of primitives are copied as they are, so the
+     * caller must not change them. Arrays of references cannot be shared: a
+     * reference stored into a shared array later would never be seen by the GC.
+     * The object graph may contain cycles; every object is copied once.
+     * <p/>
+     * The whole graph is checked before anything is copied, so nothing is
+     * left behind in the shared heap when an object cannot be shared.
+     * <p/>
+     * Shared objects are permanently black, so the mark phase of the GC never
+     * visits their children. This is why they may only refer to other
+     * shared objects or to objects in the boot heap.
+     *
+     * @param object
+     * @return the shared copy of the object
+     */
+    public Object shareObject(Object object) {
+        if (!needsSharing(object)) {
+            return object;
+        }
+        final int slotSize = getCurrentProcessor().getArchitecture().getReferenceSize();
+
+        // Find and check all objects to copy. The graph is walked with an
+        // explicit stack, so long chains of objects don't overflow the thread stack.
+        final IdentityHashMap<Object, Object> copies = new IdentityHashMap<Object, Object>();
+        final ArrayList<Object> objects = new ArrayList<Object>();
+        final ArrayList<Object> stack = new ArrayList<Object>();
+        copies.put(object, null);
+        stack.add(object);
+        while (!stack.isEmpty()) {
+            final Object current = stack.remove(stack.size() - 1);
+            final VmClassType<?> currentClass = VmMagic.getObjectType(current);
+            checkShareable(currentClass);
+            objects.add(current);
+            final Address currentPtr = ObjectReference.fromObject(current).toAddress();
+            for (int offset : getReferenceOffsets(currentClass)) {
+                final Object child = currentPtr.loadObjectReference(Offset.fromIntZeroExtend(offset)).toObject();
+                if (needsSharing(child) && !copies.containsKey(child)) {
+                    copies.put(child, null);
+                    stack.add(child);
+                }
+            }
+        }
+
+        // Copy them, then let the copies refer to each other
+        for (Object current : objects) {
+            final VmClassType<?> currentClass = VmMagic.getObjectType(current);
+            final Address currentPtr = ObjectReference.fromObject(current).toAddress();
+            copies.put(current, allocSharedCopy(currentClass, currentPtr, getObjectSize(currentPtr, currentClass,
+                slotSize)));
+        }
+        for (Object current : objects) {
+            final VmClassType<?> currentClass = VmMagic.getObjectType(current);
+            final Address currentPtr = ObjectReference.fromObject(current).toAddress();
+            final Address sharedPtr = ObjectReference.fromObject(copies.get(current)).toAddress();
+            for (int offset : getReferenceOffsets(currentClass)) {
+                final Offset ofs = Offset.fromIntZeroExtend(offset);
+                final Object child = currentPtr.loadObjectReference(ofs).toObject();
+                final Object sharedChild = copies.get(child);
+                if (sharedChild != null) {
+                    sharedPtr.store(ObjectReference.fromObject(sharedChild), ofs);
+                }
+            }
+        }
+        return copies.get(object);
+    }
+
+    /**
+     * Does the given object have to be copied into the shared heap to be shared?
+     *
+     * @param object
+     * @return {@code false} for null, shared objects and objects in the boot heap.
+     */
+    private boolean needsSharing(Object object) {
+        if ((object == null) || isSharedObject(object)) {
+            return false;
+        }
+        // Objects in the boot heap are already shared by all isolates and never collected
+        return !bootHeap.isObject(ObjectReference.fromObject(object).toAddress());
+    }
+
+    /**
+     * Check that instances of the given class can be shared.
+     *
+     * @param objectClass
+     */
+    private void checkShareable(VmClassType<?> objectClass) {
+        if (!bootHeap.isObject(ObjectReference.fromObject(objectClass.getTIB()).toAddress())) {
+            // The TIB must be never be collected, since no-one marks it
+            throw new IllegalArgumentException("Type is not part of the boot image: " + objectClass.getName());
+        }
+        if (!objectClass.isArray()) {
+            checkFinalReferences((VmNormalClass<?>) objectClass);
+        } else if (!((VmArrayClass<?>) objectClass).isPrimitiveArray()) {
+            throw new IllegalArgumentException("Array of references cannot be shared: " + objectClass.getName());
+        }
+    }
+
+    /**
+     * Gets the offsets of the reference slots of the given shareable object.
+     *
+     * @param objectClass
+     * @return the offsets in bytes from the start of the object
+     */
+    private int[] getReferenceOffsets(VmClassType<?> objectClass) {
+        if (!objectClass.isArray()) {
+            return ((VmNormalClass<?>) objectClass).getReferenceOffsets();
+        }
+        // Only arrays of primitives are shared
+        return NO_REFERENCES;
+    }
+
+    /**
+     * Gets the size of the given object, without the object header.
+     *
+     * @param objectPtr
+     * @param objectClass
+     * @param slotSize
+     * @return the size in bytes
+     */
+    private int getObjectSize(Address objectPtr, VmClassType<?> objectClass, int slotSize) {
+        if (!objectClass.isArray()) {
+            return ((VmNormalClass<?>) objectClass).getObjectSize();
+        }
+        final VmArrayClass<?> arrayClass = (VmArrayClass<?>) objectClass;
+        final int length = objectPtr.loadInt(Offset.fromIntSignExtend(VmArray.LENGTH_OFFSET * slotSize));
+        final int elemSize = arrayClass.getComponentType().getTypeSize();
+        return (VmArray.DATA_OFFSET * slotSize) + (length * elemSize);
+    }
+
+    /**
+     * Check that all reference instance fields of the given class are final.
+     *
+     * @param cls
+     */
+    private void checkFinalReferences(VmNormalClass<?> cls) {
+        for (VmNormalClass<?> c = cls; c != null; c = c.getSuperClass()) {
+            final int cnt = c.getNoDeclaredFields();
+            for (int i = 0; i < cnt; i++) {
+                final VmField f = c.getDeclaredField(i);
+                if (!f.isStatic() && !f.isPrimitive() && !f.isFinal()) {
+                    throw new IllegalArgumentException("Field " + f.getName() + " of "
+                        + cls.getName() + " is not final");
+                }
+            }
+        }
+    }
+
+    /**
+     * Allocate an object in the shared heap and copy the contents of the given
+     * object into it. The new object is permanently black.
+     *
+     * @param vmClass
+     * @param objectPtr
+     * @param size
+     * @return the new object
+     */
+    private Object allocSharedCopy(VmClassType<?> vmClass, Address objectPtr, int size) {
+        final int alignedSize = ObjectLayout.objectAlign(size);
+        Object result = null;
+        final Monitor m = heapMonitor;
+        if (m != null) {
+            m.enter();
+        }
+        try {
+            VmDefaultHeap heap = currentSharedHeap;
+            while (result == null) {
+                if (heap == null) {
+                    heap = allocHeap(Extent.fromIntZeroExtend(Math.max(DEFAULT_SHARED_HEAP_SIZE, size)), false);
+                    if (heap == null) {
+                        throw OOME;
+                    }
+                    if (sharedHeapList == null) {
+                        sharedHeapList = heap;
+                    } else {
+                        sharedHeapList.append(heap);
+                    }
+                    currentSharedHeap = heap;
+                }
+                result = heap.alloc(vmClass, alignedSize);
+                if (result == null) {
+                    heap = heap.getNext();
+                }
+            }
+            vmClass.incInstanceCount();
+            helper.copy(objectPtr, ObjectReference.fromObject(result).toAddress(), Extent.fromIntZeroExtend(size));
+            VmMagic.setObjectFlags(result, Word.fromIntZeroExtend(ObjectFlags.GC_BLACK));
+        } finally {
+            if (m != null) {
+                m.exit();
+            }
+        }
+        return result;
+    }
+
     /**
      * Is the system low on memory?
      *
@@ -209,6 +472,11 @@ public final class DefaultHeapManager extends VmHeapManager {
             size += h.getSize();
             h = h.getNext();
         }
+        h = sharedHeapList;
+        while (h != null) {
+            size += h.getSize();
+            h = h.getNext();
+        }
         // size += (Unsafe.addressToLong(heapEnd) -
         // Unsafe.addressToLong(nextHeapPtr));
         size += MemoryBlockManager.getFreeMemory();
@@ -225,6 +493,33 @@ public final class DefaultHeapManager extends VmHeapManager {
         return heapList;
     }
 
+    /**
+     * Gets the first heap used for normal allocations.
+     *
+     * @return the first normal heap
+     */
+    final VmDefaultHeap getFirstNormalHeap() {
+        return firstNormalHeap;
+    }
+
+    /**
+     * Gets the heap used for allocations during a GC.
+     *
+     * @return the GC heap
+     */
+    final VmDefaultHeap getGCHeap() {
+        return gcHeap;
+    }
+
+    /**
+     * Gets the first shared heap, or {@code null} if no object has been shared yet.
+     *
+     * @return the first shared heap
+     */
+    final VmDefaultHeap getSharedHeapList() {
+        return sharedHeapList;
+    }
+
     // ------------------------------------------
     // Private natives
     // ------------------------------------------
@@ -256,11 +551,19 @@ public final class DefaultHeapManager extends VmHeapManager {
         // Create a Heap monitor
         heapMonitor = new Monitor();
         final BaseVmArchitecture arch = getCurrentProcessor().getArchitecture();
+        this.memoryPools = new DefMemoryPool[]{
+            new DefMemoryPool(this, "Boot heap", DefMemoryPool.BOOT_HEAP),
+            new DefMemoryPool(this, "Normal heaps", DefMemoryPool.NORMAL_HEAPS),
+            new DefMemoryPool(this, "GC heap", DefMemoryPool.GC_HEAP),
+            new DefMemoryPool(this, "Shared heaps", DefMemoryPool.SHARED_HEAPS),
+        };
         this.gcManager = new GCManager(this, arch);
         this.gcThread = new GCThread(gcManager, heapMonitor);
         this.finalizerThread = new FinalizerThread(this);
+        this.gcNotificationThread = new GCNotificationThread(this);
         gcThread.start();
         finalizerThread.start();
+        gcNotificationThread.start();
         // Calculate the trigger size
         triggerSize = (int) Math.min(Integer.MAX_VALUE, getFreeMemory()
             * GC_TRIGGER_PERCENTAGE);
@@ -448,6 +751,53 @@ public final class DefaultHeapManager extends VmHeapManager {
         return gcManager.getStatistics();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public MemoryPoolStatistics[] getMemoryPoolStatistics() {
+        final DefMemoryPool[] pools = memoryPools;
+        if (pools == null) {
+            return super.getMemoryPoolStatistics();
+        }
+        final MemoryPoolStatistics[] result = new MemoryPoolStatistics[pools.length];
+        System.arraycopy(pools, 0, result, 0, pools.length);
+        return result;
+    }
+
+    /**
+     * Record the usage of all memory pools at the start of a collection.
+     */
+    final void gcStarted() {
+        for (DefMemoryPool pool : memoryPools) {
+            pool.gcStarted();
+        }
+    }
+
+    /**
+     * Record the usage of all memory pools at the end of a collection.
+     */
+    final void gcFinished() {
+        for (DefMemoryPool pool : memoryPools) {
+            pool.gcFinished();
+        }
+    }
+
+    /**
+     * Let the GC notification thread notify the GC listeners of a finished
+     * collection. This method is called by the GC thread.
+     */
+    final void triggerGCNotification() {
+        gcNotificationThread.trigger();
+    }
+
+    /**
+     * Notify the GC listeners of a finished collection.
+     * This method is called by the GC notification thread.
+     */
+    final void fireGCFinished() {
+        notifyGCListeners();
+    }
+
     /**
      * {@inheritDoc}
      */
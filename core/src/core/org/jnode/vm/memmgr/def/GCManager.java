@@ -53,6 +53,11 @@ final class GCManager extends VmSystemObject implements Uninterruptible {
      */
     private final GCMarkVisitor markVisitor;
 
+    /**
+     * An object visitor used for marking the monitors of shared objects
+     */
+    private final GCSharedMonitorVisitor sharedMonitorVisitor;
+
     /**
      * An object visitor used for sweeping
      */
@@ -98,6 +103,7 @@ final class GCManager extends VmSystemObject implements Uninterruptible {
         this.helper = heapManager.getHelper();
         this.markStack = new GCStack();
         this.markVisitor = new GCMarkVisitor(heapManager, arch, markStack);
+        this.sharedMonitorVisitor = new GCSharedMonitorVisitor(heapManager, arch, markVisitor);
         this.setWhiteVisitor = new GCSetWhiteVisitor(heapManager);
         this.verifyVisitor = new GCVerifyVisitor(heapManager, arch);
         this.sweepVisitor = new GCSweepVisitor(heapManager);
@@ -115,8 +121,11 @@ final class GCManager extends VmSystemObject implements Uninterruptible {
 
         final boolean locking = (writeBarrier != null);
         final boolean verbose = (heapManager.getHeapFlags() & VmHeapManager.TRACE_BASIC) != 0;
+        final long startTime = VmSystem.currentKernelMillis();
         helper.stopThreadsAtSafePoint();
         heapManager.setGcActive(true);
+        final long freeBefore = heapManager.getFreeMemory();
+        heapManager.gcStarted();
         try {
             // Pre-GC verification
             if (debug) {
@@ -153,6 +162,8 @@ final class GCManager extends VmSystemObject implements Uninterruptible {
                 heapManager.debug("<cleanup/>");
             }
             cleanup(bootHeap, firstHeap);
+            heapManager.gcFinished();
+            stats.lastFreedBytes = Math.max(0L, heapManager.getFreeMemory() - freeBefore);
 
             // Verification
             if (debug) {
@@ -169,9 +180,17 @@ final class GCManager extends VmSystemObject implements Uninterruptible {
             heapManager.resetCurrentHeap();
             helper.restartThreads();
         }
+        final long endTime = VmSystem.currentKernelMillis();
+        stats.lastStartTime = startTime;
+        stats.lastDuration = endTime - startTime;
+        stats.collectionTime += stats.lastDuration;
+        stats.collectionCount++;
 
         // Start the finalization process
         heapManager.triggerFinalization();
+
+        // Notify the GC listeners
+        heapManager.triggerGCNotification();
     }
 
     /**
@@ -202,6 +221,12 @@ final class GCManager extends VmSystemObject implements Uninterruptible {
             markVisitor.setRootSet(true);
             // Mark all roots
             helper.visitAllRoots(markVisitor, heapManager);
+            // Shared objects are never traversed, so mark their monitors here
+            VmDefaultHeap sharedHeap = heapManager.getSharedHeapList();
+            while ((sharedHeap != null) && (!markStack.isOverflow())) {
+                sharedHeap.walk(sharedMonitorVisitor, locking, Word.zero(), Word.zero());
+                sharedHeap = sharedHeap.getNext();
+            }
 //            statics.walk(markVisitor, resolver);
 //            helper.visitAllThreads(threadMarkVisitor);
             // Mark every object in the rootset
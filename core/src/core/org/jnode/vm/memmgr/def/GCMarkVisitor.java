@@ -137,6 +137,19 @@ final class GCMarkVisitor extends ObjectVisitor implements ObjectFlags,
         return rc;
     }
 
+    /**
+     * Mark an object that is referenced from outside the normal object graph,
+     * such as the inflated monitor of a shared object.
+     *
+     * @param child
+     * @return false if the mark stack has overflowed, true otherwise.
+     */
+    final boolean visitChild(Object child) {
+        processChild(child);
+        mark();
+        return (!stack.isOverflow());
+    }
+
     /**
      * Reset this visitor to its original state.
      */
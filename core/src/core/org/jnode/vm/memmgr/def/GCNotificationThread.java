@@ -0,0 +1,108 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.vm.memmgr.def;
+
+import org.jnode.bootlog.BootLogInstance;
+import org.jnode.vm.scheduler.Monitor;
+
+/**
+ * Thread used to notify the GC listeners of finished collections. The GC
+ * thread must not run listener code, since listeners take locks and allocate
+ * objects.
+ * <p/>
+ * Collections that finish while the listeners are still being notified of an
+ * earlier one are reported by a single notification.
+ */
+final class GCNotificationThread extends Thread {
+
+    /**
+     * The heap manager
+     */
+    private final DefaultHeapManager heapManager;
+
+    /**
+     * Monitor for synchronizing access to my fields
+     */
+    private final Monitor monitor;
+
+    /**
+     * The number of triggers received
+     */
+    private int triggerCount;
+
+    /**
+     * The number of triggers handled
+     */
+    private int runCount;
+
+    /**
+     * Initialize this instance.
+     *
+     * @param heapManager
+     */
+    public GCNotificationThread(DefaultHeapManager heapManager) {
+        super("gc-notification-thread");
+        this.heapManager = heapManager;
+        this.monitor = new Monitor();
+    }
+
+    /**
+     * Trigger a notification of the GC listeners and return immediately.
+     */
+    public final void trigger() {
+        triggerCount++;
+        monitor.enter();
+        try {
+            monitor.NotifyAll();
+        } finally {
+            monitor.exit();
+        }
+    }
+
+    /**
+     * Notify the GC listeners after every trigger.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public final void run() {
+        while (true) {
+            try {
+                monitor.enter();
+                try {
+                    while (triggerCount == runCount) {
+                        monitor.Wait(0L);
+                    }
+                    runCount = triggerCount;
+                } finally {
+                    monitor.exit();
+                }
+                // Notify outside of the monitor, the listeners take their own locks
+                heapManager.fireGCFinished();
+            } catch (Throwable ex) {
+                try {
+                    BootLogInstance.get().error("Error in GCNotificationThread", ex);
+                } catch (Throwable ex2) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
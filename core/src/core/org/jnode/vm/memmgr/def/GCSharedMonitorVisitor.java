@@ -0,0 +1,65 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.vm.memmgr.def;
+
+import org.jnode.annotation.MagicPermission;
+import org.jnode.vm.BaseVmArchitecture;
+import org.jnode.vm.facade.ObjectVisitor;
+import org.jnode.vm.memmgr.HeapHelper;
+import org.jnode.vm.scheduler.Monitor;
+import org.vmmagic.pragma.Uninterruptible;
+
+/**
+ * Marks the inflated monitors of the objects in the shared heaps.
+ * Shared objects are permanently black, so the mark visitor never
+ * reaches the monitors referenced from their headers.
+ */
+@MagicPermission
+final class GCSharedMonitorVisitor extends ObjectVisitor implements Uninterruptible {
+
+    private final GCMarkVisitor markVisitor;
+
+    private final BaseVmArchitecture arch;
+
+    private final HeapHelper helper;
+
+    public GCSharedMonitorVisitor(DefaultHeapManager heapMgr, BaseVmArchitecture arch,
+                                  GCMarkVisitor markVisitor) {
+        this.helper = heapMgr.getHelper();
+        this.arch = arch;
+        this.markVisitor = markVisitor;
+    }
+
+    /**
+     * Mark the inflated monitor of every visited object.
+     *
+     * @param object
+     * @return boolean
+     */
+    public boolean visit(Object object) {
+        final Monitor monitor = helper.getInflatedMonitor(object, arch);
+        if (monitor != null) {
+            return markVisitor.visitChild(monitor);
+        }
+        return true;
+    }
+
+}
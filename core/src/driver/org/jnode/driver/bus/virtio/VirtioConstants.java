@@ -0,0 +1,85 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.bus.virtio;
+
+/**
+ * Registers and structures of the legacy virtio PCI interface.
+ *
+ * @see "Virtual I/O Device (VIRTIO) Version 1.0, section 4.1.4.8 Legacy Interfaces"
+ */
+public interface VirtioConstants {
+
+    /**
+     * PCI vendor of all virtio devices
+     */
+    public static final int VIRTIO_VENDOR = 0x1AF4;
+
+    /* Transitional PCI device IDs */
+    public static final int VIRTIO_ID_NET = 0x1000;
+    public static final int VIRTIO_ID_BLOCK = 0x1001;
+
+    /* Legacy registers, relative to the I/O base address */
+    public static final int R32_DEVICE_FEATURES = 0x00;
+    public static final int RW32_DRIVER_FEATURES = 0x04;
+    public static final int RW32_QUEUE_PFN = 0x08; /* Physical page number of the queue */
+    public static final int R16_QUEUE_SIZE = 0x0C;
+    public static final int RW16_QUEUE_SELECT = 0x0E;
+    public static final int RW16_QUEUE_NOTIFY = 0x10;
+    public static final int RW8_DEVICE_STATUS = 0x12;
+    public static final int R8_ISR_STATUS = 0x13; /* Reading clears the status */
+    public static final int DEVICE_CONFIG = 0x14; /* Device specific configuration, without MSI-X */
+
+    /* Bits of the device status */
+    public static final int STATUS_ACKNOWLEDGE = 0x01;
+    public static final int STATUS_DRIVER = 0x02;
+    public static final int STATUS_DRIVER_OK = 0x04;
+    public static final int STATUS_FAILED = 0x80;
+
+    /* Bits of the ISR status */
+    public static final int ISR_QUEUE = 0x01;
+    public static final int ISR_CONFIG = 0x02;
+
+    /* Feature bits of the rings */
+    public static final int F_RING_EVENT_IDX = 1 << 29;
+
+    /**
+     * Page size of the legacy queue layout
+     */
+    public static final int QUEUE_ALIGN = 4096;
+
+    /* Descriptor table */
+    public static final int DESC_SIZE = 16;
+    public static final int DESC_F_NEXT = 1;
+    public static final int DESC_F_WRITE = 2; /* Device writes into the buffer */
+
+    /* Available ring */
+    public static final int AVAIL_FLAGS = 0;
+    public static final int AVAIL_IDX = 2;
+    public static final int AVAIL_RING = 4;
+    public static final int AVAIL_F_NO_INTERRUPT = 1;
+
+    /* Used ring */
+    public static final int USED_FLAGS = 0;
+    public static final int USED_IDX = 2;
+    public static final int USED_RING = 4;
+    public static final int USED_ELEM_SIZE = 8;
+    public static final int USED_F_NO_NOTIFY = 1;
+}
@@ -0,0 +1,262 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.bus.virtio;
+
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.NameNotFoundException;
+import org.jnode.driver.DriverException;
+import org.jnode.driver.bus.pci.PCIBaseAddress;
+import org.jnode.driver.bus.pci.PCIConstants;
+import org.jnode.driver.bus.pci.PCIDevice;
+import org.jnode.driver.bus.pci.PCIDeviceConfig;
+import org.jnode.driver.bus.pci.PCIHeaderType0;
+import org.jnode.naming.InitialNaming;
+import org.jnode.system.resource.IOResource;
+import org.jnode.system.resource.MemoryResource;
+import org.jnode.system.resource.ResourceManager;
+import org.jnode.system.resource.ResourceNotFreeException;
+import org.jnode.system.resource.ResourceOwner;
+import org.jnode.util.AccessControllerUtils;
+import org.jnode.vm.Unsafe;
+
+/**
+ * The legacy virtio PCI transport of a device: its registers in the first
+ * I/O base address and the memory of its virtqueues.
+ * <p/>
+ * A driver resets the device, acknowledges it, negotiates the features,
+ * creates the queues and then sets {@link #STATUS_DRIVER_OK}.
+ */
+public class VirtioPCITransport implements VirtioConstants {
+
+    private final ResourceManager rm;
+
+    private final ResourceOwner owner;
+
+    private final IOResource io;
+
+    private final int iobase;
+
+    private final int irq;
+
+    /**
+     * The queues created
+     */
+    private final List<Virtqueue> queues = new ArrayList<Virtqueue>();
+
+    /**
+     * Claim the registers of a virtio device.
+     *
+     * @param device the PCI device
+     * @param owner  the owner of the resources
+     * @throws DriverException
+     * @throws ResourceNotFreeException
+     */
+    public VirtioPCITransport(PCIDevice device, ResourceOwner owner)
+        throws DriverException, ResourceNotFreeException {
+        this.owner = owner;
+        try {
+            rm = InitialNaming.lookup(ResourceManager.NAME);
+        } catch (NameNotFoundException ex) {
+            throw new DriverException("Cannot find ResourceManager");
+        }
+
+        final PCIDeviceConfig pciCfg = device.getConfig();
+        final PCIHeaderType0 config = pciCfg.asHeaderType0();
+        final PCIBaseAddress[] addrs = config.getBaseAddresses();
+        if ((addrs.length < 1) || !addrs[0].isIOSpace()) {
+            throw new DriverException("No legacy virtio I/O space, is the device transitional?");
+        }
+        this.iobase = addrs[0].getIOBase();
+        this.irq = config.getInterruptLine();
+        this.io = claimPorts(rm, owner, iobase, addrs[0].getSize());
+
+        pciCfg.setCommand(pciCfg.getCommand() | PCIConstants.PCI_COMMAND_IO | PCIConstants.PCI_COMMAND_MASTER);
+    }
+
+    /**
+     * Gets the interrupt line of the device.
+     *
+     * @return the IRQ
+     */
+    public int getIRQ() {
+        return irq;
+    }
+
+    /**
+     * Reset the device. It stops using its queues.
+     */
+    public void reset() {
+        io.outPortByte(iobase + RW8_DEVICE_STATUS, 0);
+    }
+
+    /**
+     * Gets the device status.
+     *
+     * @return the status bits
+     */
+    public int getStatus() {
+        return io.inPortByte(iobase + RW8_DEVICE_STATUS);
+    }
+
+    /**
+     * Add bits to the device status.
+     *
+     * @param bits the {@code STATUS_*} bits
+     */
+    public void addStatus(int bits) {
+        io.outPortByte(iobase + RW8_DEVICE_STATUS, getStatus() | bits);
+    }
+
+    /**
+     * Accept the features both the driver and the device support.
+     *
+     * @param wanted the features the driver supports
+     * @return the features in use
+     */
+    public int negotiateFeatures(int wanted) {
+        final int features = io.inPortDword(iobase + R32_DEVICE_FEATURES) & wanted;
+        io.outPortDword(iobase + RW32_DRIVER_FEATURES, features);
+        return features;
+    }
+
+    /**
+     * Read a byte of the device specific configuration.
+     */
+    public int getConfig8(int offset) {
+        return io.inPortByte(iobase + DEVICE_CONFIG + offset);
+    }
+
+    /**
+     * Read a 16-bit value of the device specific configuration.
+     */
+    public int getConfig16(int offset) {
+        return io.inPortWord(iobase + DEVICE_CONFIG + offset);
+    }
+
+    /**
+     * Read a 32-bit value of the device specific configuration.
+     */
+    public int getConfig32(int offset) {
+        return io.inPortDword(iobase + DEVICE_CONFIG + offset);
+    }
+
+    /**
+     * Read a 64-bit value of the device specific configuration.
+     */
+    public long getConfig64(int offset) {
+        final long low = getConfig32(offset) & 0xFFFFFFFFL;
+        final long high = getConfig32(offset + 4) & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    /**
+     * Create a queue of the device and hand its memory to the device.
+     *
+     * @param index    the index of the queue
+     * @param eventIdx suppress notifications and interrupts through event indices;
+     *                 only if {@link #F_RING_EVENT_IDX} has been negotiated
+     * @return the queue
+     * @throws DriverException if the device does not have the queue
+     * @throws ResourceNotFreeException
+     */
+    public Virtqueue createQueue(int index, boolean eventIdx) throws DriverException, ResourceNotFreeException {
+        io.outPortWord(iobase + RW16_QUEUE_SELECT, index);
+        final int size = io.inPortWord(iobase + R16_QUEUE_SIZE);
+        if (size == 0) {
+            throw new DriverException("Virtio device has no queue " + index);
+        }
+        if (io.inPortDword(iobase + RW32_QUEUE_PFN) != 0) {
+            throw new DriverException("Virtio queue " + index + " is already in use");
+        }
+
+        // Resources are allocated on 64Kb boundaries, which satisfies the page alignment
+        final MemoryResource mem = rm.claimMemoryResource(owner, null, Virtqueue.getMemorySize(size),
+            ResourceManager.MEMMODE_NORMAL);
+        mem.clear(0, Virtqueue.getMemorySize(size));
+        final Virtqueue queue = new Virtqueue(this, index, size, mem, eventIdx);
+        io.outPortDword(iobase + RW32_QUEUE_PFN, (int) (queue.getAddress() / QUEUE_ALIGN));
+        queues.add(queue);
+        return queue;
+    }
+
+    /**
+     * Notify the device of new buffers in a queue.
+     *
+     * @param index the index of the queue
+     */
+    public void notifyQueue(int index) {
+        io.outPortWord(iobase + RW16_QUEUE_NOTIFY, index);
+    }
+
+    /**
+     * Order the stores to the rings before the following loads from them.
+     * The device runs on another processor and may otherwise not see a store
+     * before the driver reads the index it wrote in return.
+     */
+    public void memoryBarrier() {
+        Unsafe.memoryBarrier();
+    }
+
+    /**
+     * Read and clear the interrupt status.
+     *
+     * @return the {@code ISR_*} bits, 0 if the interrupt was not for this device
+     */
+    public int getISRStatus() {
+        return io.inPortByte(iobase + R8_ISR_STATUS);
+    }
+
+    /**
+     * Reset the device and release its queues, so they can be created again.
+     */
+    public void releaseQueues() {
+        reset();
+        for (Virtqueue queue : queues) {
+            queue.release();
+        }
+        queues.clear();
+    }
+
+    /**
+     * Reset the device and release its queues and registers.
+     */
+    public void release() {
+        releaseQueues();
+        io.release();
+    }
+
+    private static IOResource claimPorts(final ResourceManager rm, final ResourceOwner owner, final int low,
+                                         final int length) throws ResourceNotFreeException, DriverException {
+        try {
+            return AccessControllerUtils.doPrivileged(new PrivilegedExceptionAction<IOResource>() {
+                public IOResource run() throws ResourceNotFreeException {
+                    return rm.claimIOResource(owner, low, length);
+                }
+            });
+        } catch (ResourceNotFreeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new DriverException("Unknown exception", ex);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.bus.virtio;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jnode.system.resource.MemoryResource;
+
+/**
+ * A split virtqueue in the legacy layout: the descriptor table and the
+ * available ring, followed by the used ring on the next page.
+ * <p/>
+ * Drivers add chains of buffers with {@link #add(long[], int[], int, Object)}
+ * and make them visible to the device with a single {@link #kick()}, which
+ * only notifies the device when it asked for it. Finished chains are taken
+ * back with {@link #processUsed(Handler)}.
+ */
+public final class Virtqueue implements VirtioConstants {
+
+    /**
+     * Receives the buffers the device has finished with.
+     */
+    public static interface Handler {
+
+        /**
+         * A chain of buffers has been used by the device.
+         *
+         * @param token  the token given when the chain was added
+         * @param length the number of bytes the device wrote into the chain
+         */
+        public void used(Object token, int length);
+    }
+
+    private final VirtioPCITransport transport;
+
+    /**
+     * The index of this queue on its device
+     */
+    private final int index;
+
+    /**
+     * The number of descriptors
+     */
+    private final int size;
+
+    /**
+     * The memory of the rings
+     */
+    private final MemoryResource mem;
+
+    private final int availOffset;
+
+    private final int usedOffset;
+
+    /**
+     * Are notifications and interrupts suppressed through event indices?
+     */
+    private final boolean eventIdx;
+
+    /**
+     * The tokens of the chains in flight, by head descriptor
+     */
+    private final Object[] tokens;
+
+    /**
+     * The first free descriptor; the free descriptors are linked through their next field
+     */
+    private int freeHead;
+
+    private int nrFree;
+
+    /**
+     * The index of the next entry of the available ring
+     */
+    private int availIdx;
+
+    /**
+     * The available index the device has been told about
+     */
+    private int kickedIdx;
+
+    /**
+     * The index of the next entry of the used ring to process
+     */
+    private int lastUsedIdx;
+
+    /**
+     * Create a new instance. Drivers get their queues from
+     * {@link VirtioPCITransport#createQueue(int, boolean)}.
+     *
+     * @param transport the transport of the device
+     * @param index     the index of the queue
+     * @param size      the number of descriptors
+     * @param mem       zeroed memory of {@link #getMemorySize(int)} bytes, aligned on a page
+     * @param eventIdx  use event indices to suppress notifications and interrupts
+     */
+    public Virtqueue(VirtioPCITransport transport, int index, int size, MemoryResource mem, boolean eventIdx) {
+        this.transport = transport;
+        this.index = index;
+        this.size = size;
+        this.mem = mem;
+        this.eventIdx = eventIdx;
+        this.availOffset = size * DESC_SIZE;
+        this.usedOffset = align(availOffset + AVAIL_RING + size * 2 + 2);
+        this.tokens = new Object[size];
+        for (int i = 0; i < size - 1; i++) {
+            mem.setShort(i * DESC_SIZE + 14, (short) (i + 1));
+        }
+        this.freeHead = 0;
+        this.nrFree = size;
+    }
+
+    /**
+     * Gets the number of bytes of memory needed for a queue.
+     *
+     * @param size the number of descriptors
+     * @return the size of the memory
+     */
+    public static int getMemorySize(int size) {
+        final int usedOffset = align(size * DESC_SIZE + AVAIL_RING + size * 2 + 2);
+        return usedOffset + align(USED_RING + size * USED_ELEM_SIZE + 2);
+    }
+
+    /**
+     * Gets the index of this queue on its device.
+     *
+     * @return the index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the number of descriptors of this queue.
+     *
+     * @return the number of descriptors
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of free descriptors.
+     *
+     * @return the number of descriptors not in flight
+     */
+    public synchronized int getFreeCount() {
+        return nrFree;
+    }
+
+    /**
+     * Add a chain of buffers. The device does not see it before the next {@link #kick()}.
+     *
+     * @param addresses the physical addresses of the buffers
+     * @param lengths   the lengths of the buffers
+     * @param nrOut     the number of buffers the device reads; the others it writes into
+     * @param token     the token identifying the chain once it is used
+     * @return false if there are not enough free descriptors, true otherwise
+     */
+    public synchronized boolean add(long[] addresses, int[] lengths, int nrOut, Object token) {
+        final int count = addresses.length;
+        if ((count == 0) || (count > nrFree)) {
+            return false;
+        }
+
+        final int head = freeHead;
+        int desc = head;
+        for (int i = 0; i < count; i++) {
+            final int offset = desc * DESC_SIZE;
+            mem.setLong(offset, addresses[i]);
+            mem.setInt(offset + 8, lengths[i]);
+            final int flags = ((i >= nrOut) ? DESC_F_WRITE : 0) | ((i < count - 1) ? DESC_F_NEXT : 0);
+            mem.setShort(offset + 12, (short) flags);
+            // The next field already links to the next free descriptor
+            desc = mem.getShort(offset + 14) & 0xFFFF;
+        }
+        freeHead = desc;
+        nrFree -= count;
+        tokens[head] = token;
+
+        mem.setShort(availOffset + AVAIL_RING + (availIdx % size) * 2, (short) head);
+        availIdx = (availIdx + 1) & 0xFFFF;
+        return true;
+    }
+
+    /**
+     * Make the added chains visible to the device and notify it, unless it
+     * asked not to be notified.
+     */
+    public void kick() {
+        final boolean notify;
+        synchronized (this) {
+            final int old = kickedIdx;
+            final int now = availIdx;
+            if (old == now) {
+                return;
+            }
+            mem.setShort(availOffset + AVAIL_IDX, (short) now);
+            kickedIdx = now;
+            // The device must see the new index before its notification suppression is read
+            transport.memoryBarrier();
+            if (eventIdx) {
+                final int event = mem.getShort(usedOffset + USED_RING + size * USED_ELEM_SIZE) & 0xFFFF;
+                notify = needEvent(event, now, old);
+            } else {
+                notify = (mem.getShort(usedOffset + USED_FLAGS) & USED_F_NO_NOTIFY) == 0;
+            }
+        }
+        if (notify) {
+            transport.notifyQueue(index);
+        }
+    }
+
+    /**
+     * Take back the chains the device has finished with.
+     *
+     * @param handler receives the token and length of every chain
+     * @return the number of chains taken back
+     */
+    public int processUsed(Handler handler) {
+        final List<Object> usedTokens = new ArrayList<Object>();
+        final List<Integer> usedLengths = new ArrayList<Integer>();
+        synchronized (this) {
+            final int usedIdx = mem.getShort(usedOffset + USED_IDX) & 0xFFFF;
+            while (lastUsedIdx != usedIdx) {
+                final int elem = usedOffset + USED_RING + (lastUsedIdx % size) * USED_ELEM_SIZE;
+                final int head = mem.getInt(elem);
+                usedTokens.add(tokens[head]);
+                usedLengths.add(mem.getInt(elem + 4));
+                tokens[head] = null;
+                free(head);
+                lastUsedIdx = (lastUsedIdx + 1) & 0xFFFF;
+            }
+        }
+        for (int i = 0; i < usedTokens.size(); i++) {
+            handler.used(usedTokens.get(i), usedLengths.get(i));
+        }
+        return usedTokens.size();
+    }
+
+    /**
+     * Ask the device not to interrupt for this queue, e.g. while processing the used chains.
+     * With event indices the flags stay 0; leaving the used event where it is
+     * already keeps the device from interrupting again.
+     */
+    public synchronized void disableInterrupts() {
+        if (!eventIdx) {
+            mem.setShort(availOffset + AVAIL_FLAGS, (short) AVAIL_F_NO_INTERRUPT);
+        }
+    }
+
+    /**
+     * Ask the device to interrupt again once it has used the next chain.
+     *
+     * @return true if chains have been used in the meantime, which the caller should process
+     */
+    public synchronized boolean enableInterrupts() {
+        if (eventIdx) {
+            mem.setShort(availOffset + AVAIL_RING + size * 2, (short) lastUsedIdx);
+        } else {
+            mem.setShort(availOffset + AVAIL_FLAGS, (short) 0);
+        }
+        // Otherwise a chain used before the device saw the store would not interrupt, nor be seen here
+        transport.memoryBarrier();
+        return (mem.getShort(usedOffset + USED_IDX) & 0xFFFF) != lastUsedIdx;
+    }
+
+    /**
+     * Gets the physical address of the rings.
+     */
+    long getAddress() {
+        return mem.getAddress().toLong();
+    }
+
+    /**
+     * Release the memory of the rings.
+     */
+    void release() {
+        mem.release();
+    }
+
+    /**
+     * Return a chain to the free descriptors.
+     */
+    private void free(int head) {
+        int desc = head;
+        int count = 1;
+        while ((mem.getShort(desc * DESC_SIZE + 12) & DESC_F_NEXT) != 0) {
+            desc = mem.getShort(desc * DESC_SIZE + 14) & 0xFFFF;
+            count++;
+        }
+        mem.setShort(desc * DESC_SIZE + 14, (short) freeHead);
+        freeHead = head;
+        nrFree += count;
+    }
+
+    /**
+     * Does the device want a notification for the entries between old and now?
+     */
+    private static boolean needEvent(int event, int now, int old) {
+        return ((now - event - 1) & 0xFFFF) < ((now - old) & 0xFFFF);
+    }
+
+    private static int align(int offset) {
+        return (offset + QUEUE_ALIGN - 1) & ~(QUEUE_ALIGN - 1);
+    }
+}
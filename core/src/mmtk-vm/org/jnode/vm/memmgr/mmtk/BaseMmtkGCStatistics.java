@@ -28,6 +28,26 @@ import org.jnode.vm.objects.VmSystemObject;
  */
 public abstract class BaseMmtkGCStatistics extends VmSystemObject implements GCStatistics {
 
+    public long getCollectionCount() {
+        return 0;
+    }
+
+    public long getCollectionTime() {
+        return 0;
+    }
+
+    public long getLastStartTime() {
+        return 0;
+    }
+
+    public long getLastDuration() {
+        return 0;
+    }
+
+    public long getLastFreedBytes() {
+        return 0;
+    }
+
     public String toString() {
         return "";
     }
@@ -99,6 +99,10 @@ GLABEL Q43org5jnode2vm6Unsafe23idle2e2829V
 	nop
 	ret
 
+GLABEL Q43org5jnode2vm6Unsafe23memoryBarrier2e2829V
+	lock or dword [ASP],0 ; A locked operation orders all loads and stores
+	ret
+
 GLABEL Q43org5jnode2vm6Unsafe23die2e2829V
 	cli
 	hlt
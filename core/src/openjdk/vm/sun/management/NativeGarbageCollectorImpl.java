@@ -20,6 +20,8 @@
  
 package sun.management;
 
+import org.jnode.vm.facade.VmUtils;
+
 /**
  * @see sun.management.GarbageCollectorImpl
  */
@@ -28,14 +30,12 @@ class NativeGarbageCollectorImpl {
      * @see sun.management.GarbageCollectorImpl#getCollectionCount()
      */
     private static long getCollectionCount(GarbageCollectorImpl instance) {
-        //todo implement it
-        return 0;
+        return VmUtils.getVm().getHeapManager().getStatistics().getCollectionCount();
     }
     /**
      * @see sun.management.GarbageCollectorImpl#getCollectionTime()
      */
     private static long getCollectionTime(GarbageCollectorImpl instance) {
-        //todo implement it
-        return 0;
+        return VmUtils.getVm().getHeapManager().getStatistics().getCollectionTime();
     }
 }
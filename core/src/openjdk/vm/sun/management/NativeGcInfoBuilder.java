@@ -22,12 +22,19 @@ package sun.management;
 
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.MemoryUsage;
+import java.lang.reflect.Constructor;
+
+import org.jnode.vm.facade.GCStatistics;
+import org.jnode.vm.facade.MemoryPoolStatistics;
 import com.sun.management.GcInfo;
 
 /**
  * @see sun.management.GcInfoBuilder
  */
 class NativeGcInfoBuilder {
+
+    private static Constructor<GcInfo> gcInfoConstructor;
+
     /**
      * @see sun.management.GcInfoBuilder#getNumGcExtAttributes(java.lang.management.GarbageCollectorMXBean)
      */
@@ -44,8 +51,40 @@ class NativeGcInfoBuilder {
     /**
      * @see sun.management.GcInfoBuilder#getLastGcInfo0(java.lang.management.GarbageCollectorMXBean, int, java.lang.Object[], char[], java.lang.management.MemoryUsage[], java.lang.management.MemoryUsage[])
      */
-    private static GcInfo getLastGcInfo0(GcInfoBuilder instance, GarbageCollectorMXBean arg1, int arg2, Object[] arg3, char[] arg4, MemoryUsage[] arg5, MemoryUsage[] arg6) {
-        //todo implement it
-        return null;
+    private static GcInfo getLastGcInfo0(GcInfoBuilder instance, GarbageCollectorMXBean arg1, int arg2, Object[] arg3, char[] arg4, MemoryUsage[] usageBeforeGC, MemoryUsage[] usageAfterGC) {
+        final VmMemoryPools pools = VmMemoryPools.getInstance();
+        final GCStatistics stats = pools.getHeapManager().getStatistics();
+        if (stats.getCollectionCount() == 0) {
+            return null;
+        }
+        // The usage arrays are ordered like the memory pools
+        final MemoryPoolStatistics[] poolStats = pools.getHeapManager().getMemoryPoolStatistics();
+        final int cnt = Math.min(poolStats.length, usageBeforeGC.length);
+        for (int i = 0; i < cnt; i++) {
+            usageBeforeGC[i] = pools.getUsageBeforeGC(poolStats[i]);
+            usageAfterGC[i] = pools.getCollectionUsage(poolStats[i]);
+        }
+        final long startTime = stats.getLastStartTime();
+        try {
+            return getGcInfoConstructor().newInstance(instance, stats.getCollectionCount(), startTime,
+                startTime + stats.getLastDuration(), usageBeforeGC, usageAfterGC, arg3);
+        } catch (Exception ex) {
+            final InternalError err = new InternalError("Cannot create GcInfo: " + ex);
+            err.initCause(ex);
+            throw err;
+        }
+    }
+
+    /**
+     * Gets the constructor of GcInfo, which is not public.
+     */
+    private static synchronized Constructor<GcInfo> getGcInfoConstructor() throws NoSuchMethodException {
+        if (gcInfoConstructor == null) {
+            final Constructor<GcInfo> c = GcInfo.class.getDeclaredConstructor(GcInfoBuilder.class,
+                long.class, long.class, long.class, MemoryUsage[].class, MemoryUsage[].class, Object[].class);
+            c.setAccessible(true);
+            gcInfoConstructor = c;
+        }
+        return gcInfoConstructor;
     }
 }
@@ -24,6 +24,8 @@ import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.MemoryManagerMXBean;
 import java.lang.management.MemoryUsage;
 
+import org.jnode.vm.facade.VmHeapManager;
+
 /**
  * @see sun.management.MemoryImpl
  */
@@ -32,27 +34,34 @@ class NativeMemoryImpl {
      * @see sun.management.MemoryImpl#getMemoryPools0()
      */
     private static MemoryPoolMXBean[] getMemoryPools0() {
-        //todo implement it
-        return new MemoryPoolMXBean[0];
+        return VmMemoryPools.getInstance().getPools();
     }
     /**
      * @see sun.management.MemoryImpl#getMemoryManagers0()
      */
     private static MemoryManagerMXBean[] getMemoryManagers0() {
-        //todo implement it
-        return new MemoryManagerMXBean[0];
+        return VmMemoryPools.getInstance().getManagers();
     }
     /**
      * @see sun.management.MemoryImpl#getMemoryUsage0(boolean)
      */
-    private static MemoryUsage getMemoryUsage0(MemoryImpl instance, boolean arg1) {
-        //todo implement it
-        return null;
+    private static MemoryUsage getMemoryUsage0(MemoryImpl instance, boolean heap) {
+        if (heap) {
+            return VmMemoryPools.getInstance().getTotalUsage();
+        }
+        // Code and class data are allocated in the heap
+        return new MemoryUsage(0, 0, 0, -1);
     }
     /**
      * @see sun.management.MemoryImpl#setVerboseGC(boolean)
      */
-    private static void setVerboseGC(MemoryImpl instance, boolean arg1) {
-        //todo implement it
+    private static void setVerboseGC(MemoryImpl instance, boolean verbose) {
+        final VmHeapManager hm = VmMemoryPools.getInstance().getHeapManager();
+        final int flags = hm.getHeapFlags();
+        if (verbose) {
+            hm.setHeapFlags(flags | org.jnode.vm.memmgr.VmHeapManager.TRACE_BASIC);
+        } else {
+            hm.setHeapFlags(flags & ~org.jnode.vm.memmgr.VmHeapManager.TRACE_BASIC);
+        }
     }
 }
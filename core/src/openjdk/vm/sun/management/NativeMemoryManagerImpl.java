@@ -30,7 +30,7 @@ class NativeMemoryManagerImpl {
      * @see sun.management.MemoryManagerImpl#getMemoryPools0()
      */
     private static MemoryPoolMXBean[] getMemoryPools0(MemoryManagerImpl instance) {
-        //todo implement it
-        return new MemoryPoolMXBean[0];
+        // There is a single collector that manages all pools
+        return VmMemoryPools.getInstance().getPools();
     }
 }
@@ -31,58 +31,57 @@ class NativeMemoryPoolImpl {
      * @see sun.management.MemoryPoolImpl#getUsage0()
      */
     private static MemoryUsage getUsage0(MemoryPoolImpl instance) {
-        //todo implement it
-        return null;
+        final VmMemoryPools pools = VmMemoryPools.getInstance();
+        return pools.getUsage(pools.getStatistics(instance));
     }
     /**
      * @see sun.management.MemoryPoolImpl#getPeakUsage0()
      */
     private static MemoryUsage getPeakUsage0(MemoryPoolImpl instance) {
-        //todo implement it
-        return null;
+        final VmMemoryPools pools = VmMemoryPools.getInstance();
+        return pools.getPeakUsage(pools.getStatistics(instance));
     }
     /**
      * @see sun.management.MemoryPoolImpl#getCollectionUsage0()
      */
     private static MemoryUsage getCollectionUsage0(MemoryPoolImpl instance) {
-        //todo implement it
-        return null;
+        final VmMemoryPools pools = VmMemoryPools.getInstance();
+        return pools.getCollectionUsage(pools.getStatistics(instance));
     }
     /**
      * @see sun.management.MemoryPoolImpl#setUsageThreshold0(long, long)
      */
-    private static void setUsageThreshold0(MemoryPoolImpl instance, long arg1, long arg2) {
-        //todo implement it
+    private static void setUsageThreshold0(MemoryPoolImpl instance, long current, long newThreshold) {
+        VmMemoryPools.getInstance().setUsageThreshold(instance, newThreshold);
     }
     /**
      * @see sun.management.MemoryPoolImpl#setCollectionThreshold0(long, long)
      */
-    private static void setCollectionThreshold0(MemoryPoolImpl instance, long arg1, long arg2) {
-        //todo implement it
+    private static void setCollectionThreshold0(MemoryPoolImpl instance, long current, long newThreshold) {
+        VmMemoryPools.getInstance().setCollectionThreshold(instance, newThreshold);
     }
     /**
      * @see sun.management.MemoryPoolImpl#resetPeakUsage0()
      */
     private static void resetPeakUsage0(MemoryPoolImpl instance) {
-        //todo implement it
+        VmMemoryPools.getInstance().getStatistics(instance).resetPeakUsage();
     }
     /**
      * @see sun.management.MemoryPoolImpl#getMemoryManagers0()
      */
     private static MemoryManagerMXBean[] getMemoryManagers0(MemoryPoolImpl instance) {
-        //todo implement it
-        return new MemoryManagerMXBean[0];
+        return VmMemoryPools.getInstance().getManagers();
     }
     /**
      * @see sun.management.MemoryPoolImpl#setPoolUsageSensor(sun.management.Sensor)
      */
-    private static void setPoolUsageSensor(MemoryPoolImpl instance, Sensor arg1) {
-        //todo implement it
+    private static void setPoolUsageSensor(MemoryPoolImpl instance, Sensor sensor) {
+        VmMemoryPools.getInstance().setUsageSensor(instance, sensor);
     }
     /**
      * @see sun.management.MemoryPoolImpl#setPoolCollectionSensor(sun.management.Sensor)
      */
-    private static void setPoolCollectionSensor(MemoryPoolImpl instance, Sensor arg1) {
-        //todo implement it
+    private static void setPoolCollectionSensor(MemoryPoolImpl instance, Sensor sensor) {
+        VmMemoryPools.getInstance().setCollectionSensor(instance, sensor);
     }
 }
@@ -79,8 +79,8 @@ class NativeVMManagementImpl {
      * @see sun.management.VMManagementImpl#getVerboseGC()
      */
     private static boolean getVerboseGC(VMManagementImpl instance) {
-        //todo implement it
-        return false;
+        final int flags = VmUtils.getVm().getHeapManager().getHeapFlags();
+        return (flags & org.jnode.vm.memmgr.VmHeapManager.TRACE_BASIC) != 0;
     }
     /**
      * @see sun.management.VMManagementImpl#getProcessId()
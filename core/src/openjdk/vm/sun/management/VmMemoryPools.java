@@ -0,0 +1,232 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package sun.management;
+
+import java.lang.management.MemoryManagerMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+
+import org.jnode.vm.facade.GCListener;
+import org.jnode.vm.facade.GCStatistics;
+import org.jnode.vm.facade.MemoryPoolStatistics;
+import org.jnode.vm.facade.VmHeapManager;
+import org.jnode.vm.facade.VmUtils;
+
+/**
+ * Connects the memory pools and the collector of the JNode heap manager
+ * to the management beans.
+ * <p/>
+ * All pools are heap pools and are managed by a single collector.
+ * Usage thresholds are only checked at the end of a collection.
+ */
+final class VmMemoryPools implements GCListener {
+
+    private static VmMemoryPools instance;
+
+    private final VmHeapManager heapManager;
+
+    private final MemoryPoolStatistics[] stats;
+
+    private final MemoryPoolImpl[] pools;
+
+    private final GarbageCollectorImpl collector;
+
+    private final long[] usageThresholds;
+
+    private final long[] collectionThresholds;
+
+    private final Sensor[] usageSensors;
+
+    private final Sensor[] collectionSensors;
+
+    private VmMemoryPools() {
+        this.heapManager = VmUtils.getVm().getHeapManager();
+        this.stats = heapManager.getMemoryPoolStatistics();
+        final int cnt = stats.length;
+        this.pools = new MemoryPoolImpl[cnt];
+        for (int i = 0; i < cnt; i++) {
+            pools[i] = new MemoryPoolImpl(stats[i].getName(), true, 0, 0);
+        }
+        this.collector = new GarbageCollectorImpl(heapManager.getClass().getName());
+        this.usageThresholds = new long[cnt];
+        this.collectionThresholds = new long[cnt];
+        this.usageSensors = new Sensor[cnt];
+        this.collectionSensors = new Sensor[cnt];
+        heapManager.addGCListener(this);
+    }
+
+    /**
+     * Gets the shared instance.
+     */
+    static synchronized VmMemoryPools getInstance() {
+        if (instance == null) {
+            instance = new VmMemoryPools();
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the heap manager.
+     */
+    final VmHeapManager getHeapManager() {
+        return heapManager;
+    }
+
+    /**
+     * Gets all memory pools.
+     */
+    final MemoryPoolMXBean[] getPools() {
+        final MemoryPoolMXBean[] result = new MemoryPoolMXBean[pools.length];
+        System.arraycopy(pools, 0, result, 0, pools.length);
+        return result;
+    }
+
+    /**
+     * Gets all memory managers.
+     */
+    final MemoryManagerMXBean[] getManagers() {
+        return new MemoryManagerMXBean[]{collector};
+    }
+
+    /**
+     * Gets the usage data of the given pool.
+     */
+    final MemoryPoolStatistics getStatistics(MemoryPoolImpl pool) {
+        return stats[indexOf(pool)];
+    }
+
+    /**
+     * Gets the current usage of the given pool.
+     */
+    final MemoryUsage getUsage(MemoryPoolStatistics s) {
+        return newUsage(s.getInit(), s.getUsed(), s.getCommitted(), s.getMax());
+    }
+
+    /**
+     * Gets the peak usage of the given pool.
+     */
+    final MemoryUsage getPeakUsage(MemoryPoolStatistics s) {
+        return newUsage(s.getInit(), s.getPeakUsed(), s.getPeakCommitted(), s.getMax());
+    }
+
+    /**
+     * Gets the usage of the given pool after the last collection.
+     */
+    final MemoryUsage getCollectionUsage(MemoryPoolStatistics s) {
+        return newUsage(s.getInit(), Math.max(0, s.getUsedAfterGC()), Math.max(0, s.getCommittedAfterGC()),
+            s.getMax());
+    }
+
+    /**
+     * Gets the usage of the given pool before the last collection.
+     */
+    final MemoryUsage getUsageBeforeGC(MemoryPoolStatistics s) {
+        return newUsage(s.getInit(), Math.max(0, s.getUsedBeforeGC()), Math.max(0, s.getCommittedBeforeGC()),
+            s.getMax());
+    }
+
+    /**
+     * Gets the total usage of all pools.
+     */
+    final MemoryUsage getTotalUsage() {
+        long init = 0;
+        long used = 0;
+        long committed = 0;
+        long max = 0;
+        for (MemoryPoolStatistics s : stats) {
+            init += Math.max(0, s.getInit());
+            used += s.getUsed();
+            committed += s.getCommitted();
+            final long m = s.getMax();
+            max += (m < 0) ? s.getCommitted() : m;
+        }
+        return newUsage(init, used, committed, max);
+    }
+
+    final synchronized void setUsageThreshold(MemoryPoolImpl pool, long threshold) {
+        usageThresholds[indexOf(pool)] = threshold;
+    }
+
+    final synchronized void setCollectionThreshold(MemoryPoolImpl pool, long threshold) {
+        collectionThresholds[indexOf(pool)] = threshold;
+    }
+
+    final synchronized void setUsageSensor(MemoryPoolImpl pool, Sensor sensor) {
+        usageSensors[indexOf(pool)] = sensor;
+    }
+
+    final synchronized void setCollectionSensor(MemoryPoolImpl pool, Sensor sensor) {
+        collectionSensors[indexOf(pool)] = sensor;
+    }
+
+    /**
+     * Check the thresholds of all pools and fire the sensors.
+     *
+     * @see org.jnode.vm.facade.GCListener#gcFinished(org.jnode.vm.facade.GCStatistics)
+     */
+    public synchronized void gcFinished(GCStatistics gcStats) {
+        for (int i = 0; i < stats.length; i++) {
+            final MemoryPoolStatistics s = stats[i];
+            checkThreshold(usageSensors[i], usageThresholds[i], getUsage(s), false);
+            checkThreshold(collectionSensors[i], collectionThresholds[i], getCollectionUsage(s), true);
+        }
+    }
+
+    /**
+     * Trigger the sensor when the usage has crossed the threshold, clear it
+     * when the usage dropped below the threshold. A collection sensor is
+     * triggered after every collection that ends above the threshold.
+     */
+    private static void checkThreshold(Sensor sensor, long threshold, MemoryUsage usage, boolean collection) {
+        if ((sensor == null) || (threshold <= 0)) {
+            return;
+        }
+        if (usage.getUsed() >= threshold) {
+            if (collection || !sensor.isOn()) {
+                sensor.trigger(1, usage);
+            }
+        } else if (sensor.isOn()) {
+            sensor.clear(0);
+        }
+    }
+
+    private int indexOf(MemoryPoolImpl pool) {
+        for (int i = 0; i < pools.length; i++) {
+            if (pools[i] == pool) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown memory pool " + pool.getName());
+    }
+
+    /**
+     * Create a usage object. Used and committed are read at different moments,
+     * so they are made consistent before creating it.
+     */
+    private static MemoryUsage newUsage(long init, long used, long committed, long max) {
+        committed = Math.max(committed, used);
+        if (max >= 0) {
+            max = Math.max(max, committed);
+            init = Math.min(init, max);
+        }
+        return new MemoryUsage(init, used, committed, max);
+    }
+}
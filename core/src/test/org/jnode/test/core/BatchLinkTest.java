@@ -0,0 +1,118 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.core;
+
+import java.util.Arrays;
+import javax.isolate.Isolate;
+import javax.isolate.Link;
+import javax.isolate.LinkMessage;
+
+/**
+ * Sends a batch of messages, a hand-off data message and a data message whose
+ * buffer is reused right away over an asynchronous link to a child isolate,
+ * which receives them in batches and reports back.
+ */
+public class BatchLinkTest {
+
+    private static final int MESSAGES = 100;
+
+    private static final int CAPACITY = 16;
+
+    private static final int DATA_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Isolate child = new Isolate(ChildClass.class.getName(), new String[0]);
+
+        Link link = Link.newAsyncLink(Isolate.currentIsolate(), child, CAPACITY);
+        Link reply = Link.newLink(child, Isolate.currentIsolate());
+
+        child.start(link, reply);
+
+        LinkMessage[] messages = new LinkMessage[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = LinkMessage.newStringMessage("message " + i);
+        }
+        link.send(messages);
+
+        byte[] data = new byte[DATA_SIZE];
+        for (int i = 0; i < DATA_SIZE; i++) {
+            data[i] = (byte) i;
+        }
+        link.send(LinkMessage.newHandOffDataMessage(data, 0, DATA_SIZE));
+
+        // The link copies data that is not handed off, so the buffer can be reused
+        byte[] buffer = new byte[DATA_SIZE];
+        for (int i = 0; i < DATA_SIZE; i++) {
+            buffer[i] = (byte) i;
+        }
+        link.send(LinkMessage.newDataMessage(buffer, 0, DATA_SIZE));
+        Arrays.fill(buffer, (byte) -1);
+
+        System.out.println(reply.receive().extractString());
+    }
+
+    public static class ChildClass {
+
+        public static void main(String[] args) throws Exception {
+            Link link = Isolate.getLinks()[0];
+            Link reply = Isolate.getLinks()[1];
+
+            String error = null;
+            int received = 0;
+            int batches = 0;
+            LinkMessage[] batch = new LinkMessage[CAPACITY / 2];
+            while (received < MESSAGES) {
+                int count = link.receive(batch, 0, batch.length);
+                batches++;
+                for (int i = 0; i < count; i++) {
+                    String expected = "message " + received;
+                    if ((error == null) && !expected.equals(batch[i].extractString())) {
+                        error = "expected '" + expected + "' got '" + batch[i].extractString() + "'";
+                    }
+                    received++;
+                }
+            }
+
+            byte[] data = link.receive().extractData();
+            error = checkData(error, data, "hand-off");
+            error = checkData(error, link.receive().extractData(), "reused buffer");
+
+            if (error == null) {
+                reply.send(LinkMessage.newStringMessage("OK: " + received + " messages in " + batches
+                    + " batches and " + data.length + " bytes"));
+            } else {
+                reply.send(LinkMessage.newStringMessage("FAILED: " + error));
+            }
+        }
+
+        private static String checkData(String error, byte[] data, String description) {
+            if ((error == null) && (data.length != DATA_SIZE)) {
+                error = description + ": expected " + DATA_SIZE + " bytes got " + data.length;
+            }
+            for (int i = 0; (error == null) && (i < data.length); i++) {
+                if (data[i] != (byte) i) {
+                    error = description + ": wrong data at " + i;
+                }
+            }
+            return error;
+        }
+    }
+}
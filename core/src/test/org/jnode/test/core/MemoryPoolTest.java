@@ -0,0 +1,114 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.core;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import com.sun.management.GcInfo;
+
+/**
+ * Checks the values of the memory pool and garbage collector beans after a
+ * collection, and that GC notifications are not delivered on the GC thread.
+ */
+public class MemoryPoolTest {
+
+    private static final int GARBAGE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        check(!pools.isEmpty(), "memory pools");
+        check(collectors.size() == 1, "one collector");
+        final GarbageCollectorMXBean collector = collectors.get(0);
+
+        // Every collection that ends with a used size of at least one byte crosses the threshold
+        final CountDownLatch notified = new CountDownLatch(1);
+        final String[] thread = new String[1];
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(
+            new NotificationListener() {
+                public void handleNotification(Notification n, Object handback) {
+                    if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(n.getType())) {
+                        thread[0] = Thread.currentThread().getName();
+                        notified.countDown();
+                    }
+                }
+            }, null, null);
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.isCollectionUsageThresholdSupported()) {
+                pool.setCollectionUsageThreshold(1);
+            }
+        }
+
+        final long count = collector.getCollectionCount();
+        for (int i = 0; i < GARBAGE; i++) {
+            new byte[1024].hashCode();
+        }
+        System.gc();
+
+        check(collector.getCollectionCount() > count, "collection is counted");
+        check(collector.getCollectionTime() >= 0, "collection time");
+
+        final GcInfo info = ((com.sun.management.GarbageCollectorMXBean) collector).getLastGcInfo();
+        check(info != null, "last GC info");
+        check(info.getId() > count, "GC info id");
+        check(info.getEndTime() >= info.getStartTime(), "GC info times");
+
+        for (MemoryPoolMXBean pool : pools) {
+            final String name = pool.getName();
+            checkUsage(pool.getUsage(), name + " usage");
+            checkUsage(pool.getPeakUsage(), name + " peak usage");
+            final MemoryUsage after = pool.getCollectionUsage();
+            checkUsage(after, name + " collection usage");
+            final MemoryUsage gcBefore = info.getMemoryUsageBeforeGc().get(name);
+            final MemoryUsage gcAfter = info.getMemoryUsageAfterGc().get(name);
+            checkUsage(gcBefore, name + " usage before GC");
+            checkUsage(gcAfter, name + " usage after GC");
+            check(pool.getPeakUsage().getUsed() >= gcBefore.getUsed(), name + " peak covers the usage before GC");
+            System.out.println(name + ": before " + gcBefore + ", after " + gcAfter);
+        }
+
+        check(notified.await(10, TimeUnit.SECONDS), "collection threshold notification");
+        check(!"gc-thread".equals(thread[0]), "notification is not delivered on the GC thread: " + thread[0]);
+
+        System.out.println("OK");
+    }
+
+    private static void checkUsage(MemoryUsage usage, String description) {
+        check(usage != null, description);
+        check((usage.getUsed() >= 0) && (usage.getUsed() <= usage.getCommitted()), description + ": " + usage);
+        check((usage.getMax() < 0) || (usage.getCommitted() <= usage.getMax()), description + ": " + usage);
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError(description);
+        }
+    }
+}
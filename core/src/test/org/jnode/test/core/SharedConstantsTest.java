@@ -0,0 +1,104 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import org.jnode.vm.classmgr.VmByteCode;
+import org.jnode.vm.classmgr.VmCP;
+import org.jnode.vm.classmgr.VmConstString;
+import org.jnode.vm.classmgr.VmSharedConstants;
+import org.jnode.vm.classmgr.VmType;
+import org.jnode.vm.facade.VmUtils;
+
+/**
+ * Checks that equal string constants of two classes share one constant and one
+ * statics slot, and that the bytecode of a method is handed out as read-only
+ * buffers with a position of their own.
+ */
+public class SharedConstantsTest {
+
+    public static void main(String[] args) throws Exception {
+        final VmSharedConstants constants = VmUtils.getVm().getSharedStatics().getSharedConstants();
+        final int shared = constants.getSharedCount();
+
+        // Load both classes; the second one finds the string of the first
+        check(First.text().equals(Second.text()), "equal texts");
+        final VmConstString first = getString(VmType.fromClass(First.class).getCP());
+        final VmConstString second = getString(VmType.fromClass(Second.class).getCP());
+        check(first == second, "string constant is shared");
+        check(first.getSharedStaticsIndex() == second.getSharedStaticsIndex(), "statics slot is shared");
+        check(constants.getSharedCount() > shared, "shared lookup is counted");
+        System.out.println("Constants: " + constants);
+
+        final VmByteCode bc = VmType.fromClass(First.class).getDeclaredMethod("text", "()Ljava/lang/String;")
+            .getBytecode();
+        final ByteBuffer code1 = bc.getBytecode();
+        final ByteBuffer code2 = bc.getBytecode();
+        check(code1 != code2, "every caller gets a buffer");
+        check(code1.isReadOnly(), "bytecode is read-only");
+        check((code1.position() == 0) && (code1.limit() == bc.getLength()), "bytecode covers the method");
+        final byte opcode = code1.get();
+        check(code2.position() == 0, "buffers have their own position");
+        check(code2.get(0) == opcode, "buffers share the bytecode");
+        try {
+            code2.put(0, (byte) 0);
+            check(false, "bytecode cannot be changed");
+        } catch (ReadOnlyBufferException ex) {
+            // Expected
+        }
+
+        System.out.println("OK");
+    }
+
+    /**
+     * Gets the only string constant of the given constant pool.
+     */
+    private static VmConstString getString(VmCP cp) {
+        VmConstString result = null;
+        for (int i = 1; i < cp.getLength(); i++) {
+            if (cp.getAny(i) instanceof VmConstString) {
+                check(result == null, "one string constant");
+                result = (VmConstString) cp.getAny(i);
+            }
+        }
+        check(result != null, "string constant found");
+        return result;
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError(description);
+        }
+    }
+
+    static class First {
+        static String text() {
+            return "SharedConstantsTest text";
+        }
+    }
+
+    static class Second {
+        static String text() {
+            return "SharedConstantsTest text";
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.core;
+
+import javax.isolate.Isolate;
+import javax.isolate.Link;
+import javax.isolate.LinkMessage;
+import org.jnode.vm.facade.VmHeapManager;
+import org.jnode.vm.facade.VmUtils;
+
+/**
+ * Moves object graphs, including cyclic and deep ones, to the shared heap and
+ * sends a shared string to a child isolate.
+ */
+public class SharedObjectTest {
+
+    private static final int CHAIN_LENGTH = 100000;
+
+    public static void main(String[] args) throws Exception {
+        final VmHeapManager heapManager = VmUtils.getVm().getHeapManager();
+
+        // A cycle, and a string created at runtime
+        final String text = "shared at " + System.currentTimeMillis();
+        final Pair cycle = new Pair(text);
+        final Pair sharedCycle = (Pair) heapManager.shareObject(cycle);
+        check(sharedCycle != cycle, "cycle is copied");
+        check(heapManager.isSharedObject(sharedCycle), "cycle is shared");
+        check(heapManager.isSharedObject(sharedCycle.other), "other half of cycle is shared");
+        check(sharedCycle.other.other == sharedCycle, "copy refers to itself");
+        check(heapManager.isSharedObject(sharedCycle.value), "string in cycle is shared");
+        check(text.equals(sharedCycle.value), "string in cycle is equal");
+        check(heapManager.shareObject(sharedCycle) == sharedCycle, "shared object is not copied again");
+
+        // A chain too deep for a recursive copy
+        Node chain = null;
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            chain = new Node(chain);
+        }
+        Node sharedChain = (Node) heapManager.shareObject(chain);
+        int length = 0;
+        while (sharedChain != null) {
+            check(heapManager.isSharedObject(sharedChain), "chain element " + length + " is shared");
+            sharedChain = sharedChain.next;
+            length++;
+        }
+        check(length == CHAIN_LENGTH, "chain length " + length);
+
+        // An array of references can be changed after it is shared, so it is refused
+        try {
+            heapManager.shareObject(new Object[]{text});
+            check(false, "array of references is refused");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        try {
+            heapManager.shareObject(new Holder(new Object[]{text}));
+            check(false, "array of references in a final field is refused");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        // An object with a non-final reference field cannot be shared
+        try {
+            heapManager.shareObject(new StringBuilder(text));
+            check(false, "mutable object is refused");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        // A shared string sent to a child isolate
+        final Isolate child = new Isolate(ChildClass.class.getName(), new String[0]);
+        final Link link = Link.newLink(Isolate.currentIsolate(), child);
+        final Link reply = Link.newLink(child, Isolate.currentIsolate());
+        child.start(link, reply);
+        link.send(LinkMessage.newSharedStringMessage(text));
+        check(text.equals(reply.receive().extractString()), "child received the shared string");
+
+        System.out.println("OK");
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError(description);
+        }
+    }
+
+    /**
+     * Two immutable objects that refer to each other.
+     */
+    static final class Pair {
+        final Pair other;
+        final String value;
+
+        Pair(String value) {
+            this.other = new Pair(this, value);
+            this.value = value;
+        }
+
+        private Pair(Pair other, String value) {
+            this.other = other;
+            this.value = value;
+        }
+    }
+
+    /**
+     * An element of an immutable chain.
+     */
+    static final class Node {
+        final Node next;
+
+        Node(Node next) {
+            this.next = next;
+        }
+    }
+
+    /**
+     * An object with final fields only, one of which refers to an array of references.
+     */
+    static final class Holder {
+        final Object[] values;
+
+        Holder(Object[] values) {
+            this.values = values;
+        }
+    }
+
+    public static class ChildClass {
+
+        public static void main(String[] args) throws Exception {
+            final Link link = Isolate.getLinks()[0];
+            final Link reply = Isolate.getLinks()[1];
+            final String text = link.receive().extractString();
+            if (!VmUtils.getVm().getHeapManager().isSharedObject(text)) {
+                throw new AssertionError("received string is not shared");
+            }
+            reply.send(LinkMessage.newStringMessage(text));
+        }
+    }
+}
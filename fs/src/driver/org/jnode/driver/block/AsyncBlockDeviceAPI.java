@@ -0,0 +1,42 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.io.IOException;
+
+/**
+ * A block device that transfers batches of segments without blocking the
+ * caller, so many transfers can be in flight at once.
+ * <p/>
+ * Use {@link AsyncBlockDeviceSupport#getAsyncAPI(BlockDeviceAPI)} to get this
+ * API for any block device.
+ */
+public interface AsyncBlockDeviceAPI extends BlockDeviceAPI {
+
+    /**
+     * Start transferring all segments of a request. The request completes
+     * when they have been transferred, maybe before this method returns.
+     *
+     * @param request the request
+     * @throws IOException if the request is invalid; none of its segments is transferred then
+     */
+    public void submit(BlockRequest request) throws IOException;
+}
@@ -0,0 +1,109 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts a block device without asynchronous transfers to the
+ * {@link AsyncBlockDeviceAPI}. The segments of a request are transferred one
+ * after the other by the thread submitting it.
+ */
+public class AsyncBlockDeviceSupport implements AsyncBlockDeviceAPI {
+
+    private final BlockDeviceAPI parentApi;
+
+    /**
+     * Create a new adapter.
+     *
+     * @param parentApi the device to transfer the segments with
+     */
+    public AsyncBlockDeviceSupport(BlockDeviceAPI parentApi) {
+        this.parentApi = parentApi;
+    }
+
+    /**
+     * Gets the asynchronous API of a block device, adapting it if it does not
+     * implement one itself.
+     *
+     * @param api the block device
+     * @return the asynchronous API
+     */
+    public static AsyncBlockDeviceAPI getAsyncAPI(BlockDeviceAPI api) {
+        if (api instanceof AsyncBlockDeviceAPI) {
+            return (AsyncBlockDeviceAPI) api;
+        }
+        return new AsyncBlockDeviceSupport(api);
+    }
+
+    /**
+     * Transfer the segments of a request one after the other and complete it.
+     *
+     * @param api     the block device
+     * @param request the request
+     * @throws IOException if a segment is out of the bounds of the device; none of them is transferred then
+     */
+    public static void perform(BlockDeviceAPI api, BlockRequest request) throws IOException {
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            BlockDeviceAPIHelper.checkBounds(api, request.getOffset(i), request.getBuffer(i).remaining());
+        }
+        IOException error = null;
+        try {
+            for (int i = 0; i < request.getSegmentCount(); i++) {
+                final ByteBuffer buf = request.getBuffer(i);
+                if (request.isWrite()) {
+                    api.write(request.getOffset(i), buf);
+                } else {
+                    api.read(request.getOffset(i), buf);
+                }
+            }
+        } catch (IOException ex) {
+            error = ex;
+        } catch (RuntimeException ex) {
+            error = new IOException("Error performing " + request, ex);
+        }
+        request.complete(error);
+    }
+
+    /**
+     * @see AsyncBlockDeviceAPI#submit(BlockRequest)
+     */
+    public void submit(BlockRequest request) throws IOException {
+        perform(parentApi, request);
+    }
+
+    public long getLength() throws IOException {
+        return parentApi.getLength();
+    }
+
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        parentApi.read(devOffset, dest);
+    }
+
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        parentApi.write(devOffset, src);
+    }
+
+    public void flush() throws IOException {
+        parentApi.flush();
+    }
+}
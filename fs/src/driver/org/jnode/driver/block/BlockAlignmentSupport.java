@@ -232,7 +232,7 @@ import org.jnode.util.ByteBufferUtils;
  *         <p/>
  *         gvt
  */
-public class BlockAlignmentSupport implements BlockDeviceAPI {
+public class BlockAlignmentSupport implements AsyncBlockDeviceAPI {
 
     private static final int EMPTY = 0;
     private static final int CONTAINED = 1;
@@ -504,6 +504,31 @@ public class BlockAlignmentSupport implements BlockDeviceAPI {
         parentApi.flush();
     }
 
+    /**
+     * Aligned requests are handed to the parent device when it transfers
+     * asynchronously, the others are transferred here segment by segment.
+     *
+     * @param request
+     * @throws IOException
+     * @see AsyncBlockDeviceAPI#submit(BlockRequest)
+     */
+    public void submit(BlockRequest request) throws IOException {
+        if ((parentApi instanceof AsyncBlockDeviceAPI) && isAligned(request)) {
+            ((AsyncBlockDeviceAPI) parentApi).submit(request);
+        } else {
+            AsyncBlockDeviceSupport.perform(this, request);
+        }
+    }
+
+    private boolean isAligned(BlockRequest request) {
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            if ((request.getOffset(i) % alignment != 0) || (request.getBuffer(i).remaining() % alignment != 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 
     /**
      * Gets the alignment value
@@ -0,0 +1,297 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A batch of segments to read from or write to a block device, submitted at
+ * once with {@link AsyncBlockDeviceAPI#submit(BlockRequest)}.
+ * <p/>
+ * A segment is a device offset and a buffer, which is transferred from its
+ * position up to its limit. The positions of the buffers are not changed.
+ * The request completes when the transfer of all its segments has finished,
+ * with the first error if any failed. Wait for it with {@link #waitUntilDone()}
+ * or {@link #get()}, or be called back through a {@link Listener}.
+ */
+public final class BlockRequest implements Future<Void> {
+
+    /**
+     * Receives the completion of a request.
+     */
+    public static interface Listener {
+
+        /**
+         * The request has completed. This may be called by the thread
+         * completing the transfer, so keep the handling short.
+         *
+         * @param request the request, see {@link BlockRequest#getError()}
+         */
+        public void completed(BlockRequest request);
+    }
+
+    private final boolean write;
+
+    private final List<Long> offsets = new ArrayList<Long>();
+
+    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+    private Listener listener;
+
+    /**
+     * Number of parts the device still has to transfer
+     */
+    private int pending = -1;
+
+    private boolean done;
+
+    private IOException error;
+
+    /**
+     * Create a new, empty request.
+     *
+     * @param write {@code true} to write the segments, {@code false} to read them
+     */
+    public BlockRequest(boolean write) {
+        this.write = write;
+    }
+
+    /**
+     * Add a segment.
+     *
+     * @param devOffset the offset on the device
+     * @param buffer    the data to write or the buffer to read into, from its position up to its limit
+     * @return this request
+     */
+    public BlockRequest add(long devOffset, ByteBuffer buffer) {
+        if (devOffset < 0) {
+            throw new IllegalArgumentException("devOffset < 0");
+        }
+        offsets.add(devOffset);
+        buffers.add(buffer.slice());
+        return this;
+    }
+
+    /**
+     * Is this a write request.
+     *
+     * @return {@code true} for a write, {@code false} for a read
+     */
+    public boolean isWrite() {
+        return write;
+    }
+
+    /**
+     * Gets the number of segments.
+     *
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        return offsets.size();
+    }
+
+    /**
+     * Gets the device offset of a segment.
+     *
+     * @param index the index of the segment
+     * @return the offset
+     */
+    public long getOffset(int index) {
+        return offsets.get(index);
+    }
+
+    /**
+     * Gets the buffer of a segment.
+     *
+     * @param index the index of the segment
+     * @return a new view on the buffer, holding the data of the segment from position 0
+     */
+    public ByteBuffer getBuffer(int index) {
+        return buffers.get(index).duplicate();
+    }
+
+    /**
+     * Gets the total number of bytes of all segments.
+     *
+     * @return the length
+     */
+    public long getLength() {
+        long length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        return length;
+    }
+
+    /**
+     * Set the listener called when this request completes, right away if it
+     * has completed already.
+     *
+     * @param listener
+     */
+    public void setListener(Listener listener) {
+        synchronized (this) {
+            this.listener = listener;
+            if (!done) {
+                return;
+            }
+        }
+        listener.completed(this);
+    }
+
+    /**
+     * Set the number of parts a device transfers this request in. The request
+     * completes when {@link #partDone(IOException)} has been called for each.
+     *
+     * @param count the number of parts
+     */
+    public void setParts(int count) {
+        synchronized (this) {
+            pending = count;
+        }
+        if (count == 0) {
+            complete(null);
+        }
+    }
+
+    /**
+     * A part of this request has been transferred.
+     *
+     * @param error the error of the part, or {@code null} if it succeeded
+     */
+    public void partDone(IOException error) {
+        final boolean last;
+        final IOException firstError;
+        synchronized (this) {
+            if ((error != null) && (this.error == null)) {
+                this.error = error;
+            }
+            last = (--pending == 0);
+            firstError = this.error;
+        }
+        if (last) {
+            complete(firstError);
+        }
+    }
+
+    /**
+     * Complete this request.
+     *
+     * @param error the error of the transfer, or {@code null} if it succeeded
+     */
+    public void complete(IOException error) {
+        final Listener listener;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            this.error = error;
+            this.done = true;
+            listener = this.listener;
+            notifyAll();
+        }
+        if (listener != null) {
+            listener.completed(this);
+        }
+    }
+
+    /**
+     * Gets the error of this request.
+     *
+     * @return the error, or {@code null} if the request succeeded or has not completed yet
+     */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    /**
+     * Wait until this request is completed.
+     *
+     * @throws IOException if the transfer failed or the wait was interrupted
+     */
+    public synchronized void waitUntilDone() throws IOException {
+        while (!done) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted waiting for " + this);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * A request cannot be cancelled once submitted.
+     *
+     * @return {@code false}
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return null;
+    }
+
+    public synchronized Void get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        final long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            final long remaining = end - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("Timeout waiting for " + this);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return null;
+    }
+
+    public String toString() {
+        return (write ? "write" : "read") + " of " + offsets.size() + " segments, " + getLength() + " bytes";
+    }
+}
@@ -0,0 +1,659 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Buffer cache shared by all block devices that contain a mounted filesystem.
+ * <p/>
+ * Blocks of {@link #BLOCK_SIZE} bytes are keyed by (device, block number).
+ * The total size of the cached blocks is limited by a memory budget, that
+ * can be set with the {@link #SIZE_PROPERTY} system property or with
+ * {@link #setMaxSize(long)}.
+ * <p/>
+ * Blocks are evicted using the 2Q policy. A block that is read for the first
+ * time enters a FIFO queue. Only when it is read again after it left that
+ * queue, it is placed in the main LRU queue. This way a large sequential scan
+ * does not flush the frequently used blocks from the cache.
+ * <p/>
+ * Written blocks are kept dirty in the cache, and are written to the device
+ * when the device is flushed, or by the writer that finds more than half of
+ * the budget dirty. Only clean blocks are evicted.
+ * <p/>
+ * The lock on the cache only guards its maps and queues; no device I/O is done
+ * while holding it, so a slow device does not hold up the others. A page that
+ * is being read from its device is in the cache in the loading state, and
+ * threads that need it wait for the page. A page that is being written to its
+ * device is not evicted or discarded before the write has finished.
+ */
+public final class BufferCache {
+
+    /**
+     * Size in bytes of a cached block
+     */
+    public static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Name of the system property holding the memory budget in bytes
+     */
+    public static final String SIZE_PROPERTY = "jnode.buffercache.size";
+
+    /**
+     * The default memory budget in bytes
+     */
+    public static final long DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Part of the budget used by the FIFO queue of blocks accessed once, in percent
+     */
+    private static final int IN_PERCENTAGE = 25;
+
+    /**
+     * Number of remembered evicted blocks, in percent of the number of cached blocks
+     */
+    private static final int OUT_PERCENTAGE = 50;
+
+    private static BufferCache instance;
+
+    /**
+     * All cached blocks
+     */
+    private final HashMap<Key, Page> pages = new HashMap<Key, Page>();
+
+    /**
+     * Blocks accessed once, in FIFO order
+     */
+    private final LinkedHashMap<Key, Page> inQueue = new LinkedHashMap<Key, Page>();
+
+    /**
+     * Blocks accessed more than once, in LRU order
+     */
+    private final LinkedHashMap<Key, Page> mainQueue = new LinkedHashMap<Key, Page>();
+
+    /**
+     * Keys of blocks recently evicted from the FIFO queue
+     */
+    private final LinkedHashMap<Key, Key> outQueue = new LinkedHashMap<Key, Key>();
+
+    private long maxSize;
+
+    private int dirtyCount;
+
+    private long evictions;
+
+    private long writeBacks;
+
+    /**
+     * Gets the buffer cache.
+     *
+     * @return the buffer cache
+     */
+    public static synchronized BufferCache getInstance() {
+        if (instance == null) {
+            instance = new BufferCache(Long.getLong(SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+        }
+        return instance;
+    }
+
+    /**
+     * Create a cache with the given memory budget. Use {@link #getInstance()}
+     * to get the shared cache.
+     *
+     * @param maxSize the maximum size in bytes
+     */
+    public BufferCache(long maxSize) {
+        this.maxSize = Math.max(maxSize, BLOCK_SIZE);
+    }
+
+    /**
+     * Gets the memory budget of this cache.
+     *
+     * @return the maximum size in bytes
+     */
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the memory budget of this cache. When the budget is reduced,
+     * dirty blocks are written and blocks are evicted at once.
+     *
+     * @param maxSize the maximum size in bytes
+     * @throws IOException if a dirty block could not be written
+     */
+    public void setMaxSize(long maxSize) throws IOException {
+        synchronized (this) {
+            this.maxSize = Math.max(maxSize, BLOCK_SIZE);
+        }
+        writeBack(null);
+        synchronized (this) {
+            reclaim(0);
+        }
+    }
+
+    /**
+     * Gets the size of all cached blocks.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return (long) pages.size() * BLOCK_SIZE;
+    }
+
+    /**
+     * Gets the number of blocks that have been evicted.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of dirty blocks written to their device.
+     *
+     * @return the number of written blocks
+     */
+    public synchronized long getWriteBackCount() {
+        return writeBacks;
+    }
+
+    /**
+     * Gets the number of dirty blocks.
+     *
+     * @return the number of dirty blocks
+     */
+    public synchronized int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public synchronized String toString() {
+        return "size=" + getSize() + ", max=" + maxSize + ", dirty=" + dirtyCount + ", evictions="
+            + evictions + ", writeBacks=" + writeBacks;
+    }
+
+    /**
+     * Gets a cached block and record the access. The page may still be loading,
+     * use {@link Page#waitLoaded()} before using its data.
+     *
+     * @param dev
+     * @param block
+     * @return the page, or null if the block is not cached
+     */
+    final synchronized Page lookup(BlockDeviceAPI dev, long block) {
+        final Key key = new Key(dev, block);
+        final Page page = pages.get(key);
+        if ((page != null) && (mainQueue.remove(key) != null)) {
+            // Move to the MRU end
+            mainQueue.put(key, page);
+        }
+        return page;
+    }
+
+    /**
+     * Is the given block cached. The access is not recorded.
+     *
+     * @param dev
+     * @param block
+     * @return true if the block is cached
+     */
+    public final synchronized boolean contains(BlockDeviceAPI dev, long block) {
+        return pages.containsKey(new Key(dev, block));
+    }
+
+    /**
+     * Add loading pages for a run of blocks that are not cached, evicting
+     * other blocks if needed. The run ends before the first block that is
+     * already cached. The caller must complete every returned page with
+     * {@link Page#loaded(byte[], int)} or {@link #loadFailed(Page)}.
+     *
+     * @param dev
+     * @param block     the first block of the run
+     * @param maxBlocks the maximum length of the run
+     * @param devLength the length of the device in bytes
+     * @return the new pages, empty if the first block is already cached
+     */
+    final synchronized List<Page> reserve(BlockDeviceAPI dev, long block, int maxBlocks, long devLength) {
+        int cnt = 0;
+        while ((cnt < maxBlocks) && !pages.containsKey(new Key(dev, block + cnt))) {
+            cnt++;
+        }
+        final List<Page> result = new ArrayList<Page>(cnt);
+        if (cnt == 0) {
+            return result;
+        }
+        reclaim(cnt);
+        for (int i = 0; i < cnt; i++) {
+            final Key key = new Key(dev, block + i);
+            final int length = (int) Math.min(BLOCK_SIZE, devLength - key.block * BLOCK_SIZE);
+            final Page page = new Page(key, length);
+            pages.put(key, page);
+            if (outQueue.remove(key) != null) {
+                // Accessed again shortly after eviction
+                mainQueue.put(key, page);
+            } else {
+                inQueue.put(key, page);
+            }
+            result.add(page);
+        }
+        return result;
+    }
+
+    /**
+     * Remove a page whose content could not be read, and wake up the threads
+     * waiting for it.
+     *
+     * @param page a page returned by {@link #reserve(BlockDeviceAPI, long, int, long)}
+     */
+    final void loadFailed(Page page) {
+        synchronized (this) {
+            if (pages.get(page.key) == page) {
+                pages.remove(page.key);
+                inQueue.remove(page.key);
+                mainQueue.remove(page.key);
+            }
+        }
+        page.failed();
+    }
+
+    /**
+     * Mark the given page dirty.
+     *
+     * @return true if so much of the cache is dirty that the caller should
+     *         call {@link #writeBack(BlockDeviceAPI)} for its device
+     */
+    final synchronized boolean setDirty(Page page) {
+        if (!page.dirty) {
+            page.dirty = true;
+            dirtyCount++;
+        }
+        return ((long) dirtyCount * BLOCK_SIZE * 2 > maxSize);
+    }
+
+    /**
+     * Write all dirty blocks of the given device, or of all devices if dev is null.
+     * Contiguous blocks are written in one request. When this method returns,
+     * the writes of the device started by other threads have finished as well.
+     *
+     * @param dev
+     * @return the number of written blocks
+     * @throws IOException if a block could not be written, the block stays dirty
+     */
+    final int writeBack(BlockDeviceAPI dev) throws IOException {
+        final List<Page> dirty = new ArrayList<Page>();
+        synchronized (this) {
+            if (dirtyCount > 0) {
+                for (Page p : pages.values()) {
+                    if (p.dirty && ((dev == null) || (p.key.dev == dev))) {
+                        // Clean it now, a write that comes in while it is being written makes it dirty again
+                        p.dirty = false;
+                        p.writing++;
+                        dirtyCount--;
+                        dirty.add(p);
+                    }
+                }
+            }
+        }
+        Collections.sort(dirty);
+        IOException error = null;
+        final int cnt = dirty.size();
+        int i = 0;
+        while (i < cnt) {
+            int n = 1;
+            while ((i + n < cnt) && dirty.get(i + n - 1).isFollowedBy(dirty.get(i + n))
+                && (dirty.get(i + n - 1).length == BLOCK_SIZE)) {
+                n++;
+            }
+            final List<Page> run = dirty.subList(i, i + n);
+            boolean written = false;
+            try {
+                write(run);
+                written = true;
+            } catch (IOException ex) {
+                if (error == null) {
+                    error = ex;
+                }
+            }
+            synchronized (this) {
+                for (Page p : run) {
+                    p.writing--;
+                    if (!written && !p.dirty && pages.get(p.key) == p) {
+                        p.dirty = true;
+                        dirtyCount++;
+                    }
+                }
+                if (written) {
+                    writeBacks += n;
+                }
+                notifyAll();
+            }
+            i += n;
+        }
+        waitWriteBacks(dev);
+        if (error != null) {
+            throw error;
+        }
+        return cnt;
+    }
+
+    /**
+     * Remove all blocks of the given device from this cache.
+     * Dirty blocks are discarded, so call {@link #writeBack(BlockDeviceAPI)} first.
+     *
+     * @param dev
+     */
+    final synchronized void invalidate(BlockDeviceAPI dev) {
+        for (Iterator<Page> i = pages.values().iterator(); i.hasNext();) {
+            final Page p = i.next();
+            if (p.key.dev == dev) {
+                i.remove();
+                inQueue.remove(p.key);
+                mainQueue.remove(p.key);
+                if (p.dirty) {
+                    dirtyCount--;
+                }
+            }
+        }
+        for (Iterator<Key> i = outQueue.keySet().iterator(); i.hasNext();) {
+            if (i.next().dev == dev) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove a block from this cache. A dirty block is discarded without being written.
+     * If the block is being written, this method waits until the write has finished.
+     *
+     * @param dev
+     * @param block
+     * @throws InterruptedIOException if interrupted while waiting for a write
+     */
+    final synchronized void remove(BlockDeviceAPI dev, long block) throws InterruptedIOException {
+        final Key key = new Key(dev, block);
+        final Page p = pages.remove(key);
+        if (p != null) {
+            inQueue.remove(key);
+            mainQueue.remove(key);
+            if (p.dirty) {
+                p.dirty = false;
+                dirtyCount--;
+            }
+            while (p.writing > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        outQueue.remove(key);
+    }
+
+    /**
+     * Evict clean blocks until there is room for the given number of new blocks.
+     * Dirty blocks and blocks that are loading or being written are skipped,
+     * so the cache may temporarily exceed its budget.
+     * The caller must hold the lock on this cache.
+     */
+    private void reclaim(int newBlocks) {
+        final int max = (int) Math.min(Integer.MAX_VALUE, maxSize / BLOCK_SIZE);
+        final int maxIn = Math.max(1, max * IN_PERCENTAGE / 100);
+        while (pages.size() + newBlocks > max) {
+            Page victim = null;
+            if ((inQueue.size() > maxIn) || mainQueue.isEmpty()) {
+                victim = findVictim(inQueue);
+            }
+            if (victim == null) {
+                victim = findVictim(mainQueue);
+            }
+            if (victim == null) {
+                victim = findVictim(inQueue);
+            }
+            if (victim == null) {
+                // Everything is dirty or busy
+                return;
+            }
+            if (inQueue.remove(victim.key) != null) {
+                outQueue.put(victim.key, victim.key);
+                if (outQueue.size() > max * OUT_PERCENTAGE / 100) {
+                    final Iterator<Key> i = outQueue.keySet().iterator();
+                    i.next();
+                    i.remove();
+                }
+            } else {
+                mainQueue.remove(victim.key);
+            }
+            pages.remove(victim.key);
+            evictions++;
+        }
+    }
+
+    /**
+     * Gets the first page of the given queue that can be evicted.
+     */
+    private static Page findVictim(LinkedHashMap<Key, Page> queue) {
+        for (Page p : queue.values()) {
+            if (!p.dirty && (p.writing == 0) && p.isLoaded()) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait until no blocks of the given device, or of any device if dev is null,
+     * are being written by other threads.
+     */
+    private synchronized void waitWriteBacks(BlockDeviceAPI dev) throws InterruptedIOException {
+        boolean busy = true;
+        while (busy) {
+            busy = false;
+            for (Page p : pages.values()) {
+                if ((p.writing > 0) && ((dev == null) || (p.key.dev == dev))) {
+                    busy = true;
+                    break;
+                }
+            }
+            if (busy) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a run of contiguous pages to their device with a single request.
+     */
+    private void write(List<Page> run) throws IOException {
+        final Page first = run.get(0);
+        final int n = run.size();
+        final ByteBuffer buf = ByteBuffer.allocate((n - 1) * BLOCK_SIZE + run.get(n - 1).length);
+        for (Page p : run) {
+            p.copyTo(buf);
+        }
+        buf.flip();
+        first.key.dev.write(first.key.block * BLOCK_SIZE, buf);
+    }
+
+    /**
+     * Identifies a block on a device.
+     */
+    static final class Key {
+        final BlockDeviceAPI dev;
+        final long block;
+
+        Key(BlockDeviceAPI dev, long block) {
+            this.dev = dev;
+            this.block = block;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(dev) ^ (int) (block ^ (block >>> 32));
+        }
+
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key k = (Key) obj;
+                return (k.dev == dev) && (k.block == block);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A cached block.
+     * <p/>
+     * The content of the block is guarded by the lock on the page. The dirty
+     * flag and the count of running writes are guarded by the lock on the cache.
+     * Never take the lock on the cache while holding the lock on a page.
+     */
+    static final class Page implements Comparable<Page> {
+        private static final int LOADING = 0;
+        private static final int LOADED = 1;
+        private static final int FAILED = 2;
+
+        final Key key;
+        final int length;
+        private final byte[] data;
+        private volatile int state = LOADING;
+        boolean dirty;
+        int writing;
+
+        Page(Key key, int length) {
+            this.key = key;
+            this.length = length;
+            this.data = new byte[BLOCK_SIZE];
+        }
+
+        /**
+         * Has the content of this page been set.
+         */
+        final boolean isLoaded() {
+            return (state == LOADED);
+        }
+
+        /**
+         * Set the content of this loading page and wake up the threads waiting for it.
+         *
+         * @param src    the content
+         * @param offset the offset of the content in src
+         */
+        final synchronized void loaded(byte[] src, int offset) {
+            System.arraycopy(src, offset, data, 0, length);
+            state = LOADED;
+            notifyAll();
+        }
+
+        /**
+         * The content of this page could not be read.
+         */
+        final synchronized void failed() {
+            state = FAILED;
+            notifyAll();
+        }
+
+        /**
+         * Wait until the content of this page has been set.
+         *
+         * @return false if the content could not be read, and this page has been
+         *         removed from the cache
+         * @throws InterruptedIOException
+         */
+        final synchronized boolean waitLoaded() throws InterruptedIOException {
+            while (state == LOADING) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return (state == LOADED);
+        }
+
+        /**
+         * Copy content of this page into the given buffer.
+         *
+         * @param offset the offset in this page
+         * @param dest
+         * @return the number of bytes copied
+         */
+        final synchronized int read(int offset, ByteBuffer dest) {
+            final int n = Math.min(length - offset, dest.remaining());
+            dest.put(data, offset, n);
+            return n;
+        }
+
+        /**
+         * Copy the given buffer into this page.
+         *
+         * @param offset the offset in this page
+         * @param src
+         * @return the number of bytes copied
+         */
+        final synchronized int write(int offset, ByteBuffer src) {
+            final int n = Math.min(length - offset, src.remaining());
+            src.get(data, offset, n);
+            return n;
+        }
+
+        /**
+         * Copy the whole content of this page into the given buffer.
+         */
+        final synchronized void copyTo(ByteBuffer dest) {
+            dest.put(data, 0, length);
+        }
+
+        /**
+         * Is the given page the next block on the same device.
+         */
+        final boolean isFollowedBy(Page p) {
+            return (p.key.dev == key.dev) && (p.key.block == key.block + 1);
+        }
+
+        /**
+         * Order by device, then by block number.
+         */
+        public int compareTo(Page p) {
+            if (p.key.dev != key.dev) {
+                final int h1 = System.identityHashCode(key.dev);
+                final int h2 = System.identityHashCode(p.key.dev);
+                return (h1 < h2) ? -1 : ((h1 == h2) ? 0 : 1);
+            }
+            return (key.block < p.key.block) ? -1 : ((key.block == p.key.block) ? 0 : 1);
+        }
+    }
+}
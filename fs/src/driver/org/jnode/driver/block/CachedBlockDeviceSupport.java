@@ -0,0 +1,402 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.jnode.partitions.PartitionTableEntry;
+
+/**
+ * A view on a block device that reads and writes through the shared
+ * {@link BufferCache}. Each mounted filesystem has its own view, so the
+ * statistics of a view are those of one mount.
+ * <p/>
+ * The device is read and written without holding the lock on the cache, so
+ * several threads can use the same or different devices at once.
+ */
+public class CachedBlockDeviceSupport implements FSBlockDeviceAPI, DiscardBlockDeviceAPI {
+
+    /**
+     * Writes of at least this number of blocks bypass the cache
+     */
+    private static final int WRITE_THROUGH_BLOCKS = 64;
+
+    /**
+     * Maximum number of missing blocks read from the device in one request
+     */
+    private static final int MAX_READ_BLOCKS = 32;
+
+    private static final int BLOCK_SIZE = BufferCache.BLOCK_SIZE;
+
+    private final BufferCache cache;
+
+    private final BlockDeviceAPI parentApi;
+
+    private final FSBlockDeviceAPI fsParentApi;
+
+    private final long length;
+
+    private long hits;
+
+    private long misses;
+
+    private long writes;
+
+    /**
+     * Create a new view on the given device.
+     *
+     * @param parentApi   the device
+     * @param fsParentApi the filesystem API of the device, or null if it has none
+     * @throws IOException
+     */
+    public CachedBlockDeviceSupport(BlockDeviceAPI parentApi, FSBlockDeviceAPI fsParentApi) throws IOException {
+        this(BufferCache.getInstance(), parentApi, fsParentApi);
+    }
+
+    /**
+     * Create a new view on the given device using the given cache.
+     *
+     * @param cache       the cache
+     * @param parentApi   the device
+     * @param fsParentApi the filesystem API of the device, or null if it has none
+     * @throws IOException
+     */
+    public CachedBlockDeviceSupport(BufferCache cache, BlockDeviceAPI parentApi, FSBlockDeviceAPI fsParentApi)
+        throws IOException {
+        this.cache = cache;
+        this.parentApi = parentApi;
+        this.fsParentApi = fsParentApi;
+        this.length = parentApi.getLength();
+    }
+
+    /**
+     * @see org.jnode.driver.block.BlockDeviceAPI#getLength()
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @see org.jnode.driver.block.FSBlockDeviceAPI#getSectorSize()
+     */
+    public int getSectorSize() throws IOException {
+        if (fsParentApi == null) {
+            throw new IOException("Device has no FSBlockDeviceAPI");
+        }
+        return fsParentApi.getSectorSize();
+    }
+
+    /**
+     * @see org.jnode.driver.block.FSBlockDeviceAPI#getPartitionTableEntry()
+     */
+    public PartitionTableEntry getPartitionTableEntry() {
+        return (fsParentApi == null) ? null : fsParentApi.getPartitionTableEntry();
+    }
+
+    /**
+     * Gets the device below this view.
+     *
+     * @return the device API
+     */
+    public final BlockDeviceAPI getParentApi() {
+        return parentApi;
+    }
+
+    /**
+     * @see org.jnode.driver.block.BlockDeviceAPI#read(long, java.nio.ByteBuffer)
+     */
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        BlockDeviceAPIHelper.checkBounds(this, devOffset, dest.remaining());
+        while (dest.hasRemaining()) {
+            final long block = devOffset / BLOCK_SIZE;
+            final int ofs = (int) (devOffset % BLOCK_SIZE);
+            final BufferCache.Page page = cache.lookup(parentApi, block);
+            final int n;
+            if (page == null) {
+                n = readMissing(block, ofs, dest);
+            } else if (page.waitLoaded()) {
+                count(1, 0, 0);
+                n = page.read(ofs, dest);
+            } else {
+                // Loading it failed, try again
+                n = 0;
+            }
+            devOffset += n;
+        }
+    }
+
+    /**
+     * Read a run of blocks that are not in the cache with a single device request,
+     * add them to the cache and copy the requested part into dest.
+     *
+     * @return the number of bytes copied into dest, 0 if the first block was cached meanwhile
+     */
+    private int readMissing(long block, int ofs, ByteBuffer dest) throws IOException {
+        final long lastBlock = block + (ofs + dest.remaining() - 1) / BLOCK_SIZE;
+        final int maxBlocks = (int) Math.min(MAX_READ_BLOCKS, lastBlock - block + 1);
+        final List<BufferCache.Page> run = cache.reserve(parentApi, block, maxBlocks, length);
+        final int cnt = run.size();
+        if (cnt == 0) {
+            return 0;
+        }
+        final long start = block * BLOCK_SIZE;
+        final int runLength = (int) Math.min((long) cnt * BLOCK_SIZE, length - start);
+        final byte[] buf = new byte[runLength];
+        try {
+            parentApi.read(start, ByteBuffer.wrap(buf));
+        } catch (IOException ex) {
+            for (BufferCache.Page page : run) {
+                cache.loadFailed(page);
+            }
+            throw ex;
+        } catch (RuntimeException ex) {
+            for (BufferCache.Page page : run) {
+                cache.loadFailed(page);
+            }
+            throw ex;
+        }
+        count(0, cnt, 0);
+
+        int copied = 0;
+        for (int i = 0; i < cnt; i++) {
+            final BufferCache.Page page = run.get(i);
+            page.loaded(buf, i * BLOCK_SIZE);
+            final int blockOfs = (i == 0) ? ofs : 0;
+            final int n = Math.min(page.length - blockOfs, dest.remaining());
+            dest.put(buf, i * BLOCK_SIZE + blockOfs, n);
+            copied += n;
+        }
+        return copied;
+    }
+
+    /**
+     * @see org.jnode.driver.block.BlockDeviceAPI#write(long, java.nio.ByteBuffer)
+     */
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        BlockDeviceAPIHelper.checkBounds(this, devOffset, src.remaining());
+        if (src.remaining() >= WRITE_THROUGH_BLOCKS * BLOCK_SIZE) {
+            writeThrough(devOffset, src);
+            return;
+        }
+        boolean writeBack = false;
+        while (src.hasRemaining()) {
+            final long block = devOffset / BLOCK_SIZE;
+            final int ofs = (int) (devOffset % BLOCK_SIZE);
+            final BufferCache.Page page = getPageForWrite(block, ofs, src.remaining());
+            if (page == null) {
+                // Loading it failed in another thread, try again
+                continue;
+            }
+            final int n = page.write(ofs, src);
+            writeBack |= cache.setDirty(page);
+            count(0, 0, 1);
+            devOffset += n;
+        }
+        if (writeBack) {
+            cache.writeBack(parentApi);
+        }
+    }
+
+    /**
+     * Gets the page a write goes to, adding it to the cache if needed.
+     * If the write covers part of a block that is not cached, the block is read first.
+     *
+     * @return the loaded page, or null if another thread failed to load it
+     */
+    private BufferCache.Page getPageForWrite(long block, int ofs, int remaining) throws IOException {
+        while (true) {
+            BufferCache.Page page = cache.lookup(parentApi, block);
+            if (page != null) {
+                count(1, 0, 0);
+                return page.waitLoaded() ? page : null;
+            }
+            final List<BufferCache.Page> run = cache.reserve(parentApi, block, 1, length);
+            if (run.isEmpty()) {
+                // Added by another thread meanwhile
+                continue;
+            }
+            page = run.get(0);
+            final byte[] data = new byte[page.length];
+            if ((ofs != 0) || (remaining < page.length)) {
+                // Partial write, read the rest of the block first
+                try {
+                    parentApi.read(block * BLOCK_SIZE, ByteBuffer.wrap(data));
+                } catch (IOException ex) {
+                    cache.loadFailed(page);
+                    throw ex;
+                }
+                count(0, 1, 0);
+            }
+            page.loaded(data, 0);
+            return page;
+        }
+    }
+
+    /**
+     * Write a large buffer directly to the device and update the cached blocks it covers.
+     * The updated blocks are marked dirty: a write-back of such a block that was already
+     * running may have taken its old content and write it over the new data, so the
+     * block is written again by the next write-back.
+     */
+    private void writeThrough(long devOffset, ByteBuffer src) throws IOException {
+        final ByteBuffer data = src.slice();
+        parentApi.write(devOffset, src);
+        final long end = devOffset + data.remaining();
+        boolean writeBack = false;
+        for (long block = devOffset / BLOCK_SIZE; block * BLOCK_SIZE < end; block++) {
+            final BufferCache.Page page = cache.lookup(parentApi, block);
+            if ((page != null) && page.waitLoaded()) {
+                final long blockStart = block * BLOCK_SIZE;
+                final long from = Math.max(blockStart, devOffset);
+                final long to = Math.min(blockStart + page.length, end);
+                data.limit((int) (to - devOffset));
+                data.position((int) (from - devOffset));
+                page.write((int) (from - blockStart), data);
+                writeBack |= cache.setDirty(page);
+            }
+        }
+        count(0, 0, (end - devOffset + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (writeBack) {
+            cache.writeBack(parentApi);
+        }
+    }
+
+    /**
+     * Remove the cached blocks that lie completely in the given range, without
+     * writing them, clear the part of the range in the other cached blocks and
+     * pass the discard on to the device if it supports it.
+     *
+     * @see org.jnode.driver.block.DiscardBlockDeviceAPI#discard(long, long)
+     */
+    public void discard(long devOffset, long length) throws IOException {
+        BlockDeviceAPIHelper.checkBounds(this, devOffset, length);
+        final long end = devOffset + length;
+        boolean writeBack = false;
+        for (long block = devOffset / BLOCK_SIZE; block * BLOCK_SIZE < end; block++) {
+            final long blockStart = block * BLOCK_SIZE;
+            final long blockEnd = Math.min(blockStart + BLOCK_SIZE, this.length);
+            if ((blockStart >= devOffset) && (blockEnd <= end)) {
+                cache.remove(parentApi, block);
+                continue;
+            }
+            // A write-back of the block would store the old data of the range again
+            final BufferCache.Page page = cache.lookup(parentApi, block);
+            if ((page != null) && page.waitLoaded()) {
+                final long from = Math.max(blockStart, devOffset);
+                final long to = Math.min(blockEnd, end);
+                page.write((int) (from - blockStart), ByteBuffer.allocate((int) (to - from)));
+                writeBack |= cache.setDirty(page);
+            }
+        }
+        if (parentApi instanceof DiscardBlockDeviceAPI) {
+            ((DiscardBlockDeviceAPI) parentApi).discard(devOffset, length);
+        }
+        if (writeBack) {
+            cache.writeBack(parentApi);
+        }
+    }
+
+    /**
+     * Write all dirty blocks of this device and flush the device.
+     *
+     * @see org.jnode.driver.block.BlockDeviceAPI#flush()
+     */
+    public void flush() throws IOException {
+        cache.writeBack(parentApi);
+        parentApi.flush();
+    }
+
+    /**
+     * Write all dirty blocks of this device and remove its blocks from the cache,
+     * so the next reads come from the device.
+     *
+     * @throws IOException
+     */
+    public void invalidate() throws IOException {
+        cache.writeBack(parentApi);
+        cache.invalidate(parentApi);
+    }
+
+    /**
+     * Write all dirty blocks of this device and remove its blocks from the cache.
+     * This is called when the filesystem is unmounted.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        invalidate();
+        parentApi.flush();
+    }
+
+    /**
+     * Gets the number of block accesses served from the cache.
+     *
+     * @return the number of hits
+     */
+    public final synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of blocks that had to be read from the device.
+     *
+     * @return the number of misses
+     */
+    public final synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of blocks written through this view.
+     *
+     * @return the number of written blocks
+     */
+    public final synchronized long getWriteCount() {
+        return writes;
+    }
+
+    /**
+     * Gets the fraction of block accesses served from the cache.
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public final synchronized double getHitRate() {
+        final long total = hits + misses;
+        return (total == 0) ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public synchronized String toString() {
+        return "hits=" + hits + ", misses=" + misses + ", writes=" + writes;
+    }
+
+    /**
+     * Update the statistics of this view.
+     */
+    private synchronized void count(long hits, long misses, long writes) {
+        this.hits += hits;
+        this.misses += misses;
+        this.writes += writes;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Elevator scheduler with deadlines.
+ * <p/>
+ * Reads and writes are each kept sorted by block. Requests are dispatched
+ * in ascending block order from the position of the last dispatched request,
+ * wrapping around to the lowest block, and are merged with the queued
+ * requests of the same direction that directly precede or follow them.
+ * <p/>
+ * Reads are preferred over writes, but writes are dispatched at least
+ * every {@link #WRITES_STARVED} batches. A request waiting longer than its
+ * expiry time is dispatched first, so no request starves behind a stream
+ * of requests elsewhere on the disk.
+ * <p/>
+ * Requests that overlap, of which at least one is a write, are dispatched in
+ * submission order: when the request to dispatch overlaps an older queued
+ * request, that request is dispatched first, and a request is not merged
+ * into a batch while it overlaps an older queued request.
+ */
+public class DeadlineIOScheduler implements IOScheduler {
+
+    public static final String NAME = "deadline";
+
+    /**
+     * Time in nanoseconds after which a read is dispatched first
+     */
+    public static final long READ_EXPIRE = 500L * 1000 * 1000;
+
+    /**
+     * Time in nanoseconds after which a write is dispatched first
+     */
+    public static final long WRITE_EXPIRE = 5000L * 1000 * 1000;
+
+    /**
+     * Number of read batches that may be dispatched while writes are waiting
+     */
+    public static final int WRITES_STARVED = 2;
+
+    private final Direction reads = new Direction(READ_EXPIRE);
+
+    private final Direction writes = new Direction(WRITE_EXPIRE);
+
+    /**
+     * Number of read batches dispatched while writes were waiting
+     */
+    private int starved;
+
+    public String getName() {
+        return NAME;
+    }
+
+    public void add(IORequest request) {
+        (request.isWrite() ? writes : reads).add(request);
+    }
+
+    public IORequest next(int maxBlocks) {
+        final Direction direction;
+        if (!reads.isEmpty() && (writes.isEmpty() || starved < WRITES_STARVED)) {
+            if (!writes.isEmpty()) {
+                starved++;
+            }
+            direction = reads;
+        } else if (!writes.isEmpty()) {
+            starved = 0;
+            direction = writes;
+        } else {
+            return null;
+        }
+
+        IORequest first = direction.first(System.nanoTime());
+        IORequest older;
+        while ((older = findOlderConflict(first)) != null) {
+            first = older;
+        }
+        return (first.isWrite() ? writes : reads).dispatch(first, maxBlocks);
+    }
+
+    public List<IORequest> removeAll() {
+        final List<IORequest> result = new ArrayList<IORequest>(size());
+        result.addAll(reads.fifo);
+        result.addAll(writes.fifo);
+        Collections.sort(result, new Comparator<IORequest>() {
+            public int compare(IORequest r1, IORequest r2) {
+                return (r1.getSequence() < r2.getSequence()) ? -1 : ((r1.getSequence() == r2.getSequence()) ? 0 : 1);
+            }
+        });
+        reads.clear();
+        writes.clear();
+        return result;
+    }
+
+    public int size() {
+        return reads.fifo.size() + writes.fifo.size();
+    }
+
+    /**
+     * Find the oldest queued request that is older than the given request and
+     * overlaps it, where one of both is a write.
+     *
+     * @return the request, or {@code null} if there is none
+     */
+    final IORequest findOlderConflict(IORequest request) {
+        final IORequest write = writes.findOlderOverlapping(request);
+        if (!request.isWrite()) {
+            return write;
+        }
+        final IORequest read = reads.findOlderOverlapping(request);
+        if ((read != null) && ((write == null) || (read.getSequence() < write.getSequence()))) {
+            return read;
+        }
+        return write;
+    }
+
+    /**
+     * Queued requests of one direction.
+     */
+    private final class Direction {
+
+        private final long expire;
+
+        /**
+         * Requests by first block
+         */
+        private final TreeMap<Long, LinkedList<IORequest>> sorted = new TreeMap<Long, LinkedList<IORequest>>();
+
+        /**
+         * Requests in submission order
+         */
+        private final LinkedHashSet<IORequest> fifo = new LinkedHashSet<IORequest>();
+
+        /**
+         * Block following the last dispatched request
+         */
+        private long position;
+
+        Direction(long expire) {
+            this.expire = expire;
+        }
+
+        void add(IORequest request) {
+            LinkedList<IORequest> list = sorted.get(request.getBlock());
+            if (list == null) {
+                list = new LinkedList<IORequest>();
+                sorted.put(request.getBlock(), list);
+            }
+            list.addLast(request);
+            fifo.add(request);
+        }
+
+        boolean isEmpty() {
+            return fifo.isEmpty();
+        }
+
+        void clear() {
+            sorted.clear();
+            fifo.clear();
+        }
+
+        /**
+         * Gets the request to dispatch next: the oldest one if it has expired,
+         * otherwise the next one in block order.
+         */
+        IORequest first(long now) {
+            final IORequest oldest = fifo.iterator().next();
+            if (now - oldest.getSubmitTime() >= expire) {
+                return oldest;
+            }
+            Map.Entry<Long, LinkedList<IORequest>> entry = sorted.ceilingEntry(position);
+            if (entry == null) {
+                entry = sorted.firstEntry();
+            }
+            return entry.getValue().getFirst();
+        }
+
+        /**
+         * Remove the given request, merged with the queued requests of adjacent blocks.
+         */
+        IORequest dispatch(IORequest first, int maxBlocks) {
+            remove(first);
+
+            final LinkedList<IORequest> batch = new LinkedList<IORequest>();
+            batch.add(first);
+            int count = first.getCount();
+
+            // Merge the requests ending where the batch starts
+            IORequest prev;
+            while ((prev = findEndingAt(batch.getFirst().getBlock(), maxBlocks - count)) != null) {
+                remove(prev);
+                batch.addFirst(prev);
+                count += prev.getCount();
+            }
+
+            // Merge the requests starting where the batch ends
+            IORequest next;
+            while ((next = findStartingAt(batch.getLast().getEnd(), maxBlocks - count)) != null) {
+                remove(next);
+                batch.addLast(next);
+                count += next.getCount();
+            }
+
+            position = batch.getLast().getEnd();
+            return IORequest.merge(batch);
+        }
+
+        /**
+         * Find a request ending at the given block, of at most the given number
+         * of blocks, that does not overlap an older queued request.
+         */
+        private IORequest findEndingAt(long end, int maxBlocks) {
+            for (Map.Entry<Long, LinkedList<IORequest>> entry = sorted.lowerEntry(end);
+                 (entry != null) && (end - entry.getKey() <= maxBlocks);
+                 entry = sorted.lowerEntry(entry.getKey())) {
+                for (IORequest request : entry.getValue()) {
+                    if ((request.getEnd() == end) && (findOlderConflict(request) == null)) {
+                        return request;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Find a request starting at the given block, of at most the given number
+         * of blocks, that does not overlap an older queued request.
+         */
+        private IORequest findStartingAt(long block, int maxBlocks) {
+            final LinkedList<IORequest> list = sorted.get(block);
+            if (list != null) {
+                for (IORequest request : list) {
+                    if ((request.getCount() <= maxBlocks) && (findOlderConflict(request) == null)) {
+                        return request;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Find the oldest request of this direction that is older than the given
+         * request and overlaps it.
+         */
+        IORequest findOlderOverlapping(IORequest request) {
+            for (IORequest r : fifo) {
+                if (r.getSequence() >= request.getSequence()) {
+                    // The requests are in submission order
+                    break;
+                }
+                if ((r.getBlock() < request.getEnd()) && (request.getBlock() < r.getEnd())) {
+                    return r;
+                }
+            }
+            return null;
+        }
+
+        private void remove(IORequest request) {
+            final LinkedList<IORequest> list = sorted.get(request.getBlock());
+            list.remove(request);
+            if (list.isEmpty()) {
+                sorted.remove(request.getBlock());
+            }
+            fifo.remove(request);
+        }
+    }
+}
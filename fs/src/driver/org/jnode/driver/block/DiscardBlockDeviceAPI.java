@@ -0,0 +1,41 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.io.IOException;
+
+/**
+ * A block device that can be told which ranges no longer hold data, like the
+ * TRIM command of a solid state disk. The device may then release the storage
+ * behind those ranges.
+ */
+public interface DiscardBlockDeviceAPI extends BlockDeviceAPI {
+
+    /**
+     * Discard the contents of a range. Until the range is written again, its
+     * contents are undefined; many devices read it back as zeroes.
+     *
+     * @param devOffset the start of the range
+     * @param length    the length of the range in bytes
+     * @throws IOException
+     */
+    public void discard(long devOffset, long length) throws IOException;
+}
@@ -0,0 +1,404 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import org.jnode.system.resource.MemoryResource;
+
+/**
+ * A read or write of a run of contiguous blocks, queued in an {@link IORequestQueue}.
+ * <p/>
+ * The buffer of a request holds exactly the data of its blocks, from position 0.
+ * Requests of adjacent blocks can be merged by an {@link IOScheduler} into a
+ * single request, which completes the requests it was made of when it completes.
+ * A merged request keeps the buffers of its parts as a scatter list: drivers
+ * copy the data with {@link #copyTo(int, MemoryResource, int, int)} and
+ * {@link #copyFrom(MemoryResource, int, int, int)}, and only a driver calling
+ * {@link #getBuffer()} makes it gather the data into one buffer.
+ */
+public final class IORequest {
+
+    /**
+     * Receives the completion of a request.
+     */
+    public static interface Listener {
+
+        /**
+         * The request has completed.
+         *
+         * @param request the request
+         * @param error   the error of the transfer, or {@code null} if it succeeded
+         */
+        public void completed(IORequest request, IOException error);
+    }
+
+    private final long block;
+
+    private final int count;
+
+    private final int blockSize;
+
+    /**
+     * The data of the request. For a merged request it is only allocated when asked for.
+     */
+    private ByteBuffer buffer;
+
+    private final boolean write;
+
+    /**
+     * The requests this request was merged from, in block order, or {@code null}
+     */
+    private final List<IORequest> parts;
+
+    /**
+     * Order in which the request was submitted
+     */
+    private long sequence;
+
+    /**
+     * Time in nanoseconds at which the request was submitted
+     */
+    private long submitTime;
+
+    private boolean done;
+
+    private IOException error;
+
+    private Listener listener;
+
+    /**
+     * Create a new request.
+     *
+     * @param block     the first block
+     * @param count     the number of blocks
+     * @param blockSize the size of a block in bytes
+     * @param buffer    the data to write or the buffer to read into, from its position up to its limit
+     * @param write     {@code true} for a write, {@code false} for a read
+     */
+    public IORequest(long block, int count, int blockSize, ByteBuffer buffer, boolean write) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count " + count);
+        }
+        if (buffer.remaining() != count * blockSize) {
+            throw new IllegalArgumentException("Buffer holds " + buffer.remaining() + " bytes, not " +
+                count * blockSize);
+        }
+        this.block = block;
+        this.count = count;
+        this.blockSize = blockSize;
+        this.buffer = buffer.slice();
+        this.write = write;
+        this.parts = null;
+    }
+
+    private IORequest(List<IORequest> parts) {
+        final IORequest first = parts.get(0);
+        int total = 0;
+        for (IORequest part : parts) {
+            total += part.count;
+        }
+        this.block = first.block;
+        this.count = total;
+        this.blockSize = first.blockSize;
+        this.write = first.write;
+        this.parts = parts;
+        this.sequence = first.sequence;
+        this.submitTime = first.submitTime;
+    }
+
+    /**
+     * Merge requests of adjacent blocks into one request.
+     *
+     * @param parts the requests in block order, all reads or all writes
+     * @return the merged request, or the only request if there is just one
+     */
+    public static IORequest merge(List<IORequest> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        long next = parts.get(0).block;
+        for (IORequest part : parts) {
+            if (part.block != next || part.write != parts.get(0).write) {
+                throw new IllegalArgumentException("Requests are not adjacent: " + parts);
+            }
+            next = part.getEnd();
+        }
+        return new IORequest(parts);
+    }
+
+    /**
+     * Gets the first block.
+     *
+     * @return the first block
+     */
+    public long getBlock() {
+        return block;
+    }
+
+    /**
+     * Gets the number of blocks.
+     *
+     * @return the number of blocks
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the block following the last block of this request.
+     *
+     * @return the end block
+     */
+    public long getEnd() {
+        return block + count;
+    }
+
+    /**
+     * Gets the size of a block.
+     *
+     * @return the block size in bytes
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Gets the buffer holding the data of this request. A merged request
+     * allocates a buffer for all its blocks, which the data of its parts is
+     * copied in and out of, so drivers that can scatter the data should use
+     * {@link #copyTo(int, MemoryResource, int, int)} and
+     * {@link #copyFrom(MemoryResource, int, int, int)} instead.
+     *
+     * @return the buffer
+     */
+    public synchronized ByteBuffer getBuffer() {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(count * blockSize);
+            if (write) {
+                for (IORequest part : parts) {
+                    buffer.put(part.buffer.duplicate());
+                }
+                buffer.clear();
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Copy data of this request into memory.
+     *
+     * @param offset    the offset in the data of this request
+     * @param mem       the memory to copy to
+     * @param memOffset the offset in the memory
+     * @param length    the number of bytes to copy
+     */
+    public void copyTo(int offset, MemoryResource mem, int memOffset, int length) {
+        copy(offset, mem, memOffset, length, true);
+    }
+
+    /**
+     * Copy data from memory into this request.
+     *
+     * @param mem       the memory to copy from
+     * @param memOffset the offset in the memory
+     * @param offset    the offset in the data of this request
+     * @param length    the number of bytes to copy
+     */
+    public void copyFrom(MemoryResource mem, int memOffset, int offset, int length) {
+        copy(offset, mem, memOffset, length, false);
+    }
+
+    private void copy(int offset, MemoryResource mem, int memOffset, int length, boolean toMemory) {
+        if ((offset < 0) || (length < 0) || (offset + length > count * blockSize)) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+        }
+        for (IORequest part : getParts()) {
+            final int size = part.buffer.capacity();
+            if (offset >= size) {
+                offset -= size;
+                continue;
+            }
+            final int n = Math.min(length, size - offset);
+            final ByteBuffer buf = part.buffer.duplicate();
+            buf.clear();
+            buf.position(offset);
+            if (buf.hasArray()) {
+                if (toMemory) {
+                    mem.setBytes(buf.array(), buf.arrayOffset() + offset, memOffset, n);
+                } else {
+                    mem.getBytes(memOffset, buf.array(), buf.arrayOffset() + offset, n);
+                }
+            } else {
+                final byte[] data = new byte[n];
+                if (toMemory) {
+                    buf.get(data);
+                    mem.setBytes(data, 0, memOffset, n);
+                } else {
+                    mem.getBytes(memOffset, data, 0, n);
+                    buf.put(data);
+                }
+            }
+            memOffset += n;
+            length -= n;
+            offset = 0;
+            if (length == 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Is this a write request.
+     *
+     * @return {@code true} for a write, {@code false} for a read
+     */
+    public boolean isWrite() {
+        return write;
+    }
+
+    /**
+     * Gets the requests this request is made of.
+     *
+     * @return the merged requests in block order, or a list holding just this request
+     */
+    public List<IORequest> getParts() {
+        return (parts != null) ? Collections.unmodifiableList(parts) : Collections.singletonList(this);
+    }
+
+    /**
+     * Gets the order in which this request was submitted.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the time at which this request was submitted.
+     *
+     * @return the time in nanoseconds, as given by {@link System#nanoTime()}
+     */
+    public long getSubmitTime() {
+        return submitTime;
+    }
+
+    /**
+     * Set the sequence number and the submit time of this request. This is
+     * done by the {@link IORequestQueue} the request is submitted to, before
+     * the request is added to its {@link IOScheduler}.
+     *
+     * @param sequence   the sequence number
+     * @param submitTime the time in nanoseconds, as given by {@link System#nanoTime()}
+     */
+    public final void submitted(long sequence, long submitTime) {
+        this.sequence = sequence;
+        this.submitTime = submitTime;
+    }
+
+    /**
+     * Complete this request, and the requests it was merged from.
+     *
+     * @param error the error of the transfer, or {@code null} if it succeeded
+     */
+    public void complete(IOException error) {
+        if (parts != null) {
+            final ByteBuffer buffer;
+            synchronized (this) {
+                buffer = this.buffer;
+            }
+            if ((error == null) && !write && (buffer != null)) {
+                final ByteBuffer src = buffer.duplicate();
+                src.clear();
+                for (IORequest part : parts) {
+                    src.limit(src.position() + part.buffer.capacity());
+                    final ByteBuffer dst = part.buffer.duplicate();
+                    dst.clear();
+                    dst.put(src);
+                }
+            }
+            for (IORequest part : parts) {
+                part.complete(error);
+            }
+        }
+        final Listener listener;
+        synchronized (this) {
+            this.error = error;
+            this.done = true;
+            listener = this.listener;
+            notifyAll();
+        }
+        if (listener != null) {
+            listener.completed(this, error);
+        }
+    }
+
+    /**
+     * Set the listener called when this request completes. Set it before the
+     * request is submitted.
+     *
+     * @param listener
+     */
+    public void setListener(Listener listener) {
+        synchronized (this) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Is this request completed.
+     *
+     * @return {@code true} if completed
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Wait until this request is completed.
+     *
+     * @throws IOException if the transfer failed or the wait was interrupted
+     */
+    public synchronized void waitUntilDone() throws IOException {
+        while (!done) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted waiting for " + this);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return (write ? "write " : "read ") + block + "+" + count +
+            ((parts != null) ? " (" + parts.size() + " merged)" : "");
+    }
+}
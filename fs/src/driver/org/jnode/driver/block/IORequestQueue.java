@@ -0,0 +1,311 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Queue of the requests of a block device.
+ * <p/>
+ * Callers submit requests from any thread. A single dispatcher thread takes
+ * the requests in the order decided by the {@link IOScheduler}, merged with
+ * requests of adjacent blocks, and hands them to the {@link Handler} of the
+ * device driver one at a time. Devices that queue commands themselves use an
+ * {@link AsyncHandler} instead, which keeps several requests in flight.
+ */
+public class IORequestQueue {
+
+    /**
+     * Performs the requests on the device.
+     */
+    public static interface Handler {
+
+        /**
+         * Transfer the data of the given request.
+         *
+         * @param request
+         * @throws IOException
+         */
+        public void perform(IORequest request) throws IOException;
+    }
+
+    /**
+     * Starts the requests on a device that has several requests in flight.
+     */
+    public static interface AsyncHandler {
+
+        /**
+         * Start the transfer of the given request, blocking while the device
+         * cannot accept another request. Once the transfer has finished, the
+         * handler calls {@link IORequestQueue#done(IORequest, IOException)}.
+         *
+         * @param request
+         * @throws IOException if the request could not be started
+         */
+        public void start(IORequest request) throws IOException;
+    }
+
+    /**
+     * My logger
+     */
+    private static final Logger log = Logger.getLogger(IORequestQueue.class);
+
+    private final String name;
+
+    private final int maxBlocks;
+
+    private final Handler handler;
+
+    private final AsyncHandler asyncHandler;
+
+    private final IOStatistics statistics = new IOStatistics();
+
+    private IOScheduler scheduler;
+
+    private Thread dispatcher;
+
+    private long sequence;
+
+    private boolean stopped;
+
+    /**
+     * Create a new queue.
+     *
+     * @param name      the name of the dispatcher thread
+     * @param scheduler the scheduler ordering the requests
+     * @param maxBlocks the maximum number of blocks the handler accepts in one request
+     * @param handler   the handler performing the requests
+     */
+    public IORequestQueue(String name, IOScheduler scheduler, int maxBlocks, Handler handler) {
+        this.name = name;
+        this.scheduler = scheduler;
+        this.maxBlocks = maxBlocks;
+        this.handler = handler;
+        this.asyncHandler = null;
+    }
+
+    /**
+     * Create a new queue for a device with several requests in flight.
+     *
+     * @param name         the name of the dispatcher thread
+     * @param scheduler    the scheduler ordering the requests
+     * @param maxBlocks    the maximum number of blocks the handler accepts in one request
+     * @param asyncHandler the handler starting the requests
+     */
+    public IORequestQueue(String name, IOScheduler scheduler, int maxBlocks, AsyncHandler asyncHandler) {
+        this.name = name;
+        this.scheduler = scheduler;
+        this.maxBlocks = maxBlocks;
+        this.handler = null;
+        this.asyncHandler = asyncHandler;
+    }
+
+    /**
+     * Create the scheduler selected by the {@link IOScheduler#SCHEDULER_PROPERTY} system property.
+     *
+     * @return a new scheduler
+     */
+    public static IOScheduler createScheduler() {
+        final String name = System.getProperty(IOScheduler.SCHEDULER_PROPERTY, DeadlineIOScheduler.NAME);
+        if (NoopIOScheduler.NAME.equals(name)) {
+            return new NoopIOScheduler();
+        } else {
+            return new DeadlineIOScheduler();
+        }
+    }
+
+    /**
+     * Queue the given request.
+     *
+     * @param request
+     * @throws IOException if the queue is stopped
+     */
+    public void submit(IORequest request) throws IOException {
+        synchronized (this) {
+            if (stopped) {
+                throw new IOException("Request queue " + name + " is stopped");
+            }
+            request.submitted(sequence++, System.nanoTime());
+            scheduler.add(request);
+            statistics.submitted(scheduler.size());
+            if (dispatcher == null) {
+                dispatcher = new Thread(new Runnable() {
+                    public void run() {
+                        dispatch();
+                    }
+                }, name + "-iosched");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queue all segments of a block request, split into requests of at most
+     * the maximum number of blocks. The block request completes when all of
+     * them are completed.
+     *
+     * @param request   the block request, with segments aligned to the block size
+     * @param blockSize the size of a block in bytes
+     */
+    public void submit(final BlockRequest request, int blockSize) {
+        final List<IORequest> parts = new ArrayList<IORequest>();
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            final ByteBuffer buf = request.getBuffer(i);
+            final int end = buf.limit();
+            long block = request.getOffset(i) / blockSize;
+            while (buf.position() < end) {
+                final int count = Math.min((end - buf.position()) / blockSize, maxBlocks);
+                buf.limit(buf.position() + count * blockSize);
+                parts.add(new IORequest(block, count, blockSize, buf, request.isWrite()));
+                buf.position(buf.limit());
+                buf.limit(end);
+                block += count;
+            }
+        }
+
+        request.setParts(parts.size());
+        final IORequest.Listener listener = new IORequest.Listener() {
+            public void completed(IORequest part, IOException error) {
+                request.partDone(error);
+            }
+        };
+        for (IORequest part : parts) {
+            part.setListener(listener);
+            try {
+                submit(part);
+            } catch (IOException ex) {
+                request.partDone(ex);
+            }
+        }
+    }
+
+    /**
+     * Queue the given request and wait until it is completed.
+     *
+     * @param request
+     * @throws IOException if the request failed
+     */
+    public void execute(IORequest request) throws IOException {
+        submit(request);
+        request.waitUntilDone();
+    }
+
+    /**
+     * Gets the scheduler ordering the requests.
+     *
+     * @return the scheduler
+     */
+    public synchronized IOScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Replace the scheduler. The queued requests are moved to the new scheduler.
+     *
+     * @param scheduler
+     */
+    public synchronized void setScheduler(IOScheduler scheduler) {
+        for (IORequest request : this.scheduler.removeAll()) {
+            scheduler.add(request);
+        }
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Gets the statistics of this queue.
+     *
+     * @return the statistics
+     */
+    public IOStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Stop dispatching. The queued requests fail.
+     */
+    public void stop() {
+        final List<IORequest> requests;
+        synchronized (this) {
+            stopped = true;
+            requests = scheduler.removeAll();
+            statistics.cleared();
+            notifyAll();
+        }
+        for (IORequest request : requests) {
+            request.complete(new IOException("Request queue " + name + " is stopped"));
+        }
+    }
+
+    /**
+     * Complete a request started by the {@link AsyncHandler}.
+     *
+     * @param request
+     * @param error   the error of the transfer, or null if it succeeded
+     */
+    public void done(IORequest request, IOException error) {
+        request.complete(error);
+        statistics.completed(request, error != null, System.nanoTime());
+    }
+
+    /**
+     * Dispatch the queued requests until stopped.
+     */
+    private void dispatch() {
+        while (true) {
+            final IORequest request;
+            synchronized (this) {
+                while (!stopped && (scheduler.size() == 0)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // Ignore
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                request = scheduler.next(maxBlocks);
+                statistics.dispatched(request, scheduler.size());
+            }
+
+            IOException error = null;
+            try {
+                if (asyncHandler != null) {
+                    asyncHandler.start(request);
+                    continue;
+                }
+                handler.perform(request);
+            } catch (IOException ex) {
+                error = ex;
+            } catch (RuntimeException ex) {
+                log.error("Error performing " + request, ex);
+                error = new IOException("Error performing " + request, ex);
+            }
+            done(request, error);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.util.List;
+
+/**
+ * Orders the queued requests of a block device and merges requests of
+ * adjacent blocks.
+ * <p/>
+ * A scheduler is used by a single {@link IORequestQueue}, which serializes
+ * the calls to it.
+ */
+public interface IOScheduler {
+
+    /**
+     * Name of the system property selecting the scheduler of new request queues:
+     * {@code deadline} (the default) or {@code noop}
+     */
+    public static final String SCHEDULER_PROPERTY = "jnode.iosched";
+
+    /**
+     * Gets the name of this scheduler.
+     *
+     * @return the name
+     */
+    public String getName();
+
+    /**
+     * Add a submitted request.
+     *
+     * @param request
+     */
+    public void add(IORequest request);
+
+    /**
+     * Remove the request to dispatch next, merged with queued requests of
+     * adjacent blocks. A request is not dispatched before an older queued
+     * request that overlaps it, where one of both is a write. Requests that
+     * have been dispatched to an {@link IORequestQueue.AsyncHandler} are in
+     * flight together, and are not ordered.
+     *
+     * @param maxBlocks the maximum number of blocks of a merged request
+     * @return the request, or {@code null} if no request is queued
+     */
+    public IORequest next(int maxBlocks);
+
+    /**
+     * Remove all queued requests.
+     *
+     * @return the requests in submission order
+     */
+    public List<IORequest> removeAll();
+
+    /**
+     * Gets the number of queued requests.
+     *
+     * @return the number of requests
+     */
+    public int size();
+}
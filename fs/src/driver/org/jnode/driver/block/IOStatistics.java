@@ -0,0 +1,179 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+/**
+ * Statistics of the requests handled by an {@link IORequestQueue}.
+ */
+public final class IOStatistics {
+
+    private long submitted;
+
+    private long dispatched;
+
+    private long merged;
+
+    private long blocks;
+
+    private long errors;
+
+    private int queueDepth;
+
+    private int maxQueueDepth;
+
+    private long totalLatency;
+
+    private long maxLatency;
+
+    private long completed;
+
+    /**
+     * Gets the number of submitted requests.
+     *
+     * @return the number of requests
+     */
+    public synchronized long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * Gets the number of requests dispatched to the device, after merging.
+     *
+     * @return the number of dispatched requests
+     */
+    public synchronized long getDispatched() {
+        return dispatched;
+    }
+
+    /**
+     * Gets the number of requests that were merged into another request.
+     *
+     * @return the number of merged requests
+     */
+    public synchronized long getMerged() {
+        return merged;
+    }
+
+    /**
+     * Gets the number of transferred blocks.
+     *
+     * @return the number of blocks
+     */
+    public synchronized long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Gets the number of dispatched requests that failed.
+     *
+     * @return the number of failed requests
+     */
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Gets the number of requests waiting to be dispatched.
+     *
+     * @return the current queue depth
+     */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Gets the largest number of requests that waited to be dispatched.
+     *
+     * @return the maximum queue depth
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Gets the average time from submission to completion of a request.
+     *
+     * @return the average latency in nanoseconds
+     */
+    public synchronized long getAverageLatency() {
+        return (completed == 0) ? 0 : totalLatency / completed;
+    }
+
+    /**
+     * Gets the longest time from submission to completion of a request.
+     *
+     * @return the maximum latency in nanoseconds
+     */
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * Clear all statistics, except the current queue depth.
+     */
+    public synchronized void reset() {
+        submitted = dispatched = merged = blocks = errors = 0;
+        totalLatency = maxLatency = completed = 0;
+        maxQueueDepth = queueDepth;
+    }
+
+    synchronized void submitted(int depth) {
+        submitted++;
+        setQueueDepth(depth);
+    }
+
+    synchronized void dispatched(IORequest request, int depth) {
+        dispatched++;
+        merged += request.getParts().size() - 1;
+        blocks += request.getCount();
+        setQueueDepth(depth);
+    }
+
+    synchronized void completed(IORequest request, boolean failed, long now) {
+        if (failed) {
+            errors++;
+        }
+        for (IORequest part : request.getParts()) {
+            final long latency = now - part.getSubmitTime();
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            completed++;
+        }
+    }
+
+    synchronized void cleared() {
+        queueDepth = 0;
+    }
+
+    private void setQueueDepth(int depth) {
+        queueDepth = depth;
+        maxQueueDepth = Math.max(maxQueueDepth, depth);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public synchronized String toString() {
+        return "submitted=" + submitted + ", dispatched=" + dispatched + ", merged=" + merged + ", blocks=" +
+            blocks + ", errors=" + errors + ", depth=" + queueDepth + ", maxDepth=" + maxQueueDepth +
+            ", avgLatency=" + (getAverageLatency() / 1000) + "us, maxLatency=" + (maxLatency / 1000) + "us";
+    }
+}
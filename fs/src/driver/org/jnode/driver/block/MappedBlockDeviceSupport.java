@@ -28,7 +28,7 @@ import org.jnode.driver.Device;
 /**
  * @author epr
  */
-public class MappedBlockDeviceSupport extends Device implements BlockDeviceAPI {
+public class MappedBlockDeviceSupport extends Device implements AsyncBlockDeviceAPI {
 
     private final Device parent;
     private final BlockDeviceAPI parentApi;
@@ -99,6 +99,26 @@ public class MappedBlockDeviceSupport extends Device implements BlockDeviceAPI {
         parentApi.write(offset + devOffset, src);
     }
 
+    /**
+     * Hands the segments, moved by the offset of this mapping, to the parent device.
+     *
+     * @see org.jnode.driver.block.AsyncBlockDeviceAPI#submit(BlockRequest)
+     */
+    public void submit(final BlockRequest request) throws IOException {
+        final BlockRequest mapped = new BlockRequest(request.isWrite());
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            final ByteBuffer buf = request.getBuffer(i);
+            checkBounds(request.getOffset(i), buf);
+            mapped.add(offset + request.getOffset(i), buf);
+        }
+        mapped.setListener(new BlockRequest.Listener() {
+            public void completed(BlockRequest done) {
+                request.complete(done.getError());
+            }
+        });
+        AsyncBlockDeviceSupport.getAsyncAPI(parentApi).submit(mapped);
+    }
+
     /**
      * @throws IOException
      * @see org.jnode.driver.block.BlockDeviceAPI#flush()
@@ -0,0 +1,57 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Scheduler dispatching the requests in submission order, without merging.
+ */
+public class NoopIOScheduler implements IOScheduler {
+
+    public static final String NAME = "noop";
+
+    private final LinkedList<IORequest> requests = new LinkedList<IORequest>();
+
+    public String getName() {
+        return NAME;
+    }
+
+    public void add(IORequest request) {
+        requests.addLast(request);
+    }
+
+    public IORequest next(int maxBlocks) {
+        return requests.isEmpty() ? null : requests.removeFirst();
+    }
+
+    public List<IORequest> removeAll() {
+        final List<IORequest> result = new ArrayList<IORequest>(requests);
+        requests.clear();
+        return result;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+}
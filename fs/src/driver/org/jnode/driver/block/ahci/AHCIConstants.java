@@ -0,0 +1,197 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block.ahci;
+
+/**
+ * Registers and structures of an AHCI host bus adapter.
+ *
+ * @see "Serial ATA Advanced Host Controller Interface (AHCI), revision 1.3.1"
+ */
+public interface AHCIConstants {
+
+    /**
+     * Index of the base address register of the HBA memory registers (ABAR)
+     */
+    public static final int ABAR = 5;
+
+    /**
+     * Size of the HBA memory registers
+     */
+    public static final int ABAR_SIZE = 0x1100;
+
+    /**
+     * Maximum number of ports of an HBA
+     */
+    public static final int MAX_PORTS = 32;
+
+    /**
+     * Maximum number of command slots of a port
+     */
+    public static final int MAX_SLOTS = 32;
+
+    /* Generic host control registers */
+    public static final int R32_CAP = 0x00; /* Host capabilities */
+    public static final int RW32_GHC = 0x04; /* Global host control */
+    public static final int RW32_IS = 0x08; /* Interrupt status */
+    public static final int R32_PI = 0x0C; /* Ports implemented */
+    public static final int R32_VS = 0x10; /* Version */
+    public static final int R32_CAP2 = 0x24; /* Host capabilities extended */
+    public static final int RW32_BOHC = 0x28; /* BIOS/OS handoff control and status */
+
+    /* Bits of the host capabilities register */
+    public static final int CAP_NP_MASK = 0x1F; /* Number of ports - 1 */
+    public static final int CAP_NCS_SHIFT = 8; /* Number of command slots - 1 */
+    public static final int CAP_NCS_MASK = 0x1F;
+    public static final int CAP_SNCQ = 0x40000000; /* Supports native command queuing */
+    public static final int CAP_S64A = 0x80000000; /* Supports 64-bit addressing */
+
+    /* Bits of the global host control register */
+    public static final int GHC_HR = 0x00000001; /* HBA reset */
+    public static final int GHC_IE = 0x00000002; /* Interrupt enable */
+    public static final int GHC_AE = 0x80000000; /* AHCI enable */
+
+    /* Bits of the extended host capabilities register */
+    public static final int CAP2_BOH = 0x01; /* Supports BIOS/OS handoff */
+
+    /* Bits of the BIOS/OS handoff control register */
+    public static final int BOHC_BOS = 0x01; /* BIOS owned semaphore */
+    public static final int BOHC_OOS = 0x02; /* OS owned semaphore */
+    public static final int BOHC_BB = 0x10; /* BIOS busy */
+
+    /* Port registers, relative to the registers of the port */
+    public static final int PORT_OFFSET = 0x100;
+    public static final int PORT_SIZE = 0x80;
+    public static final int RW32_PxCLB = 0x00; /* Command list base address */
+    public static final int RW32_PxCLBU = 0x04; /* Command list base address, upper 32 bits */
+    public static final int RW32_PxFB = 0x08; /* FIS base address */
+    public static final int RW32_PxFBU = 0x0C; /* FIS base address, upper 32 bits */
+    public static final int RW32_PxIS = 0x10; /* Interrupt status */
+    public static final int RW32_PxIE = 0x14; /* Interrupt enable */
+    public static final int RW32_PxCMD = 0x18; /* Command and status */
+    public static final int R32_PxTFD = 0x20; /* Task file data */
+    public static final int R32_PxSIG = 0x24; /* Signature */
+    public static final int R32_PxSSTS = 0x28; /* Serial ATA status */
+    public static final int RW32_PxSERR = 0x30; /* Serial ATA error */
+    public static final int RW32_PxSACT = 0x34; /* Serial ATA active (NCQ tags) */
+    public static final int RW32_PxCI = 0x38; /* Command issue */
+
+    /* Bits of the port command and status register */
+    public static final int PxCMD_ST = 0x0001; /* Start */
+    public static final int PxCMD_SUD = 0x0002; /* Spin-up device */
+    public static final int PxCMD_POD = 0x0004; /* Power on device */
+    public static final int PxCMD_FRE = 0x0010; /* FIS receive enable */
+    public static final int PxCMD_FR = 0x4000; /* FIS receive running */
+    public static final int PxCMD_CR = 0x8000; /* Command list running */
+
+    /* Bits of the port interrupt status and enable registers */
+    public static final int PxIS_DHRS = 0x00000001; /* Device to host register FIS */
+    public static final int PxIS_PSS = 0x00000002; /* PIO setup FIS */
+    public static final int PxIS_DSS = 0x00000004; /* DMA setup FIS */
+    public static final int PxIS_SDBS = 0x00000008; /* Set device bits FIS */
+    public static final int PxIS_DPS = 0x00000020; /* Descriptor processed */
+    public static final int PxIS_PCS = 0x00000040; /* Port connect change */
+    public static final int PxIS_PRCS = 0x00400000; /* PhyRdy change */
+    public static final int PxIS_OFS = 0x01000000; /* Overflow */
+    public static final int PxIS_INFS = 0x04000000; /* Interface non-fatal error */
+    public static final int PxIS_IFS = 0x08000000; /* Interface fatal error */
+    public static final int PxIS_HBDS = 0x10000000; /* Host bus data error */
+    public static final int PxIS_HBFS = 0x20000000; /* Host bus fatal error */
+    public static final int PxIS_TFES = 0x40000000; /* Task file error */
+    public static final int PxIS_ERROR = PxIS_OFS | PxIS_IFS | PxIS_HBDS | PxIS_HBFS | PxIS_TFES;
+
+    /* Bits of the task file data register */
+    public static final int PxTFD_ERR = 0x01;
+    public static final int PxTFD_DRQ = 0x08;
+    public static final int PxTFD_BSY = 0x80;
+
+    /* Device detection of the serial ATA status register */
+    public static final int PxSSTS_DET_MASK = 0x0F;
+    public static final int PxSSTS_DET_PRESENT = 0x03; /* Device present and communication established */
+
+    /* Signatures of the attached devices */
+    public static final int SIG_ATA = 0x00000101;
+    public static final int SIG_ATAPI = 0xEB140101;
+
+    /**
+     * Size of a command header in the command list
+     */
+    public static final int CMD_HEADER_SIZE = 32;
+
+    /**
+     * Size of the command list; it must be aligned on 1Kb
+     */
+    public static final int CMD_LIST_SIZE = MAX_SLOTS * CMD_HEADER_SIZE;
+
+    /**
+     * Size of the received FIS area; it must be aligned on 256 bytes
+     */
+    public static final int RECEIVED_FIS_SIZE = 256;
+
+    /* Bits of the first dword of a command header */
+    public static final int CMDH_CFL_H2D = 5; /* Length of a register H2D FIS in dwords */
+    public static final int CMDH_WRITE = 0x40; /* Memory to device */
+    public static final int CMDH_PRDTL_SHIFT = 16; /* Number of PRD entries */
+
+    /* Offsets in a command table; it must be aligned on 128 bytes */
+    public static final int CMDT_CFIS = 0x00;
+    public static final int CMDT_PRDT = 0x80;
+
+    /**
+     * Size of a physical region descriptor in the command table
+     */
+    public static final int PRD_SIZE = 16;
+
+    /**
+     * Byte count of a physical region descriptor, in its last dword
+     */
+    public static final int PRD_DBC_MASK = 0x3FFFFF;
+
+    /**
+     * Interrupt on completion bit of a physical region descriptor
+     */
+    public static final int PRD_I = 0x80000000;
+
+    /* Register host to device FIS */
+    public static final int FIS_TYPE_REG_H2D = 0x27;
+    public static final int FIS_H2D_COMMAND = 0x80; /* Command register update */
+
+    /* Device register values */
+    public static final int FIS_DEVICE_LBA = 0x40;
+
+    /* Native command queuing commands */
+    public static final int CMD_READ_FPDMA_QUEUED = 0x60;
+    public static final int CMD_WRITE_FPDMA_QUEUED = 0x61;
+
+    /**
+     * Position of the tag in the sector count of a queued command
+     */
+    public static final int NCQ_TAG_SHIFT = 3;
+
+    /**
+     * Read a general purpose log; reading the NCQ error log takes a device out of its error state
+     */
+    public static final int CMD_READ_LOG_EXT = 0x2F;
+    public static final int LOG_NCQ_ERROR = 0x10;
+
+    /* First byte of the NCQ error log */
+    public static final int NCQ_LOG_TAG_MASK = 0x1F; /* Tag of the failed command */
+    public static final int NCQ_LOG_NQ = 0x80; /* The failed command was not a queued command */
+}
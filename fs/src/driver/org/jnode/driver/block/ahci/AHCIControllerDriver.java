@@ -0,0 +1,314 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block.ahci;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.NameNotFoundException;
+import org.apache.log4j.Logger;
+import org.jnode.driver.Bus;
+import org.jnode.driver.Device;
+import org.jnode.driver.DeviceAlreadyRegisteredException;
+import org.jnode.driver.DeviceManager;
+import org.jnode.driver.DeviceNotFoundException;
+import org.jnode.driver.Driver;
+import org.jnode.driver.DriverException;
+import org.jnode.driver.bus.ide.IDEDriveDescriptor;
+import org.jnode.driver.bus.pci.PCIBaseAddress;
+import org.jnode.driver.bus.pci.PCIConstants;
+import org.jnode.driver.bus.pci.PCIDevice;
+import org.jnode.driver.bus.pci.PCIDeviceConfig;
+import org.jnode.naming.InitialNaming;
+import org.jnode.system.resource.IRQHandler;
+import org.jnode.system.resource.IRQResource;
+import org.jnode.system.resource.MemoryResource;
+import org.jnode.system.resource.ResourceManager;
+import org.jnode.system.resource.ResourceNotFreeException;
+import org.jnode.util.NumberUtils;
+import org.jnode.work.Work;
+import org.jnode.work.WorkUtils;
+import org.vmmagic.unboxed.Address;
+
+/**
+ * Driver for AHCI serial ATA host bus adapters.
+ * <p/>
+ * Every port with a disk attached gets an {@link AHCIDevice}, driven by the
+ * {@link AHCIDiskDriver}. The HBA signals completions through its PCI
+ * interrupt line.
+ */
+public class AHCIControllerDriver extends Driver implements AHCIConstants, IRQHandler {
+
+    /**
+     * Prefix for all AHCI controllers
+     */
+    public static final String DEVICE_PREFIX = "ahci";
+
+    /**
+     * Prefix for the disks attached to AHCI controllers
+     */
+    public static final String DISK_PREFIX = "sd";
+
+    /**
+     * My logger
+     */
+    private static final Logger log = Logger.getLogger(AHCIControllerDriver.class);
+
+    /**
+     * Offset of the first base address register in the PCI configuration space
+     */
+    private static final int PCI_BASE_ADDRESS_0 = 0x10;
+
+    /**
+     * Time to wait for the BIOS to hand over the HBA, in ms
+     */
+    private static final long HANDOFF_TIMEOUT = 2000;
+
+    /**
+     * Time to wait for the HBA reset, in ms
+     */
+    private static final long RESET_TIMEOUT = 1000;
+
+    /**
+     * The ports, by port number
+     */
+    private final AHCIPort[] ports = new AHCIPort[MAX_PORTS];
+
+    /**
+     * The disks found
+     */
+    private final List<AHCIDevice> devices = new ArrayList<AHCIDevice>();
+
+    /**
+     * The HBA registers
+     */
+    private MemoryResource regs;
+
+    private IRQResource irq;
+
+    private AHCIBus bus;
+
+    /**
+     * Start the AHCI controller device.
+     *
+     * @see org.jnode.driver.Driver#startDevice()
+     */
+    protected void startDevice() throws DriverException {
+        final PCIDevice dev = (PCIDevice) getDevice();
+        final PCIDeviceConfig pciCfg = dev.getConfig();
+        try {
+            dev.getManager().rename(dev, DEVICE_PREFIX, true);
+            final ResourceManager rm = InitialNaming.lookup(ResourceManager.NAME);
+
+            final PCIBaseAddress abar = PCIBaseAddress.read(dev, PCI_BASE_ADDRESS_0, ABAR);
+            if ((abar == null) || !abar.isMemorySpace()) {
+                throw new DriverException("No AHCI base address in PCI config");
+            }
+            regs = rm.claimMemoryResource(dev, Address.fromLong(abar.getMemoryBase()), ABAR_SIZE,
+                ResourceManager.MEMMODE_NORMAL);
+            pciCfg.setCommand(pciCfg.getCommand() | PCIConstants.PCI_COMMAND_MEMORY |
+                PCIConstants.PCI_COMMAND_MASTER);
+
+            takeOwnership();
+            reset();
+
+            final int cap = regs.getInt(R32_CAP);
+            final int slots = ((cap >> CAP_NCS_SHIFT) & CAP_NCS_MASK) + 1;
+            final int implemented = regs.getInt(R32_PI);
+            log.info("AHCI " + NumberUtils.hex(regs.getInt(R32_VS), 8) + " at 0x" +
+                NumberUtils.hex(abar.getMemoryBase(), 8) + ", " + ((cap & CAP_NP_MASK) + 1) + " ports, " + slots +
+                " slots" + (((cap & CAP_SNCQ) != 0) ? ", NCQ" : ""));
+
+            for (int i = 0; i < MAX_PORTS; i++) {
+                if ((implemented & (1 << i)) != 0) {
+                    ports[i] = new AHCIPort(regs, i, slots, rm, dev);
+                }
+            }
+
+            // The interrupt manager only delivers the legacy interrupt lines, not message signaled interrupts
+            irq = rm.claimIRQ(dev, pciCfg.asHeaderType0().getInterruptLine(), this, true);
+            regs.setInt(RW32_IS, 0xFFFFFFFF);
+            regs.setInt(RW32_GHC, regs.getInt(RW32_GHC) | GHC_IE);
+        } catch (NameNotFoundException ex) {
+            throw new DriverException("Cannot find ResourceManager", ex);
+        } catch (ResourceNotFreeException ex) {
+            release();
+            throw new DriverException("Cannot claim AHCI resources", ex);
+        } catch (DeviceAlreadyRegisteredException ex) {
+            throw new DriverException(ex);
+        }
+
+        bus = new AHCIBus(dev);
+        WorkUtils.add(new Work("AHCI.registerDevices") {
+            public void execute() {
+                registerDevices();
+            }
+        });
+    }
+
+    /**
+     * Stop the AHCI controller device.
+     *
+     * @see org.jnode.driver.Driver#stopDevice()
+     */
+    protected void stopDevice() throws DriverException {
+        final DeviceManager devMan = getDevice().getManager();
+        for (AHCIDevice dev : devices) {
+            devMan.unregister(dev);
+        }
+        devices.clear();
+        if (regs != null) {
+            regs.setInt(RW32_GHC, regs.getInt(RW32_GHC) & ~GHC_IE);
+        }
+        release();
+    }
+
+    /**
+     * Handle an interrupt of the HBA.
+     *
+     * @see org.jnode.system.resource.IRQHandler#handleInterrupt(int)
+     */
+    public void handleInterrupt(int irq) {
+        final int status = regs.getInt(RW32_IS);
+        if (status == 0) {
+            // Shared interrupt of another device
+            return;
+        }
+        for (int i = 0; i < MAX_PORTS; i++) {
+            if (((status & (1 << i)) != 0) && (ports[i] != null)) {
+                ports[i].handleInterrupt();
+            }
+        }
+        // Clear the HBA status after the port status
+        regs.setInt(RW32_IS, status);
+    }
+
+    /**
+     * Start the ports and register a device for each attached disk.
+     */
+    private void registerDevices() {
+        final DeviceManager devMan = getDevice().getManager();
+        final boolean hbaNCQ = (regs.getInt(R32_CAP) & CAP_SNCQ) != 0;
+        for (AHCIPort port : ports) {
+            if ((port == null) || !port.start()) {
+                continue;
+            }
+            final int portNo = port.getPortNo();
+            final int signature = port.getSignature();
+            if (signature != SIG_ATA) {
+                log.info("AHCI port " + portNo + ": unsupported device, signature 0x" +
+                    NumberUtils.hex(signature, 8));
+                continue;
+            }
+            try {
+                final IDEDriveDescriptor descr = port.identify();
+                final int depth = (hbaNCQ && descr.supportsNCQ()) ? descr.getQueueDepth() : 1;
+                final AHCIDevice dev = new AHCIDevice(bus, getFreeDiskName(devMan), port, descr, depth);
+                dev.setDriver(new AHCIDiskDriver());
+                devMan.register(dev);
+                devices.add(dev);
+                log.info(dev.getId() + "=" + descr.getModel() + " on AHCI port " + portNo);
+            } catch (IOException ex) {
+                log.error("Cannot identify device on AHCI port " + portNo, ex);
+            } catch (DeviceAlreadyRegisteredException ex) {
+                log.error("Cannot register device on AHCI port " + portNo, ex);
+            } catch (DriverException ex) {
+                log.error("Cannot register device on AHCI port " + portNo, ex);
+            }
+        }
+    }
+
+    /**
+     * Take the HBA over from the BIOS, if it supports the handoff.
+     */
+    private void takeOwnership() {
+        if ((regs.getInt(R32_CAP2) & CAP2_BOH) == 0) {
+            return;
+        }
+        regs.setInt(RW32_BOHC, regs.getInt(RW32_BOHC) | BOHC_OOS);
+        final long end = System.currentTimeMillis() + HANDOFF_TIMEOUT;
+        while ((regs.getInt(RW32_BOHC) & (BOHC_BOS | BOHC_BB)) != 0) {
+            if (System.currentTimeMillis() > end) {
+                log.warn("BIOS does not release the AHCI controller");
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Reset the HBA and put it in AHCI mode.
+     */
+    private void reset() {
+        regs.setInt(RW32_GHC, regs.getInt(RW32_GHC) | GHC_AE);
+        regs.setInt(RW32_GHC, regs.getInt(RW32_GHC) | GHC_HR);
+        final long end = System.currentTimeMillis() + RESET_TIMEOUT;
+        while ((regs.getInt(RW32_GHC) & GHC_HR) != 0) {
+            if (System.currentTimeMillis() > end) {
+                log.warn("AHCI controller reset does not complete");
+                break;
+            }
+            Thread.yield();
+        }
+        regs.setInt(RW32_GHC, regs.getInt(RW32_GHC) | GHC_AE);
+    }
+
+    /**
+     * Release the ports and resources.
+     */
+    private void release() {
+        if (irq != null) {
+            irq.release();
+            irq = null;
+        }
+        for (int i = 0; i < MAX_PORTS; i++) {
+            if (ports[i] != null) {
+                ports[i].stop();
+                ports[i] = null;
+            }
+        }
+        if (regs != null) {
+            regs.release();
+            regs = null;
+        }
+    }
+
+    /**
+     * Gets the first unused disk name.
+     */
+    private static String getFreeDiskName(DeviceManager devMan) {
+        for (char c = 'a'; ; c++) {
+            final String name = DISK_PREFIX + c;
+            try {
+                devMan.getDevice(name);
+            } catch (DeviceNotFoundException ex) {
+                return name;
+            }
+        }
+    }
+
+    static class AHCIBus extends Bus {
+
+        public AHCIBus(Device parent) {
+            super(parent);
+        }
+    }
+}
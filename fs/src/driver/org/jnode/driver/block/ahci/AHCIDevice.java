@@ -0,0 +1,96 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block.ahci;
+
+import org.jnode.driver.Bus;
+import org.jnode.driver.Device;
+import org.jnode.driver.bus.ide.IDEDriveDescriptor;
+
+/**
+ * A disk attached to a port of an AHCI host bus adapter.
+ */
+public class AHCIDevice extends Device {
+
+    /**
+     * The port the disk is attached to
+     */
+    private final AHCIPort port;
+
+    /**
+     * The identification of the disk
+     */
+    private final IDEDriveDescriptor descriptor;
+
+    /**
+     * The maximum number of queued commands, 1 without native command queuing
+     */
+    private final int queueDepth;
+
+    /**
+     * Create a new instance
+     *
+     * @param bus
+     * @param id
+     * @param port
+     * @param descriptor
+     * @param queueDepth
+     */
+    AHCIDevice(Bus bus, String id, AHCIPort port, IDEDriveDescriptor descriptor, int queueDepth) {
+        super(bus, id);
+        this.port = port;
+        this.descriptor = descriptor;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Gets the descriptor of this device
+     *
+     * @return the descriptor of this device
+     */
+    public IDEDriveDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Gets the number of the port this device is attached to
+     *
+     * @return the port number
+     */
+    public int getPortNo() {
+        return port.getPortNo();
+    }
+
+    /**
+     * Gets the maximum number of commands queued on this device
+     *
+     * @return the queue depth, 1 without native command queuing
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Gets the port this device is attached to
+     */
+    final AHCIPort getPort() {
+        return port;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block.ahci;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.NameNotFoundException;
+import org.apache.log4j.Logger;
+import org.jnode.bootlog.BootLogInstance;
+import org.jnode.driver.Bus;
+import org.jnode.driver.Device;
+import org.jnode.driver.DeviceAlreadyRegisteredException;
+import org.jnode.driver.DeviceManager;
+import org.jnode.driver.Driver;
+import org.jnode.driver.DriverException;
+import org.jnode.driver.block.AsyncBlockDeviceAPI;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.BlockDeviceAPIHelper;
+import org.jnode.driver.block.BlockRequest;
+import org.jnode.driver.block.IORequest;
+import org.jnode.driver.block.IORequestQueue;
+import org.jnode.driver.block.IOScheduler;
+import org.jnode.driver.block.IOStatistics;
+import org.jnode.driver.block.PartitionableBlockAlignmentSupport;
+import org.jnode.driver.block.PartitionableBlockDeviceAPI;
+import org.jnode.driver.bus.ide.IDEConstants;
+import org.jnode.driver.bus.ide.IDEDriveDescriptor;
+import org.jnode.naming.InitialNaming;
+import org.jnode.partitions.ibm.IBMPartitionTable;
+import org.jnode.partitions.ibm.IBMPartitionTableEntry;
+import org.jnode.partitions.ibm.IBMPartitionTableType;
+
+/**
+ * Device driver for disks attached to an AHCI host bus adapter.
+ * <p/>
+ * The transfers go through an {@link IORequestQueue} that keeps as many
+ * requests in flight as the disk queues.
+ */
+public class AHCIDiskDriver extends Driver
+    implements PartitionableBlockDeviceAPI<IBMPartitionTableEntry>, AsyncBlockDeviceAPI, IDEConstants {
+
+    /**
+     * My logger
+     */
+    private static final Logger log = Logger.getLogger(AHCIDiskDriver.class);
+
+    /**
+     * Number of addressable sectors
+     */
+    private long maxSector;
+
+    /**
+     * Support 48-bit addressing?
+     */
+    private boolean is48bit;
+
+    /**
+     * Maximum number of sectors of a single request
+     */
+    private int maxSectorCount;
+
+    private AHCIDiskBus diskBus;
+    private IBMPartitionTable pt;
+
+    /**
+     * The queue sorting and merging the transfers to this disk
+     */
+    private IORequestQueue requestQueue;
+
+    protected void startDevice() throws DriverException {
+        final AHCIDevice dev = (AHCIDevice) getDevice();
+        final AHCIPort port = dev.getPort();
+        diskBus = new AHCIDiskBus(dev);
+
+        /* Get basic configuration */
+        final IDEDriveDescriptor descr = dev.getDescriptor();
+        is48bit = descr.supports48bitAddressing();
+        maxSector = descr.getSectorsAddressable();
+        maxSectorCount = is48bit ? AHCIPort.MAX_SECTORS : Math.min(AHCIPort.MAX_SECTORS, MAX_SECTOR_COUNT_28);
+        port.enable(dev.getQueueDepth(), dev.getQueueDepth() > 1, is48bit);
+
+        requestQueue = new IORequestQueue(dev.getId(), IORequestQueue.createScheduler(), maxSectorCount,
+            new IORequestQueue.AsyncHandler() {
+                public void start(IORequest request) throws IOException {
+                    port.issue(request, requestQueue);
+                }
+            });
+
+        /* Register the BlockDevice API */
+        dev.registerAPI(PartitionableBlockDeviceAPI.class,
+            new PartitionableBlockAlignmentSupport<IBMPartitionTableEntry>(this, SECTOR_SIZE));
+
+        // Look for partitions
+        try {
+            final DeviceManager devMan = InitialNaming.lookup(DeviceManager.NAME);
+            final byte[] bs = new byte[SECTOR_SIZE];
+            read(0, ByteBuffer.wrap(bs));
+            this.pt = new IBMPartitionTable(new IBMPartitionTableType(), bs, dev);
+
+            int partIndex = 0;
+            for (IBMPartitionTableEntry pte : pt) {
+                if (pte == null) {
+                    BootLogInstance.get().warn("PartitionTableEntry #" + partIndex + " is null");
+                } else if (pte.isValid()) {
+                    registerPartition(devMan, dev, pte, partIndex);
+                }
+                partIndex++;
+            }
+            for (IBMPartitionTableEntry pte : pt.getExtendedPartitions()) {
+                registerPartition(devMan, dev, pte, partIndex++);
+            }
+        } catch (DeviceAlreadyRegisteredException ex) {
+            throw new DriverException("Partition device is already known", ex);
+        } catch (IOException ex) {
+            log.error("Cannot read partition table", ex);
+            throw new DriverException("Cannot read partition table", ex);
+        } catch (NameNotFoundException ex) {
+            throw new DriverException("Cannot find DeviceManager", ex);
+        }
+    }
+
+    protected void stopDevice() throws DriverException {
+        final AHCIDevice dev = (AHCIDevice) getDevice();
+        try {
+            final DeviceManager devMan = InitialNaming.lookup(DeviceManager.NAME);
+            final List<AHCIDiskPartitionDevice> toStop = new ArrayList<AHCIDiskPartitionDevice>();
+            for (Device device : devMan.getDevices()) {
+                if ((device instanceof AHCIDiskPartitionDevice) &&
+                    (((AHCIDiskPartitionDevice) device).getParent() == dev)) {
+                    toStop.add((AHCIDiskPartitionDevice) device);
+                }
+            }
+            for (AHCIDiskPartitionDevice partition : toStop) {
+                devMan.unregister(partition);
+            }
+        } catch (NameNotFoundException ex) {
+            throw new DriverException("Problem while stopping this AHCI device", ex);
+        }
+
+        dev.unregisterAPI(BlockDeviceAPI.class);
+        dev.unregisterAPI(PartitionableBlockDeviceAPI.class);
+        this.pt = null;
+        requestQueue.stop();
+        log.debug("I/O statistics of " + dev.getId() + ": " + requestQueue.getStatistics());
+    }
+
+    /**
+     * Write the volatile write cache of the disk to the medium.
+     */
+    public void flush() throws IOException {
+        ((AHCIDevice) getDevice()).getPort().flush();
+    }
+
+    public long getLength() {
+        return maxSector * SECTOR_SIZE;
+    }
+
+    public void read(long devOffset, ByteBuffer destBuf) throws IOException {
+        transfer(devOffset, destBuf, false);
+    }
+
+    public void write(long devOffset, ByteBuffer srcBuf) throws IOException {
+        transfer(devOffset, srcBuf, true);
+    }
+
+    protected void transfer(long devOffset, ByteBuffer buf, boolean isWrite) throws IOException {
+        final int length = buf.remaining();
+        final BlockRequest request = new BlockRequest(isWrite);
+        request.add(devOffset, buf);
+        submit(request);
+        request.waitUntilDone();
+        buf.position(buf.position() + length);
+    }
+
+    /**
+     * Queue all segments at once, so they are in flight together.
+     *
+     * @see org.jnode.driver.block.AsyncBlockDeviceAPI#submit(BlockRequest)
+     */
+    public void submit(BlockRequest request) throws IOException {
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            final long devOffset = request.getOffset(i);
+            final int length = request.getBuffer(i).remaining();
+            BlockDeviceAPIHelper.checkBounds(this, devOffset, length);
+            BlockDeviceAPIHelper.checkAlignment(SECTOR_SIZE, this, devOffset, length);
+            if (devOffset / SECTOR_SIZE + length / SECTOR_SIZE > this.maxSector) {
+                throw new IOException((request.isWrite() ? "write" : "read") + " beyond device sectors");
+            }
+        }
+        requestQueue.submit(request, SECTOR_SIZE);
+    }
+
+    /**
+     * Gets the statistics of the transfers to this disk.
+     *
+     * @return the statistics
+     */
+    public IOStatistics getIOStatistics() {
+        return requestQueue.getStatistics();
+    }
+
+    /**
+     * Replace the scheduler ordering the transfers to this disk.
+     *
+     * @param scheduler
+     */
+    public void setIOScheduler(IOScheduler scheduler) {
+        requestQueue.setScheduler(scheduler);
+    }
+
+    public int getSectorSize() throws IOException {
+        return SECTOR_SIZE;
+    }
+
+    /**
+     * Gets the partition table that this block device contains.
+     *
+     * @return {@code null} if no partition table is found.
+     * @throws IOException
+     */
+    public IBMPartitionTable getPartitionTable() throws IOException {
+        return pt;
+    }
+
+    static class AHCIDiskBus extends Bus {
+
+        public AHCIDiskBus(AHCIDevice parent) {
+            super(parent);
+        }
+    }
+
+    /*
+     * Register the given partition entry (maybe an extended partition entry)
+     */
+    private void registerPartition(DeviceManager devMan, AHCIDevice dev, IBMPartitionTableEntry pte, int partIndex)
+        throws DeviceAlreadyRegisteredException, DriverException {
+        final String id = dev.getId() + partIndex;
+        final AHCIDiskPartitionDevice pdev =
+            new AHCIDiskPartitionDevice(diskBus, id, dev, pte, pte.getStartLba(), pte.getNrSectors());
+        pdev.setDriver(new AHCIDiskPartitionDriver());
+        devMan.register(pdev);
+    }
+}
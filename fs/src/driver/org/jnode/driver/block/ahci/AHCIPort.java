@@ -0,0 +1,751 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block.ahci;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.jnode.driver.block.IORequest;
+import org.jnode.driver.block.IORequestQueue;
+import org.jnode.driver.bus.ide.IDEConstants;
+import org.jnode.driver.bus.ide.IDEDriveDescriptor;
+import org.jnode.system.resource.MemoryResource;
+import org.jnode.system.resource.ResourceManager;
+import org.jnode.system.resource.ResourceNotFreeException;
+import org.jnode.system.resource.ResourceOwner;
+import org.jnode.util.NumberUtils;
+
+/**
+ * One port of an AHCI host bus adapter.
+ * <p/>
+ * The commands are issued through the command list of the port. With native
+ * command queuing all slots may be in flight at once, otherwise a single one.
+ * The data is transferred through a pool of DMA chunks. A command takes as
+ * many chunks as it needs, wherever they are in the pool, and describes each
+ * of them to the HBA with its own physical region descriptor.
+ * <p/>
+ * When a command fails, only that command fails: the commands that finished
+ * before the error complete normally, and the queued commands the device
+ * aborted are issued again once the port has recovered.
+ */
+public final class AHCIPort implements AHCIConstants, IDEConstants {
+
+    /**
+     * My logger
+     */
+    private static final Logger log = Logger.getLogger(AHCIPort.class);
+
+    /**
+     * Size of a DMA chunk
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Number of DMA chunks of a port
+     */
+    private static final int NR_CHUNKS = 128;
+
+    /**
+     * Maximum number of physical region descriptors of a command
+     */
+    private static final int MAX_PRDS = 16;
+
+    /**
+     * Maximum number of sectors of a single command
+     */
+    public static final int MAX_SECTORS = MAX_PRDS * CHUNK_SIZE / SECTOR_SIZE;
+
+    /**
+     * Size of a command table; a multiple of 128 bytes
+     */
+    private static final int CMD_TABLE_SIZE = CMDT_PRDT + MAX_PRDS * PRD_SIZE;
+
+    /* Layout of the port memory */
+    private static final int CMD_LIST = 0;
+    private static final int RECEIVED_FIS = CMD_LIST + CMD_LIST_SIZE;
+    private static final int CMD_TABLES = 0x800;
+    private static final int POLLED_TABLE = CMD_TABLES + MAX_SLOTS * CMD_TABLE_SIZE;
+    private static final int POLLED_DATA = POLLED_TABLE + CMD_TABLE_SIZE;
+    private static final int DATA = 0x4000;
+
+    /**
+     * Time to wait for the command list or FIS receive engine to stop, in ms
+     */
+    private static final long STOP_TIMEOUT = 500;
+
+    /**
+     * Time to wait for a device to appear on the link after spin-up, in ms
+     */
+    private static final long LINK_TIMEOUT = 1000;
+
+    /**
+     * Interval in which the issuing thread looks for lost interrupts, in ms
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * A command in flight.
+     */
+    private static final class Command {
+
+        final IORequest request;
+
+        final IORequestQueue queue;
+
+        final int[] chunks;
+
+        final long startTime;
+
+        Command(IORequest request, IORequestQueue queue, int[] chunks) {
+            this.request = request;
+            this.queue = queue;
+            this.chunks = chunks;
+            this.startTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The HBA registers
+     */
+    private final MemoryResource regs;
+
+    /**
+     * The number of this port
+     */
+    private final int portNo;
+
+    /**
+     * Offset of the port registers in the HBA registers
+     */
+    private final int base;
+
+    /**
+     * Number of command slots of the HBA
+     */
+    private final int slots;
+
+    /**
+     * The command list, received FIS, command tables and DMA chunks
+     */
+    private final MemoryResource mem;
+
+    /**
+     * The commands in flight, by slot
+     */
+    private final Command[] commands = new Command[MAX_SLOTS];
+
+    /**
+     * The free DMA chunks
+     */
+    private final int[] freeChunks = new int[NR_CHUNKS];
+
+    private int nrFreeChunks;
+
+    private int inFlight;
+
+    /**
+     * Maximum number of commands in flight
+     */
+    private int depth = 1;
+
+    /**
+     * Number of flushes waiting for the commands in flight to finish
+     */
+    private int flushesWaiting;
+
+    /**
+     * Issue the transfers as queued (FPDMA) commands?
+     */
+    private boolean ncq;
+
+    /**
+     * Support 48-bit addressing?
+     */
+    private boolean is48bit;
+
+    private boolean stopped;
+
+    /**
+     * Create a new instance and claim the memory of its command structures.
+     *
+     * @param regs   the HBA registers
+     * @param portNo the number of the port
+     * @param slots  the number of command slots of the HBA
+     * @param rm     the resource manager
+     * @param owner  the owner of the memory
+     * @throws ResourceNotFreeException
+     */
+    public AHCIPort(MemoryResource regs, int portNo, int slots, ResourceManager rm, ResourceOwner owner)
+        throws ResourceNotFreeException {
+        this.regs = regs;
+        this.portNo = portNo;
+        this.base = PORT_OFFSET + portNo * PORT_SIZE;
+        this.slots = slots;
+        // Resources are allocated on 64Kb boundaries, which satisfies all alignments
+        this.mem = rm.claimMemoryResource(owner, null, DATA + NR_CHUNKS * CHUNK_SIZE, ResourceManager.MEMMODE_NORMAL);
+        for (int i = 0; i < NR_CHUNKS; i++) {
+            freeChunks[i] = i;
+        }
+        nrFreeChunks = NR_CHUNKS;
+    }
+
+    /**
+     * Gets the number of this port.
+     *
+     * @return the port number
+     */
+    int getPortNo() {
+        return portNo;
+    }
+
+    /**
+     * Start the command processing of this port.
+     *
+     * @return true if a device is attached and ready, false otherwise
+     */
+    public synchronized boolean start() {
+        stopEngines();
+
+        mem.clear(0, DATA);
+        final long cmdList = physical(CMD_LIST);
+        final long receivedFis = physical(RECEIVED_FIS);
+        setReg(RW32_PxCLB, (int) cmdList);
+        setReg(RW32_PxCLBU, (int) (cmdList >>> 32));
+        setReg(RW32_PxFB, (int) receivedFis);
+        setReg(RW32_PxFBU, (int) (receivedFis >>> 32));
+        setReg(RW32_PxCMD, getReg(RW32_PxCMD) | PxCMD_FRE);
+
+        // Spin up the device and wait for the link
+        setReg(RW32_PxCMD, getReg(RW32_PxCMD) | PxCMD_POD | PxCMD_SUD);
+        final long linkEnd = System.currentTimeMillis() + LINK_TIMEOUT;
+        while ((getReg(R32_PxSSTS) & PxSSTS_DET_MASK) != PxSSTS_DET_PRESENT) {
+            if (System.currentTimeMillis() > linkEnd) {
+                return false;
+            }
+            sleep(10);
+        }
+
+        setReg(RW32_PxSERR, 0xFFFFFFFF);
+        setReg(RW32_PxIS, 0xFFFFFFFF);
+        if (!waitWhile(R32_PxTFD, PxTFD_BSY | PxTFD_DRQ, IDE_DATA_XFER_TIMEOUT)) {
+            log.warn("Device on AHCI port " + portNo + " stays busy, task file 0x" +
+                NumberUtils.hex(getReg(R32_PxTFD), 4));
+            return false;
+        }
+        setReg(RW32_PxCMD, getReg(RW32_PxCMD) | PxCMD_ST);
+        return true;
+    }
+
+    /**
+     * Stop this port. The commands in flight fail.
+     */
+    void stop() {
+        final List<Command> failed;
+        synchronized (this) {
+            stopped = true;
+            setReg(RW32_PxIE, 0);
+            stopEngines();
+            failed = takeAll();
+            notifyAll();
+        }
+        complete(failed, new IOException("AHCI port " + portNo + " is stopped"));
+        mem.release();
+    }
+
+    /**
+     * Gets the signature of the attached device.
+     *
+     * @return the signature, {@link #SIG_ATA} for a disk
+     */
+    int getSignature() {
+        return getReg(R32_PxSIG);
+    }
+
+    /**
+     * Identify the attached device. The port must be idle.
+     *
+     * @return the descriptor of the device
+     * @throws IOException
+     */
+    synchronized IDEDriveDescriptor identify() throws IOException {
+        final byte[] data = executePolled(CMD_IDENTIFY, 0, 0, SECTOR_SIZE);
+        final int[] words = new int[256];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = (data[i * 2] & 0xFF) | ((data[i * 2 + 1] & 0xFF) << 8);
+        }
+        return new IDEDriveDescriptor(words, false);
+    }
+
+    /**
+     * Set the way the transfers are issued and enable the interrupts of this port.
+     *
+     * @param depth   the maximum number of commands in flight
+     * @param ncq     issue queued (FPDMA) commands
+     * @param is48bit use 48-bit addressing
+     */
+    public synchronized void enable(int depth, boolean ncq, boolean is48bit) {
+        this.depth = Math.max(1, Math.min(depth, slots));
+        this.ncq = ncq && (this.depth > 1);
+        this.is48bit = is48bit;
+        setReg(RW32_PxIS, 0xFFFFFFFF);
+        setReg(RW32_PxIE, PxIS_DHRS | PxIS_PSS | PxIS_DSS | PxIS_SDBS | PxIS_ERROR);
+        log.info("AHCI port " + portNo + ": " + (this.ncq ? "NCQ depth " + this.depth : "no queuing"));
+    }
+
+    /**
+     * Issue a transfer, blocking while all slots or DMA chunks are in use.
+     * The queue is notified when the transfer has finished.
+     *
+     * @param request the request to transfer
+     * @param queue   the queue completing the request
+     * @throws IOException if the transfer could not be issued
+     */
+    public synchronized void issue(IORequest request, IORequestQueue queue) throws IOException {
+        final int length = request.getCount() * request.getBlockSize();
+        final int nrChunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if ((nrChunks == 0) || (nrChunks > MAX_PRDS)) {
+            throw new IOException("Invalid AHCI transfer length " + length);
+        }
+
+        while (!stopped && ((inFlight >= depth) || (nrFreeChunks < nrChunks) || (flushesWaiting > 0))) {
+            try {
+                wait(POLL_INTERVAL);
+            } catch (InterruptedException ex) {
+                throw new IOException("AHCI issue interrupted", ex);
+            }
+            poll();
+        }
+        if (stopped) {
+            throw new IOException("AHCI port " + portNo + " is stopped");
+        }
+
+        int slot = 0;
+        while (commands[slot] != null) {
+            slot++;
+        }
+        final int[] chunks = new int[nrChunks];
+        for (int i = 0; i < nrChunks; i++) {
+            chunks[i] = freeChunks[--nrFreeChunks];
+        }
+        commands[slot] = new Command(request, queue, chunks);
+        inFlight++;
+        setup(slot);
+
+        if (ncq) {
+            setReg(RW32_PxSACT, 1 << slot);
+        }
+        setReg(RW32_PxCI, 1 << slot);
+    }
+
+    /**
+     * Write the volatile write cache of the device to the medium, once the
+     * commands in flight have finished. No commands are issued meanwhile.
+     *
+     * @throws IOException if the flush failed
+     */
+    public synchronized void flush() throws IOException {
+        flushesWaiting++;
+        try {
+            while (!stopped && (inFlight > 0)) {
+                try {
+                    wait(POLL_INTERVAL);
+                } catch (InterruptedException ex) {
+                    throw new IOException("AHCI flush interrupted", ex);
+                }
+                poll();
+            }
+        } finally {
+            flushesWaiting--;
+            notifyAll();
+        }
+        if (stopped) {
+            throw new IOException("AHCI port " + portNo + " is stopped");
+        }
+
+        final int ie = getReg(RW32_PxIE);
+        setReg(RW32_PxIE, 0);
+        try {
+            executePolled(is48bit ? CMD_FLUSH_CACHE_EXT : CMD_FLUSH_CACHE, 0, 0, 0);
+        } catch (IOException ex) {
+            recover();
+            throw ex;
+        } finally {
+            setReg(RW32_PxIS, 0xFFFFFFFF);
+            setReg(RW32_PxIE, ie);
+        }
+    }
+
+    /**
+     * Fill the command header and table of the command in a slot, and copy
+     * the data to write into its chunks.
+     *
+     * @param slot the slot of the command
+     */
+    private void setup(int slot) {
+        final Command cmd = commands[slot];
+        final IORequest request = cmd.request;
+        final int length = request.getCount() * request.getBlockSize();
+        final int nrChunks = cmd.chunks.length;
+        final boolean write = request.isWrite();
+        final int table = CMD_TABLES + slot * CMD_TABLE_SIZE;
+        mem.clear(table, CMDT_PRDT);
+        if (ncq) {
+            // The sector count goes into the features, the tag into the count
+            setFIS(table, write ? CMD_WRITE_FPDMA_QUEUED : CMD_READ_FPDMA_QUEUED, request.getBlock(),
+                slot << NCQ_TAG_SHIFT, request.getCount(), FIS_DEVICE_LBA);
+        } else if (is48bit) {
+            setFIS(table, write ? CMD_WRITEDMA_EXT : CMD_READDMA_EXT, request.getBlock(), request.getCount(), 0,
+                FIS_DEVICE_LBA);
+        } else {
+            setFIS(table, write ? CMD_WRITEDMA : CMD_READDMA, request.getBlock() & 0xFFFFFF, request.getCount(), 0,
+                FIS_DEVICE_LBA | (int) ((request.getBlock() >> 24) & 0x0F));
+        }
+
+        // Scatter the data over the chunks
+        for (int i = 0; i < nrChunks; i++) {
+            final int count = Math.min(CHUNK_SIZE, length - i * CHUNK_SIZE);
+            final int chunk = DATA + cmd.chunks[i] * CHUNK_SIZE;
+            setPRD(table + CMDT_PRDT + i * PRD_SIZE, physical(chunk), count);
+            if (write) {
+                request.copyTo(i * CHUNK_SIZE, mem, chunk, count);
+            }
+        }
+        setCommandHeader(slot, table, nrChunks, write);
+    }
+
+    /**
+     * Handle an interrupt of this port: complete the finished commands. After
+     * an error, fail the command that caused it, restart the port and issue
+     * the other commands in flight again.
+     */
+    public void handleInterrupt() {
+        final List<Command> finished = new ArrayList<Command>();
+        final List<Command> failed = new ArrayList<Command>();
+        IOException error = null;
+        synchronized (this) {
+            final int status = getReg(RW32_PxIS);
+            setReg(RW32_PxIS, status);
+            final int active = getReg(RW32_PxCI) | (ncq ? getReg(RW32_PxSACT) : 0);
+            takeFinished(active, finished);
+            if ((status & PxIS_ERROR) != 0) {
+                error = new IOException("AHCI port " + portNo + " error, status 0x" + NumberUtils.hex(status, 8) +
+                    ", task file 0x" + NumberUtils.hex(getReg(R32_PxTFD), 4));
+                final int failedSlot = recover();
+                if ((failedSlot >= 0) && (commands[failedSlot] != null)) {
+                    failed.add(take(failedSlot));
+                    reissue();
+                } else {
+                    // Without queuing the only command in flight failed
+                    failed.addAll(takeAll());
+                }
+            }
+            if (!finished.isEmpty() || !failed.isEmpty()) {
+                notifyAll();
+            }
+        }
+        complete(finished, null);
+        complete(failed, error);
+    }
+
+    /**
+     * Free the commands that are no longer active, copying the data they read
+     * into their requests.
+     *
+     * @param active   the active slots
+     * @param finished the list to add the finished commands to
+     */
+    private void takeFinished(int active, List<Command> finished) {
+        for (int slot = 0; slot < MAX_SLOTS; slot++) {
+            final Command cmd = commands[slot];
+            if ((cmd != null) && ((active & (1 << slot)) == 0)) {
+                if (!cmd.request.isWrite()) {
+                    gather(cmd);
+                }
+                finished.add(take(slot));
+            }
+        }
+    }
+
+    /**
+     * Issue the commands left in their slots again, after the port has
+     * recovered from an error.
+     */
+    private void reissue() {
+        int mask = 0;
+        for (int slot = 0; slot < MAX_SLOTS; slot++) {
+            final Command cmd = commands[slot];
+            if (cmd != null) {
+                commands[slot] = new Command(cmd.request, cmd.queue, cmd.chunks);
+                setup(slot);
+                mask |= 1 << slot;
+            }
+        }
+        if (mask != 0) {
+            log.debug("AHCI port " + portNo + " reissues slots 0x" + NumberUtils.hex(mask, 8));
+            if (ncq) {
+                setReg(RW32_PxSACT, mask);
+            }
+            setReg(RW32_PxCI, mask);
+        }
+    }
+
+    /**
+     * Pick up the commands of a lost interrupt and fail the commands that take too long.
+     * Called with the lock held.
+     */
+    private void poll() {
+        if (inFlight == 0) {
+            return;
+        }
+        handleInterrupt();
+        final long now = System.currentTimeMillis();
+        for (Command cmd : commands) {
+            if ((cmd != null) && (now - cmd.startTime > IDE_DATA_XFER_TIMEOUT)) {
+                log.warn("AHCI port " + portNo + " timeout, restarting");
+                final List<Command> failed = takeAll();
+                recover();
+                complete(failed, new IOException("AHCI port " + portNo + " timeout"));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Restart the command list after an error. The commands in flight are
+     * no longer active afterwards.
+     *
+     * @return the slot of the queued command that failed, or -1 if not known
+     */
+    private int recover() {
+        int failedSlot = -1;
+        setReg(RW32_PxCMD, getReg(RW32_PxCMD) & ~PxCMD_ST);
+        waitWhile(RW32_PxCMD, PxCMD_CR, STOP_TIMEOUT);
+        setReg(RW32_PxSERR, 0xFFFFFFFF);
+        setReg(RW32_PxIS, 0xFFFFFFFF);
+        if ((getReg(R32_PxTFD) & (PxTFD_BSY | PxTFD_DRQ)) != 0) {
+            log.warn("Device on AHCI port " + portNo + " still busy after error");
+        }
+        setReg(RW32_PxCMD, getReg(RW32_PxCMD) | PxCMD_ST);
+
+        if (ncq) {
+            // The device aborts all queued commands until its error log is read
+            final int ie = getReg(RW32_PxIE);
+            setReg(RW32_PxIE, 0);
+            try {
+                final byte[] errorLog = executePolled(CMD_READ_LOG_EXT, LOG_NCQ_ERROR, 1, SECTOR_SIZE);
+                if ((errorLog[0] & NCQ_LOG_NQ) == 0) {
+                    failedSlot = errorLog[0] & NCQ_LOG_TAG_MASK;
+                }
+            } catch (IOException ex) {
+                log.warn("Cannot read NCQ error log of AHCI port " + portNo, ex);
+            }
+            setReg(RW32_PxIS, 0xFFFFFFFF);
+            setReg(RW32_PxIE, ie);
+        }
+        return failedSlot;
+    }
+
+    /**
+     * Execute a non-data or data-in command in slot 0 and poll for its completion.
+     * Called with the lock held and no command running. The command has its
+     * own table and data buffer, but overwrites the header of slot 0.
+     *
+     * @param command the ATA command
+     * @param lba     the address, or the log address
+     * @param count   the sector count
+     * @param length  the number of bytes to read, at most one sector
+     * @return the data read
+     * @throws IOException
+     */
+    private byte[] executePolled(int command, long lba, int count, int length) throws IOException {
+        final int table = POLLED_TABLE;
+        mem.clear(table, CMDT_PRDT);
+        setFIS(table, command, lba, count, 0, 0);
+        if (length > 0) {
+            setPRD(table + CMDT_PRDT, physical(POLLED_DATA), length);
+        }
+        setCommandHeader(0, table, (length > 0) ? 1 : 0, false);
+
+        setReg(RW32_PxCI, 1);
+        final long end = System.currentTimeMillis() + IDE_TIMEOUT;
+        while ((getReg(RW32_PxCI) & 1) != 0) {
+            if ((getReg(RW32_PxIS) & PxIS_TFES) != 0) {
+                throw new IOException("AHCI command 0x" + NumberUtils.hex(command, 2) + " failed, task file 0x" +
+                    NumberUtils.hex(getReg(R32_PxTFD), 4));
+            }
+            if (System.currentTimeMillis() > end) {
+                throw new IOException("AHCI command 0x" + NumberUtils.hex(command, 2) + " timeout");
+            }
+            Thread.yield();
+        }
+
+        final byte[] data = new byte[length];
+        mem.getBytes(POLLED_DATA, data, 0, length);
+        return data;
+    }
+
+    /**
+     * Fill the register host to device FIS of a command table.
+     */
+    private void setFIS(int table, int command, long lba, int count, int features, int device) {
+        final int fis = table + CMDT_CFIS;
+        mem.setByte(fis + 0, (byte) FIS_TYPE_REG_H2D);
+        mem.setByte(fis + 1, (byte) FIS_H2D_COMMAND);
+        mem.setByte(fis + 2, (byte) command);
+        mem.setByte(fis + 3, (byte) features);
+        mem.setByte(fis + 4, (byte) lba);
+        mem.setByte(fis + 5, (byte) (lba >> 8));
+        mem.setByte(fis + 6, (byte) (lba >> 16));
+        mem.setByte(fis + 7, (byte) device);
+        mem.setByte(fis + 8, (byte) (lba >> 24));
+        mem.setByte(fis + 9, (byte) (lba >> 32));
+        mem.setByte(fis + 10, (byte) (lba >> 40));
+        mem.setByte(fis + 11, (byte) (features >> 8));
+        mem.setByte(fis + 12, (byte) count);
+        mem.setByte(fis + 13, (byte) (count >> 8));
+    }
+
+    /**
+     * Fill a physical region descriptor.
+     */
+    private void setPRD(int prd, long address, int count) {
+        mem.setInt(prd, (int) address);
+        mem.setInt(prd + 4, (int) (address >>> 32));
+        mem.setInt(prd + 8, 0);
+        // The byte count is stored minus one
+        mem.setInt(prd + 12, (count - 1) & PRD_DBC_MASK);
+    }
+
+    /**
+     * Fill the header of a slot in the command list.
+     */
+    private void setCommandHeader(int slot, int table, int nrPRDs, boolean write) {
+        final int header = CMD_LIST + slot * CMD_HEADER_SIZE;
+        final long tableAddress = physical(table);
+        mem.setInt(header, CMDH_CFL_H2D | (write ? CMDH_WRITE : 0) | (nrPRDs << CMDH_PRDTL_SHIFT));
+        mem.setInt(header + 4, 0);
+        mem.setInt(header + 8, (int) tableAddress);
+        mem.setInt(header + 12, (int) (tableAddress >>> 32));
+    }
+
+    /**
+     * Copy the data read by a command from its chunks into the buffers of its request.
+     */
+    private void gather(Command cmd) {
+        final int length = cmd.request.getCount() * cmd.request.getBlockSize();
+        int offset = 0;
+        for (int chunk : cmd.chunks) {
+            final int count = Math.min(CHUNK_SIZE, length - offset);
+            cmd.request.copyFrom(mem, DATA + chunk * CHUNK_SIZE, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Free the slot and chunks of a command.
+     *
+     * @return the command
+     */
+    private Command take(int slot) {
+        final Command cmd = commands[slot];
+        commands[slot] = null;
+        inFlight--;
+        for (int chunk : cmd.chunks) {
+            freeChunks[nrFreeChunks++] = chunk;
+        }
+        return cmd;
+    }
+
+    /**
+     * Free all slots.
+     *
+     * @return the commands that were in flight
+     */
+    private List<Command> takeAll() {
+        final List<Command> cmds = new ArrayList<Command>();
+        for (int slot = 0; slot < MAX_SLOTS; slot++) {
+            if (commands[slot] != null) {
+                cmds.add(take(slot));
+            }
+        }
+        return cmds;
+    }
+
+    /**
+     * Notify the queues of the finished commands.
+     */
+    private static void complete(List<Command> cmds, IOException error) {
+        for (Command cmd : cmds) {
+            cmd.queue.done(cmd.request, error);
+        }
+    }
+
+    /**
+     * Stop the command list and FIS receive engines.
+     */
+    private void stopEngines() {
+        setReg(RW32_PxCMD, getReg(RW32_PxCMD) & ~PxCMD_ST);
+        if (!waitWhile(RW32_PxCMD, PxCMD_CR, STOP_TIMEOUT)) {
+            log.warn("Command list of AHCI port " + portNo + " does not stop");
+        }
+        setReg(RW32_PxCMD, getReg(RW32_PxCMD) & ~PxCMD_FRE);
+        if (!waitWhile(RW32_PxCMD, PxCMD_FR, STOP_TIMEOUT)) {
+            log.warn("FIS receive of AHCI port " + portNo + " does not stop");
+        }
+    }
+
+    /**
+     * Wait while any of the given bits of a port register are set.
+     *
+     * @return false on timeout, true otherwise
+     */
+    private boolean waitWhile(int reg, int mask, long timeout) {
+        final long end = System.currentTimeMillis() + timeout;
+        while ((getReg(reg) & mask) != 0) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            // Ignore
+        }
+    }
+
+    private long physical(int offset) {
+        return mem.getAddress().toLong() + offset;
+    }
+
+    private int getReg(int reg) {
+        return regs.getInt(base + reg);
+    }
+
+    private void setReg(int reg, int value) {
+        regs.setInt(base + reg, value);
+    }
+}
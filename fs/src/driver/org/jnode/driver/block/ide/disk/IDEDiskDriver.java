@@ -36,9 +36,16 @@ import org.jnode.driver.DeviceAlreadyRegisteredException;
 import org.jnode.driver.DeviceManager;
 import org.jnode.driver.Driver;
 import org.jnode.driver.DriverException;
+import org.jnode.driver.block.AsyncBlockDeviceAPI;
 import org.jnode.driver.block.BlockDeviceAPI;
 import org.jnode.driver.block.BlockDeviceAPIHelper;
+import org.jnode.driver.block.BlockRequest;
+import org.jnode.driver.block.IORequest;
+import org.jnode.driver.block.IORequestQueue;
+import org.jnode.driver.block.IOScheduler;
+import org.jnode.driver.block.IOStatistics;
 import org.jnode.driver.bus.ide.IDEBus;
+import org.jnode.driver.bus.ide.IDEBusMaster;
 import org.jnode.driver.bus.ide.IDEConstants;
 import org.jnode.driver.bus.ide.IDEDevice;
 import org.jnode.driver.bus.ide.IDEDeviceAPI;
@@ -59,7 +66,7 @@ import org.jnode.util.TimeoutException;
  * @author epr
  */
 public class IDEDiskDriver extends Driver
-    implements IDEDeviceAPI<IBMPartitionTableEntry>, IDEConstants {
+    implements IDEDeviceAPI<IBMPartitionTableEntry>, AsyncBlockDeviceAPI, IDEConstants {
 
     /**
      * My logger
@@ -74,8 +81,10 @@ public class IDEDiskDriver extends Driver
     /** Has LBA support? */
     //private boolean lba;
 
-    /** Has DMA support? */
-    //private boolean dma;
+    /**
+     * Has a bus master DMA transfer failed? The transfers use PIO from then on.
+     */
+    private boolean dmaFailed;
 
     /**
      * Support 48-bit addressing?
@@ -84,6 +93,11 @@ public class IDEDiskDriver extends Driver
     private IDEDiskBus diskBus;
     private IBMPartitionTable pt;
 
+    /**
+     * The queue sorting and merging the transfers to this disk
+     */
+    private IORequestQueue requestQueue;
+
     protected void startDevice() throws DriverException {
         final IDEDevice dev = (IDEDevice) getDevice();
         diskBus = new IDEDiskBus(dev);
@@ -98,6 +112,19 @@ public class IDEDiskDriver extends Driver
         is48bit = descr.supports48bitAddressing();
         maxSector = descr.getSectorsAddressable();
 
+        /*
+         * Queue the transfers. Merged requests are gathered into one buffer for
+         * the commands, so keep them to the size of a bus master transfer.
+         */
+        final int maxSectorCount = Math.min(is48bit ? MAX_SECTOR_COUNT_48 : MAX_SECTOR_COUNT_28,
+            IDEBusMaster.MAX_SECTORS);
+        requestQueue = new IORequestQueue(dev.getId(), IORequestQueue.createScheduler(), maxSectorCount,
+            new IORequestQueue.Handler() {
+                public void perform(IORequest request) throws IOException {
+                    performTransfer(request);
+                }
+            });
+
         // Look for partitions
         try {
             // Find the devicemanager
@@ -181,6 +208,8 @@ public class IDEDiskDriver extends Driver
 
         dev.unregisterAPI(BlockDeviceAPI.class);
         this.pt = null;
+        requestQueue.stop();
+        log.debug("I/O statistics of " + dev.getId() + ": " + requestQueue.getStatistics());
     }
 
     public void flush() {
@@ -206,47 +235,119 @@ public class IDEDiskDriver extends Driver
             log.debug("Transfer length=" + length + (isWrite ? " Wr " : " Rd "));
         }
 
-        BlockDeviceAPIHelper.checkBounds(this, devOffset, length);
-        BlockDeviceAPIHelper.checkAlignment(SECTOR_SIZE, this, devOffset, length);
+        final BlockRequest request = new BlockRequest(isWrite);
+        request.add(devOffset, buf);
+        submit(request);
+        request.waitUntilDone();
+        buf.position(buf.position() + length);
+    }
+
+    /**
+     * Queue all segments at once, so they are merged with each other and with
+     * the transfers of other callers.
+     *
+     * @see org.jnode.driver.block.AsyncBlockDeviceAPI#submit(BlockRequest)
+     */
+    public void submit(BlockRequest request) throws IOException {
+        final String errorSource = request.isWrite() ? "write" : "read";
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            final long devOffset = request.getOffset(i);
+            final int length = request.getBuffer(i).remaining();
+            BlockDeviceAPIHelper.checkBounds(this, devOffset, length);
+            BlockDeviceAPIHelper.checkAlignment(SECTOR_SIZE, this, devOffset, length);
+            if (devOffset / SECTOR_SIZE + length / SECTOR_SIZE > this.maxSector) {
+                throw new IOException(errorSource + " beyond device sectors");
+            }
+        }
+        requestQueue.submit(request, SECTOR_SIZE);
+    }
 
-        final long lbaStart = devOffset / SECTOR_SIZE;
-        final int sectors = length / SECTOR_SIZE;
+    /**
+     * Transfer the sectors of a queued request, which may have been merged with others.
+     *
+     * @param request
+     * @throws IOException
+     */
+    protected void performTransfer(IORequest request) throws IOException {
+        final IDEDevice dev = (IDEDevice) getDevice();
+        final IDEBus bus = (IDEBus) dev.getBus();
+        final String errorSource = request.isWrite() ? "write" : "read";
 
-        final String errorSource = isWrite ? "write" : "read";
-        if (lbaStart + sectors > this.maxSector) {
-            throw new IOException(errorSource + " beyond device sectors");
+        final IDEBusMaster busMaster =
+            (dev.getDescriptor().supportsDMA() && !dmaFailed) ? bus.getBusMaster() : null;
+        if (busMaster != null) {
+            try {
+                // The bus master buffer limits the sectors of a single command
+                for (int sector = 0; sector < request.getCount(); sector += IDEBusMaster.MAX_SECTORS) {
+                    final int sectorCount = Math.min(request.getCount() - sector, IDEBusMaster.MAX_SECTORS);
+                    final ByteBuffer buf = request.getBuffer().duplicate();
+                    buf.position(sector * SECTOR_SIZE);
+                    buf.limit((sector + sectorCount) * SECTOR_SIZE);
+                    executeCommand(request.getBlock() + sector, sectorCount, buf, request.isWrite(), busMaster);
+                }
+                return;
+            } catch (IOException ex) {
+                log.warn("DMA " + errorSource + " failed on " + dev.getId() + ", using PIO from now on", ex);
+                dmaFailed = true;
+            }
         }
 
+        executeCommand(request.getBlock(), request.getCount(), request.getBuffer().duplicate(), request.isWrite(),
+            null);
+    }
+
+    /**
+     * Execute a single read or write command.
+     *
+     * @param lbaStart  the first sector
+     * @param sectorCount the number of sectors
+     * @param buf       the data to write or the buffer to read into
+     * @param isWrite   write (true) or read (false)
+     * @param busMaster the bus master transferring the data, or null to transfer it through the data port
+     * @throws IOException
+     */
+    private void executeCommand(long lbaStart, int sectorCount, ByteBuffer buf, boolean isWrite,
+                                IDEBusMaster busMaster) throws IOException {
         final IDEDevice dev = (IDEDevice) getDevice();
         final IDEBus bus = (IDEBus) dev.getBus();
-        final int maxSectorCount = is48bit ? MAX_SECTOR_COUNT_48 : MAX_SECTOR_COUNT_28;
         final boolean primary = dev.isPrimary();
         final boolean master = dev.isMaster();
+        final String errorSource = isWrite ? "write" : "read";
 
-        while (length > 0) {
-            final long partLbaStart = devOffset / SECTOR_SIZE;
-            final int partSectorCount = Math.min(length / SECTOR_SIZE, maxSectorCount);
-            final int partLength = partSectorCount * SECTOR_SIZE;
+        final IDERWSectorsCommand cmd = isWrite ?
+            new IDEWriteSectorsCommand(primary, master, is48bit, lbaStart, sectorCount, buf, busMaster) :
+            new IDEReadSectorsCommand(primary, master, is48bit, lbaStart, sectorCount, buf, busMaster);
+        try {
+            log.debug("bus.exAndWt" + (isWrite ? "W" : "R") + " dev=" + dev.getId() + " start=" + lbaStart +
+                " sectors=" + sectorCount + " len=" + (sectorCount * SECTOR_SIZE) +
+                ((busMaster != null) ? " dma" : ""));
+            bus.executeAndWait(cmd, IDE_DATA_XFER_TIMEOUT);
+        } catch (InterruptedException ex) {
+            throw new IOException("IDE " + errorSource + " interrupted", ex);
+        } catch (TimeoutException ex) {
+            throw new InterruptedIOException("IDE timeout: " + ex.getMessage());
+        }
+        if (cmd.hasError()) {
+            throw new IOException("IDE " + errorSource + " error:" + cmd.getError());
+        }
+    }
 
-            final IDERWSectorsCommand cmd = isWrite ?
-                new IDEWriteSectorsCommand(primary, master, is48bit, partLbaStart, partSectorCount, buf) :
-                new IDEReadSectorsCommand(primary, master, is48bit, partLbaStart, partSectorCount, buf);
-            try {
-                log.debug("bus.exAndWt" + (isWrite ? "W" : "R") + " dev=" + dev.getId() + " start=" + partLbaStart +
-                    " sectors=" + partSectorCount + " len=" + partLength);
-                bus.executeAndWait(cmd, IDE_DATA_XFER_TIMEOUT);
-            } catch (InterruptedException ex) {
-                throw new IOException("IDE " + errorSource + " interrupted", ex);
-            } catch (TimeoutException ex) {
-                throw new InterruptedIOException("IDE timeout: " + ex.getMessage());
-            }
-            if (cmd.hasError()) {
-                throw new IOException("IDE " + errorSource + " error:" + cmd.getError());
-            }
+    /**
+     * Gets the statistics of the transfers to this disk.
+     *
+     * @return the statistics
+     */
+    public IOStatistics getIOStatistics() {
+        return requestQueue.getStatistics();
+    }
 
-            length -= partLength;
-            devOffset += partLength;
-        }
+    /**
+     * Replace the scheduler ordering the transfers to this disk.
+     *
+     * @param scheduler
+     */
+    public void setIOScheduler(IOScheduler scheduler) {
+        requestQueue.setScheduler(scheduler);
     }
 
     static class IDEDiskBus extends Bus {
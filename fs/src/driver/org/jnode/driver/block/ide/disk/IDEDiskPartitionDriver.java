@@ -25,6 +25,8 @@ import java.nio.ByteBuffer;
 import org.jnode.driver.Device;
 import org.jnode.driver.Driver;
 import org.jnode.driver.DriverException;
+import org.jnode.driver.block.AsyncBlockDeviceAPI;
+import org.jnode.driver.block.BlockRequest;
 import org.jnode.driver.block.FSBlockDeviceAPI;
 import org.jnode.driver.block.MappedBlockDeviceSupport;
 import org.jnode.driver.bus.ide.IDEConstants;
@@ -33,7 +35,7 @@ import org.jnode.partitions.PartitionTableEntry;
 /**
  * @author epr
  */
-public class IDEDiskPartitionDriver extends Driver implements FSBlockDeviceAPI, IDEConstants {
+public class IDEDiskPartitionDriver extends Driver implements FSBlockDeviceAPI, AsyncBlockDeviceAPI, IDEConstants {
 
     /**
      * The device i'm driving
@@ -98,4 +100,8 @@ public class IDEDiskPartitionDriver extends Driver implements FSBlockDeviceAPI,
     public void write(long devOffset, ByteBuffer src) throws IOException {
         mapping.write(devOffset, src);
     }
+
+    public void submit(BlockRequest request) throws IOException {
+        mapping.submit(request);
+    }
 }
@@ -20,18 +20,22 @@
  
 package org.jnode.driver.block.ramdisk;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import org.jnode.driver.DeviceAlreadyRegisteredException;
 import org.jnode.driver.Driver;
 import org.jnode.driver.DriverException;
+import org.jnode.driver.block.AsyncBlockDeviceAPI;
 import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.BlockDeviceAPIHelper;
+import org.jnode.driver.block.BlockRequest;
 import org.jnode.driver.block.FSBlockDeviceAPI;
 import org.jnode.partitions.PartitionTableEntry;
 
 /**
  * @author Ewout Prangsma (epr@users.sourceforge.net)
  */
-public class RamDiskDriver extends Driver implements FSBlockDeviceAPI {
+public class RamDiskDriver extends Driver implements FSBlockDeviceAPI, AsyncBlockDeviceAPI {
 
     private static final String RAMDISK_DEFAULTNAME = "ramdisk";
     
@@ -129,4 +133,21 @@ public class RamDiskDriver extends Driver implements FSBlockDeviceAPI {
     public void write(long devOffset, ByteBuffer src) {
         src.get(this.data, (int) devOffset, src.remaining());
     }
+
+    /**
+     * The segments are copied right away, so the request has completed when this method returns.
+     */
+    public void submit(BlockRequest request) throws IOException {
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            BlockDeviceAPIHelper.checkBounds(this, request.getOffset(i), request.getBuffer(i).remaining());
+        }
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            if (request.isWrite()) {
+                write(request.getOffset(i), request.getBuffer(i));
+            } else {
+                read(request.getOffset(i), request.getBuffer(i));
+            }
+        }
+        request.complete(null);
+    }
 }
@@ -0,0 +1,383 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block.ramdisk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import org.jnode.system.resource.MemoryResource;
+import org.jnode.system.resource.ResourceManager;
+import org.jnode.system.resource.ResourceNotFreeException;
+import org.jnode.system.resource.ResourceOwner;
+
+/**
+ * The contents of a sparse RAM disk, kept in pages outside of the heap.
+ * <p/>
+ * A page is only allocated when non-zero data is written to it, and freed again
+ * as soon as it holds only zeroes. All pages that have never been written, or
+ * that have been discarded, share a single zero page. The pages are carved out of memory blocks claimed with
+ * {@link ResourceManager#MEMMODE_ALLOC_BLOCKS}, and a block is given back as
+ * soon as none of its pages is used anymore.
+ */
+public final class RamDiskPages {
+
+    /**
+     * Size of a page in bytes
+     */
+    public static final int PAGE_SIZE = 4096;
+
+    /**
+     * Size of a claimed memory block in bytes
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int PAGES_PER_CHUNK = CHUNK_SIZE / PAGE_SIZE;
+
+    /**
+     * The shared zero page
+     */
+    private static final byte[] ZERO = new byte[PAGE_SIZE];
+
+    private final ResourceManager rm;
+
+    private final ResourceOwner owner;
+
+    private final long length;
+
+    /**
+     * For every page of the disk, the chunk number * {@link #PAGES_PER_CHUNK} + the page in the
+     * chunk + 1, or 0 when the page is the zero page
+     */
+    private final int[] table;
+
+    /**
+     * The claimed chunks, by chunk number
+     */
+    private Chunk[] chunks = new Chunk[16];
+
+    /**
+     * The chunks that have free pages
+     */
+    private final LinkedHashSet<Chunk> partial = new LinkedHashSet<Chunk>();
+
+    /**
+     * Copy buffer for byte buffers without a backing array
+     */
+    private final byte[] scratch = new byte[PAGE_SIZE];
+
+    private int allocatedPages;
+
+    private int allocatedChunks;
+
+    /**
+     * Create the pages of an empty disk.
+     *
+     * @param rm     the resource manager the memory is claimed from
+     * @param owner  the owner of the claimed memory
+     * @param length the length of the disk in bytes
+     */
+    public RamDiskPages(ResourceManager rm, ResourceOwner owner, long length) {
+        this.rm = rm;
+        this.owner = owner;
+        this.length = length;
+        this.table = new int[(int) ((length + PAGE_SIZE - 1) / PAGE_SIZE)];
+    }
+
+    /**
+     * Gets the length of the disk.
+     *
+     * @return the length in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the number of pages that hold data.
+     *
+     * @return the number of allocated pages
+     */
+    public synchronized int getAllocatedPages() {
+        return allocatedPages;
+    }
+
+    /**
+     * Gets the memory claimed for the pages, including the free pages of partly used blocks.
+     *
+     * @return the claimed memory in bytes
+     */
+    public synchronized long getClaimedSize() {
+        return (long) allocatedChunks * CHUNK_SIZE;
+    }
+
+    /**
+     * Copy data from the disk. Pages that hold no data read as zeroes.
+     *
+     * @param devOffset
+     * @param dest
+     */
+    public synchronized void read(long devOffset, ByteBuffer dest) {
+        while (dest.hasRemaining()) {
+            final int page = (int) (devOffset / PAGE_SIZE);
+            final int ofs = (int) (devOffset % PAGE_SIZE);
+            final int n = Math.min(PAGE_SIZE - ofs, dest.remaining());
+            final int entry = table[page];
+            if (entry == 0) {
+                dest.put(ZERO, 0, n);
+            } else if (dest.hasArray()) {
+                final int pos = dest.position();
+                getChunk(entry).mem.getBytes(pointer(entry) + ofs, dest.array(), dest.arrayOffset() + pos, n);
+                dest.position(pos + n);
+            } else {
+                getChunk(entry).mem.getBytes(pointer(entry) + ofs, scratch, 0, n);
+                dest.put(scratch, 0, n);
+            }
+            devOffset += n;
+        }
+    }
+
+    /**
+     * Copy data to the disk. Zeroes written to a page that holds no data do not
+     * allocate it, and a page that holds only zeroes after the write is freed.
+     *
+     * @param devOffset
+     * @param src
+     * @throws IOException if no memory is left for a new page
+     */
+    public synchronized void write(long devOffset, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            final int page = (int) (devOffset / PAGE_SIZE);
+            final int ofs = (int) (devOffset % PAGE_SIZE);
+            final int n = Math.min(PAGE_SIZE - ofs, src.remaining());
+            int entry = table[page];
+            final boolean zero = isZero(src, n);
+            if (zero && ((entry == 0) || (n == PAGE_SIZE))) {
+                if (entry != 0) {
+                    free(page);
+                }
+                src.position(src.position() + n);
+            } else {
+                if (entry == 0) {
+                    entry = allocate(page);
+                    if (n != PAGE_SIZE) {
+                        getChunk(entry).mem.clear(pointer(entry), PAGE_SIZE);
+                    }
+                }
+                if (src.hasArray()) {
+                    final int pos = src.position();
+                    getChunk(entry).mem.setBytes(src.array(), src.arrayOffset() + pos, pointer(entry) + ofs, n);
+                    src.position(pos + n);
+                } else {
+                    src.get(scratch, 0, n);
+                    getChunk(entry).mem.setBytes(scratch, 0, pointer(entry) + ofs, n);
+                }
+                if (zero && isZeroPage(entry)) {
+                    free(page);
+                }
+            }
+            devOffset += n;
+        }
+    }
+
+    /**
+     * Drop the data of a range. Pages that lie completely in the range are
+     * freed, the rest of the range is cleared and a page that holds only
+     * zeroes afterwards is freed as well.
+     *
+     * @param devOffset
+     * @param len
+     */
+    public synchronized void discard(long devOffset, long len) {
+        final long end = devOffset + len;
+        while (devOffset < end) {
+            final int page = (int) (devOffset / PAGE_SIZE);
+            final int ofs = (int) (devOffset % PAGE_SIZE);
+            final int n = (int) Math.min(PAGE_SIZE - ofs, end - devOffset);
+            final int entry = table[page];
+            if (entry != 0) {
+                if (n == PAGE_SIZE) {
+                    free(page);
+                } else {
+                    getChunk(entry).mem.clear(pointer(entry) + ofs, n);
+                    if (isZeroPage(entry)) {
+                        free(page);
+                    }
+                }
+            }
+            devOffset += n;
+        }
+    }
+
+    /**
+     * Give back all claimed memory. The disk reads as zeroes afterwards.
+     */
+    public synchronized void release() {
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null) {
+                chunks[i].mem.release();
+                chunks[i] = null;
+            }
+        }
+        partial.clear();
+        for (int i = 0; i < table.length; i++) {
+            table[i] = 0;
+        }
+        allocatedPages = 0;
+        allocatedChunks = 0;
+    }
+
+    /**
+     * Allocate a page for the given disk page.
+     *
+     * @return the new table entry
+     */
+    private int allocate(int page) throws IOException {
+        final Chunk chunk;
+        final Iterator<Chunk> i = partial.iterator();
+        if (i.hasNext()) {
+            chunk = i.next();
+        } else {
+            chunk = claimChunk();
+            partial.add(chunk);
+        }
+        int slot = 0;
+        while ((chunk.used & (1 << slot)) != 0) {
+            slot++;
+        }
+        chunk.used |= 1 << slot;
+        if (chunk.used == (1 << PAGES_PER_CHUNK) - 1) {
+            partial.remove(chunk);
+        }
+        allocatedPages++;
+        final int entry = chunk.id * PAGES_PER_CHUNK + slot + 1;
+        table[page] = entry;
+        return entry;
+    }
+
+    /**
+     * Free the page of the given disk page, giving back its chunk if that becomes unused.
+     */
+    private void free(int page) {
+        final int entry = table[page];
+        final Chunk chunk = getChunk(entry);
+        table[page] = 0;
+        chunk.used &= ~(1 << ((entry - 1) % PAGES_PER_CHUNK));
+        allocatedPages--;
+        if (chunk.used == 0) {
+            partial.remove(chunk);
+            chunks[chunk.id] = null;
+            chunk.mem.release();
+            allocatedChunks--;
+        } else {
+            partial.add(chunk);
+        }
+    }
+
+    private Chunk claimChunk() throws IOException {
+        final MemoryResource mem;
+        try {
+            mem = rm.claimMemoryResource(owner, null, CHUNK_SIZE, ResourceManager.MEMMODE_ALLOC_BLOCKS);
+        } catch (ResourceNotFreeException ex) {
+            final IOException ioe = new IOException("No memory left for the RAM disk");
+            ioe.initCause(ex);
+            throw ioe;
+        }
+        int id = 0;
+        while ((id < chunks.length) && (chunks[id] != null)) {
+            id++;
+        }
+        if (id == chunks.length) {
+            final Chunk[] tmp = new Chunk[chunks.length * 2];
+            System.arraycopy(chunks, 0, tmp, 0, chunks.length);
+            chunks = tmp;
+        }
+        final Chunk chunk = new Chunk(id, mem);
+        chunks[id] = chunk;
+        allocatedChunks++;
+        return chunk;
+    }
+
+    private Chunk getChunk(int entry) {
+        return chunks[(entry - 1) / PAGES_PER_CHUNK];
+    }
+
+    /**
+     * Gets the offset of the page of a table entry within its chunk.
+     */
+    private static int pointer(int entry) {
+        return ((entry - 1) % PAGES_PER_CHUNK) * PAGE_SIZE;
+    }
+
+    /**
+     * Does the page of a table entry hold only zeroes?
+     */
+    private boolean isZeroPage(int entry) {
+        getChunk(entry).mem.getBytes(pointer(entry), scratch, 0, PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            if (scratch[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Are the next n bytes of the buffer all zero? The position of the buffer is not changed.
+     */
+    private static boolean isZero(ByteBuffer src, int n) {
+        final int pos = src.position();
+        if (src.hasArray()) {
+            final byte[] arr = src.array();
+            final int start = src.arrayOffset() + pos;
+            for (int i = start; i < start + n; i++) {
+                if (arr[i] != 0) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i = pos; i < pos + n; i++) {
+                if (src.get(i) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A memory block that holds {@link #PAGES_PER_CHUNK} pages.
+     */
+    private static final class Chunk {
+        final int id;
+        final MemoryResource mem;
+
+        /**
+         * A bit for every used page
+         */
+        int used;
+
+        Chunk(int id, MemoryResource mem) {
+            this.id = id;
+            this.mem = mem;
+        }
+    }
+}
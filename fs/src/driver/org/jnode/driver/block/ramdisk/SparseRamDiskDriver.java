@@ -0,0 +1,197 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block.ramdisk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.naming.NameNotFoundException;
+import org.jnode.driver.DeviceAlreadyRegisteredException;
+import org.jnode.driver.Driver;
+import org.jnode.driver.DriverException;
+import org.jnode.driver.block.AsyncBlockDeviceAPI;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.BlockDeviceAPIHelper;
+import org.jnode.driver.block.BlockRequest;
+import org.jnode.driver.block.DiscardBlockDeviceAPI;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.naming.InitialNaming;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.system.resource.ResourceManager;
+
+/**
+ * A RAM disk that only takes memory for the pages that hold data.
+ * <p/>
+ * Unlike {@link RamDiskDriver}, the disk is not backed by one buffer on the
+ * heap. Pages are allocated outside of the heap when they are first written
+ * with non-zero data, and are freed again when the filesystem discards the
+ * blocks they hold. The size of the device is therefore only an upper limit.
+ */
+public class SparseRamDiskDriver extends Driver implements FSBlockDeviceAPI, AsyncBlockDeviceAPI,
+    DiscardBlockDeviceAPI {
+
+    private static final String RAMDISK_DEFAULTNAME = "ramdisk";
+
+    /**
+     * The device
+     */
+    private RamDiskDevice device;
+
+    /**
+     * The data
+     */
+    private RamDiskPages pages;
+
+    private final String devName;
+
+    /**
+     * Create a sparse RamDisk Driver
+     *
+     * @param deviceName null will name it ramdisk with autonumber
+     */
+    public SparseRamDiskDriver(String deviceName) {
+        this.devName = deviceName;
+    }
+
+    /**
+     * Start the device
+     *
+     * @throws DriverException
+     */
+    protected void startDevice() throws DriverException {
+        try {
+            this.device = (RamDiskDevice) getDevice();
+            if (this.devName == null) {
+                this.device.getManager().rename(device, RAMDISK_DEFAULTNAME, true);
+            } else {
+                this.device.getManager().rename(device, devName, false);
+            }
+
+            final ResourceManager rm = InitialNaming.lookup(ResourceManager.NAME);
+            this.pages = new RamDiskPages(rm, device, device.getSize());
+            this.device.registerAPI(FSBlockDeviceAPI.class, this);
+            this.device.registerAPI(AsyncBlockDeviceAPI.class, this);
+            this.device.registerAPI(DiscardBlockDeviceAPI.class, this);
+        } catch (NameNotFoundException ex) {
+            throw new DriverException("Cannot find ResourceManager", ex);
+        } catch (DeviceAlreadyRegisteredException ex) {
+            throw new DriverException(ex);
+        }
+    }
+
+    /**
+     * Stop the device. All data is lost and its memory given back.
+     */
+    protected void stopDevice() {
+        this.device.unregisterAPI(DiscardBlockDeviceAPI.class);
+        this.device.unregisterAPI(AsyncBlockDeviceAPI.class);
+        this.device.unregisterAPI(FSBlockDeviceAPI.class);
+        this.device.unregisterAPI(BlockDeviceAPI.class);
+        this.pages.release();
+        this.pages = null;
+        this.device = null;
+    }
+
+    /**
+     * @return The partition table entry
+     */
+    public PartitionTableEntry getPartitionTableEntry() {
+        return null;
+    }
+
+    /**
+     * @return The sector size
+     */
+    public int getSectorSize() {
+        return 512;
+    }
+
+    public void flush() {
+        // Do nothing
+    }
+
+    /**
+     * @return The length
+     */
+    public long getLength() {
+        return pages.getLength();
+    }
+
+    /**
+     * Gets the number of bytes held in allocated pages.
+     *
+     * @return the allocated size in bytes
+     */
+    public long getAllocatedSize() {
+        return (long) pages.getAllocatedPages() * RamDiskPages.PAGE_SIZE;
+    }
+
+    /**
+     * @param devOffset
+     * @param dest
+     * @throws IOException
+     */
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        BlockDeviceAPIHelper.checkBounds(this, devOffset, dest.remaining());
+        pages.read(devOffset, dest);
+    }
+
+    /**
+     * @param devOffset
+     * @param src
+     * @throws IOException
+     */
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        BlockDeviceAPIHelper.checkBounds(this, devOffset, src.remaining());
+        pages.write(devOffset, src);
+    }
+
+    /**
+     * Frees the pages that lie completely in the range; the range reads as zeroes afterwards.
+     *
+     * @see org.jnode.driver.block.DiscardBlockDeviceAPI#discard(long, long)
+     */
+    public void discard(long devOffset, long length) throws IOException {
+        BlockDeviceAPIHelper.checkBounds(this, devOffset, length);
+        pages.discard(devOffset, length);
+    }
+
+    /**
+     * The segments are copied right away, so the request has completed when this method returns.
+     */
+    public void submit(BlockRequest request) throws IOException {
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            BlockDeviceAPIHelper.checkBounds(this, request.getOffset(i), request.getBuffer(i).remaining());
+        }
+        IOException error = null;
+        for (int i = 0; (i < request.getSegmentCount()) && (error == null); i++) {
+            try {
+                if (request.isWrite()) {
+                    pages.write(request.getOffset(i), request.getBuffer(i));
+                } else {
+                    pages.read(request.getOffset(i), request.getBuffer(i));
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+        request.complete(error);
+    }
+}
@@ -27,6 +27,7 @@ import org.jnode.driver.DeviceManager;
 import org.jnode.driver.DriverException;
 import org.jnode.driver.block.ramdisk.RamDiskDevice;
 import org.jnode.driver.block.ramdisk.RamDiskDriver;
+import org.jnode.driver.block.ramdisk.SparseRamDiskDriver;
 import org.jnode.naming.InitialNaming;
 import org.jnode.shell.AbstractCommand;
 import org.jnode.shell.syntax.Argument;
@@ -41,10 +42,12 @@ public class RamDiskCommand extends AbstractCommand {
         "create", Argument.MANDATORY, "if set, create the ramdisk");
     private final IntegerArgument ARG_SIZE = new IntegerArgument(
         "size", Argument.OPTIONAL, "the size of the ramdisk");
+    private final FlagArgument FLAG_SPARSE = new FlagArgument(
+        "sparse", Argument.OPTIONAL, "if set, only allocate memory for the blocks that are written");
 
     public RamDiskCommand() {
         super("Manage RAM 'disks'");
-        registerArguments(FLAG_CREATE, ARG_SIZE);
+        registerArguments(FLAG_CREATE, ARG_SIZE, FLAG_SPARSE);
     }
 
     public static void main(String[] args) throws Exception {
@@ -58,7 +61,11 @@ public class RamDiskCommand extends AbstractCommand {
             // Create
             final int size = ARG_SIZE.isSet() ? ARG_SIZE.getValue() : 4 * 4096;
             RamDiskDevice dev = new RamDiskDevice(null, "dummy", size);
-            dev.setDriver(new RamDiskDriver(null));
+            if (FLAG_SPARSE.isSet()) {
+                dev.setDriver(new SparseRamDiskDriver(null));
+            } else {
+                dev.setDriver(new RamDiskDriver(null));
+            }
             dm.register(dev);
         }
     }
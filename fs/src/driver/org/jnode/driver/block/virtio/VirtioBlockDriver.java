@@ -0,0 +1,643 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.block.virtio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.naming.NameNotFoundException;
+import org.apache.log4j.Logger;
+import org.jnode.bootlog.BootLogInstance;
+import org.jnode.driver.Bus;
+import org.jnode.driver.Device;
+import org.jnode.driver.DeviceAlreadyRegisteredException;
+import org.jnode.driver.DeviceManager;
+import org.jnode.driver.Driver;
+import org.jnode.driver.DriverException;
+import org.jnode.driver.block.AsyncBlockDeviceAPI;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.BlockDeviceAPIHelper;
+import org.jnode.driver.block.BlockRequest;
+import org.jnode.driver.block.IORequest;
+import org.jnode.driver.block.IORequestQueue;
+import org.jnode.driver.block.IOScheduler;
+import org.jnode.driver.block.IOStatistics;
+import org.jnode.driver.block.PartitionableBlockAlignmentSupport;
+import org.jnode.driver.block.PartitionableBlockDeviceAPI;
+import org.jnode.driver.bus.pci.PCIDevice;
+import org.jnode.driver.bus.virtio.VirtioConstants;
+import org.jnode.driver.bus.virtio.VirtioPCITransport;
+import org.jnode.driver.bus.virtio.Virtqueue;
+import org.jnode.naming.InitialNaming;
+import org.jnode.partitions.ibm.IBMPartitionTable;
+import org.jnode.partitions.ibm.IBMPartitionTableEntry;
+import org.jnode.partitions.ibm.IBMPartitionTableType;
+import org.jnode.system.resource.IRQHandler;
+import org.jnode.system.resource.IRQResource;
+import org.jnode.system.resource.MemoryResource;
+import org.jnode.system.resource.ResourceManager;
+import org.jnode.system.resource.ResourceNotFreeException;
+
+/**
+ * Device driver for virtio block devices.
+ * <p/>
+ * The transfers go through an {@link IORequestQueue} and are added to the
+ * request queue of the device as soon as they are dispatched, so many of
+ * them are in flight at once. A request is a chain of a header, the data
+ * chunks and a status byte.
+ */
+public class VirtioBlockDriver extends Driver
+    implements PartitionableBlockDeviceAPI<IBMPartitionTableEntry>, AsyncBlockDeviceAPI, IRQHandler, VirtioConstants {
+
+    /**
+     * My logger
+     */
+    private static final Logger log = Logger.getLogger(VirtioBlockDriver.class);
+
+    /**
+     * Prefix of the device names
+     */
+    public static final String DEVICE_PREFIX = "vd";
+
+    /**
+     * Size of a sector, capacities and request headers count these
+     */
+    public static final int SECTOR_SIZE = 512;
+
+    /* Features */
+    private static final int F_SEG_MAX = 1 << 2;
+    private static final int F_RO = 1 << 5;
+    private static final int F_FLUSH = 1 << 9;
+
+    /* Device configuration */
+    private static final int CFG_CAPACITY = 0;
+    private static final int CFG_SEG_MAX = 12;
+
+    /* Request types */
+    private static final int T_IN = 0;
+    private static final int T_OUT = 1;
+    private static final int T_FLUSH = 4;
+
+    /* Request status */
+    private static final int S_OK = 0;
+    private static final int S_UNSUPP = 2;
+
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Size of a DMA chunk
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Number of DMA chunks
+     */
+    private static final int NR_CHUNKS = 128;
+
+    /**
+     * Maximum number of chunks of a single request
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Maximum number of requests in flight
+     */
+    private static final int NR_SLOTS = 64;
+
+    /* Memory layout: request headers, status bytes and DMA chunks */
+    private static final int HEADERS = 0;
+    private static final int STATUS = HEADERS + NR_SLOTS * HEADER_SIZE;
+    private static final int DATA = 0x1000;
+
+    /**
+     * Time between checks for completions of a lost interrupt, in ms
+     */
+    private static final int POLL_INTERVAL = 100;
+
+    /**
+     * A request in flight.
+     */
+    private static final class Command {
+        /**
+         * The request transferred, {@code null} for a flush
+         */
+        final IORequest request;
+        final int slot;
+        final int[] chunks;
+        boolean done;
+        IOException error;
+
+        Command(IORequest request, int slot, int[] chunks) {
+            this.request = request;
+            this.slot = slot;
+            this.chunks = chunks;
+        }
+    }
+
+    private VirtioPCITransport transport;
+
+    private Virtqueue queue;
+
+    private IRQResource irq;
+
+    /**
+     * The request headers, status bytes and DMA chunks
+     */
+    private MemoryResource mem;
+
+    private long physicalBase;
+
+    private final Command[] commands = new Command[NR_SLOTS];
+
+    private final int[] freeChunks = new int[NR_CHUNKS];
+
+    private int nrFreeChunks;
+
+    private boolean stopped;
+
+    /**
+     * Number of sectors of the device
+     */
+    private long capacity;
+
+    private boolean readOnly;
+
+    private boolean canFlush;
+
+    /**
+     * Maximum number of chunks of a single request
+     */
+    private int maxSegments;
+
+    private VirtioBlockBus diskBus;
+
+    private IBMPartitionTable pt;
+
+    /**
+     * The queue sorting and merging the transfers to this device
+     */
+    private IORequestQueue requestQueue;
+
+    protected void startDevice() throws DriverException {
+        final PCIDevice dev = (PCIDevice) getDevice();
+        try {
+            dev.getManager().rename(dev, DEVICE_PREFIX, true);
+            final ResourceManager rm = InitialNaming.lookup(ResourceManager.NAME);
+            transport = new VirtioPCITransport(dev, dev);
+            transport.reset();
+            transport.addStatus(STATUS_ACKNOWLEDGE | STATUS_DRIVER);
+            final int features = transport.negotiateFeatures(F_SEG_MAX | F_RO | F_FLUSH | F_RING_EVENT_IDX);
+            capacity = transport.getConfig64(CFG_CAPACITY);
+            readOnly = (features & F_RO) != 0;
+            canFlush = (features & F_FLUSH) != 0;
+            maxSegments = MAX_SEGMENTS;
+            if ((features & F_SEG_MAX) != 0) {
+                maxSegments = Math.max(1, Math.min(maxSegments, transport.getConfig32(CFG_SEG_MAX)));
+            }
+
+            queue = transport.createQueue(0, (features & F_RING_EVENT_IDX) != 0);
+            // Leave room for the header and status descriptors
+            maxSegments = Math.min(maxSegments, queue.getSize() - 2);
+
+            mem = rm.claimMemoryResource(dev, null, DATA + NR_CHUNKS * CHUNK_SIZE, ResourceManager.MEMMODE_NORMAL);
+            physicalBase = mem.getAddress().toLong();
+            for (int i = 0; i < NR_CHUNKS; i++) {
+                freeChunks[i] = i;
+            }
+            nrFreeChunks = NR_CHUNKS;
+            stopped = false;
+
+            // The interrupt manager only delivers the legacy interrupt lines, not MSI-X
+            irq = rm.claimIRQ(dev, transport.getIRQ(), this, true);
+            transport.addStatus(STATUS_DRIVER_OK);
+            log.info(dev.getId() + ": " + capacity + " sectors" + (readOnly ? ", read-only" : "") +
+                (canFlush ? ", write cache" : "") + ", " + queue.getSize() + " descriptors");
+        } catch (NameNotFoundException ex) {
+            throw new DriverException("Cannot find ResourceManager", ex);
+        } catch (ResourceNotFreeException ex) {
+            release();
+            throw new DriverException("Cannot claim virtio resources", ex);
+        } catch (DriverException ex) {
+            release();
+            throw ex;
+        } catch (DeviceAlreadyRegisteredException ex) {
+            throw new DriverException(ex);
+        }
+
+        requestQueue = new IORequestQueue(dev.getId(), IORequestQueue.createScheduler(),
+            maxSegments * CHUNK_SIZE / SECTOR_SIZE, new IORequestQueue.AsyncHandler() {
+                public void start(IORequest request) throws IOException {
+                    issue(request);
+                }
+            });
+        diskBus = new VirtioBlockBus(dev);
+
+        /* Register the BlockDevice API */
+        dev.registerAPI(PartitionableBlockDeviceAPI.class,
+            new PartitionableBlockAlignmentSupport<IBMPartitionTableEntry>(this, SECTOR_SIZE));
+
+        // Look for partitions
+        try {
+            final DeviceManager devMan = InitialNaming.lookup(DeviceManager.NAME);
+            final byte[] bs = new byte[SECTOR_SIZE];
+            read(0, ByteBuffer.wrap(bs));
+            this.pt = new IBMPartitionTable(new IBMPartitionTableType(), bs, dev);
+
+            int partIndex = 0;
+            for (IBMPartitionTableEntry pte : pt) {
+                if (pte == null) {
+                    BootLogInstance.get().warn("PartitionTableEntry #" + partIndex + " is null");
+                } else if (pte.isValid()) {
+                    registerPartition(devMan, dev, pte, partIndex);
+                }
+                partIndex++;
+            }
+            for (IBMPartitionTableEntry pte : pt.getExtendedPartitions()) {
+                registerPartition(devMan, dev, pte, partIndex++);
+            }
+        } catch (DeviceAlreadyRegisteredException ex) {
+            throw new DriverException("Partition device is already known", ex);
+        } catch (IOException ex) {
+            log.error("Cannot read partition table", ex);
+            throw new DriverException("Cannot read partition table", ex);
+        } catch (NameNotFoundException ex) {
+            throw new DriverException("Cannot find DeviceManager", ex);
+        }
+    }
+
+    protected void stopDevice() throws DriverException {
+        final Device dev = getDevice();
+        try {
+            final DeviceManager devMan = InitialNaming.lookup(DeviceManager.NAME);
+            final List<VirtioBlockPartitionDevice> toStop = new ArrayList<VirtioBlockPartitionDevice>();
+            for (Device device : devMan.getDevices()) {
+                if ((device instanceof VirtioBlockPartitionDevice) &&
+                    (((VirtioBlockPartitionDevice) device).getParent() == dev)) {
+                    toStop.add((VirtioBlockPartitionDevice) device);
+                }
+            }
+            for (VirtioBlockPartitionDevice partition : toStop) {
+                devMan.unregister(partition);
+            }
+        } catch (NameNotFoundException ex) {
+            throw new DriverException("Problem while stopping this virtio device", ex);
+        }
+
+        dev.unregisterAPI(BlockDeviceAPI.class);
+        dev.unregisterAPI(PartitionableBlockDeviceAPI.class);
+        this.pt = null;
+        requestQueue.stop();
+        log.debug("I/O statistics of " + dev.getId() + ": " + requestQueue.getStatistics());
+
+        final List<Command> failed = new ArrayList<Command>();
+        synchronized (this) {
+            stopped = true;
+            // Stop the device before failing its commands, it must not finish them afterwards
+            transport.reset();
+            for (int slot = 0; slot < NR_SLOTS; slot++) {
+                if (commands[slot] != null) {
+                    failed.add(take(slot));
+                }
+            }
+            notifyAll();
+        }
+        release();
+        complete(failed, new IOException("Virtio device " + dev.getId() + " is stopped"));
+    }
+
+    /**
+     * Write the volatile write cache of the device to the medium.
+     */
+    public void flush() throws IOException {
+        if (!canFlush || readOnly) {
+            return;
+        }
+        final Command cmd = issue(null);
+        synchronized (this) {
+            while (!cmd.done) {
+                try {
+                    wait(POLL_INTERVAL);
+                } catch (InterruptedException ex) {
+                    throw new IOException("Virtio flush interrupted", ex);
+                }
+            }
+        }
+        if (cmd.error != null) {
+            throw cmd.error;
+        }
+    }
+
+    public long getLength() {
+        return capacity * SECTOR_SIZE;
+    }
+
+    public void read(long devOffset, ByteBuffer destBuf) throws IOException {
+        transfer(devOffset, destBuf, false);
+    }
+
+    public void write(long devOffset, ByteBuffer srcBuf) throws IOException {
+        transfer(devOffset, srcBuf, true);
+    }
+
+    protected void transfer(long devOffset, ByteBuffer buf, boolean isWrite) throws IOException {
+        final int length = buf.remaining();
+        final BlockRequest request = new BlockRequest(isWrite);
+        request.add(devOffset, buf);
+        submit(request);
+        request.waitUntilDone();
+        buf.position(buf.position() + length);
+    }
+
+    /**
+     * Queue all segments at once, so they are in flight together.
+     *
+     * @see org.jnode.driver.block.AsyncBlockDeviceAPI#submit(BlockRequest)
+     */
+    public void submit(BlockRequest request) throws IOException {
+        if (request.isWrite() && readOnly) {
+            throw new IOException("Virtio device " + getDevice().getId() + " is read-only");
+        }
+        for (int i = 0; i < request.getSegmentCount(); i++) {
+            final long devOffset = request.getOffset(i);
+            final int length = request.getBuffer(i).remaining();
+            BlockDeviceAPIHelper.checkBounds(this, devOffset, length);
+            BlockDeviceAPIHelper.checkAlignment(SECTOR_SIZE, this, devOffset, length);
+        }
+        requestQueue.submit(request, SECTOR_SIZE);
+    }
+
+    /**
+     * Gets the statistics of the transfers to this device.
+     *
+     * @return the statistics
+     */
+    public IOStatistics getIOStatistics() {
+        return requestQueue.getStatistics();
+    }
+
+    /**
+     * Replace the scheduler ordering the transfers to this device.
+     *
+     * @param scheduler
+     */
+    public void setIOScheduler(IOScheduler scheduler) {
+        requestQueue.setScheduler(scheduler);
+    }
+
+    public int getSectorSize() throws IOException {
+        return SECTOR_SIZE;
+    }
+
+    /**
+     * Gets the partition table that this block device contains.
+     *
+     * @return {@code null} if no partition table is found.
+     * @throws IOException
+     */
+    public IBMPartitionTable getPartitionTable() throws IOException {
+        return pt;
+    }
+
+    /**
+     * @see org.jnode.system.resource.IRQHandler#handleInterrupt(int)
+     */
+    public void handleInterrupt(int irq) {
+        if ((transport.getISRStatus() & ISR_QUEUE) != 0) {
+            processUsed();
+        }
+    }
+
+    /**
+     * Add a request to the queue of the device, blocking while all slots,
+     * descriptors or DMA chunks are in use.
+     *
+     * @param request the request to transfer, {@code null} for a flush
+     * @return the command in flight
+     * @throws IOException if the request could not be added
+     */
+    private Command issue(IORequest request) throws IOException {
+        final int length = (request == null) ? 0 : request.getCount() * request.getBlockSize();
+        final int nrChunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (nrChunks > maxSegments) {
+            throw new IOException("Invalid virtio transfer length " + length);
+        }
+
+        while (true) {
+            synchronized (this) {
+                if (stopped) {
+                    throw new IOException("Virtio device " + getDevice().getId() + " is stopped");
+                }
+                final int slot = getFreeSlot();
+                if ((slot >= 0) && (nrFreeChunks >= nrChunks) && (queue.getFreeCount() >= nrChunks + 2)) {
+                    return add(request, slot, nrChunks, length);
+                }
+                try {
+                    wait(POLL_INTERVAL);
+                } catch (InterruptedException ex) {
+                    throw new IOException("Virtio issue interrupted", ex);
+                }
+            }
+            // Pick up the completions of a lost interrupt
+            processUsed();
+        }
+    }
+
+    /**
+     * Fill in and add the chain of a request. Called with the lock held.
+     */
+    private Command add(IORequest request, int slot, int nrChunks, int length) {
+        final boolean write = (request != null) && request.isWrite();
+        final int[] chunks = new int[nrChunks];
+        for (int i = 0; i < nrChunks; i++) {
+            chunks[i] = freeChunks[--nrFreeChunks];
+        }
+        final Command cmd = new Command(request, slot, chunks);
+        commands[slot] = cmd;
+
+        final int header = HEADERS + slot * HEADER_SIZE;
+        mem.setInt(header, (request == null) ? T_FLUSH : (write ? T_OUT : T_IN));
+        mem.setInt(header + 4, 0);
+        mem.setLong(header + 8, (request == null) ? 0 : request.getBlock());
+        mem.setByte(STATUS + slot, (byte) 0xFF);
+
+        final long[] addresses = new long[nrChunks + 2];
+        final int[] lengths = new int[nrChunks + 2];
+        addresses[0] = physicalBase + header;
+        lengths[0] = HEADER_SIZE;
+        for (int i = 0; i < nrChunks; i++) {
+            final int count = Math.min(CHUNK_SIZE, length - i * CHUNK_SIZE);
+            final int chunk = DATA + chunks[i] * CHUNK_SIZE;
+            addresses[i + 1] = physicalBase + chunk;
+            lengths[i + 1] = count;
+            if (write) {
+                request.copyTo(i * CHUNK_SIZE, mem, chunk, count);
+            }
+        }
+        addresses[nrChunks + 1] = physicalBase + STATUS + slot;
+        lengths[nrChunks + 1] = 1;
+
+        // The header and the data to write are read by the device, the rest is written
+        queue.add(addresses, lengths, write ? nrChunks + 1 : 1, cmd);
+        queue.kick();
+        return cmd;
+    }
+
+    /**
+     * Take the finished chains from the queue and complete their requests.
+     */
+    private void processUsed() {
+        final List<Command> finished = new ArrayList<Command>();
+        final Virtqueue.Handler handler = new Virtqueue.Handler() {
+            public void used(Object token, int length) {
+                finished.add((Command) token);
+            }
+        };
+        do {
+            queue.disableInterrupts();
+            queue.processUsed(handler);
+        } while (queue.enableInterrupts());
+
+        if (finished.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            for (Iterator<Command> i = finished.iterator(); i.hasNext();) {
+                final Command cmd = i.next();
+                if (commands[cmd.slot] != cmd) {
+                    // Failed by stopDevice since it was taken from the queue
+                    i.remove();
+                    continue;
+                }
+                final int status = mem.getByte(STATUS + cmd.slot) & 0xFF;
+                if (status == S_OK) {
+                    if ((cmd.request != null) && !cmd.request.isWrite()) {
+                        gather(cmd);
+                    }
+                } else {
+                    cmd.error = new IOException("Virtio " + ((cmd.request == null) ? "flush" : cmd.request) +
+                        ((status == S_UNSUPP) ? " unsupported" : " failed, status " + status));
+                }
+                take(cmd.slot);
+            }
+            notifyAll();
+        }
+        complete(finished, null);
+    }
+
+    /**
+     * Complete the requests of finished commands.
+     *
+     * @param finished the commands
+     * @param error    the error of all commands, or {@code null} to use their own
+     */
+    private void complete(List<Command> finished, IOException error) {
+        for (Command cmd : finished) {
+            final IOException cmdError = (error != null) ? error : cmd.error;
+            if (cmd.request != null) {
+                requestQueue.done(cmd.request, cmdError);
+            } else {
+                synchronized (this) {
+                    cmd.error = cmdError;
+                    cmd.done = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a free slot, or -1 if all are in use.
+     */
+    private int getFreeSlot() {
+        for (int slot = 0; slot < NR_SLOTS; slot++) {
+            if (commands[slot] == null) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Free the slot and chunks of a command.
+     *
+     * @return the command
+     */
+    private Command take(int slot) {
+        final Command cmd = commands[slot];
+        commands[slot] = null;
+        for (int chunk : cmd.chunks) {
+            freeChunks[nrFreeChunks++] = chunk;
+        }
+        return cmd;
+    }
+
+    /**
+     * Copy the data read by a command from its chunks into the buffers of its request.
+     */
+    private void gather(Command cmd) {
+        final int length = cmd.request.getCount() * cmd.request.getBlockSize();
+        int offset = 0;
+        for (int chunk : cmd.chunks) {
+            final int count = Math.min(CHUNK_SIZE, length - offset);
+            cmd.request.copyFrom(mem, DATA + chunk * CHUNK_SIZE, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Release the interrupt, memory and registers of the device.
+     */
+    private void release() {
+        if (irq != null) {
+            irq.release();
+            irq = null;
+        }
+        if (transport != null) {
+            transport.release();
+            transport = null;
+        }
+        if (mem != null) {
+            mem.release();
+            mem = null;
+        }
+    }
+
+    static class VirtioBlockBus extends Bus {
+
+        public VirtioBlockBus(Device parent) {
+            super(parent);
+        }
+    }
+
+    /*
+     * Register the given partition entry (maybe an extended partition entry)
+     */
+    private void registerPartition(DeviceManager devMan, Device dev, IBMPartitionTableEntry pte, int partIndex)
+        throws DeviceAlreadyRegisteredException, DriverException {
+        final String id = dev.getId() + partIndex;
+        final VirtioBlockPartitionDevice pdev =
+            new VirtioBlockPartitionDevice(diskBus, id, dev, pte, pte.getStartLba(), pte.getNrSectors());
+        pdev.setDriver(new VirtioBlockPartitionDriver());
+        devMan.register(pdev);
+    }
+}
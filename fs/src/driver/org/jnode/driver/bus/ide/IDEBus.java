@@ -72,6 +72,11 @@ public class IDEBus extends Bus implements IDEConstants, IRQHandler,
      */
     private final IDEIO io;
 
+    /**
+     * Bus master DMA engine of this channel, or null if not supported
+     */
+    private final IDEBusMaster busMaster;
+
     /**
      * Is the the primary (true) or secondary (false) channel
      */
@@ -97,6 +102,7 @@ public class IDEBus extends Bus implements IDEConstants, IRQHandler,
             throw new DriverException(ex);
         }
         this.io = factory.createIDEIO(parent, primary);
+        this.busMaster = IDEBusMaster.claim(parent, primary);
 
         // Register the irq handler
         final ResourceManager rm;
@@ -146,6 +152,18 @@ public class IDEBus extends Bus implements IDEConstants, IRQHandler,
         queueProcessor.stopProcessor();
         irqRes.release();
         io.release();
+        if (busMaster != null) {
+            busMaster.release();
+        }
+    }
+
+    /**
+     * Gets the bus master DMA engine of this channel.
+     *
+     * @return the bus master, or null if the controller does not support bus master DMA
+     */
+    public IDEBusMaster getBusMaster() {
+        return busMaster;
     }
 
     /**
@@ -373,6 +391,10 @@ public class IDEBus extends Bus implements IDEConstants, IRQHandler,
             if (!current.isFinished()) {
                 log.error("Last command not finished in time: " + current + " error " + current.hasError());
                 current.setError(ERR_ABORT);
+                if (busMaster != null) {
+                    // Abort any DMA transfer of the command
+                    busMaster.stop();
+                }
                 softwareReset();
             }
         }
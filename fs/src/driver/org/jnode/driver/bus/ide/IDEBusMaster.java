@@ -0,0 +1,315 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.bus.ide;
+
+import java.nio.ByteBuffer;
+import java.security.PrivilegedExceptionAction;
+import javax.naming.NameNotFoundException;
+import org.apache.log4j.Logger;
+import org.jnode.driver.Device;
+import org.jnode.driver.bus.pci.PCIBaseAddress;
+import org.jnode.driver.bus.pci.PCIConstants;
+import org.jnode.driver.bus.pci.PCIDevice;
+import org.jnode.driver.bus.pci.PCIDeviceConfig;
+import org.jnode.naming.InitialNaming;
+import org.jnode.system.resource.IOResource;
+import org.jnode.system.resource.MemoryResource;
+import org.jnode.system.resource.ResourceManager;
+import org.jnode.system.resource.ResourceNotFreeException;
+import org.jnode.util.AccessControllerUtils;
+import org.jnode.util.NumberUtils;
+
+/**
+ * The PCI bus master DMA engine of one IDE channel.
+ * <p/>
+ * The data is transferred through a buffer of {@link #MAX_SECTORS} sectors,
+ * described to the controller by a table of physical region descriptors
+ * (PRD). Each region covers at most 64Kb and does not cross a 64Kb boundary.
+ *
+ * @see "Programming Interface for Bus Master IDE Controller, revision 1.0"
+ */
+public class IDEBusMaster implements IDEConstants {
+
+    /**
+     * My logger
+     */
+    private static final Logger log = Logger.getLogger(IDEBusMaster.class);
+
+    /**
+     * Maximum number of sectors of a single transfer
+     */
+    public static final int MAX_SECTORS = 256;
+
+    /**
+     * Index of the base address register of the bus master ports
+     */
+    private static final int BM_BAR = 4;
+
+    /**
+     * Offset of the first base address register in the PCI configuration space
+     */
+    private static final int PCI_BASE_ADDRESS_0 = 0x10;
+
+    /**
+     * Number of bus master ports of one channel
+     */
+    private static final int BM_NR_PORTS = 8;
+
+    /* Bus master registers, relative to the ports of the channel */
+    private static final int RW8_BM_COMMAND_OFFSET = 0;
+    private static final int RW8_BM_STATUS_OFFSET = 2;
+    private static final int RW32_BM_PRD_OFFSET = 4;
+
+    /* Bits of the bus master command register */
+    private static final int BMCMD_START = 0x01;
+    private static final int BMCMD_READ = 0x08; /* Device to memory */
+
+    /* Bits of the bus master status register */
+    private static final int BMST_ACTIVE = 0x01;
+    private static final int BMST_ERROR = 0x02;
+    private static final int BMST_IRQ = 0x04;
+
+    /**
+     * Size of a region of the data buffer
+     */
+    private static final int REGION_SIZE = 64 * 1024;
+
+    /**
+     * Size of a physical region descriptor
+     */
+    private static final int PRD_SIZE = 8;
+
+    /**
+     * End of table marker of the last physical region descriptor
+     */
+    private static final int PRD_EOT = 0x80000000;
+
+    /**
+     * Size of the memory: the PRD table region and the data buffer
+     */
+    private static final int MEM_SIZE = REGION_SIZE + MAX_SECTORS * SECTOR_SIZE;
+
+    private final IOResource ports;
+
+    private final int base;
+
+    /**
+     * The PRD table in the first region, followed by the data buffer.
+     */
+    private final MemoryResource mem;
+
+    private final int prdTable;
+
+    private final int dataBuffer;
+
+    /**
+     * Create a bus master on claimed resources.
+     *
+     * @param ports the bus master ports, at least up to {@code base} + 8
+     * @param base  the first bus master port of the channel
+     * @param mem   the memory of the PRD table and the data buffer
+     * @throws IllegalArgumentException if the memory does not start on a 64Kb boundary, so that the
+     *                                  regions would cross one, or does not end below 4Gb
+     */
+    public IDEBusMaster(IOResource ports, int base, MemoryResource mem) {
+        final long address = mem.getAddress().toLong();
+        if (((address & (REGION_SIZE - 1)) != 0) || ((address + MEM_SIZE - 1) >>> 32 != 0)) {
+            throw new IllegalArgumentException("DMA memory at 0x" + NumberUtils.hex(address) +
+                " is not 64Kb aligned below 4Gb");
+        }
+        this.ports = ports;
+        this.base = base;
+        this.mem = mem;
+        this.prdTable = 0;
+        this.dataBuffer = REGION_SIZE;
+    }
+
+    /**
+     * Claim the bus master DMA engine of the given channel.
+     *
+     * @param device  the IDE controller
+     * @param primary the primary (true) or secondary (false) channel
+     * @return the bus master, or {@code null} if the controller does not support bus master DMA
+     */
+    public static IDEBusMaster claim(Device device, boolean primary) {
+        if (!(device instanceof PCIDevice)) {
+            return null;
+        }
+        final PCIDevice pciDev = (PCIDevice) device;
+        final PCIDeviceConfig pciCfg = pciDev.getConfig();
+        if ((pciCfg.getMinorClass() & 0x80) == 0) {
+            // Programming interface has no bus master support
+            return null;
+        }
+        // Read the register itself, the compatibility mode channels have no base addresses before it
+        final PCIBaseAddress bmAddr = PCIBaseAddress.read(pciDev, PCI_BASE_ADDRESS_0, BM_BAR);
+        if ((bmAddr == null) || !bmAddr.isIOSpace()) {
+            return null;
+        }
+        final int base = bmAddr.getIOBase() + (primary ? 0 : BM_NR_PORTS);
+
+        IOResource ports = null;
+        MemoryResource mem = null;
+        try {
+            final ResourceManager rm = InitialNaming.lookup(ResourceManager.NAME);
+            ports = claimPorts(rm, device, base, BM_NR_PORTS);
+            mem = rm.claimMemoryResource(device, null, MEM_SIZE, ResourceManager.MEMMODE_NORMAL);
+        } catch (NameNotFoundException ex) {
+            log.error("Cannot find ResourceManager", ex);
+        } catch (ResourceNotFreeException ex) {
+            log.error("Cannot claim bus master resources", ex);
+        }
+        if ((ports == null) || (mem == null)) {
+            if (ports != null) {
+                ports.release();
+            }
+            return null;
+        }
+
+        final IDEBusMaster busMaster;
+        try {
+            busMaster = new IDEBusMaster(ports, base, mem);
+        } catch (IllegalArgumentException ex) {
+            log.warn("Cannot use bus master DMA: " + ex.getMessage());
+            ports.release();
+            mem.release();
+            return null;
+        }
+
+        // Enable bus mastering
+        pciCfg.setCommand(pciCfg.getCommand() | PCIConstants.PCI_COMMAND_IO | PCIConstants.PCI_COMMAND_MASTER);
+        log.info("Using bus master DMA at 0x" + NumberUtils.hex(base, 4));
+        return busMaster;
+    }
+
+    /**
+     * Release the resources of this bus master.
+     */
+    public void release() {
+        ports.release();
+        mem.release();
+    }
+
+    /**
+     * Prepare a transfer: fill the PRD table, copy the data to write into
+     * the DMA buffer and set the direction.
+     *
+     * @param buf    the data to write, from its position; not used for reads
+     * @param length the number of bytes to transfer
+     * @param write  {@code true} for a transfer from memory to the device
+     */
+    public void prepare(ByteBuffer buf, int length, boolean write) {
+        if ((length <= 0) || (length > MAX_SECTORS * SECTOR_SIZE)) {
+            throw new IllegalArgumentException("Invalid DMA length " + length);
+        }
+        final int address = mem.getAddress().toInt() + dataBuffer;
+        int entry = prdTable;
+        for (int offset = 0; offset < length; offset += REGION_SIZE) {
+            final int count = Math.min(REGION_SIZE, length - offset);
+            final boolean last = (offset + count == length);
+            mem.setInt(entry, address + offset);
+            // A byte count of 0 means 64Kb
+            mem.setInt(entry + 4, (count & 0xFFFF) | (last ? PRD_EOT : 0));
+            entry += PRD_SIZE;
+        }
+
+        if (write) {
+            if (buf.hasArray()) {
+                mem.setBytes(buf.array(), buf.arrayOffset() + buf.position(), dataBuffer, length);
+            } else {
+                final byte[] data = new byte[length];
+                buf.duplicate().get(data);
+                mem.setBytes(data, 0, dataBuffer, length);
+            }
+        }
+
+        ports.outPortByte(base + RW8_BM_COMMAND_OFFSET, write ? 0 : BMCMD_READ);
+        ports.outPortDword(base + RW32_BM_PRD_OFFSET, mem.getAddress().toInt() + prdTable);
+        // Clear the error and interrupt bits
+        ports.outPortByte(base + RW8_BM_STATUS_OFFSET, BMST_ERROR | BMST_IRQ);
+    }
+
+    /**
+     * Start the prepared transfer. The ATA command must have been issued.
+     */
+    public void start() {
+        final int cmd = ports.inPortByte(base + RW8_BM_COMMAND_OFFSET);
+        ports.outPortByte(base + RW8_BM_COMMAND_OFFSET, cmd | BMCMD_START);
+    }
+
+    /**
+     * Is there an interrupt of this channel pending.
+     *
+     * @return true if the interrupt bit is set
+     */
+    public boolean isInterrupted() {
+        return (ports.inPortByte(base + RW8_BM_STATUS_OFFSET) & BMST_IRQ) != 0;
+    }
+
+    /**
+     * Stop the transfer and acknowledge the interrupt.
+     *
+     * @return true if the transfer completed without error
+     */
+    public boolean stop() {
+        final int cmd = ports.inPortByte(base + RW8_BM_COMMAND_OFFSET);
+        ports.outPortByte(base + RW8_BM_COMMAND_OFFSET, cmd & ~BMCMD_START);
+        final int status = ports.inPortByte(base + RW8_BM_STATUS_OFFSET);
+        ports.outPortByte(base + RW8_BM_STATUS_OFFSET, BMST_ERROR | BMST_IRQ);
+        if ((status & (BMST_ERROR | BMST_ACTIVE)) != 0) {
+            log.debug("Bus master status 0x" + NumberUtils.hex(status, 2));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the data read by the last transfer.
+     *
+     * @param buf    the buffer to copy into, from its position
+     * @param length the number of bytes to copy
+     */
+    public void copyTo(ByteBuffer buf, int length) {
+        if (buf.hasArray()) {
+            mem.getBytes(dataBuffer, buf.array(), buf.arrayOffset() + buf.position(), length);
+            buf.position(buf.position() + length);
+        } else {
+            final byte[] data = new byte[length];
+            mem.getBytes(dataBuffer, data, 0, length);
+            buf.put(data);
+        }
+    }
+
+    private static IOResource claimPorts(final ResourceManager rm, final Device owner, final int low,
+                                         final int length) throws ResourceNotFreeException {
+        try {
+            return AccessControllerUtils.doPrivileged(new PrivilegedExceptionAction<IOResource>() {
+                public IOResource run() throws ResourceNotFreeException {
+                    return rm.claimIOResource(owner, low, length);
+                }
+            });
+        } catch (ResourceNotFreeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new ResourceNotFreeException("Unknown exception", ex);
+        }
+    }
+}
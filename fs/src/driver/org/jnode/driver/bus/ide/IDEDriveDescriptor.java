@@ -196,6 +196,25 @@ public class IDEDriveDescriptor {
         return ((data[83] & 0x400) != 0);
     }
 
+    /**
+     * Does this device support native command queuing (Serial ATA only)?
+     *
+     * @return True if this device supports NCQ, false otherwise
+     */
+    public boolean supportsNCQ() {
+        final int sataCaps = data[76] & 0xFFFF;
+        return (sataCaps != 0) && (sataCaps != 0xFFFF) && ((sataCaps & 0x0100) != 0);
+    }
+
+    /**
+     * Gets the maximum number of queued commands of this device.
+     *
+     * @return the queue depth, 1 if the device does not support queuing
+     */
+    public int getQueueDepth() {
+        return supportsNCQ() ? (data[75] & 0x1F) + 1 : 1;
+    }
+
     /**
      * Gets the number of addressable sectors
      */
@@ -21,6 +21,7 @@
 package org.jnode.driver.bus.ide.command;
 
 import org.jnode.driver.bus.ide.IDEBus;
+import org.jnode.driver.bus.ide.IDEBusMaster;
 import org.jnode.driver.bus.ide.IDECommand;
 import org.jnode.driver.bus.ide.IDEIO;
 import org.jnode.util.TimeoutException;
@@ -91,6 +92,26 @@ public abstract class IDERWSectorsCommand extends IDECommand {
         }
     }
 
+    /**
+     * Stop a bus master transfer after its interrupt and check the result.
+     *
+     * @return true if the transfer succeeded, false in case of an error.
+     */
+    protected final boolean finishDMA(IDEBusMaster dma, IDEIO io) {
+        final boolean completed = dma.stop();
+        // Reading the status acknowledges the interrupt of the device
+        final int state = io.getStatusReg();
+        if ((state & ST_ERROR) != 0) {
+            setError(io.getErrorReg());
+            return false;
+        }
+        if (!completed || ((state & ST_DEVICE_FAULT) != 0)) {
+            setError(ERR_ABORT);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Poll waiting.
      *
@@ -23,6 +23,7 @@ package org.jnode.driver.bus.ide.command;
 import java.nio.ByteBuffer;
 import org.apache.log4j.Logger;
 import org.jnode.driver.bus.ide.IDEBus;
+import org.jnode.driver.bus.ide.IDEBusMaster;
 import org.jnode.driver.bus.ide.IDEIO;
 import org.jnode.util.TimeoutException;
 
@@ -37,6 +38,11 @@ public class IDEReadSectorsCommand extends IDERWSectorsCommand {
 
     private int readSectors = 0;
 
+    /**
+     * The bus master transferring the data, or {@code null} to read the data port
+     */
+    private final IDEBusMaster dma;
+
     public IDEReadSectorsCommand(
         boolean primary,
         boolean master,
@@ -44,8 +50,23 @@ public class IDEReadSectorsCommand extends IDERWSectorsCommand {
         long lbaStart,
         int sectors,
         ByteBuffer dest) {
+        this(primary, master, is48bit, lbaStart, sectors, dest, null);
+    }
+
+    /**
+     * Create a read command, transferring the data by bus master DMA if a bus master is given.
+     */
+    public IDEReadSectorsCommand(
+        boolean primary,
+        boolean master,
+        boolean is48bit,
+        long lbaStart,
+        int sectors,
+        ByteBuffer dest,
+        IDEBusMaster dma) {
         super(primary, master, is48bit, lbaStart, sectors);
         buf = dest;
+        this.dma = dma;
     }
 
     /**
@@ -53,6 +74,13 @@ public class IDEReadSectorsCommand extends IDERWSectorsCommand {
      */
     protected void setup(IDEBus ide, IDEIO io) throws TimeoutException {
         super.setup(ide, io);
+        if (dma != null) {
+            dma.prepare(buf, sectorCount * SECTOR_SIZE, false);
+            io.setCommandReg(is48bit ? CMD_READDMA_EXT : CMD_READDMA);
+            dma.start();
+            // Finished in handleIRQ
+            return;
+        }
         io.setCommandReg(is48bit ? CMD_READ_EXT : CMD_READ);
 
         // Read data
@@ -84,6 +112,13 @@ public class IDEReadSectorsCommand extends IDERWSectorsCommand {
      * @see org.jnode.driver.bus.ide.IDECommand#handleIRQ(IDEBus, IDEIO)
      */
     protected void handleIRQ(IDEBus ide, IDEIO io) {
-        // Do nothing
+        if ((dma == null) || !dma.isInterrupted()) {
+            // PIO transfers are polled
+            return;
+        }
+        if (finishDMA(dma, io)) {
+            dma.copyTo(buf, sectorCount * SECTOR_SIZE);
+            notifyFinished();
+        }
     }
 }
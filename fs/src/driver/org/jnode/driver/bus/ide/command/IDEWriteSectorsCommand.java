@@ -23,6 +23,7 @@ package org.jnode.driver.bus.ide.command;
 import java.nio.ByteBuffer;
 import org.apache.log4j.Logger;
 import org.jnode.driver.bus.ide.IDEBus;
+import org.jnode.driver.bus.ide.IDEBusMaster;
 import org.jnode.driver.bus.ide.IDEIO;
 import org.jnode.util.TimeoutException;
 
@@ -41,14 +42,28 @@ public class IDEWriteSectorsCommand extends IDERWSectorsCommand {
     //private int sectorsWritten = 0;
     //private final Semaphore irqSem = new Semaphore(0);
 
+    /**
+     * The bus master transferring the data, or {@code null} to write the data port
+     */
+    private final IDEBusMaster dma;
+
     public IDEWriteSectorsCommand(boolean primary, boolean master,
                                   boolean is48bit, long lbaStart, int sectors, ByteBuffer src) {
+        this(primary, master, is48bit, lbaStart, sectors, src, null);
+    }
+
+    /**
+     * Create a write command, transferring the data by bus master DMA if a bus master is given.
+     */
+    public IDEWriteSectorsCommand(boolean primary, boolean master,
+                                  boolean is48bit, long lbaStart, int sectors, ByteBuffer src, IDEBusMaster dma) {
         super(primary, master, is48bit, lbaStart, sectors);
         if (sectors * SECTOR_SIZE > src.remaining()) {
             throw new IllegalArgumentException(
                 "Buffer underflow (sectors=" + sectors + ", remaining=" + src.remaining() + ")");
         }
         this.buf = src;
+        this.dma = dma;
     }
 
     /**
@@ -58,6 +73,13 @@ public class IDEWriteSectorsCommand extends IDERWSectorsCommand {
         throws TimeoutException {
         log.debug("WRSect Setup");
         super.setup(ide, io);
+        if (dma != null) {
+            dma.prepare(buf, sectorCount * SECTOR_SIZE, true);
+            io.setCommandReg(is48bit ? CMD_WRITEDMA_EXT : CMD_WRITEDMA);
+            dma.start();
+            // Finished in handleIRQ
+            return;
+        }
         io.setCommandReg(is48bit ? CMD_WRITE_EXT : CMD_WRITE);
 
         // Send data
@@ -102,5 +124,14 @@ public class IDEWriteSectorsCommand extends IDERWSectorsCommand {
     protected void handleIRQ(IDEBus ide, IDEIO io) throws TimeoutException {
         // Signal an IRQ
         //irqSem.up();
+        if ((dma == null) || !dma.isInterrupted()) {
+            // PIO transfers are polled
+            return;
+        }
+        if (finishDMA(dma, io)) {
+            buf.position(buf.position() + sectorCount * SECTOR_SIZE);
+            flushCache(io, is48bit);
+            notifyFinished();
+        }
     }
 }
@@ -37,7 +37,8 @@ public class BlockBitmap extends FSBitmap {
             setBit(data, index);
             // do preallocation
             int j = 0;
-            while ((j < Ext2Constants.EXT2_PREALLOC_BLOCK) && isFree(data, index + 1 + j)) {
+            while ((j < Ext2Constants.EXT2_PREALLOC_BLOCK) && (index + 1 + j < data.length * 8)
+                && isFree(data, index + 1 + j)) {
                 setBit(data, index + 1 + j);
                 j++;
             }
@@ -75,7 +76,7 @@ public class BlockBitmap extends FSBitmap {
                 return new BlockReservation(true, ((long) i) * 8, 7);
             }
 
-            if ((nonfullBitmap == -1) && (data[i] != 0xFF))
+            if ((nonfullBitmap == -1) && (data[i] != (byte) 0xFF))
                 nonfullBitmap = i;
         }
 
@@ -93,7 +94,8 @@ public class BlockBitmap extends FSBitmap {
                 int block = nonfullBitmap * 8 + i;
                 //do preallocation:
                 int j = 0;
-                while ((j < Ext2Constants.EXT2_PREALLOC_BLOCK) && isFree(data, block + 1 + j)) {
+                while ((j < Ext2Constants.EXT2_PREALLOC_BLOCK) && (block + 1 + j < data.length * 8)
+                    && isFree(data, block + 1 + j)) {
                     setBit(data, block + 1 + j);
                     j++;
                 }
@@ -102,4 +104,62 @@ public class BlockBitmap extends FSBitmap {
 
         return new BlockReservation(false, -1, -1);
     }
+
+    /**
+     * Find a run of contiguous free blocks in the bitmap, and mark it as
+     * allocated. The first run of at least <code>maxLength</code> free blocks
+     * at or after the goal is taken, wrapping around to the beginning of the
+     * group. If there is no such run, the longest free run is taken instead.
+     * The returned reservation holds the first block of the run, and the rest
+     * of the run as preallocated blocks.
+     * 
+     * SYNCHRONIZATION: BlockBitmap.findFreeRun() is not synchronized, so
+     * Ext2FileSystem.allocateBlocks() is synchronized to the bitmap block it
+     * operates on.
+     *
+     * @param first     the first block of the group that may be allocated.
+     * @param limit     the number of blocks in the group.
+     * @param goal      the block to start searching at.
+     * @param maxLength the wanted length of the run.
+     */
+    protected static BlockReservation findFreeRun(byte[] data, int first, int limit, int goal,
+                                                  int maxLength) {
+        int bestStart = -1;
+        int bestLength = 0;
+
+        goal = Math.max(first, Math.min(goal, limit));
+        for (int pass = 0; pass < 2 && bestLength < maxLength; pass++) {
+            int i = (pass == 0) ? goal : first;
+            int end = (pass == 0) ? limit : goal;
+            while (i < end && bestLength < maxLength) {
+                // skip a whole byte of allocated blocks at once
+                if ((i & 7) == 0 && data[i >> 3] == (byte) 0xFF) {
+                    i += 8;
+                    continue;
+                }
+                if (!isFree(data, i)) {
+                    i++;
+                    continue;
+                }
+                int j = i + 1;
+                while (j < limit && j - i < maxLength && isFree(data, j)) {
+                    j++;
+                }
+                if (j - i > bestLength) {
+                    bestStart = i;
+                    bestLength = j - i;
+                }
+                i = j;
+            }
+        }
+
+        if (bestStart == -1) {
+            return new BlockReservation(false, -1, -1);
+        }
+
+        for (int i = bestStart; i < bestStart + bestLength; i++) {
+            setBit(data, i);
+        }
+        return new BlockReservation(true, bestStart, bestLength - 1);
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.fs.ext2;
+
+/**
+ * A run of data blocks of an inode that are physically contiguous on disk,
+ * or a run of blocks that are not allocated (a hole).
+ */
+public final class BlockRun {
+
+    /**
+     * The index of the first block in the inode
+     */
+    private final long blockIndex;
+
+    /**
+     * The number of the first block in the filesystem, 0 for a hole
+     */
+    private final long blockNr;
+
+    /**
+     * The number of blocks in the run
+     */
+    private final long count;
+
+    /**
+     * Create a run.
+     *
+     * @param blockIndex the index of the first block in the inode.
+     * @param blockNr    the number of the first block in the filesystem, or 0 for a hole.
+     * @param count      the number of blocks.
+     */
+    public BlockRun(long blockIndex, long blockNr, long count) {
+        this.blockIndex = blockIndex;
+        this.blockNr = blockNr;
+        this.count = count;
+    }
+
+    public long getBlockIndex() {
+        return blockIndex;
+    }
+
+    public long getBlockNr() {
+        return blockNr;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Is this run a hole, that reads as zeros.
+     *
+     * @return {@code true} if the blocks are not allocated.
+     */
+    public boolean isHole() {
+        return blockNr == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BlockRun: index:%d nr:%d count:%d", blockIndex, blockNr, count);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.fs.ext2;
+
+/**
+ * The hash functions that map names to the hash values of an indexed (HTree)
+ * directory. These are the same functions as used by the Linux ext2/3/4 drivers.
+ */
+public final class DirectoryHash {
+
+    /**
+     * The seed that is used when the superblock holds no seed
+     */
+    private static final int[] DEFAULT_SEED = {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476};
+
+    /**
+     * The hash value that marks the end of the directory for readers of the index
+     */
+    private static final int EOF_HASH = 0x7fffffff;
+
+    private static final int TEA_DELTA = 0x9E3779B9;
+
+    private static final int MD4_K2 = 0x5A827999;
+
+    private static final int MD4_K3 = 0x6ED9EBA1;
+
+    private DirectoryHash() {
+    }
+
+    /**
+     * Is the given hash version supported?
+     *
+     * @param version the hash version.
+     * @return {@code true} if a hash can be calculated for this version.
+     */
+    public static boolean isSupported(int version) {
+        return (version >= Ext2Constants.EXT2_DX_HASH_LEGACY)
+            && (version <= Ext2Constants.EXT2_DX_HASH_TEA_UNSIGNED);
+    }
+
+    /**
+     * Calculate the hash of a name.
+     *
+     * @param name    the name.
+     * @param version the hash version.
+     * @param seed    the seed from the superblock, or {@code null}.
+     * @return the hash, with the lowest bit cleared.
+     */
+    public static int hash(byte[] name, int version, int[] seed) {
+        int[] buf = DEFAULT_SEED.clone();
+        if (seed != null) {
+            for (int s : seed) {
+                if (s != 0) {
+                    System.arraycopy(seed, 0, buf, 0, buf.length);
+                    break;
+                }
+            }
+        }
+
+        final int hash;
+        switch (version) {
+            case Ext2Constants.EXT2_DX_HASH_LEGACY:
+                hash = dxHackHash(name, false);
+                break;
+            case Ext2Constants.EXT2_DX_HASH_LEGACY_UNSIGNED:
+                hash = dxHackHash(name, true);
+                break;
+            case Ext2Constants.EXT2_DX_HASH_HALF_MD4:
+            case Ext2Constants.EXT2_DX_HASH_HALF_MD4_UNSIGNED: {
+                final boolean unsigned = (version == Ext2Constants.EXT2_DX_HASH_HALF_MD4_UNSIGNED);
+                final int[] in = new int[8];
+                for (int p = 0; p < name.length; p += 32) {
+                    toHashBuffer(name, p, name.length - p, in, unsigned);
+                    halfMD4Transform(buf, in);
+                }
+                hash = buf[1];
+                break;
+            }
+            case Ext2Constants.EXT2_DX_HASH_TEA:
+            case Ext2Constants.EXT2_DX_HASH_TEA_UNSIGNED: {
+                final boolean unsigned = (version == Ext2Constants.EXT2_DX_HASH_TEA_UNSIGNED);
+                final int[] in = new int[4];
+                for (int p = 0; p < name.length; p += 16) {
+                    toHashBuffer(name, p, name.length - p, in, unsigned);
+                    teaTransform(buf, in);
+                }
+                hash = buf[0];
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported hash version " + version);
+        }
+
+        final int result = hash & ~1;
+        if (result == (EOF_HASH << 1)) {
+            return (EOF_HASH - 1) << 1;
+        }
+        return result;
+    }
+
+    /**
+     * Compare two hash values as unsigned numbers.
+     *
+     * @return a negative number, zero or a positive number if h1 is less than, equal to or greater than h2.
+     */
+    public static int compare(int h1, int h2) {
+        final long l1 = h1 & 0xFFFFFFFFL;
+        final long l2 = h2 & 0xFFFFFFFFL;
+        return (l1 < l2) ? -1 : ((l1 == l2) ? 0 : 1);
+    }
+
+    private static int dxHackHash(byte[] name, boolean unsigned) {
+        int hash0 = 0x12a3fe2d;
+        int hash1 = 0x37abe8f9;
+        for (byte b : name) {
+            final int c = unsigned ? (b & 0xFF) : b;
+            int hash = hash1 + (hash0 ^ (c * 7152373));
+            if ((hash & 0x80000000) != 0) {
+                hash -= 0x7fffffff;
+            }
+            hash1 = hash0;
+            hash0 = hash;
+        }
+        return hash0 << 1;
+    }
+
+    /**
+     * Pack (a part of) the name into the input words of a transform. Unused
+     * words are filled with a padding derived from the length.
+     */
+    private static void toHashBuffer(byte[] name, int offset, int length, int[] buf, boolean unsigned) {
+        int pad = length | (length << 8);
+        pad |= pad << 16;
+
+        int num = buf.length;
+        int val = pad;
+        int len = Math.min(length, num * 4);
+        int out = 0;
+        for (int i = 0; i < len; i++) {
+            final int c = unsigned ? (name[offset + i] & 0xFF) : name[offset + i];
+            val = c + (val << 8);
+            if ((i % 4) == 3) {
+                buf[out++] = val;
+                val = pad;
+                num--;
+            }
+        }
+        if (--num >= 0) {
+            buf[out++] = val;
+        }
+        while (--num >= 0) {
+            buf[out++] = pad;
+        }
+    }
+
+    private static void teaTransform(int[] buf, int[] in) {
+        int sum = 0;
+        int b0 = buf[0];
+        int b1 = buf[1];
+        final int a = in[0];
+        final int b = in[1];
+        final int c = in[2];
+        final int d = in[3];
+        for (int n = 0; n < 16; n++) {
+            sum += TEA_DELTA;
+            b0 += ((b1 << 4) + a) ^ (b1 + sum) ^ ((b1 >>> 5) + b);
+            b1 += ((b0 << 4) + c) ^ (b0 + sum) ^ ((b0 >>> 5) + d);
+        }
+        buf[0] += b0;
+        buf[1] += b1;
+    }
+
+    private static int f(int x, int y, int z) {
+        return z ^ (x & (y ^ z));
+    }
+
+    private static int g(int x, int y, int z) {
+        return (x & y) + ((x ^ y) & z);
+    }
+
+    private static int h(int x, int y, int z) {
+        return x ^ y ^ z;
+    }
+
+    private static void halfMD4Transform(int[] buf, int[] in) {
+        int a = buf[0];
+        int b = buf[1];
+        int c = buf[2];
+        int d = buf[3];
+
+        // Round 1
+        a = Integer.rotateLeft(a + f(b, c, d) + in[0], 3);
+        d = Integer.rotateLeft(d + f(a, b, c) + in[1], 7);
+        c = Integer.rotateLeft(c + f(d, a, b) + in[2], 11);
+        b = Integer.rotateLeft(b + f(c, d, a) + in[3], 19);
+        a = Integer.rotateLeft(a + f(b, c, d) + in[4], 3);
+        d = Integer.rotateLeft(d + f(a, b, c) + in[5], 7);
+        c = Integer.rotateLeft(c + f(d, a, b) + in[6], 11);
+        b = Integer.rotateLeft(b + f(c, d, a) + in[7], 19);
+
+        // Round 2
+        a = Integer.rotateLeft(a + g(b, c, d) + in[1] + MD4_K2, 3);
+        d = Integer.rotateLeft(d + g(a, b, c) + in[3] + MD4_K2, 5);
+        c = Integer.rotateLeft(c + g(d, a, b) + in[5] + MD4_K2, 9);
+        b = Integer.rotateLeft(b + g(c, d, a) + in[7] + MD4_K2, 13);
+        a = Integer.rotateLeft(a + g(b, c, d) + in[0] + MD4_K2, 3);
+        d = Integer.rotateLeft(d + g(a, b, c) + in[2] + MD4_K2, 5);
+        c = Integer.rotateLeft(c + g(d, a, b) + in[4] + MD4_K2, 9);
+        b = Integer.rotateLeft(b + g(c, d, a) + in[6] + MD4_K2, 13);
+
+        // Round 3
+        a = Integer.rotateLeft(a + h(b, c, d) + in[3] + MD4_K3, 3);
+        d = Integer.rotateLeft(d + h(a, b, c) + in[7] + MD4_K3, 9);
+        c = Integer.rotateLeft(c + h(d, a, b) + in[2] + MD4_K3, 11);
+        b = Integer.rotateLeft(b + h(c, d, a) + in[6] + MD4_K3, 15);
+        a = Integer.rotateLeft(a + h(b, c, d) + in[1] + MD4_K3, 3);
+        d = Integer.rotateLeft(d + h(a, b, c) + in[5] + MD4_K3, 9);
+        c = Integer.rotateLeft(c + h(d, a, b) + in[0] + MD4_K3, 11);
+        b = Integer.rotateLeft(b + h(c, d, a) + in[4] + MD4_K3, 15);
+
+        buf[0] += a;
+        buf[1] += b;
+        buf[2] += c;
+        buf[3] += d;
+    }
+}
@@ -77,10 +77,22 @@ public class Ext2Constants {
     public static final int EXT2_PREALLOC_BLOCK = 7;
 
     // behaviour control flags in the inode
-    public static final long EXT2_INDEX_FL = 0x00010000; // hash indexed directory
+    public static final long EXT2_INDEX_FL = 0x00001000; // hash indexed directory
     public static final long EXT4_HUGE_FILE_FL = 0x00040000;
     public static final long EXT4_INODE_EXTENTS_FLAG = 0x00080000;
 
+    // Filesystem flags (s_flags)
+    public static final long EXT2_FLAGS_SIGNED_HASH = 0x0001;
+    public static final long EXT2_FLAGS_UNSIGNED_HASH = 0x0002;
+
+    // Directory index hash versions
+    public static final int EXT2_DX_HASH_LEGACY = 0;
+    public static final int EXT2_DX_HASH_HALF_MD4 = 1;
+    public static final int EXT2_DX_HASH_TEA = 2;
+    public static final int EXT2_DX_HASH_LEGACY_UNSIGNED = 3;
+    public static final int EXT2_DX_HASH_HALF_MD4_UNSIGNED = 4;
+    public static final int EXT2_DX_HASH_TEA_UNSIGNED = 5;
+
     // Filesystem state constants
     public static final int EXT2_VALID_FS = 0x0001; // cleanly unmounted
     public static final int EXT2_ERROR_FS = 0x0002;
@@ -99,6 +111,7 @@ public class Ext2Constants {
     public static final long EXT4_FEATURE_RO_COMPAT_GDT_CSUM = 0x0010;
     public static final long EXT4_FEATURE_RO_COMPAT_DIR_NLINK = 0x0020;
     public static final long EXT4_FEATURE_RO_COMPAT_EXTRA_ISIZE = 0x0040;
+    public static final long EXT4_FEATURE_RO_COMPAT_METADATA_CSUM = 0x0400;
 
     // S_FEATURE_INCOMPAT constants
     public static final long EXT2_FEATURE_INCOMPAT_COMPRESSION = 0x0001;
@@ -23,7 +23,9 @@ package org.jnode.fs.ext2;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import org.apache.log4j.Logger;
 import org.jnode.fs.FSDirectoryId;
@@ -44,6 +46,12 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
 
     protected Ext2Entry entry;
 
+    /**
+     * The entries that have been looked up through the index, or created, while
+     * the entries of this directory are not loaded
+     */
+    private final Map<String, FSEntry> foundEntries = new HashMap<String, FSEntry>();
+
     private final Logger log = Logger.getLogger(getClass());
 
     /**
@@ -55,20 +63,16 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
         Ext2FileSystem fs = (Ext2FileSystem) entry.getFileSystem();
         this.entry = entry;
         boolean readOnly;
-        if ((iNode.getFlags() & Ext2Constants.EXT2_INDEX_FL) != 0 ||
-            (iNode.getFlags() & Ext2Constants.EXT4_HUGE_FILE_FL) != 0 ||
-            (iNode.getFlags() & Ext2Constants.EXT4_INODE_EXTENTS_FLAG) != 0) {
+        if ((iNode.getFlags() & Ext2Constants.EXT4_HUGE_FILE_FL) != 0) {
             readOnly = true; //force readonly
-
-            if ((iNode.getFlags() & Ext2Constants.EXT4_INODE_EXTENTS_FLAG) != 0)
-                log.debug("inode uses extents: " + entry);
-            if ((iNode.getFlags() & Ext2Constants.EXT4_HUGE_FILE_FL) != 0)
-                log.info("inode is for a huge-file: " + entry);
-            if ((iNode.getFlags() & Ext2Constants.EXT2_INDEX_FL) != 0)
-                log.info("inode uses index: " + entry);
+            log.info("inode is for a huge-file: " + entry);
         } else {
             readOnly = fs.isReadOnly();
         }
+        if ((iNode.getFlags() & Ext2Constants.EXT4_INODE_EXTENTS_FLAG) != 0)
+            log.debug("inode uses extents: " + entry);
+        if (HTree.isIndexed(iNode))
+            log.debug("inode uses index: " + entry);
         setRights(true, !readOnly);
 
         log.debug("directory size: " + iNode.getSize());
@@ -133,6 +137,7 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
             throw ioe;
         }
 
+        entryCreated(newEntry);
         return newEntry;
     }
 
@@ -169,7 +174,10 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
             ioe.initCause(ex);
             throw ioe;
         }
-        return new Ext2Entry(newINode, dr.getFileOffset(), name, Ext2Constants.EXT2_FT_REG_FILE, fs, this);
+        final Ext2Entry newEntry = new Ext2Entry(newINode, dr.getFileOffset(), name, Ext2Constants.EXT2_FT_REG_FILE,
+            fs, this);
+        entryCreated(newEntry);
+        return newEntry;
     }
 
     /**
@@ -229,6 +237,19 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
         //so synchronize to the inode.
         synchronized (iNode) {
             try {
+                if (HTree.isIndexed(iNode)) {
+                    //add the record to the leaf block that its hash maps to
+                    iNode.getDataLock().writeLock().lock();
+                    try {
+                        new HTree((Ext2FileSystem) getFileSystem(), iNode).insert(dr);
+                    } finally {
+                        iNode.getDataLock().writeLock().unlock();
+                    }
+                    iNode.setMtime(System.currentTimeMillis() / 1000);
+                    iNode.update();
+                    return;
+                }
+
                 Ext2File dir = new Ext2File(entry); //read itself as a file
 
                 //find the last directory record (if any)
@@ -314,6 +335,74 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
         }
     }
 
+    /**
+     * Look up a single name in the hash tree index of an indexed directory,
+     * other directories are read completely.
+     *
+     * @param name the name of the entry.
+     * @return the entry or {@code null}
+     * @throws IOException
+     */
+    @Override
+    protected FSEntry findEntry(String name) throws IOException {
+        if (!HTree.isIndexed(iNode) || !canRead()) {
+            return super.findEntry(name);
+        }
+
+        Ext2FileSystem fs = (Ext2FileSystem) getFileSystem();
+        Ext2DirectoryRecord dr;
+        iNode.getDataLock().readLock().lock();
+        try {
+            dr = new HTree(fs, iNode).lookup(name);
+        } catch (FileSystemException ex) {
+            log.warn("Cannot use the index of " + entry + ", reading the whole directory: " + ex.getMessage());
+            return super.findEntry(name);
+        } finally {
+            iNode.getDataLock().readLock().unlock();
+        }
+        if (dr == null) {
+            return null;
+        }
+
+        synchronized (foundEntries) {
+            FSEntry found = foundEntries.get(dr.getName());
+            if (found == null) {
+                try {
+                    found = new Ext2Entry(fs.getINode(dr.getINodeNr()), dr.getFileOffset(), dr.getName(),
+                        dr.getType(), fs, this);
+                } catch (FileSystemException ex) {
+                    final IOException ioe = new IOException();
+                    ioe.initCause(ex);
+                    throw ioe;
+                }
+                foundEntries.put(found.getName(), found);
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Remember a new entry until the entries of this directory are loaded, so
+     * that looking it up returns the same instance.
+     *
+     * @param newEntry the entry that has been created.
+     */
+    private void entryCreated(FSEntry newEntry) {
+        if (HTree.isIndexed(iNode) && (getEntryTable() == FSEntryTable.EMPTY_TABLE)) {
+            synchronized (foundEntries) {
+                foundEntries.put(newEntry.getName(), newEntry);
+            }
+        }
+    }
+
+    /**
+     * The create methods add the new record to the directory on the device.
+     */
+    @Override
+    protected boolean isEntryWrittenOnCreate() {
+        return true;
+    }
+
     /**
      * Return the number of the block that contains the given byte
      */
@@ -448,10 +537,18 @@ public class Ext2Directory extends AbstractFSDirectory implements FSDirectoryId
         Ext2FSEntryIterator it = new Ext2FSEntryIterator(entry);
         ArrayList<FSEntry> entries = new ArrayList<FSEntry>();
 
-        while (it.hasNext()) {
-            final FSEntry entry = it.next();
-            log.debug("readEntries: entry=" + FSUtils.toString(entry, false));
-            entries.add(entry);
+        synchronized (foundEntries) {
+            while (it.hasNext()) {
+                FSEntry entry = it.next();
+                log.debug("readEntries: entry=" + FSUtils.toString(entry, false));
+                // keep the instances that have been handed out already
+                final FSEntry found = foundEntries.get(entry.getName());
+                if (found != null) {
+                    entry = found;
+                }
+                entries.add(entry);
+            }
+            foundEntries.clear();
         }
 
         FSEntryTable table = new FSEntryTable((AbstractFileSystem<?>) getFileSystem(), entries);
@@ -22,6 +22,7 @@ package org.jnode.fs.ext2;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
 import org.apache.log4j.Logger;
 import org.jnode.fs.FSFileSlackSpace;
 import org.jnode.fs.FileSystemException;
@@ -59,48 +60,39 @@ public class Ext2File extends AbstractFSFile implements FSFileSlackSpace {
     public void setLength(long length) throws IOException {
         if (!canWrite()) throw new ReadOnlyFileSystemException("FileSystem or File is readonly");
 
-        long blockSize = iNode.getExt2FileSystem().getBlockSize();
+        long blockSize = ((Ext2FileSystem) getFileSystem()).getBlockSize();
 
-        // synchronize to the inode cache to make sure that the inode does not
-        // get
-        // flushed between reading it and locking it
-        synchronized (((Ext2FileSystem) getFileSystem()).getInodeCache()) {
-            // reread the inode before synchronizing to it to make sure
-            // all threads use the same instance
-            rereadInode();
-
-            // lock the inode into the cache so it is not flushed before
-            // synchronizing to it
-            // (otherwise a new instance of INode referring to the same inode
-            // could be put
-            // in the cache resulting in the possibility of two threads
-            // manipulating the same
-            // inode at the same time because they would synchronize to
-            // different INode instances)
-            iNode.incLocked();
-        }
+        // lock the inode into the cache, and keep using that instance, so
+        // that the lock taken below is the one released at the end
+        final INode inode = lockINode();
         // a single inode may be represented by more than one Ext2Directory
         // instances,
         // but each will use the same instance of the underlying inode (see
         // Ext2FileSystem.getINode()),
         // so synchronize to the inode
-        synchronized (iNode) {
+        final Lock lock = inode.getDataLock().writeLock();
+        lock.lock();
+        synchronized (inode) {
             try {
+                // the blocks are freed and allocated directly, so first
+                // allocate the blocks that have been written so far
+                inode.allocateDelayedBlocks();
+
                 // if length<getLength(), then the file is truncated
-                if (length < getLength()) {
+                if (length < inode.getSize()) {
                     long blockNr = length / blockSize;
                     long blockOffset = length % blockSize;
                     long nextBlock;
                     if (blockOffset == 0) nextBlock = blockNr;
                     else nextBlock = blockNr + 1;
 
-                    for (long i = iNode.getAllocatedBlockCount() - 1; i >= nextBlock; i--) {
+                    for (long i = inode.getAllocatedBlockCount() - 1; i >= nextBlock; i--) {
                         log.debug("setLength(): freeing up block " + i + " of inode");
-                        iNode.freeDataBlock(i);
+                        inode.freeDataBlock(i);
                     }
-                    iNode.setSize(length);
+                    inode.setSize(length);
 
-                    iNode.setMtime(System.currentTimeMillis() / 1000);
+                    inode.setMtime(System.currentTimeMillis() / 1000);
 
                     return;
                 }
@@ -110,10 +102,10 @@ public class Ext2File extends AbstractFSFile implements FSFileSlackSpace {
                 // The content of the new blocks is undefined (see the
                 // setLength(long i)
                 // method of java.io.RandomAccessFile
-                if (length > getLength()) {
-                    long len = length - getLength();
-                    long blocksAllocated = getLengthInBlocks();
-                    long bytesAllocated = getLength();
+                if (length > inode.getSize()) {
+                    long len = length - inode.getSize();
+                    long blocksAllocated = inode.getSizeInBlocks();
+                    long bytesAllocated = inode.getSize();
                     long bytesCovered = 0;
                     while (bytesCovered < len) {
                         long blockIndex = (bytesAllocated + bytesCovered) / blockSize;
@@ -122,15 +114,15 @@ public class Ext2File extends AbstractFSFile implements FSFileSlackSpace {
 
                         // allocate a new block if needed
                         if (blockIndex >= blocksAllocated) {
-                            iNode.allocateDataBlock(blockIndex);
+                            inode.allocateDataBlock(blockIndex);
                             blocksAllocated++;
                         }
 
                         bytesCovered += newSection;
                     }
-                    iNode.setSize(length);
+                    inode.setSize(length);
 
-                    iNode.setMtime(System.currentTimeMillis() / 1000);
+                    inode.setMtime(System.currentTimeMillis() / 1000);
 
                     return;
                 }
@@ -139,8 +131,9 @@ public class Ext2File extends AbstractFSFile implements FSFileSlackSpace {
                 ioe.initCause(ex);
                 throw ioe;
             } finally {
+                lock.unlock();
                 // setLength done, unlock the inode from the cache
-                iNode.decLocked();
+                inode.decLocked();
             }
         } // synchronized(inode)
     }
@@ -154,79 +147,84 @@ public class Ext2File extends AbstractFSFile implements FSFileSlackSpace {
 
     /**
      * A read implementation that doesn't check the file length.
+     * <p/>
+     * Readers of the same inode run in parallel, they only exclude writers.
+     * The data is read straight into the destination buffer. The blocks are
+     * mapped to runs of physically contiguous blocks, and each run is read
+     * with a single device request.
      *
      * @param fileOffset the offset to read from.
      * @param destBuf    the destination buffer.
      * @throws IOException if an error occurs reading.
      */
     public void readImpl(long fileOffset, ByteBuffer destBuf) throws IOException {
-        final int len = destBuf.remaining();
-        final int off = 0;
-        // TODO optimize it also to use ByteBuffer at lower level
-        final ByteBufferUtils.ByteArray destBA = ByteBufferUtils.toByteArray(destBuf);
-        final byte[] dest = destBA.toArray();
-
-        // synchronize to the inode cache to make sure that the inode does not
-        // get flushed between reading it and locking it
-        synchronized (((Ext2FileSystem) getFileSystem()).getInodeCache()) {
-            // reread the inode before synchronizing to it to make sure
-            // all threads use the same instance
-            rereadInode();
-
-            // lock the inode into the cache so it is not flushed before
-            // synchronizing to it
-            // (otherwise a new instance of INode referring to the same inode
-            // could be put
-            // in the cache resulting in the possibility of two threads
-            // manipulating the same
-            // inode at the same time because they would synchronize to
-            // different INode instances)
-            iNode.incLocked();
-        }
+        final INode inode = lockINode();
 
         if (log.isDebugEnabled()) {
             log.debug("File:" + name + " size:" + getLength() + " read offset: " + fileOffset + " len: "
-                + dest.length);
+                + destBuf.remaining());
         }
 
-        // a single inode may be represented by more than one Ext2Directory
-        // instances,
-        // but each will use the same instance of the underlying inode (see
-        // Ext2FileSystem.getINode()),
-        // so synchronize to the inode
-        synchronized (iNode) {
-            try {
-                if ((iNode.getMode() & Ext2Constants.EXT2_S_IFLNK) == Ext2Constants.EXT2_S_IFLNK) {
-                    // Sym-links are a special case: the data seems to be stored inline in the iNode
-                    System.arraycopy(iNode.getINodeBlockData(), 0, dest, 0, Math.min(64, dest.length));
-                } else {
-                    long blockSize = iNode.getExt2FileSystem().getBlockSize();
-                    long bytesRead = 0;
-                    while (bytesRead < len) {
-                        long blockNr = (fileOffset + bytesRead) / blockSize;
-                        long blockOffset = (fileOffset + bytesRead) % blockSize;
-                        long copyLength = Math.min(len - bytesRead, blockSize - blockOffset);
-
-                        log.debug("blockNr: " + blockNr + ", blockOffset: " + blockOffset + ", copyLength: "
-                            + copyLength + ", bytesRead: " + bytesRead);
-
-                        System.arraycopy(iNode.getDataBlock(blockNr), (int) blockOffset, dest, off + (int) bytesRead,
-                            (int) copyLength);
-
-                        bytesRead += copyLength;
+        final Lock lock = inode.getDataLock().readLock();
+        lock.lock();
+        try {
+            if ((inode.getMode() & Ext2Constants.EXT2_S_IFLNK) == Ext2Constants.EXT2_S_IFLNK) {
+                // Sym-links are a special case: the data seems to be stored inline in the iNode
+                destBuf.put(inode.getINodeBlockData(), 0, Math.min(64, destBuf.remaining()));
+            } else {
+                final Ext2FileSystem fs = inode.getExt2FileSystem();
+                final int blockSize = fs.getBlockSize();
+                final long blocksAllocated = inode.getAllocatedBlockCount();
+                while (destBuf.hasRemaining()) {
+                    final long blockIndex = fileOffset / blockSize;
+                    final int blockOffset = (int) (fileOffset % blockSize);
+                    final int remaining = destBuf.remaining();
+
+                    if (blockIndex >= blocksAllocated && inode.getDelayedBlockCount() > 0) {
+                        // The block has been written, but not allocated yet
+                        final int length = Math.min(remaining, blockSize - blockOffset);
+                        destBuf.put(inode.getDataBlock(blockIndex), blockOffset, length);
+                        fileOffset += length;
+                        continue;
+                    }
+
+                    final long blocksNeeded = Math.min((blockOffset + (long) remaining + blockSize - 1) / blockSize,
+                        Math.max(1, blocksAllocated - blockIndex));
+                    final BlockRun run = inode.mapDataBlocks(blockIndex, blocksNeeded);
+                    final int runLength = (int) Math.min(remaining, run.getCount() * blockSize - blockOffset);
+
+                    if (log.isDebugEnabled()) {
+                        log.debug(run + ", blockOffset: " + blockOffset + ", runLength: " + runLength);
                     }
+
+                    final int limit = destBuf.limit();
+                    destBuf.limit(destBuf.position() + runLength);
+                    try {
+                        if (run.isHole()) {
+                            // A hole in a sparse file
+                            while (destBuf.hasRemaining()) {
+                                destBuf.put((byte) 0);
+                            }
+                        } else {
+                            fs.readBlocks(run.getBlockNr(), blockOffset, destBuf);
+                        }
+                    } finally {
+                        destBuf.limit(limit);
+                    }
+                    fileOffset += runLength;
                 }
-            } catch (Throwable ex) {
-                final IOException ioe = new IOException();
-                ioe.initCause(ex);
-                throw ioe;
-            } finally {
-                // read done, unlock the inode from the cache
-                iNode.decLocked();
             }
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            final IOException ioe = new IOException();
+            ioe.initCause(ex);
+            throw ioe;
+        } finally {
+            lock.unlock();
+            // read done, unlock the inode from the cache
+            inode.decLocked();
         }
-
-        destBA.refreshByteBuffer();
     }
 
     @Override
@@ -240,76 +238,71 @@ public class Ext2File extends AbstractFSFile implements FSFileSlackSpace {
             throw new ReadOnlyFileSystemException("write in readonly filesystem");
         }
 
-        // synchronize to the inode cache to make sure that the inode does not
-        // get
-        // flushed between reading it and locking it
-        synchronized (((Ext2FileSystem) getFileSystem()).getInodeCache()) {
-            // reread the inode before synchronizing to it to make sure
-            // all threads use the same instance
-            rereadInode();
-
-            // lock the inode into the cache so it is not flushed before
-            // synchronizing to it
-            // (otherwise a new instance of INode referring to the same inode
-            // could be put
-            // in the cache resulting in the possibility of two threads
-            // manipulating the same
-            // inode at the same time because they would synchronize to
-            // different INode instances)
-            iNode.incLocked();
-        }
+        // lock the inode into the cache, and keep using that instance, so
+        // that the lock taken below is the one released at the end
+        final INode inode = lockINode();
         try {
             // a single inode may be represented by more than one Ext2File
             // instances,
             // but each will use the same instance of the underlying inode (see
             // Ext2FileSystem.getINode()),
             // so synchronize to the inode
-            synchronized (iNode) {
-                if (fileOffset > getLength()) throw new IOException(
+            inode.getDataLock().writeLock().lock();
+            synchronized (inode) {
+                if (fileOffset > inode.getSize()) throw new IOException(
                     "Can't write beyond the end of the file! (fileOffset: " + fileOffset + ", getLength()"
-                        + getLength());
+                        + inode.getSize());
                 if (off + len > src.length) throw new IOException("src is shorter than what you want to write");
 
                 log.debug("write(fileOffset=" + fileOffset + ", src, off, len=" + len + ")");
 
-                final long blockSize = iNode.getExt2FileSystem().getBlockSize();
-                long blocksAllocated = iNode.getAllocatedBlockCount();
+                final long blockSize = inode.getExt2FileSystem().getBlockSize();
+                long blocksAllocated = inode.getAllocatedBlockCount() + inode.getDelayedBlockCount();
                 long bytesWritten = 0;
-                while (bytesWritten < len) {
-                    long blockIndex = (fileOffset + bytesWritten) / blockSize;
-                    long blockOffset = (fileOffset + bytesWritten) % blockSize;
-                    long copyLength = Math.min(len - bytesWritten, blockSize - blockOffset);
-
-                    // If only a part of the block is written, then read the
-                    // block and update its contents with the data in src. If the
-                    // whole block is overwritten, then skip reading it.
-                    byte[] dest;
-                    if (!((blockOffset == 0) && (copyLength == blockSize)) && (blockIndex < blocksAllocated))
-                        dest = iNode.getDataBlock(blockIndex);
-                    else dest = new byte[(int) blockSize];
-
-                    System.arraycopy(src, (int) (off + bytesWritten), dest, (int) blockOffset, (int) copyLength);
-
-                    // allocate a new block if needed
-                    if (blockIndex >= blocksAllocated) {
-                        try {
-                            iNode.allocateDataBlock(blockIndex);
-                        } catch (FileSystemException ex) {
-                            final IOException ioe = new IOException("Internal filesystem exception");
-                            ioe.initCause(ex);
-                            throw ioe;
+                boolean written = false;
+                try {
+                    while (bytesWritten < len) {
+                        long blockIndex = (fileOffset + bytesWritten) / blockSize;
+                        long blockOffset = (fileOffset + bytesWritten) % blockSize;
+                        long copyLength = Math.min(len - bytesWritten, blockSize - blockOffset);
+
+                        // If only a part of the block is written, then read the
+                        // block and update its contents with the data in src. If the
+                        // whole block is overwritten, then skip reading it.
+                        byte[] dest;
+                        if (!((blockOffset == 0) && (copyLength == blockSize)) && (blockIndex < blocksAllocated))
+                            dest = inode.getDataBlock(blockIndex);
+                        else dest = new byte[(int) blockSize];
+
+                        System.arraycopy(src, (int) (off + bytesWritten), dest, (int) blockOffset, (int) copyLength);
+
+                        // add a new block if needed: its allocation is delayed, so
+                        // that appended blocks are allocated together in a run
+                        if (blockIndex >= blocksAllocated) {
+                            inode.delayDataBlock(blockIndex);
+                            blocksAllocated++;
                         }
-                        blocksAllocated++;
-                    }
 
-                    // write the block
-                    iNode.writeDataBlock(blockIndex, dest);
+                        // write the block
+                        inode.writeDataBlock(blockIndex, dest);
 
-                    bytesWritten += copyLength;
+                        bytesWritten += copyLength;
+                    }
+                    written = true;
+                } finally {
+                    if (!written) {
+                        // a failed write leaves no blocks past the end of the file
+                        final long sizeInBlocks = (inode.getSize() + blockSize - 1) / blockSize;
+                        inode.dropDelayedBlocks(sizeInBlocks);
+                        for (long i = inode.getAllocatedBlockCount() - 1; i >= sizeInBlocks; i--) {
+                            inode.freeDataBlock(i);
+                        }
+                    }
                 }
-                iNode.setSize(fileOffset + len);
 
-                iNode.setMtime(System.currentTimeMillis() / 1000);
+                inode.setSize(Math.max(inode.getSize(), fileOffset + len));
+
+                inode.setMtime(System.currentTimeMillis() / 1000);
             }
         } catch (IOException ex) {
             // ... this avoids wrapping an IOException inside another one.
@@ -319,22 +312,54 @@ public class Ext2File extends AbstractFSFile implements FSFileSlackSpace {
             ioe.initCause(ex);
             throw ioe;
         } finally {
+            inode.getDataLock().writeLock().unlock();
             // write done, unlock the inode from the cache
-            iNode.decLocked();
+            inode.decLocked();
         }
     }
 
     @Override
     public void flush() throws IOException {
         log.debug("Ext2File.flush()");
-        iNode.update();
+        // allocate the delayed blocks of the instance the writers use, not
+        // of a stale instance that has been flushed from the inode cache
+        final INode inode = lockINode();
+        final Lock lock = inode.getDataLock().writeLock();
+        lock.lock();
+        try {
+            synchronized (inode) {
+                inode.allocateDelayedBlocks();
+                inode.update();
+            }
+        } catch (FileSystemException ex) {
+            final IOException ioe = new IOException("Internal filesystem exception");
+            ioe.initCause(ex);
+            throw ioe;
+        } finally {
+            lock.unlock();
+            // flush done, unlock the inode from the cache
+            inode.decLocked();
+        }
         // update the group descriptors and superblock: needed if blocks have
         // been allocated or deallocated
-        iNode.getExt2FileSystem().updateFS();
+        inode.getExt2FileSystem().updateFS();
     }
 
-    private long getLengthInBlocks() {
-        return iNode.getSizeInBlocks();
+    /**
+     * Reread the inode and lock it into the inode cache.
+     *
+     * @return the inode, to be unlocked with {@link INode#decLocked()}
+     */
+    private INode lockINode() throws IOException {
+        // synchronize to the inode cache to make sure that the inode does not
+        // get flushed between reading it and locking it
+        synchronized (((Ext2FileSystem) getFileSystem()).getInodeCache()) {
+            // reread the inode before locking it to make sure
+            // all threads use the same instance
+            rereadInode();
+            iNode.incLocked();
+            return iNode;
+        }
     }
 
     private void rereadInode() throws IOException {
@@ -29,6 +29,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import org.apache.log4j.Logger;
 import org.jnode.driver.Device;
+import org.jnode.driver.block.DiscardBlockDeviceAPI;
 import org.jnode.fs.FSDirectory;
 import org.jnode.fs.FSEntry;
 import org.jnode.fs.FSFile;
@@ -197,6 +198,10 @@ public class Ext2FileSystem extends AbstractFileSystem<Ext2Entry> {
             log.info(getDevice().getId() + " Unsupported filesystem feature (EXTRA_ISIZE) forces readonly mode");
             setReadOnly(true);
         }
+        if (hasROFeature(Ext2Constants.EXT4_FEATURE_RO_COMPAT_METADATA_CSUM)) {
+            log.info(getDevice().getId() + " Unsupported filesystem feature (METADATA_CSUM) forces readonly mode");
+            setReadOnly(true);
+        }
 
         // if the filesystem has not been cleanly unmounted, mount it readonly
         if (superblock.getState() == Ext2Constants.EXT2_ERROR_FS) {
@@ -437,6 +442,52 @@ public class Ext2FileSystem extends AbstractFileSystem<Ext2Entry> {
         }
     }
 
+    /**
+     * Read data from consecutive blocks directly into the given buffer, until the
+     * buffer is full. Blocks that are in the block cache are copied from the cache,
+     * since they may be dirty. Each run of other blocks is read with a single
+     * device request.
+     *
+     * @param nr     the first block number
+     * @param offset the offset within the first block
+     * @param dest   the destination buffer
+     * @throws IOException
+     */
+    public void readBlocks(long nr, int offset, ByteBuffer dest) throws IOException {
+        if (isClosed()) throw new IOException("FS closed (fs instance: " + this + ")");
+
+        final int blockSize = superblock.getBlockSize();
+        while (dest.hasRemaining()) {
+            final int firstLength = Math.min(blockSize - offset, dest.remaining());
+            Block cached;
+            int runLength = firstLength;
+            long next = nr + 1;
+            synchronized (blockCache) {
+                cached = blockCache.get(Integer.valueOf((int) nr));
+                if (cached == null) {
+                    while ((runLength < dest.remaining()) && !blockCache.containsKey(Integer.valueOf((int) next))) {
+                        runLength += Math.min(blockSize, dest.remaining() - runLength);
+                        next++;
+                    }
+                }
+            }
+            if (cached != null) {
+                dest.put(cached.getData(), offset, firstLength);
+                nr++;
+            } else {
+                final int limit = dest.limit();
+                dest.limit(dest.position() + runLength);
+                try {
+                    getApi().read(nr * blockSize + offset, dest);
+                } finally {
+                    dest.limit(limit);
+                }
+                nr = next;
+            }
+            offset = 0;
+        }
+    }
+
     /**
      * Update the block in cache, or write the block to disk
      *
@@ -755,6 +806,17 @@ public class Ext2FileSystem extends AbstractFileSystem<Ext2Entry> {
         if (blockNr < firstNonMetadataBlock) throw new FileSystemException(
             "Attempt to free a filesystem metadata block!");
 
+        // let the device release the storage behind the block, e.g. a sparse ramdisk;
+        // done while the block is still allocated, so it cannot discard the data of a new owner.
+        // The cached copy is dropped first, a later flush would write it back otherwise.
+        if (getApi() instanceof DiscardBlockDeviceAPI) {
+            synchronized (blockCache) {
+                blockCache.remove(Integer.valueOf((int) blockNr));
+            }
+            final long blockSize = superblock.getBlockSize();
+            ((DiscardBlockDeviceAPI) getApi()).discard(blockNr * blockSize, blockSize);
+        }
+
         // synchronize to the blockCache to avoid flushing the block between
         // reading it
         // and synchronizing to it
@@ -835,6 +897,62 @@ public class Ext2FileSystem extends AbstractFileSystem<Ext2Entry> {
         return result;
     }
 
+    /**
+     * Allocate a run of contiguous free blocks, as close to the goal block as
+     * possible. The group of the goal is searched first, then the groups
+     * following it. Within a group the first run of <code>count</code> free
+     * blocks is taken, or the longest shorter run if there is none.
+     *
+     * @param goal  the block to allocate at or after.
+     * @param count the wanted number of blocks.
+     * @return the reservation: the first block of the run, with the rest of
+     *         the run preallocated.
+     * @throws IOException
+     */
+    public BlockReservation allocateBlocks(long goal, int count) throws IOException {
+        if (goal < superblock.getFirstDataBlock() || goal >= superblock.getBlocksCount()) {
+            goal = superblock.getFirstDataBlock();
+        }
+        int goalGroup = translateToGroup(goal);
+
+        for (int i = 0; i < groupCount; i++) {
+            int group = (goalGroup + i) % groupCount;
+            GroupDescriptor gdesc = groupDescriptors[group];
+            if (gdesc.getFreeBlocksCount() == 0) {
+                continue;
+            }
+
+            long groupStart = superblock.getFirstDataBlock() + (long) group * superblock.getBlocksPerGroup();
+            int metadataLength = (int) (gdesc.getInodeTable() + INodeTable.getSizeInBlocks(this) - groupStart);
+            int blocksInGroup = (int) Math.min(superblock.getBlocksPerGroup(),
+                superblock.getBlocksCount() - groupStart);
+            int goalIndex = (group == goalGroup) ? translateToIndex(goal) : metadataLength;
+
+            BlockReservation result;
+
+            // synchronize to the blockCache to avoid flushing the block between
+            // reading it and synchronizing to it
+            synchronized (blockCache) {
+                byte[] bitmapBlock = getBlock(gdesc.getBlockBitmap());
+                synchronized (bitmapBlock) {
+                    result = BlockBitmap.findFreeRun(bitmapBlock, metadataLength, blocksInGroup, goalIndex, count);
+                    if (result.isSuccessful()) {
+                        writeBlock(gdesc.getBlockBitmap(), bitmapBlock, false);
+                        modifyFreeBlocksCount(group, -1 - result.getPreallocCount());
+                    }
+                }
+            }
+
+            if (result.isSuccessful()) {
+                result.setBlock(groupStart + result.getBlock());
+                result.setFreeBlocksCount(gdesc.getFreeBlocksCount());
+                return result;
+            }
+        }
+
+        return new BlockReservation(false, -1, -1);
+    }
+
     /**
      * Returns the number of groups.
      *
@@ -0,0 +1,637 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.fs.ext2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.jnode.fs.FileSystemException;
+import org.jnode.util.LittleEndian;
+
+/**
+ * The hash tree index of a directory that has the {@link Ext2Constants#EXT2_INDEX_FL} flag.
+ * <p/>
+ * The first block of the directory (dx_root) holds the "." and ".." records,
+ * followed by the root of the index. The index maps hash values to blocks,
+ * which are either index nodes (dx_node) or leaf blocks that hold ordinary
+ * directory records. All records in a leaf have a hash value between the hash
+ * of its index entry and the hash of the next index entry.
+ */
+final class HTree {
+
+    /**
+     * The maximum number of index levels below the root
+     */
+    private static final int MAX_INDIRECT_LEVELS = 2;
+
+    /**
+     * The number of index levels below the root this implementation creates
+     */
+    private static final int MAX_WRITE_INDIRECT_LEVELS = 1;
+
+    /**
+     * The offset of dx_root_info in the root block
+     */
+    private static final int ROOT_INFO_OFFSET = 24;
+
+    /**
+     * The offset of the index entries in an index node
+     */
+    private static final int NODE_ENTRIES_OFFSET = 8;
+
+    /**
+     * The size of an index entry
+     */
+    private static final int ENTRY_LENGTH = 8;
+
+    /**
+     * The size of a directory record without the name
+     */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /**
+     * The continuation bit in the hash of an index entry: the hash of the
+     * first record in the block equals the hash of the last record in the
+     * previous block.
+     */
+    private static final int HASH_CONTINUED = 1;
+
+    private final Logger log = Logger.getLogger(getClass());
+
+    private final Ext2FileSystem fs;
+
+    private final INode iNode;
+
+    private final int blockSize;
+
+    /**
+     * Create a new instance
+     *
+     * @param fs    the file system
+     * @param iNode the inode of the directory
+     */
+    HTree(Ext2FileSystem fs, INode iNode) {
+        this.fs = fs;
+        this.iNode = iNode;
+        this.blockSize = fs.getBlockSize();
+    }
+
+    /**
+     * Is the given inode an indexed directory?
+     *
+     * @param iNode the inode.
+     * @return {@code true} if the directory has an index.
+     */
+    static boolean isIndexed(INode iNode) {
+        return (iNode.getFlags() & Ext2Constants.EXT2_INDEX_FL) != 0;
+    }
+
+    /**
+     * Look up a record by its name.
+     *
+     * @param name the name.
+     * @return the record, or {@code null} if the directory has no record with this name.
+     * @throws IOException
+     * @throws FileSystemException if the index is corrupt or not supported.
+     */
+    Ext2DirectoryRecord lookup(String name) throws IOException, FileSystemException {
+        final byte[] nameData = name.getBytes(Ext2FileSystem.ENTRY_NAME_CHARSET);
+        if (isDotOrDotDot(nameData)) {
+            return findRecord(0, readBlock(0), nameData);
+        }
+
+        final int hash = hash(readBlock(0), nameData);
+        final Frame[] path = probe(hash);
+        do {
+            final long leafIndex = path[path.length - 1].getBlock();
+            final Ext2DirectoryRecord dr = findRecord(leafIndex, readBlock(leafIndex), nameData);
+            if (dr != null) {
+                return dr;
+            }
+        } while (nextLeaf(path, hash));
+        return null;
+    }
+
+    /**
+     * Add a record to the directory. The leaf block that the hash of the name
+     * maps to is split when it is full, and the index grows when it is needed.
+     *
+     * @param dr the new record, its file offset is set to where it is stored.
+     * @throws IOException
+     * @throws FileSystemException if the index is corrupt, not supported or full.
+     */
+    void insert(Ext2DirectoryRecord dr) throws IOException, FileSystemException {
+        final byte[] record = Arrays.copyOfRange(dr.getData(), dr.getOffset(),
+            dr.getOffset() + RECORD_HEADER_LENGTH + dr.getNameLen());
+        final byte[] nameData = Arrays.copyOfRange(record, RECORD_HEADER_LENGTH, record.length);
+        final byte[] rootData = readBlock(0);
+        final int hash = hash(rootData, nameData);
+        Frame[] path = probe(hash);
+
+        final long leafIndex = path[path.length - 1].getBlock();
+        final byte[] leaf = readBlock(leafIndex).clone();
+        int offset = addRecord(leaf, record);
+        if (offset >= 0) {
+            writeBlock(leafIndex, leaf);
+            dr.setFileOffset(leafIndex * blockSize + offset);
+            return;
+        }
+
+        // The leaf is full: collect its records, sorted by hash, together with the new one
+        final List<Record> records = readRecords(rootData, leaf);
+        final Record newRecord = new Record(record, hash);
+        records.add(newRecord);
+        int total = 0;
+        for (Record r : records) {
+            total += r.getLength();
+        }
+        if (total <= blockSize) {
+            // Deleted records left enough room
+            offset = writeRecords(leaf, records, newRecord);
+            writeBlock(leafIndex, leaf);
+            dr.setFileOffset(leafIndex * blockSize + offset);
+            return;
+        }
+
+        path = makeRoom(path);
+        Collections.sort(records, new Comparator<Record>() {
+            public int compare(Record r1, Record r2) {
+                return DirectoryHash.compare(r1.getHash(), r2.getHash());
+            }
+        });
+
+        // Move the upper half (by size) to a new block
+        int split = 0;
+        for (int size = 0; size <= total / 2; split++) {
+            size += records.get(split).getLength();
+        }
+        split = Math.max(1, Math.min(split, records.size() - 1));
+        final List<Record> lower = records.subList(0, split);
+        final List<Record> upper = records.subList(split, records.size());
+        int splitHash = upper.get(0).getHash();
+        if (lower.get(lower.size() - 1).getHash() == splitHash) {
+            splitHash |= HASH_CONTINUED;
+        }
+
+        final long newIndex = appendBlock();
+        final byte[] newLeaf = new byte[blockSize];
+        final int lowerOffset = writeRecords(leaf, lower, newRecord);
+        final int upperOffset = writeRecords(newLeaf, upper, newRecord);
+        writeBlock(leafIndex, leaf);
+        writeBlock(newIndex, newLeaf);
+
+        final Frame parent = path[path.length - 1];
+        parent.insert(parent.getPosition() + 1, splitHash, newIndex);
+        writeBlock(parent.getBlockIndex(), parent.getData());
+
+        if (lowerOffset >= 0) {
+            dr.setFileOffset(leafIndex * blockSize + lowerOffset);
+        } else {
+            dr.setFileOffset(newIndex * blockSize + upperOffset);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Split leaf " + leafIndex + " at hash " + Integer.toHexString(splitHash) + " into " + newIndex);
+        }
+    }
+
+    /**
+     * Make sure the index node that refers to the leaf has room for one more entry.
+     *
+     * @param path the path to the leaf.
+     * @return the path to the leaf, which may be different after the index has been changed.
+     */
+    private Frame[] makeRoom(Frame[] path) throws IOException, FileSystemException {
+        final Frame parent = path[path.length - 1];
+        if (parent.getCount() < parent.getLimit()) {
+            return path;
+        }
+
+        final Frame root = path[0];
+        if (path.length == 1) {
+            // The root is full, move its entries to a new index node one level down
+            final long nodeIndex = appendBlock();
+            final Frame node = Frame.createNode(nodeIndex, blockSize);
+            node.copyFrom(root, 0, root.getCount());
+            root.setCount(1);
+            root.setBlock(0, nodeIndex);
+            root.getData()[ROOT_INFO_OFFSET + 6] = 1;
+            writeBlock(nodeIndex, node.getData());
+            writeBlock(0, root.getData());
+
+            node.setPosition(root.getPosition());
+            root.setPosition(0);
+            return new Frame[] {root, node};
+        }
+
+        // Split the full index node, its parent must have room
+        final Frame grandParent = path[path.length - 2];
+        if ((grandParent.getCount() >= grandParent.getLimit()) || (path.length - 1 > MAX_WRITE_INDIRECT_LEVELS)) {
+            throw new FileSystemException("Directory index is full");
+        }
+        final int half = parent.getCount() / 2;
+        final long nodeIndex = appendBlock();
+        final Frame node = Frame.createNode(nodeIndex, blockSize);
+        node.copyFrom(parent, half, parent.getCount() - half);
+        final int nodeHash = parent.getHash(half);
+        parent.setCount(half);
+        grandParent.insert(grandParent.getPosition() + 1, nodeHash, nodeIndex);
+        writeBlock(nodeIndex, node.getData());
+        writeBlock(parent.getBlockIndex(), parent.getData());
+        writeBlock(grandParent.getBlockIndex(), grandParent.getData());
+
+        final Frame[] newPath = path.clone();
+        if (parent.getPosition() >= half) {
+            node.setPosition(parent.getPosition() - half);
+            grandParent.setPosition(grandParent.getPosition() + 1);
+            newPath[path.length - 1] = node;
+        }
+        return newPath;
+    }
+
+    /**
+     * Walk down the index to the leaf for the given hash.
+     *
+     * @param hash the hash.
+     * @return the index nodes from the root down, each positioned at the entry that covers the hash.
+     */
+    private Frame[] probe(int hash) throws IOException, FileSystemException {
+        final byte[] rootData = readBlock(0);
+        final int infoLength = LittleEndian.getUInt8(rootData, ROOT_INFO_OFFSET + 5);
+        final int levels = LittleEndian.getUInt8(rootData, ROOT_INFO_OFFSET + 6);
+        if ((LittleEndian.getUInt32(rootData, ROOT_INFO_OFFSET) != 0) || (infoLength != 8)) {
+            throw new FileSystemException("Invalid directory index root in inode " + iNode.getINodeNr());
+        }
+        if (levels >= MAX_INDIRECT_LEVELS) {
+            throw new FileSystemException("Unsupported directory index depth " + (levels + 1));
+        }
+
+        final Frame[] path = new Frame[levels + 1];
+        Frame frame = new Frame(0, rootData.clone(), ROOT_INFO_OFFSET + infoLength);
+        for (int level = 0; ; level++) {
+            frame.validate(blockSize);
+            frame.search(hash);
+            path[level] = frame;
+            if (level == levels) {
+                return path;
+            }
+            final long child = frame.getBlock();
+            frame = new Frame(child, readBlock(child).clone(), NODE_ENTRIES_OFFSET);
+        }
+    }
+
+    /**
+     * Advance the path to the next leaf, if the records with the given hash continue in that leaf.
+     *
+     * @return {@code true} if the next leaf must be searched as well.
+     */
+    private boolean nextLeaf(Frame[] path, int hash) throws IOException, FileSystemException {
+        int level = path.length - 1;
+        while (path[level].getPosition() + 1 >= path[level].getCount()) {
+            if (level == 0) {
+                return false;
+            }
+            level--;
+        }
+        final Frame frame = path[level];
+        frame.setPosition(frame.getPosition() + 1);
+        if ((frame.getHash(frame.getPosition()) & ~HASH_CONTINUED) != hash) {
+            return false;
+        }
+        for (level++; level < path.length; level++) {
+            final long child = path[level - 1].getBlock();
+            path[level] = new Frame(child, readBlock(child).clone(), NODE_ENTRIES_OFFSET);
+            path[level].validate(blockSize);
+            path[level].setPosition(0);
+        }
+        return true;
+    }
+
+    private int hash(byte[] rootData, byte[] nameData) throws FileSystemException {
+        int version = LittleEndian.getUInt8(rootData, ROOT_INFO_OFFSET + 4);
+        final Superblock superblock = fs.getSuperblock();
+        if ((version <= Ext2Constants.EXT2_DX_HASH_TEA)
+            && ((superblock.getFlags() & Ext2Constants.EXT2_FLAGS_UNSIGNED_HASH) != 0)) {
+            version += Ext2Constants.EXT2_DX_HASH_LEGACY_UNSIGNED;
+        }
+        if (!DirectoryHash.isSupported(version)) {
+            throw new FileSystemException("Unsupported directory hash version " + version);
+        }
+        return DirectoryHash.hash(nameData, version, superblock.getHashSeed());
+    }
+
+    /**
+     * Search a leaf block for a record with the given name.
+     */
+    private Ext2DirectoryRecord findRecord(long blockIndex, byte[] data, byte[] nameData) {
+        int offset = 0;
+        while (offset + RECORD_HEADER_LENGTH <= blockSize) {
+            final int recLen = LittleEndian.getUInt16(data, offset + 4);
+            if ((recLen < RECORD_HEADER_LENGTH) || (offset + recLen > blockSize)) {
+                log.warn("Invalid directory record in block " + blockIndex + " of inode " + iNode.getINodeNr());
+                break;
+            }
+            if ((LittleEndian.getUInt32(data, offset) != 0) && nameEquals(data, offset, nameData)) {
+                return new Ext2DirectoryRecord(fs, data, offset, (int) (blockIndex * blockSize + offset));
+            }
+            offset += recLen;
+        }
+        return null;
+    }
+
+    /**
+     * Add a record to a leaf block in the free space after an existing record.
+     *
+     * @return the offset of the record in the block, or -1 if the block has no room.
+     */
+    private int addRecord(byte[] data, byte[] record) {
+        final int length = getRecordLength(record.length - RECORD_HEADER_LENGTH);
+        int offset = 0;
+        while (offset + RECORD_HEADER_LENGTH <= blockSize) {
+            final int recLen = LittleEndian.getUInt16(data, offset + 4);
+            if ((recLen < RECORD_HEADER_LENGTH) || (offset + recLen > blockSize)) {
+                return -1;
+            }
+            final int used;
+            if (LittleEndian.getUInt32(data, offset) == 0) {
+                used = 0;
+            } else {
+                used = getRecordLength(LittleEndian.getUInt8(data, offset + 6));
+            }
+            if (recLen - used >= length) {
+                if (used > 0) {
+                    LittleEndian.setInt16(data, offset + 4, used);
+                }
+                putRecord(data, offset + used, record, recLen - used);
+                return offset + used;
+            }
+            offset += recLen;
+        }
+        return -1;
+    }
+
+    /**
+     * Read the records that are in use from a leaf block.
+     */
+    private List<Record> readRecords(byte[] rootData, byte[] data) throws FileSystemException {
+        final List<Record> records = new ArrayList<Record>();
+        int offset = 0;
+        while (offset + RECORD_HEADER_LENGTH <= blockSize) {
+            final int recLen = LittleEndian.getUInt16(data, offset + 4);
+            if ((recLen < RECORD_HEADER_LENGTH) || (offset + recLen > blockSize)) {
+                throw new FileSystemException("Invalid directory record in inode " + iNode.getINodeNr());
+            }
+            if (LittleEndian.getUInt32(data, offset) != 0) {
+                final int nameLen = LittleEndian.getUInt8(data, offset + 6);
+                final byte[] record = Arrays.copyOfRange(data, offset, offset + RECORD_HEADER_LENGTH + nameLen);
+                final byte[] nameData = Arrays.copyOfRange(record, RECORD_HEADER_LENGTH, record.length);
+                records.add(new Record(record, hash(rootData, nameData)));
+            }
+            offset += recLen;
+        }
+        return records;
+    }
+
+    /**
+     * Write records packed into a leaf block, the last one extends to the end of the block.
+     *
+     * @return the offset of the given record, or -1 if it is not in the list.
+     */
+    private int writeRecords(byte[] data, List<Record> records, Record wanted) {
+        Arrays.fill(data, (byte) 0);
+        int result = -1;
+        int offset = 0;
+        for (int i = 0; i < records.size(); i++) {
+            final Record r = records.get(i);
+            final int recLen = (i == records.size() - 1) ? blockSize - offset : r.getLength();
+            putRecord(data, offset, r.getData(), recLen);
+            if (r == wanted) {
+                result = offset;
+            }
+            offset += recLen;
+        }
+        return result;
+    }
+
+    private void putRecord(byte[] data, int offset, byte[] record, int recLen) {
+        System.arraycopy(record, 0, data, offset, record.length);
+        LittleEndian.setInt16(data, offset + 4, recLen);
+    }
+
+    private static int getRecordLength(int nameLen) {
+        return (RECORD_HEADER_LENGTH + nameLen + 3) & ~3;
+    }
+
+    private static boolean nameEquals(byte[] data, int offset, byte[] nameData) {
+        if (LittleEndian.getUInt8(data, offset + 6) != nameData.length) {
+            return false;
+        }
+        for (int i = 0; i < nameData.length; i++) {
+            if (data[offset + RECORD_HEADER_LENGTH + i] != nameData[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDotOrDotDot(byte[] nameData) {
+        return ((nameData.length == 1) && (nameData[0] == '.'))
+            || ((nameData.length == 2) && (nameData[0] == '.') && (nameData[1] == '.'));
+    }
+
+    private byte[] readBlock(long index) throws IOException {
+        return iNode.getDataBlock(index);
+    }
+
+    private void writeBlock(long index, byte[] data) throws IOException {
+        iNode.writeDataBlock(index, data);
+    }
+
+    /**
+     * Allocate a new block at the end of the directory.
+     *
+     * @return the index of the block.
+     */
+    private long appendBlock() throws IOException, FileSystemException {
+        final long index = iNode.getAllocatedBlockCount();
+        iNode.allocateDataBlock(index);
+        iNode.setSize((index + 1) * blockSize);
+        return index;
+    }
+
+    /**
+     * A directory record and the hash of its name.
+     */
+    private static final class Record {
+        private final byte[] data;
+        private final int hash;
+
+        Record(byte[] data, int hash) {
+            this.data = data;
+            this.hash = hash;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+
+        int getHash() {
+            return hash;
+        }
+
+        int getLength() {
+            return getRecordLength(data.length - RECORD_HEADER_LENGTH);
+        }
+    }
+
+    /**
+     * The index entries of the root or of an index node, and the position of
+     * the entry on the path to a leaf. Entry 0 holds the limit and the count
+     * of the entries instead of a hash.
+     */
+    private static final class Frame {
+        private final long blockIndex;
+        private final byte[] data;
+        private final int entriesOffset;
+        private int position;
+
+        Frame(long blockIndex, byte[] data, int entriesOffset) {
+            this.blockIndex = blockIndex;
+            this.data = data;
+            this.entriesOffset = entriesOffset;
+        }
+
+        /**
+         * Create an empty index node, which looks like an unused record that fills the block.
+         */
+        static Frame createNode(long blockIndex, int blockSize) {
+            final Frame node = new Frame(blockIndex, new byte[blockSize], NODE_ENTRIES_OFFSET);
+            LittleEndian.setInt16(node.data, 4, blockSize);
+            node.setLimit((blockSize - NODE_ENTRIES_OFFSET) / ENTRY_LENGTH);
+            return node;
+        }
+
+        void validate(int blockSize) throws FileSystemException {
+            final int limit = getLimit();
+            if ((limit == 0) || (entriesOffset + limit * ENTRY_LENGTH > blockSize)
+                || (getCount() == 0) || (getCount() > limit)) {
+                throw new FileSystemException("Invalid directory index block " + blockIndex);
+            }
+        }
+
+        /**
+         * Position this frame at the last entry with a hash that is not larger than the given hash.
+         */
+        void search(int hash) {
+            int lo = 1;
+            int hi = getCount() - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (DirectoryHash.compare(getHash(mid), hash) > 0) {
+                    hi = mid - 1;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            position = lo - 1;
+        }
+
+        /**
+         * Insert an entry, the frame must have room for it.
+         */
+        void insert(int index, int hash, long block) {
+            final int count = getCount();
+            final int offset = entriesOffset + index * ENTRY_LENGTH;
+            System.arraycopy(data, offset, data, offset + ENTRY_LENGTH, (count - index) * ENTRY_LENGTH);
+            LittleEndian.setInt32(data, offset, hash);
+            setBlock(index, block);
+            setCount(count + 1);
+        }
+
+        /**
+         * Replace the entries of this frame with entries of another frame.
+         */
+        void copyFrom(Frame src, int from, int count) {
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    LittleEndian.setInt32(data, entriesOffset + i * ENTRY_LENGTH, src.getHash(from + i));
+                }
+                setBlock(i, src.getBlock(from + i));
+            }
+            setCount(count);
+        }
+
+        long getBlockIndex() {
+            return blockIndex;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+
+        int getPosition() {
+            return position;
+        }
+
+        void setPosition(int position) {
+            this.position = position;
+        }
+
+        int getLimit() {
+            return LittleEndian.getUInt16(data, entriesOffset);
+        }
+
+        private void setLimit(int limit) {
+            LittleEndian.setInt16(data, entriesOffset, limit);
+        }
+
+        int getCount() {
+            return LittleEndian.getUInt16(data, entriesOffset + 2);
+        }
+
+        void setCount(int count) {
+            LittleEndian.setInt16(data, entriesOffset + 2, count);
+        }
+
+        int getHash(int index) {
+            return LittleEndian.getInt32(data, entriesOffset + index * ENTRY_LENGTH);
+        }
+
+        long getBlock(int index) {
+            return LittleEndian.getUInt32(data, entriesOffset + index * ENTRY_LENGTH + 4) & 0x0FFFFFFFL;
+        }
+
+        /**
+         * Gets the block of the entry at the current position.
+         */
+        long getBlock() {
+            return getBlock(position);
+        }
+
+        void setBlock(int index, long block) {
+            LittleEndian.setInt32(data, entriesOffset + index * ENTRY_LENGTH + 4, (int) block);
+        }
+    }
+}
@@ -24,12 +24,16 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.log4j.Logger;
 import org.jnode.fs.FileSystemException;
 import org.jnode.fs.ext2.exception.UnallocatedBlockException;
 import org.jnode.fs.ext2.xattr.XAttrEntry;
 import org.jnode.fs.ext2.xattr.XAttrHeader;
 import org.jnode.fs.ext4.ExtentHeader;
+import org.jnode.fs.ext4.ExtentTreeWriter;
 import org.jnode.fs.util.FSUtils;
 import org.jnode.util.LittleEndian;
 
@@ -42,6 +46,12 @@ import org.jnode.util.LittleEndian;
 public class INode {
     public static final int EXT2_GOOD_OLD_INODE_SIZE = 128;
 
+    /**
+     * The number of written blocks that are kept in memory at the end of a
+     * file, before the blocks for them are allocated in a single run.
+     */
+    public static final int DELAYED_ALLOCATION_BLOCKS = 256;
+
     private final Logger log = Logger.getLogger(getClass());
 
     /**
@@ -67,7 +77,24 @@ public class INode {
     /**
      * The cached extent header.
      */
-    private ExtentHeader extentHeader;
+    private volatile ExtentHeader extentHeader;
+
+    /**
+     * Lock that lets readers of the inode data run in parallel, while
+     * writers get exclusive access.
+     */
+    private final ReadWriteLock dataLock = new ReentrantReadWriteLock();
+
+    /**
+     * The data of the blocks that have been written at the end of the file,
+     * but that have no blocks allocated yet (delayed allocation).
+     */
+    private final List<byte[]> delayedBlocks = new ArrayList<byte[]>();
+
+    /**
+     * The index of the first delayed block.
+     */
+    private long delayedBlockIndex;
 
     /**
      * Create an INode object from an existing inode on the disk.
@@ -105,6 +132,15 @@ public class INode {
         setLinksCount(0);
         //TODO: set other persistent parameters?
 
+        // new files and directories map their blocks with extents, if the
+        // filesystem supports them
+        int format = fileFormat & Ext2Constants.EXT2_S_IFMT;
+        if (fs.hasIncompatFeature(Ext2Constants.EXT4_FEATURE_INCOMPAT_EXTENTS) &&
+            (format == Ext2Constants.EXT2_S_IFREG || format == Ext2Constants.EXT2_S_IFDIR)) {
+            setFlags(getFlags() | Ext2Constants.EXT4_INODE_EXTENTS_FLAG);
+            setINodeBlockData(ExtentTreeWriter.createRoot());
+        }
+
         setDirty(true);
     }
 
@@ -112,6 +148,16 @@ public class INode {
         return desc.getINodeNr();
     }
 
+    /**
+     * Gets the lock that protects the data blocks of this inode. Reads take
+     * the read lock, writes and truncations take the write lock.
+     *
+     * @return the read/write lock
+     */
+    public ReadWriteLock getDataLock() {
+        return dataLock;
+    }
+
     protected void finalize() throws Exception {
         flush();
     }
@@ -123,6 +169,7 @@ public class INode {
     public void flush() throws IOException, FileSystemException {
         log.debug("Flush called for inode " + getINodeNr());
 
+        allocateDelayedBlocks();
         freePreallocatedBlocks();
         update();
     }
@@ -323,7 +370,7 @@ public class INode {
         long blockOffset = offset % (long) Math.pow(getIndirectCount(), indirectionLevel - 1);
         if (blockOffset == 0) {
             //need to reserve the indirect block itself
-            blockNr = findFreeBlock(allocatedBlocks++);
+            blockNr = findFreeBlock(allocatedBlocks++, 1);
             Ext2Utils.set32(data, (int) blockIndex * 4, blockNr);
             fs.writeBlock(dataBlockNr, data, false);
 
@@ -370,6 +417,11 @@ public class INode {
             fs.freeBlock(dataBlockNr);
             long block512 = fs.getBlockSize() / 512;
             setBlocks(getBlocks() - block512);
+        } else if (blockOffset == 0) {
+            //block blockNr has been freed, but the indirect block is kept:
+            //clear the pointer to it
+            Ext2Utils.set32(data, (int) blockIndex * 4, 0);
+            fs.writeBlock(dataBlockNr, data, false);
         }
     }
 
@@ -384,6 +436,16 @@ public class INode {
         return buffer;
     }
 
+    /**
+     * Sets the data stored inline in the inode's i_block element.
+     *
+     * @param blockData the data, at most 60 bytes.
+     */
+    public synchronized void setINodeBlockData(byte[] blockData) {
+        System.arraycopy(blockData, 0, data, 40, Math.min(blockData.length, 60));
+        setDirty(true);
+    }
+
     /**
      * Return the number of the block in the filesystem that stores the ith
      * block of the inode (i is a sequential index from the beginning of the
@@ -400,16 +462,69 @@ public class INode {
      */
     public long getDataBlockNr(long i) throws IOException {
         if ((getFlags() & Ext2Constants.EXT4_INODE_EXTENTS_FLAG) != 0) {
-            if (extentHeader == null) {
-                extentHeader = new ExtentHeader(getINodeBlockData());
-            }
-
-            return extentHeader.getBlockNumber(fs, i);
+            return getExtentHeader().getBlockNumber(fs, i);
         } else {
             return getDataBlockNrIndirect(i);
         }
     }
 
+    /**
+     * Gets the root of the extent tree of this inode, decoding it if needed.
+     * The field is read once, since {@link #setDirty(boolean)} may clear it
+     * from another thread.
+     *
+     * @return the extent header.
+     * @throws IOException
+     */
+    private ExtentHeader getExtentHeader() throws IOException {
+        ExtentHeader header = extentHeader;
+        if (header == null) {
+            header = new ExtentHeader(getINodeBlockData());
+            extentHeader = header;
+        }
+        return header;
+    }
+
+    /**
+     * Map the ith block of the inode, and the blocks following it, to a run of
+     * blocks that are physically contiguous in the filesystem. Both ext4 extent
+     * trees and indirect blocks are supported.
+     *
+     * @param i        the index of the first block (from the beginning of the file).
+     * @param maxCount the maximum number of blocks in the run.
+     * @return the run, with at least one block.
+     * @throws IOException
+     */
+    public BlockRun mapDataBlocks(long i, long maxCount) throws IOException {
+        if ((getFlags() & Ext2Constants.EXT4_INODE_EXTENTS_FLAG) != 0) {
+            final ExtentHeader header = getExtentHeader();
+
+            // Merge extents that follow each other on disk
+            BlockRun run = header.mapBlocks(fs, i, maxCount);
+            long count = run.getCount();
+            while (count < maxCount) {
+                BlockRun next = header.mapBlocks(fs, i + count, maxCount - count);
+                if (run.isHole() ? !next.isHole() : (next.getBlockNr() != run.getBlockNr() + count)) {
+                    break;
+                }
+                count += next.getCount();
+            }
+            return (count == run.getCount()) ? run : new BlockRun(i, run.getBlockNr(), count);
+        } else {
+            final long blockNr = getDataBlockNrIndirect(i);
+            final long max = Math.min(maxCount, getAllocatedBlockCount() - i);
+            long count = 1;
+            while (count < max) {
+                final long nextNr = getDataBlockNrIndirect(i + count);
+                if ((blockNr == 0) ? (nextNr != 0) : (nextNr != blockNr + count)) {
+                    break;
+                }
+                count++;
+            }
+            return new BlockRun(i, blockNr, count);
+        }
+    }
+
     /**
      * Return the number of the block in the filesystem that stores the ith
      * block of the inode (i is a sequential index from the beginning of the
@@ -473,6 +588,10 @@ public class INode {
      * @throws IOException
      */
     public byte[] getDataBlock(long i) throws IOException {
+        byte[] delayed = getDelayedBlock(i);
+        if (delayed != null) {
+            return delayed;
+        }
         return fs.getBlock(getDataBlockNr(i));
     }
 
@@ -491,18 +610,23 @@ public class INode {
      */
     private final void registerBlockIndex(long i, long blockNr)
         throws FileSystemException, IOException {
-        final long blockCount = getSizeInBlocks();
+        final long lastBlockIndex = getAllocatedBlockCount() - 1;
         final int indirectCount = getIndirectCount();
         long allocatedBlocks = i;
-        if (i != blockCount) {
+        if (i != lastBlockIndex) {
             throw new FileSystemException("Trying to register block " + i +
-                " (counts from 0), when INode contains only " + blockCount + " blocks");
+                " (counts from 0), when the last allocated block of the INode is " + lastBlockIndex);
         }
 
         log.debug("registering block #" + blockNr);
 
         setDirty(true);
 
+        if ((getFlags() & Ext2Constants.EXT4_INODE_EXTENTS_FLAG) != 0) {
+            new ExtentTreeWriter(this).append(i, blockNr);
+            return;
+        }
+
         //the direct blocks (0; 11)
         if (i < 12) {
             Ext2Utils.set32(data, 40 + (int) i * 4, blockNr);
@@ -517,7 +641,7 @@ public class INode {
             if (i == 0) {
                 //need to reserve the indirect block itself, as this is the
                 //first time it is used
-                indirectBlockNr = findFreeBlock(allocatedBlocks++);
+                indirectBlockNr = findFreeBlock(allocatedBlocks++, 1);
                 Ext2Utils.set32(data, 40 + 12 * 4, indirectBlockNr);
 
                 //log.debug("reserved indirect block: "+indirectBlockNr);
@@ -544,7 +668,7 @@ public class INode {
             //the 13th index points to the double indirect block
             if (i == 0) {
                 //need to reserve the double indirect block itself
-                doubleIndirectBlockNr = findFreeBlock(allocatedBlocks++);
+                doubleIndirectBlockNr = findFreeBlock(allocatedBlocks++, 1);
                 Ext2Utils.set32(data, 40 + 13 * 4, doubleIndirectBlockNr);
 
                 //log.debug("reserved double indirect block:
@@ -572,7 +696,7 @@ public class INode {
             //the 14th index points to the triple indirect block
             if (i == 0) {
                 //need to reserve the triple indirect block itself
-                tripleIndirectBlockNr = findFreeBlock(allocatedBlocks++);
+                tripleIndirectBlockNr = findFreeBlock(allocatedBlocks++, 1);
                 Ext2Utils.set32(data, 40 + 13 * 4, tripleIndirectBlockNr);
 
                 //log.debug("reserved triple indirect block:
@@ -647,6 +771,11 @@ public class INode {
 
         setDirty(true);
 
+        if ((getFlags() & Ext2Constants.EXT4_INODE_EXTENTS_FLAG) != 0) {
+            fs.freeBlock(new ExtentTreeWriter(this).removeLast(i));
+            return;
+        }
+
         //see the direct blocks (0; 11)
         if (i < 12) {
             indirectFree(LittleEndian.getUInt32(data, 40 + (int) i * 4), 0, 0);
@@ -711,6 +840,28 @@ public class INode {
      * @param data
      */
     public void writeDataBlock(long i, byte[] data) throws IOException {
+        //a delayed block is only written to memory, until enough of them
+        //have been collected
+        int delayedCount = 0;
+        synchronized (this) {
+            if (i >= delayedBlockIndex && i < delayedBlockIndex + delayedBlocks.size()) {
+                delayedBlocks.set((int) (i - delayedBlockIndex), data);
+                delayedCount = delayedBlocks.size();
+            }
+        }
+        if (delayedCount > 0) {
+            if (delayedCount >= DELAYED_ALLOCATION_BLOCKS) {
+                try {
+                    allocateDelayedBlocks();
+                } catch (FileSystemException ex) {
+                    final IOException ioe = new IOException("Internal filesystem exception");
+                    ioe.initCause(ex);
+                    throw ioe;
+                }
+            }
+            return;
+        }
+
         //see if the block is already reserved for the inode
         long blockCount = getAllocatedBlockCount();
 
@@ -733,7 +884,9 @@ public class INode {
      * @return the count
      */
     protected long getAllocatedBlockCount() {
-        if (desc.getLastAllocatedBlockIndex() != -1) {
+        if (!delayedBlocks.isEmpty()) {
+            return delayedBlockIndex;
+        } else if (desc.getLastAllocatedBlockIndex() != -1) {
             return desc.getLastAllocatedBlockIndex() + 1;
         } else {
             return getSizeInBlocks();
@@ -754,7 +907,7 @@ public class INode {
             throw new IOException("Allocate block " + getAllocatedBlockCount() + " first!");
         }
 
-        long newBlock = findFreeBlock(i);
+        long newBlock = findFreeBlock(i, 1);
 
         log.debug("Allocated new block " + newBlock);
 
@@ -763,6 +916,122 @@ public class INode {
         registerBlockIndex(i, newBlock);
     }
 
+    /**
+     * Return the number of blocks at the end of the file that have been
+     * written, but that have no blocks allocated yet.
+     *
+     * @return the count
+     */
+    public synchronized int getDelayedBlockCount() {
+        return delayedBlocks.size();
+    }
+
+    /**
+     * Add the ith data block to the file without allocating it yet (delayed
+     * allocation). The block is kept in memory until
+     * {@link #allocateDelayedBlocks()} allocates it together with the other
+     * delayed blocks, so that they end up in a single run of blocks. Writes to
+     * the block with {@link #writeDataBlock(long, byte[])} go to memory until
+     * then.
+     *
+     * @param i the index of the block, which must follow the allocated and
+     *          delayed blocks
+     */
+    public synchronized void delayDataBlock(long i) throws IOException {
+        if (delayedBlocks.isEmpty()) {
+            delayedBlockIndex = getAllocatedBlockCount();
+        }
+        if (i != delayedBlockIndex + delayedBlocks.size()) {
+            throw new IOException("Delay block " + (delayedBlockIndex + delayedBlocks.size()) + " first!");
+        }
+        delayedBlocks.add(new byte[fs.getBlockSize()]);
+    }
+
+    /**
+     * Allocate the blocks of the delayed blocks of the inode, and write their
+     * data. The blocks are reserved as a single run where possible.
+     */
+    public void allocateDelayedBlocks() throws IOException, FileSystemException {
+        if (getDelayedBlockCount() == 0) {
+            return;
+        }
+
+        final Lock lock = dataLock.writeLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                // a block stays delayed until it has a block of its own, so
+                // that its data is not lost when the allocation fails
+                while (!delayedBlocks.isEmpty()) {
+                    final long i = delayedBlockIndex;
+                    final long newBlock = findFreeBlock(i, delayedBlocks.size());
+                    final long lastAllocatedBlockIndex = desc.getLastAllocatedBlockIndex();
+                    final byte[] blockData = delayedBlocks.remove(0);
+                    delayedBlockIndex = i + 1;
+                    desc.setLastAllocatedBlockIndex(i);
+                    try {
+                        registerBlockIndex(i, newBlock);
+                    } catch (FileSystemException ex) {
+                        undoDelayedAllocation(i, blockData, newBlock, lastAllocatedBlockIndex);
+                        throw ex;
+                    } catch (IOException ex) {
+                        undoDelayedAllocation(i, blockData, newBlock, lastAllocatedBlockIndex);
+                        throw ex;
+                    }
+                    fs.writeBlock(newBlock, blockData, false);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Undo the allocation of the ith block, which is the first delayed block
+     * again afterwards. The block that was found for it is given back to the
+     * preallocated blocks, or freed if it does not precede them.
+     *
+     * @param i                       the index of the block
+     * @param blockData               the data of the block
+     * @param blockNr                 the block that was found for it
+     * @param lastAllocatedBlockIndex the index of the last allocated block before
+     */
+    private void undoDelayedAllocation(long i, byte[] blockData, long blockNr, long lastAllocatedBlockIndex)
+        throws IOException, FileSystemException {
+        delayedBlocks.add(0, blockData);
+        delayedBlockIndex = i;
+        desc.setLastAllocatedBlockIndex(lastAllocatedBlockIndex);
+        if (!desc.unusePreallocBlock(blockNr)) {
+            fs.freeBlock(blockNr);
+            setBlocks(getBlocks() - fs.getBlockSize() / 512);
+        }
+    }
+
+    /**
+     * Drop the delayed blocks from the ith block on, without allocating them.
+     *
+     * @param i the index of the first block to drop
+     */
+    public synchronized void dropDelayedBlocks(long i) {
+        final long first = Math.max(i, delayedBlockIndex);
+        if (first < delayedBlockIndex + delayedBlocks.size()) {
+            delayedBlocks.subList((int) (first - delayedBlockIndex), delayedBlocks.size()).clear();
+        }
+    }
+
+    /**
+     * Get the data of the ith block if it is a delayed block.
+     *
+     * @param i
+     * @return the data, or <code>null</code> if the block is not delayed
+     */
+    private synchronized byte[] getDelayedBlock(long i) {
+        if (i >= delayedBlockIndex && i < delayedBlockIndex + delayedBlocks.size()) {
+            return delayedBlocks.get((int) (i - delayedBlockIndex));
+        }
+        return null;
+    }
+
     /**
      * FINDS a free block which will be the indexth block of the inode: -first
      * check the preallocated blocks -then check around the last allocated block
@@ -772,10 +1041,17 @@ public class INode {
      * should be the one that follows the last allocated block (that's why the
      * <code>index</code> parameter is needed).
      *
+     * <p/>
+     * When more than one block is needed, a run of up to <code>count</code>
+     * contiguous blocks is reserved right after the last allocated block (or
+     * as close to it as possible) with the multi-block allocator, and the
+     * rest of the run is kept as preallocated blocks.
+     *
      * @param index the block to be found should be around the (index-1)th block
      *              of the inode (which is already allocated, unless index==0)
+     * @param count the number of blocks that are about to be allocated
      */
-    private long findFreeBlock(long index) throws IOException, FileSystemException {
+    private long findFreeBlock(long index, long count) throws IOException, FileSystemException {
         //long newBlock;
         long lastBlock = -1;
         BlockReservation reservation;
@@ -789,6 +1065,23 @@ public class INode {
         //check around the last allocated block
         if (index > 0)
             lastBlock = getDataBlockNr(index - 1);
+
+        //reserve a run of blocks for a multi-block allocation
+        if (count > 1) {
+            long goal = (lastBlock != -1) ? lastBlock + 1 :
+                fs.getSuperblock().getFirstDataBlock() + getGroup() * fs.getSuperblock().getBlocksPerGroup();
+            reservation = fs.allocateBlocks(goal, (int) Math.min(count, fs.getSuperblock().getBlocksPerGroup()));
+            if (reservation.isSuccessful()) {
+                desc.setPreallocBlock(reservation.getBlock() + 1);
+                desc.setPreallocCount(reservation.getPreallocCount());
+
+                long prealloc512 = (1 + reservation.getPreallocCount()) * (fs.getBlockSize() / 512);
+                setBlocks(getBlocks() + prealloc512);
+
+                return reservation.getBlock();
+            }
+        }
+
         if (lastBlock != -1) {
             for (int i = 1; i < 16; i++) {
                 reservation = getExt2FileSystem().testAndSetBlock(lastBlock + i);
@@ -68,6 +68,23 @@ public class INodeDescriptor {
         return preallocBlock++;
     }
 
+    /**
+     * Give back a block that has been taken from the preallocated blocks, or
+     * that has been reserved together with them, but that could not be used.
+     *
+     * @param block the block
+     * @return false if the block does not precede the preallocated blocks, so
+     *         the caller must free it
+     */
+    public synchronized boolean unusePreallocBlock(long block) {
+        if (block != preallocBlock - 1) {
+            return false;
+        }
+        ++preallocCount;
+        --preallocBlock;
+        return true;
+    }
+
     public INodeDescriptor(INodeTable iNodeTable, long iNodeNr, int group, int index) {
         this.iNodeTable = iNodeTable;
         this.iNodeNr = iNodeNr;
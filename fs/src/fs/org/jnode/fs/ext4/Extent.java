@@ -33,6 +33,11 @@ public class Extent {
      */
     public static final int EXTENT_LENGTH = 12;
 
+    /**
+     * The maximum length of an initialized extent. Larger block counts mark an uninitialized extent.
+     */
+    public static final int MAX_INITIALIZED_LENGTH = 32768;
+
     /**
      * The data for the extent.
      */
@@ -61,6 +66,25 @@ public class Extent {
         return LittleEndian.getUInt16(data, 4);
     }
 
+    /**
+     * Is this extent allocated but not yet written. Such an extent reads as zeros.
+     *
+     * @return {@code true} if the extent is uninitialized.
+     */
+    public boolean isUninitialized() {
+        return getBlockCount() > MAX_INITIALIZED_LENGTH;
+    }
+
+    /**
+     * Gets the number of blocks covered by this extent.
+     *
+     * @return the length in blocks.
+     */
+    public int getLength() {
+        final int count = getBlockCount();
+        return (count > MAX_INITIALIZED_LENGTH) ? count - MAX_INITIALIZED_LENGTH : count;
+    }
+
     public long getStartLow() {
         return LittleEndian.getUInt32(data, 8);
     }
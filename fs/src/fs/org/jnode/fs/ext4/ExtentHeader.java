@@ -21,6 +21,7 @@
 package org.jnode.fs.ext4;
 
 import java.io.IOException;
+import org.jnode.fs.ext2.BlockRun;
 import org.jnode.fs.ext2.Ext2FileSystem;
 import org.jnode.util.LittleEndian;
 
@@ -138,6 +139,56 @@ public class ExtentHeader {
         }
     }
 
+    /**
+     * Maps the block with the given index, and the blocks following it, to a run of
+     * physically contiguous blocks. A run never extends beyond the extent that
+     * contains the block, and never beyond maxCount blocks.
+     *
+     * @param fs       the file system.
+     * @param index    the index of the first block.
+     * @param maxCount the maximum number of blocks in the run.
+     * @return the run, which is a hole if the block is not mapped by an initialized extent.
+     * @throws IOException if an error occurs reading an index block.
+     */
+    public BlockRun mapBlocks(Ext2FileSystem fs, long index, long maxCount) throws IOException {
+        if (getDepth() > 0) {
+            ExtentIndex extentIndex = binarySearchIndexes(index, getIndexEntries());
+            byte[] indexData = fs.getBlock(extentIndex.getLeafLow());
+
+            ExtentHeader indexHeader = new ExtentHeader(indexData);
+            return indexHeader.mapBlocks(fs, index, maxCount);
+        }
+
+        Extent[] extents = getExtentEntries();
+        if (extents.length == 0) {
+            return new BlockRun(index, 0, 1);
+        }
+        Extent extent = binarySearchExtents(index, extents);
+        long extentStart = extent.getBlockIndex();
+        if (index < extentStart) {
+            // A hole before the first extent
+            return new BlockRun(index, 0, Math.min(maxCount, extentStart - index));
+        }
+
+        long extentEnd = extentStart + extent.getLength();
+        if (index >= extentEnd) {
+            // A hole after this extent. Only a hole up to the next extent in this
+            // leaf is certain, the next leaf may start earlier than maxCount.
+            for (Extent next : extents) {
+                if (next.getBlockIndex() > index) {
+                    return new BlockRun(index, 0, Math.min(maxCount, next.getBlockIndex() - index));
+                }
+            }
+            return new BlockRun(index, 0, 1);
+        }
+
+        long count = Math.min(maxCount, extentEnd - index);
+        if (extent.isUninitialized()) {
+            return new BlockRun(index, 0, count);
+        }
+        return new BlockRun(index, extent.getStartLow() + index - extentStart, count);
+    }
+
     /**
      * Performs a binary search in the extent indexes.
      *
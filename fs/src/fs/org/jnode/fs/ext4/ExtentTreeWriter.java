@@ -0,0 +1,349 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.fs.ext4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.jnode.fs.FileSystemException;
+import org.jnode.fs.ext2.BlockReservation;
+import org.jnode.fs.ext2.Ext2FileSystem;
+import org.jnode.fs.ext2.INode;
+import org.jnode.util.LittleEndian;
+
+/**
+ * Appends blocks to, and truncates blocks from, the end of an ext4 extent tree.
+ * <p/>
+ * Blocks are only ever added or removed at the logical end of the file, so all changes happen along the
+ * rightmost path of the tree. An appended block that follows the last extent, both logically and on disk,
+ * grows that extent. Otherwise a new extent is added to the rightmost leaf, splitting off new leaves and
+ * index nodes, and growing the tree in depth, when the nodes are full.
+ * <p/>
+ * SYNCHRONIZATION: the caller must have exclusive access to the inode.
+ */
+public class ExtentTreeWriter {
+    /**
+     * The length of the extent tree root stored in the inode's i_block element.
+     */
+    public static final int ROOT_LENGTH = 60;
+
+    /**
+     * The inode.
+     */
+    private final INode iNode;
+
+    /**
+     * The file system.
+     */
+    private final Ext2FileSystem fs;
+
+    /**
+     * Create a writer for the extent tree of the given inode.
+     *
+     * @param iNode the inode.
+     */
+    public ExtentTreeWriter(INode iNode) {
+        this.iNode = iNode;
+        this.fs = iNode.getExt2FileSystem();
+    }
+
+    /**
+     * Creates the root of an empty extent tree, as stored in the inode's i_block element.
+     *
+     * @return the root data.
+     */
+    public static byte[] createRoot() {
+        byte[] root = new byte[ROOT_LENGTH];
+        initNode(root, 0);
+        return root;
+    }
+
+    /**
+     * Appends a block to the end of the tree.
+     *
+     * @param index   the index of the block in the file, which must follow the last mapped block.
+     * @param blockNr the block in the file system.
+     * @throws IOException         if an error occurs.
+     * @throws FileSystemException if no block is left for the tree nodes.
+     */
+    public void append(long index, long blockNr) throws IOException, FileSystemException {
+        List<Node> path = getRightmostPath();
+        Node leaf = path.get(path.size() - 1);
+
+        int entries = leaf.getEntryCount();
+        if (entries > 0) {
+            int offset = entryOffset(entries - 1);
+            long start = LittleEndian.getUInt32(leaf.data, offset);
+            int length = LittleEndian.getUInt16(leaf.data, offset + 4);
+            long startNr = getStart(leaf.data, offset);
+
+            // An uninitialized (preallocated) extent is never grown, its blocks read as zeros
+            boolean uninitialized = length > Extent.MAX_INITIALIZED_LENGTH;
+            if (uninitialized) {
+                length -= Extent.MAX_INITIALIZED_LENGTH;
+            }
+            if (index < start + length) {
+                throw new IOException("Block " + index + " is already mapped by the extent tree");
+            }
+            if (!uninitialized && length < Extent.MAX_INITIALIZED_LENGTH && start + length == index
+                && startNr + length == blockNr) {
+                LittleEndian.setInt16(leaf.data, offset + 4, length + 1);
+                write(leaf);
+                return;
+            }
+        }
+
+        if (entries < leaf.getMaximumEntryCount()) {
+            setEntry(leaf.data, entries, index, 1, blockNr);
+            leaf.setEntryCount(entries + 1);
+            write(leaf);
+            return;
+        }
+
+        // The leaf is full: start a new one and hook it into the first ancestor that has room
+        Node child = newNode(0, blockNr);
+        setEntry(child.data, 0, index, 1, blockNr);
+        child.setEntryCount(1);
+        write(child);
+
+        for (int level = path.size() - 2; level >= 0; level--) {
+            Node node = path.get(level);
+            entries = node.getEntryCount();
+            if (entries < node.getMaximumEntryCount()) {
+                setIndex(node.data, entries, index, child.blockNr);
+                node.setEntryCount(entries + 1);
+                write(node);
+                return;
+            }
+
+            Node sibling = newNode(node.getDepth(), child.blockNr);
+            setIndex(sibling.data, 0, index, child.blockNr);
+            sibling.setEntryCount(1);
+            write(sibling);
+            child = sibling;
+        }
+
+        // The root is full as well: move its entries into a new node and grow the tree in depth
+        Node root = path.get(0);
+        Node moved = newNode(root.getDepth(), child.blockNr);
+        int rootEntries = root.getEntryCount();
+        System.arraycopy(root.data, entryOffset(0), moved.data, entryOffset(0),
+            rootEntries * ExtentIndex.EXTENT_INDEX_LENGTH);
+        moved.setEntryCount(rootEntries);
+        write(moved);
+
+        long firstIndex = LittleEndian.getUInt32(root.data, entryOffset(0));
+        int maximum = root.getMaximumEntryCount();
+        initNode(root.data, root.getDepth() + 1);
+        LittleEndian.setInt16(root.data, 4, maximum);
+        setIndex(root.data, 0, firstIndex, moved.blockNr);
+        setIndex(root.data, 1, index, child.blockNr);
+        root.setEntryCount(2);
+        write(root);
+    }
+
+    /**
+     * Removes the last block from the tree. Leaves and index nodes that become empty are freed, and the tree
+     * shrinks back to a single root leaf when it becomes empty.
+     *
+     * @param index the index of the last mapped block in the file.
+     * @return the block in the file system that mapped the index, which the caller must free.
+     * @throws IOException         if an error occurs.
+     * @throws FileSystemException if an error occurs freeing a tree node.
+     */
+    public long removeLast(long index) throws IOException, FileSystemException {
+        List<Node> path = getRightmostPath();
+        Node leaf = path.get(path.size() - 1);
+
+        int entries = leaf.getEntryCount();
+        if (entries == 0) {
+            throw new IOException("Can't remove block " + index + " from an empty extent tree");
+        }
+
+        int offset = entryOffset(entries - 1);
+        long start = LittleEndian.getUInt32(leaf.data, offset);
+        int length = LittleEndian.getUInt16(leaf.data, offset + 4);
+        if (length > Extent.MAX_INITIALIZED_LENGTH) {
+            length -= Extent.MAX_INITIALIZED_LENGTH;
+        }
+        if (start + length - 1 != index) {
+            throw new IOException("Block " + index + " is not the last block of the extent tree");
+        }
+        long blockNr = getStart(leaf.data, offset) + length - 1;
+
+        if (length > 1) {
+            int count = LittleEndian.getUInt16(leaf.data, offset + 4);
+            LittleEndian.setInt16(leaf.data, offset + 4, count - 1);
+            write(leaf);
+            return blockNr;
+        }
+
+        leaf.setEntryCount(entries - 1);
+        int level = path.size() - 1;
+        while (level > 0 && path.get(level).getEntryCount() == 0) {
+            freeNode(path.get(level));
+            level--;
+            Node parent = path.get(level);
+            parent.setEntryCount(parent.getEntryCount() - 1);
+        }
+
+        Node node = path.get(level);
+        if (level == 0 && node.getDepth() > 0 && node.getEntryCount() == 0) {
+            initNode(node.data, 0);
+        }
+        write(node);
+
+        return blockNr;
+    }
+
+    /**
+     * Reads the nodes along the rightmost path of the tree, starting with the root.
+     *
+     * @return the nodes.
+     * @throws IOException if an error occurs.
+     */
+    private List<Node> getRightmostPath() throws IOException {
+        List<Node> path = new ArrayList<Node>();
+        byte[] rootData = new byte[ROOT_LENGTH];
+        System.arraycopy(iNode.getINodeBlockData(), 0, rootData, 0, ROOT_LENGTH);
+        Node node = new Node(-1, rootData);
+        path.add(node);
+
+        while (node.getDepth() > 0) {
+            int entries = node.getEntryCount();
+            if (entries == 0) {
+                throw new IOException("Empty extent index node in inode " + iNode.getINodeNr());
+            }
+            long childNr = getLeaf(node.data, entryOffset(entries - 1));
+            node = new Node(childNr, fs.getBlock(childNr).clone());
+            path.add(node);
+        }
+        return path;
+    }
+
+    /**
+     * Allocates a block for a new tree node, and accounts it to the inode.
+     *
+     * @param depth the depth of the new node.
+     * @param goal  the block to allocate near.
+     * @return the node.
+     */
+    private Node newNode(int depth, long goal) throws IOException, FileSystemException {
+        BlockReservation reservation = fs.allocateBlocks(goal, 1);
+        if (!reservation.isSuccessful()) {
+            throw new FileSystemException("No free blocks for the extent tree of inode " + iNode.getINodeNr());
+        }
+        iNode.setBlocks(iNode.getBlocks() + fs.getBlockSize() / 512);
+
+        byte[] data = new byte[fs.getBlockSize()];
+        initNode(data, depth);
+        return new Node(reservation.getBlock(), data);
+    }
+
+    /**
+     * Frees the block of a tree node.
+     *
+     * @param node the node.
+     */
+    private void freeNode(Node node) throws IOException, FileSystemException {
+        fs.freeBlock(node.blockNr);
+        iNode.setBlocks(iNode.getBlocks() - fs.getBlockSize() / 512);
+    }
+
+    /**
+     * Writes a node back to its block, or to the inode for the root.
+     *
+     * @param node the node.
+     */
+    private void write(Node node) throws IOException {
+        if (node.blockNr == -1) {
+            iNode.setINodeBlockData(node.data);
+        } else {
+            fs.writeBlock(node.blockNr, node.data, false);
+        }
+    }
+
+    private static void initNode(byte[] data, int depth) {
+        LittleEndian.setInt16(data, 0, ExtentHeader.MAGIC);
+        LittleEndian.setInt16(data, 2, 0);
+        LittleEndian.setInt16(data, 4,
+            (data.length - ExtentHeader.EXTENT_HEADER_LENGTH) / Extent.EXTENT_LENGTH);
+        LittleEndian.setInt16(data, 6, depth);
+        LittleEndian.setInt32(data, 8, 0);
+    }
+
+    private static int entryOffset(int entry) {
+        return ExtentHeader.EXTENT_HEADER_LENGTH + entry * Extent.EXTENT_LENGTH;
+    }
+
+    private static long getStart(byte[] data, int offset) {
+        return LittleEndian.getUInt32(data, offset + 8) | ((long) LittleEndian.getUInt16(data, offset + 6)) << 32;
+    }
+
+    private static long getLeaf(byte[] data, int offset) {
+        return LittleEndian.getUInt32(data, offset + 4) | ((long) LittleEndian.getUInt16(data, offset + 8)) << 32;
+    }
+
+    private static void setEntry(byte[] data, int entry, long index, int length, long blockNr) {
+        int offset = entryOffset(entry);
+        LittleEndian.setInt32(data, offset, (int) index);
+        LittleEndian.setInt16(data, offset + 4, length);
+        LittleEndian.setInt16(data, offset + 6, (int) (blockNr >>> 32));
+        LittleEndian.setInt32(data, offset + 8, (int) blockNr);
+    }
+
+    private static void setIndex(byte[] data, int entry, long index, long blockNr) {
+        int offset = entryOffset(entry);
+        LittleEndian.setInt32(data, offset, (int) index);
+        LittleEndian.setInt32(data, offset + 4, (int) blockNr);
+        LittleEndian.setInt16(data, offset + 8, (int) (blockNr >>> 32));
+        LittleEndian.setInt16(data, offset + 10, 0);
+    }
+
+    /**
+     * A node of the tree, with the block that stores it (-1 for the root in the inode).
+     */
+    private static class Node {
+        private final long blockNr;
+        private final byte[] data;
+
+        Node(long blockNr, byte[] data) {
+            this.blockNr = blockNr;
+            this.data = data;
+        }
+
+        int getEntryCount() {
+            return LittleEndian.getUInt16(data, 2);
+        }
+
+        void setEntryCount(int count) {
+            LittleEndian.setInt16(data, 2, count);
+        }
+
+        int getMaximumEntryCount() {
+            return LittleEndian.getUInt16(data, 4);
+        }
+
+        int getDepth() {
+            return LittleEndian.getUInt16(data, 6);
+        }
+    }
+}
@@ -34,8 +34,10 @@ import org.jnode.fs.ReadOnlyFileSystemException;
  * @author gbin
  */
 public class FatLfnDirectory extends FatDirectory {
-    private HashMap<String, LfnEntry> shortNameIndex = new HashMap<String, LfnEntry>();
-    private HashMap<String, LfnEntry> longFileNameIndex = new HashMap<String, LfnEntry>();
+    // Not initialized here: the super constructor reads the directory, and an
+    // initializer would run afterwards and drop the entries read
+    private HashMap<String, LfnEntry> shortNameIndex;
+    private HashMap<String, LfnEntry> longFileNameIndex;
 
     /**
      * @param fs
@@ -44,11 +46,20 @@ public class FatLfnDirectory extends FatDirectory {
      */
     public FatLfnDirectory(FatFileSystem fs, FatFile file) throws IOException {
         super(fs, file);
+        createIndexes();
     }
 
     // for root
     public FatLfnDirectory(FatFileSystem fs, int nrEntries) {
         super(fs, nrEntries);
+        createIndexes();
+    }
+
+    private void createIndexes() {
+        if (shortNameIndex == null) {
+            shortNameIndex = new HashMap<String, LfnEntry>();
+            longFileNameIndex = new HashMap<String, LfnEntry>();
+        }
     }
 
     public FSEntry addFile(String name) throws IOException {
@@ -127,6 +138,7 @@ public class FatLfnDirectory extends FatDirectory {
 
     private void readLFN() {
         // System.out.println("Read LFN");
+        createIndexes();
         int i = 0;
         int size = entries.size();
 
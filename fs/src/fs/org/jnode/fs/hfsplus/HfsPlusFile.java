@@ -20,6 +20,7 @@
  
 package org.jnode.fs.hfsplus;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
@@ -34,7 +35,7 @@ import org.jnode.fs.hfsplus.catalog.CatalogNodeId;
 import org.jnode.fs.hfsplus.compression.CompressedAttributeData;
 import org.jnode.fs.hfsplus.compression.DecmpfsDiskHeader;
 
-public class HfsPlusFile implements FSFile, FSFileSlackSpace, FSFileStreams {
+public class HfsPlusFile implements FSFile, FSFileSlackSpace, FSFileStreams, Closeable {
 
     private HfsPlusEntry entry;
 
@@ -64,6 +65,20 @@ public class HfsPlusFile implements FSFile, FSFileSlackSpace, FSFileStreams {
 
     }
 
+    /**
+     * Releases the decompressed data held for the file and stops decompressing ahead. The file can still be read
+     * afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (compressedData != null) {
+            compressedData.close();
+        }
+        if (hardLinkFile != null) {
+            hardLinkFile.close();
+        }
+    }
+
     @Override
     public final long getLength() {
         if (isHardLinked()) {
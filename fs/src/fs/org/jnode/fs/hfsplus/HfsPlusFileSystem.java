@@ -39,6 +39,7 @@ import org.jnode.fs.hfsplus.compression.CompressedAttributeData;
 import org.jnode.fs.hfsplus.compression.HfsPlusCompressionFactory;
 import org.jnode.fs.hfsplus.extent.Extent;
 import org.jnode.fs.hfsplus.tree.LeafRecord;
+import org.jnode.fs.hfsplus.tree.NodeCache;
 import org.jnode.fs.spi.AbstractFileSystem;
 
 public class HfsPlusFileSystem extends AbstractFileSystem<HfsPlusEntry> {
@@ -64,6 +65,16 @@ public class HfsPlusFileSystem extends AbstractFileSystem<HfsPlusEntry> {
      */
     private Attributes attributes;
 
+    /**
+     * The maximum number of decoded B-tree nodes kept in the node cache.
+     */
+    private static final int NODE_CACHE_SIZE = 512;
+
+    /**
+     * The recently used nodes of the catalog, extents overflow and attributes trees.
+     */
+    private final NodeCache nodeCache = new NodeCache(NODE_CACHE_SIZE);
+
     /**
      * The HFS+ private data directory. Used by HFS+ to stored hard linked file data.
      */
@@ -178,6 +189,15 @@ public class HfsPlusFileSystem extends AbstractFileSystem<HfsPlusEntry> {
         return attributes;
     }
 
+    /**
+     * Gets the cache of decoded B-tree nodes shared by the trees of this file system.
+     *
+     * @return the node cache.
+     */
+    public final NodeCache getNodeCache() {
+        return nodeCache;
+    }
+
     public final SuperBlock getVolumeHeader() {
         return volumeHeader;
     }
@@ -242,6 +262,8 @@ public class HfsPlusFileSystem extends AbstractFileSystem<HfsPlusEntry> {
      * @throws FileSystemException
      */
     public void create(HFSPlusParams params) throws FileSystemException {
+        // The trees are rewritten, forget any nodes read before
+        nodeCache.clear();
         volumeHeader = new SuperBlock(this, true);
         try {
             params.initializeDefaultsValues(this);
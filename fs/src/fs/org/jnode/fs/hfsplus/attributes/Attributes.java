@@ -27,9 +27,11 @@ import org.jnode.fs.hfsplus.HfsPlusFileSystem;
 import org.jnode.fs.hfsplus.HfsPlusForkData;
 import org.jnode.fs.hfsplus.SuperBlock;
 import org.jnode.fs.hfsplus.catalog.CatalogNodeId;
+import org.jnode.fs.hfsplus.tree.AbstractNode;
 import org.jnode.fs.hfsplus.tree.BTHeaderRecord;
 import org.jnode.fs.hfsplus.tree.IndexRecord;
 import org.jnode.fs.hfsplus.tree.LeafRecord;
+import org.jnode.fs.hfsplus.tree.NodeCache;
 import org.jnode.fs.hfsplus.tree.NodeDescriptor;
 import org.jnode.util.BigEndian;
 import org.jnode.util.ByteBufferUtils;
@@ -120,16 +122,10 @@ public class Attributes {
         }
 
         LeafRecord leafRecord = null;
-        int nodeSize = bthr.getNodeSize();
-        ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
-        attributesFile.read(fs, (nodeNumber * nodeSize), nodeData);
-        nodeData.rewind();
-        byte[] data = ByteBufferUtils.toArray(nodeData);
-        NodeDescriptor nodeDescriptor = new NodeDescriptor(data, 0);
+        AbstractNode<?, ?> node = getNode(nodeNumber);
 
-        if (nodeDescriptor.isIndexNode()) {
-            AttributeIndexNode node = new AttributeIndexNode(data, nodeSize);
-            IndexRecord[] records = node.findAll(new AttributeKey(fileId, attributeName));
+        if (node instanceof AttributeIndexNode) {
+            IndexRecord[] records = ((AttributeIndexNode) node).findAll(new AttributeKey(fileId, attributeName));
 
             for (IndexRecord indexRecord : records) {
                 AttributeData attributeData = getAttribute(fileId, attributeName, indexRecord.getIndex());
@@ -138,9 +134,8 @@ public class Attributes {
                 }
             }
 
-        } else if (nodeDescriptor.isLeafNode()) {
-            AttributeLeafNode node = new AttributeLeafNode(data, nodeSize);
-            leafRecord = node.find(new AttributeKey(fileId, attributeName));
+        } else if (node instanceof AttributeLeafNode) {
+            leafRecord = ((AttributeLeafNode) node).find(new AttributeKey(fileId, attributeName));
         }
 
         if (leafRecord == null) {
@@ -160,4 +155,37 @@ public class Attributes {
             return null;
         }
     }
+
+    /**
+     * Gets a node of the attributes tree from the file system's node cache, reading and decoding it on a miss.
+     *
+     * @param nodeNumber the node number.
+     * @return the index or leaf node, or {@code null} if the node is neither.
+     * @throws IOException if an error occurs.
+     */
+    private AbstractNode<?, ?> getNode(long nodeNumber) throws IOException {
+        final NodeCache cache = fs.getNodeCache();
+        final long treeId = CatalogNodeId.HFSPLUS_ATTR_CNID.getId();
+        AbstractNode<?, ?> node = cache.get(treeId, nodeNumber);
+        if (node != null) {
+            return node;
+        }
+
+        int nodeSize = bthr.getNodeSize();
+        ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
+        attributesFile.read(fs, (nodeNumber * nodeSize), nodeData);
+        byte[] data = nodeData.array();
+        NodeDescriptor nodeDescriptor = new NodeDescriptor(data, 0);
+
+        if (nodeDescriptor.isIndexNode()) {
+            node = new AttributeIndexNode(data, nodeSize);
+        } else if (nodeDescriptor.isLeafNode()) {
+            node = new AttributeLeafNode(data, nodeSize);
+        } else {
+            return null;
+        }
+
+        cache.put(treeId, nodeNumber, node);
+        return node;
+    }
 }
@@ -31,9 +31,11 @@ import org.jnode.fs.hfsplus.HfsPlusFileSystem;
 import org.jnode.fs.hfsplus.HfsPlusForkData;
 import org.jnode.fs.hfsplus.HfsUnicodeString;
 import org.jnode.fs.hfsplus.SuperBlock;
+import org.jnode.fs.hfsplus.tree.AbstractNode;
 import org.jnode.fs.hfsplus.tree.BTHeaderRecord;
 import org.jnode.fs.hfsplus.tree.IndexRecord;
 import org.jnode.fs.hfsplus.tree.LeafRecord;
+import org.jnode.fs.hfsplus.tree.NodeCache;
 import org.jnode.fs.hfsplus.tree.NodeDescriptor;
 import org.jnode.util.ByteBufferUtils;
 import org.jnode.util.NumberUtils;
@@ -211,31 +213,7 @@ public class Catalog {
      * @throws IOException
      */
     public final LeafRecord getRecord(final CatalogNodeId parentID) throws IOException {
-        long currentOffset = 0;
-        LeafRecord lr = null;
-        int nodeSize = bthr.getNodeSize();
-        ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
-        catalogFile.read(fs, (bthr.getRootNode() * nodeSize), nodeData);
-        nodeData.rewind();
-        byte[] data = ByteBufferUtils.toArray(nodeData);
-        NodeDescriptor nd = new NodeDescriptor(data, 0);
-
-        while (nd.isIndexNode()) {
-            CatalogIndexNode node = new CatalogIndexNode(data, nodeSize);
-            IndexRecord record = (IndexRecord) node.find(new CatalogKey(parentID));
-            currentOffset = record.getIndex() * nodeSize;
-            nodeData = ByteBuffer.allocate(nodeSize);
-            catalogFile.read(fs, currentOffset, nodeData);
-            nodeData.rewind();
-            data = ByteBufferUtils.toArray(nodeData);
-            nd = new NodeDescriptor(nodeData.array(), 0);
-        }
-
-        if (nd.isLeafNode()) {
-            CatalogLeafNode node = new CatalogLeafNode(data, nodeSize);
-            lr = (LeafRecord) node.find(new CatalogKey(parentID));
-        }
-        return lr;
+        return findRecord(new CatalogKey(parentID), null, bthr.getRootNode());
     }
 
     /**
@@ -262,26 +240,18 @@ public class Catalog {
     public final LeafRecord[] getRecords(final CatalogNodeId parentID, final long nodeNumber)
         throws IOException {
         try {
-            long currentNodeNumber = nodeNumber;
-            int nodeSize = getBTHeaderRecord().getNodeSize();
-            ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
-            catalogFile.read(fs, (currentNodeNumber * nodeSize), nodeData);
-            byte[] datas = nodeData.array();
-            NodeDescriptor nd = new NodeDescriptor(datas, 0);
-            if (nd.isIndexNode()) {
-                CatalogIndexNode node = new CatalogIndexNode(datas, nodeSize);
-                IndexRecord[] records = node.findAll(new CatalogKey(parentID));
+            AbstractNode<?, ?> node = getNode(nodeNumber);
+            if (node instanceof CatalogIndexNode) {
+                IndexRecord[] records = ((CatalogIndexNode) node).findAll(new CatalogKey(parentID));
                 List<LeafRecord> lfList = new LinkedList<LeafRecord>();
                 for (IndexRecord rec : records) {
                     LeafRecord[] lfr = getRecords(parentID, rec.getIndex());
                     Collections.addAll(lfList, lfr);
                 }
                 return lfList.toArray(new LeafRecord[lfList.size()]);
-            } else if (nd.isLeafNode()) {
-                CatalogLeafNode node = new CatalogLeafNode(nodeData.array(), nodeSize);
-                return node.findAll(new CatalogKey(parentID));
+            } else if (node instanceof CatalogLeafNode) {
+                return ((CatalogLeafNode) node).findAll(new CatalogKey(parentID));
             } else {
-                log.info(String.format("Node %d wasn't a leaf or index: %s\n%s", nodeNumber, nd, NumberUtils.hex(datas)));
                 return new LeafRecord[0];
             }
 
@@ -299,28 +269,73 @@ public class Catalog {
      */
     public final LeafRecord getRecord(final CatalogNodeId parentID, final HfsUnicodeString nodeName)
         throws IOException {
-        long currentNodeNumber = getBTHeaderRecord().getRootNode();
-        int nodeSize = getBTHeaderRecord().getNodeSize();
-        ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
-        catalogFile.read(fs, (currentNodeNumber * nodeSize), nodeData);
-        NodeDescriptor nd = new NodeDescriptor(nodeData.array(), 0);
-        long currentOffset = 0;
-        CatalogKey cKey = new CatalogKey(parentID, nodeName);
-        while (nd.isIndexNode()) {
-            CatalogIndexNode node = new CatalogIndexNode(nodeData.array(), nodeSize);
-            IndexRecord record = node.find(cKey);
-            currentNodeNumber = record.getIndex();
-            currentOffset = record.getIndex() * nodeSize;
-            nodeData = ByteBuffer.allocate(nodeSize);
-            catalogFile.read(fs, currentOffset, buffer);
-            node = new CatalogIndexNode(nodeData.array(), nodeSize);
+        return findRecord(new CatalogKey(parentID, nodeName), nodeName.getUnicodeString(),
+            getBTHeaderRecord().getRootNode());
+    }
+
+    /**
+     * Finds the leaf record matching the parent of a key and the given name, descending from the given node into the
+     * children that can hold it.
+     *
+     * @param key the key to match.
+     * @param name the name to match, or {@code null} to match the first record of the parent.
+     * @param nodeNumber the node where the search begins.
+     * @return the leaf record, or {@code null}.
+     * @throws IOException
+     */
+    private LeafRecord findRecord(final CatalogKey key, final String name, final long nodeNumber)
+        throws IOException {
+        AbstractNode<?, ?> node = getNode(nodeNumber);
+        if (node instanceof CatalogIndexNode) {
+            for (IndexRecord record : ((CatalogIndexNode) node).findAll(key)) {
+                LeafRecord leafRecord = findRecord(key, name, record.getIndex());
+                if (leafRecord != null) {
+                    return leafRecord;
+                }
+            }
+        } else if (node instanceof CatalogLeafNode) {
+            // The keys only compare the parent, so pick the record with the name out of the parent's records
+            for (LeafRecord record : ((CatalogLeafNode) node).findAll(key)) {
+                HfsUnicodeString recordName = ((CatalogKey) record.getKey()).getNodeName();
+                if (name == null || (recordName != null && name.equals(recordName.getUnicodeString()))) {
+                    return record;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets a node of the catalog tree from the file system's node cache, reading and decoding it on a miss.
+     *
+     * @param nodeNumber the node number.
+     * @return the index or leaf node, or {@code null} if the node is neither.
+     * @throws IOException
+     */
+    private AbstractNode<?, ?> getNode(final long nodeNumber) throws IOException {
+        final NodeCache cache = fs.getNodeCache();
+        final long treeId = CatalogNodeId.HFSPLUS_CAT_CNID.getId();
+        AbstractNode<?, ?> node = cache.get(treeId, nodeNumber);
+        if (node != null) {
+            return node;
         }
-        LeafRecord lr = null;
-        if (nd.isLeafNode()) {
-            CatalogLeafNode node = new CatalogLeafNode(nodeData.array(), nodeSize);
-            lr = node.find(cKey);
+
+        int nodeSize = bthr.getNodeSize();
+        ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
+        catalogFile.read(fs, (nodeNumber * nodeSize), nodeData);
+        byte[] data = nodeData.array();
+        NodeDescriptor nd = new NodeDescriptor(data, 0);
+        if (nd.isIndexNode()) {
+            node = new CatalogIndexNode(data, nodeSize);
+        } else if (nd.isLeafNode()) {
+            node = new CatalogLeafNode(data, nodeSize);
+        } else {
+            log.info(String.format("Node %d wasn't a leaf or index: %s\n%s", nodeNumber, nd, NumberUtils.hex(data)));
+            return null;
         }
-        return lr;
+
+        cache.put(treeId, nodeNumber, node);
+        return node;
     }
 
     public final NodeDescriptor getBTNodeDescriptor() {
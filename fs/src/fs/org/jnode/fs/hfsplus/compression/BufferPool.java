@@ -0,0 +1,58 @@
+package org.jnode.fs.hfsplus.compression;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A small pool of byte arrays reused between chunk decompressions instead of allocating them for every chunk.
+ */
+final class BufferPool {
+
+    /**
+     * The maximum number of idle buffers kept.
+     */
+    private final int maxBuffers;
+
+    /**
+     * The idle buffers.
+     */
+    private final LinkedList<byte[]> buffers = new LinkedList<byte[]>();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxBuffers the maximum number of idle buffers kept.
+     */
+    BufferPool(int maxBuffers) {
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if no idle buffer is large enough.
+     *
+     * @param size the minimum size of the buffer.
+     * @return the buffer, whose content is undefined.
+     */
+    synchronized byte[] take(int size) {
+        for (Iterator<byte[]> iterator = buffers.iterator(); iterator.hasNext(); ) {
+            byte[] buffer = iterator.next();
+            if (buffer.length >= size) {
+                iterator.remove();
+                return buffer;
+            }
+        }
+
+        return new byte[size];
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buffer the buffer which is no longer used.
+     */
+    synchronized void give(byte[] buffer) {
+        if (buffers.size() < maxBuffers) {
+            buffers.addFirst(buffer);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package org.jnode.fs.hfsplus.compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.naming.NameNotFoundException;
+import org.apache.log4j.Logger;
+import org.jnode.fs.hfsplus.HfsPlusFile;
+import org.jnode.fs.hfsplus.HfsPlusFileSystem;
+import org.jnode.fs.util.FSUtils;
+import org.jnode.naming.InitialNaming;
+import org.jnode.work.Work;
+import org.jnode.work.WorkManager;
+
+/**
+ * The base for compressed data stored in fixed size chunks in the file's resource fork.
+ * <p>
+ * The most recently used chunks of the file are kept decompressed, so small reads don't decompress the same chunk
+ * over and over. When the file is read sequentially the upcoming chunks are decompressed in parallel on the work
+ * manager, if there is one.
+ */
+public abstract class ForkCompression implements HfsPlusCompression, Closeable {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger log = Logger.getLogger(ForkCompression.class);
+
+    /**
+     * The fork compression chunk size.
+     */
+    protected static final int FORK_CHUNK_SIZE = 0x10000;
+
+    /**
+     * The number of decompressed chunks kept for a file.
+     */
+    private static final int CACHED_CHUNKS = 8;
+
+    /**
+     * The number of chunks decompressed ahead of a sequential reader.
+     */
+    private static final int READ_AHEAD_CHUNKS = 4;
+
+    /**
+     * The pool of buffers the compressed chunks are read into.
+     */
+    private static final BufferPool COMPRESSED_BUFFERS = new BufferPool(8);
+
+    /**
+     * The minimum size of the pooled compressed buffers, large enough for a chunk which didn't compress plus a marker.
+     */
+    private static final int COMPRESSED_BUFFER_SIZE = FORK_CHUNK_SIZE + 0x100;
+
+    /**
+     * The HFS+ file.
+     */
+    protected final HfsPlusFile file;
+
+    /**
+     * The decompressed chunks, the least recently used first.
+     */
+    private final Map<Integer, ByteBuffer> chunks = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+            return size() > CACHED_CHUNKS;
+        }
+    };
+
+    /**
+     * The chunks being decompressed ahead on the work manager.
+     */
+    private final Map<Integer, FutureTask<ByteBuffer>> pending = new HashMap<Integer, FutureTask<ByteBuffer>>();
+
+    /**
+     * The chunk following the last one read, used to detect sequential reads. Only a read of the chunk following the
+     * previous one counts as sequential, so nothing is decompressed ahead of a single read.
+     */
+    private int nextChunk = -1;
+
+    /**
+     * The work manager used to decompress chunks ahead, or {@code null} if not looked up yet or not available.
+     */
+    private WorkManager workManager;
+
+    /**
+     * Whether the work manager has been looked up.
+     */
+    private boolean workManagerLookedUp;
+
+    /**
+     * The number of times the file has been closed. Chunks queued for decompression ahead before a close are skipped.
+     */
+    private int generation;
+
+    /**
+     * The number of chunks being decompressed ahead on the work manager right now.
+     */
+    private int running;
+
+    /**
+     * Creates a new decompressor.
+     *
+     * @param file the file to read from.
+     */
+    protected ForkCompression(HfsPlusFile file) {
+        this.file = file;
+    }
+
+    @Override
+    public void read(HfsPlusFileSystem fs, long fileOffset, ByteBuffer dest) throws IOException {
+        while (dest.remaining() > 0) {
+            int chunk = FSUtils.checkedCast(fileOffset / FORK_CHUNK_SIZE);
+            int offsetInChunk = (int) (fileOffset % FORK_CHUNK_SIZE);
+
+            boolean sequential;
+            synchronized (this) {
+                sequential = chunk == nextChunk;
+                nextChunk = chunk + 1;
+            }
+
+            if (sequential) {
+                readAhead(fs, chunk + 1);
+            }
+
+            ByteBuffer uncompressed = getChunk(fs, chunk).duplicate();
+            if (offsetInChunk >= uncompressed.limit()) {
+                throw new IOException(String.format("Chunk %d only holds %d bytes, reading at %d", chunk,
+                    uncompressed.limit(), fileOffset));
+            }
+
+            // Copy the data into the destination buffer
+            int copySize = Math.min(dest.remaining(), uncompressed.limit() - offsetInChunk);
+            uncompressed.position(offsetInChunk);
+            uncompressed.limit(offsetInChunk + copySize);
+            dest.put(uncompressed);
+
+            fileOffset += copySize;
+        }
+    }
+
+    /**
+     * Stops decompressing ahead and releases the decompressed chunks. Chunks that are being decompressed ahead are
+     * waited for, so the resource fork is not read after this method returns.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        generation++;
+        for (FutureTask<ByteBuffer> task : pending.values()) {
+            task.cancel(false);
+        }
+        pending.clear();
+
+        boolean interrupted = false;
+        while (running > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        chunks.clear();
+    }
+
+    /**
+     * Gets the number of chunks the file is compressed into.
+     *
+     * @param fs the file system to read from.
+     * @return the number of chunks.
+     * @throws IOException if an error occurs.
+     */
+    protected abstract int getChunkCount(HfsPlusFileSystem fs) throws IOException;
+
+    /**
+     * Reads in and decompresses a chunk.
+     *
+     * @param fs the file system to read from.
+     * @param chunk the chunk to decompress.
+     * @return the decompressed data, from position zero up to the limit.
+     * @throws IOException if an error occurs.
+     */
+    protected abstract ByteBuffer decompressChunk(HfsPlusFileSystem fs, int chunk) throws IOException;
+
+    /**
+     * Reads in compressed data from the resource fork into a pooled buffer. The buffer may be longer than the data
+     * and should be handed back with {@link #releaseCompressed(byte[])} once decompressed.
+     *
+     * @param fs the file system to read from.
+     * @param offset the offset of the compressed data in the resource fork.
+     * @param length the length of the compressed data.
+     * @return the buffer holding the data from index zero.
+     * @throws IOException if an error occurs.
+     */
+    protected final byte[] readCompressed(HfsPlusFileSystem fs, long offset, int length) throws IOException {
+        byte[] compressed = COMPRESSED_BUFFERS.take(Math.max(length, COMPRESSED_BUFFER_SIZE));
+        try {
+            file.getCatalogFile().getResources().read(fs, offset, ByteBuffer.wrap(compressed, 0, length));
+        } catch (IOException e) {
+            releaseCompressed(compressed);
+            throw e;
+        }
+        return compressed;
+    }
+
+    /**
+     * Hands back a buffer returned by {@link #readCompressed(HfsPlusFileSystem, long, int)}.
+     *
+     * @param compressed the buffer.
+     */
+    protected final void releaseCompressed(byte[] compressed) {
+        COMPRESSED_BUFFERS.give(compressed);
+    }
+
+    /**
+     * Gets a decompressed chunk, waiting for it if it is being decompressed ahead.
+     *
+     * @param fs the file system to read from.
+     * @param chunk the chunk.
+     * @return the decompressed data.
+     * @throws IOException if an error occurs.
+     */
+    private ByteBuffer getChunk(HfsPlusFileSystem fs, int chunk) throws IOException {
+        FutureTask<ByteBuffer> task;
+        synchronized (this) {
+            ByteBuffer uncompressed = chunks.get(chunk);
+            if (uncompressed != null) {
+                return uncompressed;
+            }
+            task = pending.get(chunk);
+        }
+
+        if (task != null && !task.isCancelled()) {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for chunk " + chunk);
+            } catch (CancellationException e) {
+                // The file was closed meanwhile, decompress it here
+                log.debug("Decompressing chunk " + chunk + " ahead was cancelled");
+            } catch (ExecutionException e) {
+                // Forget the failed attempt and decompress it again here, so the error surfaces to this reader
+                log.debug("Error decompressing chunk " + chunk + " ahead", e.getCause());
+                synchronized (this) {
+                    pending.remove(chunk);
+                }
+            }
+        }
+
+        return decompress(fs, chunk);
+    }
+
+    /**
+     * Decompresses a chunk and caches it.
+     *
+     * @param fs the file system to read from.
+     * @param chunk the chunk.
+     * @return the decompressed data.
+     * @throws IOException if an error occurs.
+     */
+    private ByteBuffer decompress(HfsPlusFileSystem fs, int chunk) throws IOException {
+        ByteBuffer uncompressed = decompressChunk(fs, chunk);
+
+        synchronized (this) {
+            pending.remove(chunk);
+            chunks.put(chunk, uncompressed);
+        }
+
+        return uncompressed;
+    }
+
+    /**
+     * Decompresses a chunk ahead of the reader, unless the file has been closed since the chunk was queued.
+     *
+     * @param fs the file system to read from.
+     * @param chunk the chunk.
+     * @param queuedGeneration the generation when the chunk was queued.
+     * @return the decompressed data, or {@code null} if the file has been closed.
+     * @throws IOException if an error occurs.
+     */
+    private ByteBuffer decompressAhead(HfsPlusFileSystem fs, int chunk, int queuedGeneration) throws IOException {
+        synchronized (this) {
+            if (queuedGeneration != generation) {
+                return null;
+            }
+            running++;
+        }
+
+        try {
+            return decompress(fs, chunk);
+        } finally {
+            synchronized (this) {
+                running--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queues the decompression of the chunks following a sequential read on the work manager.
+     *
+     * @param fs the file system to read from.
+     * @param firstChunk the first chunk to decompress ahead.
+     * @throws IOException if an error occurs.
+     */
+    private void readAhead(final HfsPlusFileSystem fs, int firstChunk) throws IOException {
+        WorkManager manager = getWorkManager();
+        if (manager == null) {
+            return;
+        }
+
+        int lastChunk = Math.min(firstChunk + READ_AHEAD_CHUNKS, getChunkCount(fs));
+
+        for (int chunk = firstChunk; chunk < lastChunk; chunk++) {
+            final int aheadChunk = chunk;
+            final FutureTask<ByteBuffer> task;
+
+            synchronized (this) {
+                if (chunks.containsKey(chunk) || pending.containsKey(chunk)) {
+                    continue;
+                }
+
+                final int queuedGeneration = generation;
+                task = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call() throws Exception {
+                        return decompressAhead(fs, aheadChunk, queuedGeneration);
+                    }
+                });
+                pending.put(chunk, task);
+            }
+
+            manager.add(new Work("Decompressing chunk " + chunk) {
+                @Override
+                public void execute() {
+                    task.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Looks up the work manager.
+     *
+     * @return the work manager, or {@code null} if there is none.
+     */
+    private synchronized WorkManager getWorkManager() {
+        if (!workManagerLookedUp) {
+            workManagerLookedUp = true;
+            if (!InitialNaming.hasNameSpace()) {
+                // No name space at all, e.g. when running outside of JNode
+                log.debug("No name space, chunks will not be decompressed ahead");
+            } else {
+                try {
+                    workManager = InitialNaming.lookup(WorkManager.NAME);
+                } catch (NameNotFoundException e) {
+                    log.debug("No work manager, chunks will not be decompressed ahead");
+                }
+            }
+        }
+
+        return workManager;
+    }
+}
@@ -2,6 +2,7 @@ package org.jnode.fs.hfsplus.compression;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.apache.log4j.Logger;
 import org.jnode.fs.hfsplus.HfsPlusFile;
 import org.jnode.fs.hfsplus.HfsPlusFileSystem;
@@ -17,7 +18,7 @@ import org.jnode.util.LittleEndian;
  *
  * @author Luke Quinane
  */
-public class LzvnForkCompression implements HfsPlusCompression {
+public class LzvnForkCompression extends ForkCompression {
 
     /**
      * The logger for this class.
@@ -25,14 +26,14 @@ public class LzvnForkCompression implements HfsPlusCompression {
     private static final Logger log = Logger.getLogger(LzvnForkCompression.class);
 
     /**
-     * The LZVN fork compression chunk size.
+     * The LZVN fork compression chunk workspace size.
      */
-    private static final int LZVN_FORK_CHUNK_SIZE = 0x10000;
+    private static final int LZVN_FORK_WORKSPACE_SIZE = 0x80000;
 
     /**
-     * The LZVN fork compression chunk workspace size.
+     * The pool of workspaces the chunks are decoded into.
      */
-    private static final int LZVN_FORK_WORKSPACE_SIZE = 0x80000;
+    private static final BufferPool WORKSPACES = new BufferPool(4);
 
     /**
      * The case table lookup values.
@@ -71,11 +72,6 @@ public class LzvnForkCompression implements HfsPlusCompression {
     private static final int LZVN_11 = 11;
     private static final int LZVN_CASE_TABLE = 127;
 
-    /**
-     * The HFS+ file.
-     */
-    private final HfsPlusFile file;
-
     /**
      * The detail of the fork compression if it is being used.
      */
@@ -87,37 +83,48 @@ public class LzvnForkCompression implements HfsPlusCompression {
      * @param file the file to read from.
      */
     public LzvnForkCompression(HfsPlusFile file) {
-        this.file = file;
+        super(file);
     }
 
     @Override
-    public void read(HfsPlusFileSystem fs, long fileOffset, ByteBuffer dest) throws IOException {
-        if (lzvnForkCompressionDetails == null) {
-            lzvnForkCompressionDetails = new LzvnForkCompressionDetails(fs, file.getCatalogFile().getResources());
-        }
-
-        while (dest.remaining() > 0) {
-            int chunk = (int) (fileOffset / LZVN_FORK_CHUNK_SIZE);
-            long chunkOffset = lzvnForkCompressionDetails.getChunkOffset(chunk);
-            long nextChunkOffset = lzvnForkCompressionDetails.getChunkOffset(chunk + 1);
-            long chunkLength = nextChunkOffset - chunkOffset;
-
-            // Read in the compressed chunk
-            ByteBuffer compressed = ByteBuffer.allocate((int) chunkLength);
-            file.getCatalogFile().getResources().read(fs, chunkOffset, compressed);
-
-            // Decompress the chunk
-            ByteBuffer uncompressed = ByteBuffer.allocate(LZVN_FORK_WORKSPACE_SIZE);
-            int decodedLength = lzvnDecode(compressed, uncompressed);
+    protected int getChunkCount(HfsPlusFileSystem fs) throws IOException {
+        return getDetails(fs).getChunkCount();
+    }
 
-            // Copy the data into the destination buffer
-            uncompressed.position((int) fileOffset % LZVN_FORK_CHUNK_SIZE);
-            int copySize = Math.min(dest.remaining(), decodedLength);
-            uncompressed.limit(Math.min(uncompressed.capacity(), uncompressed.position() + copySize));
-            dest.put(uncompressed);
+    @Override
+    protected ByteBuffer decompressChunk(HfsPlusFileSystem fs, int chunk) throws IOException {
+        LzvnForkCompressionDetails details = getDetails(fs);
+        long chunkOffset = details.getChunkOffset(chunk);
+        long nextChunkOffset = details.getChunkOffset(chunk + 1);
+        int chunkLength = FSUtils.checkedCast(nextChunkOffset - chunkOffset);
+
+        // Read in the compressed chunk
+        byte[] compressed = readCompressed(fs, chunkOffset, chunkLength);
+        byte[] workspace = WORKSPACES.take(LZVN_FORK_WORKSPACE_SIZE);
+
+        try {
+            // Decompress the chunk and keep only the decoded data
+            int decodedLength = lzvnDecode(ByteBuffer.wrap(compressed),
+                ByteBuffer.wrap(workspace, 0, LZVN_FORK_WORKSPACE_SIZE));
+            return ByteBuffer.wrap(Arrays.copyOf(workspace, decodedLength));
+        } finally {
+            WORKSPACES.give(workspace);
+            releaseCompressed(compressed);
+        }
+    }
 
-            fileOffset += copySize;
+    /**
+     * Gets the fork compression details, reading them in on first use.
+     *
+     * @param fs the file system to read from.
+     * @return the details.
+     * @throws IOException if an error occurs.
+     */
+    private synchronized LzvnForkCompressionDetails getDetails(HfsPlusFileSystem fs) throws IOException {
+        if (lzvnForkCompressionDetails == null) {
+            lzvnForkCompressionDetails = new LzvnForkCompressionDetails(fs, file.getCatalogFile().getResources());
         }
+        return lzvnForkCompressionDetails;
     }
 
     /**
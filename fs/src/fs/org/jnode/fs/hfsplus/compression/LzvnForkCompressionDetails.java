@@ -50,6 +50,15 @@ public class LzvnForkCompressionDetails {
         }
     }
 
+    /**
+     * Gets the number of compressed chunks. The offset array holds one more offset, the end of the last chunk.
+     *
+     * @return the number of chunks.
+     */
+    public int getChunkCount() {
+        return chunkCount - 1;
+    }
+
     /**
      * Looks up the chunk offset for the given chunk.
      *
@@ -2,29 +2,29 @@ package org.jnode.fs.hfsplus.compression;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.LinkedList;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 import org.jnode.fs.hfsplus.HfsPlusFile;
 import org.jnode.fs.hfsplus.HfsPlusFileSystem;
 import org.jnode.fs.hfsplus.attributes.AttributeData;
-import org.jnode.fs.util.FSUtils;
 
 /**
  * ZLIB compressed data stored off in the file's resource fork.
  *
  * @author Luke Quinane
  */
-public class ZlibForkCompression implements HfsPlusCompression {
+public class ZlibForkCompression extends ForkCompression {
 
     /**
-     * The zlib fork compression chunk size.
+     * The maximum number of idle inflaters kept.
      */
-    private static final int ZLIB_FORK_CHUNK_SIZE = 0x10000;
+    private static final int POOLED_INFLATERS = 4;
 
     /**
-     * The HFS+ file.
+     * The idle inflaters, reused between chunks.
      */
-    private final HfsPlusFile file;
+    private static final LinkedList<Inflater> INFLATERS = new LinkedList<Inflater>();
 
     /**
      * The detail of the fork compression if it is being used.
@@ -37,45 +37,90 @@ public class ZlibForkCompression implements HfsPlusCompression {
      * @param file the file to read from.
      */
     public ZlibForkCompression(HfsPlusFile file) {
-        this.file = file;
+        super(file);
     }
 
     @Override
-    public void read(HfsPlusFileSystem fs, long fileOffset, ByteBuffer dest) throws IOException {
+    protected int getChunkCount(HfsPlusFileSystem fs) throws IOException {
+        return getDetails(fs).getChunkCount();
+    }
+
+    @Override
+    protected ByteBuffer decompressChunk(HfsPlusFileSystem fs, int chunk) throws IOException {
+        ZlibForkCompressionDetails details = getDetails(fs);
+        int chunkLength = details.getChunkLength(chunk);
+        byte[] compressed = readCompressed(fs, details.getChunkOffset(chunk), chunkLength);
+        byte[] uncompressed = new byte[FORK_CHUNK_SIZE];
+        int length;
+
+        try {
+            if (compressed[0] == (byte) 0xff) {
+                // 0xff seems to be a marker for uncompressed data. Skip this byte any just copy the data out.
+                length = Math.min(chunkLength - 1, FORK_CHUNK_SIZE);
+                System.arraycopy(compressed, 1, uncompressed, 0, length);
+            } else {
+                length = inflate(compressed, chunkLength, uncompressed);
+            }
+        } finally {
+            releaseCompressed(compressed);
+        }
+
+        return ByteBuffer.wrap(uncompressed, 0, length);
+    }
+
+    /**
+     * Gets the fork compression details, reading them in on first use.
+     *
+     * @param fs the file system to read from.
+     * @return the details.
+     * @throws IOException if an error occurs.
+     */
+    private synchronized ZlibForkCompressionDetails getDetails(HfsPlusFileSystem fs) throws IOException {
         if (zlibForkCompressionDetails == null) {
             zlibForkCompressionDetails = new ZlibForkCompressionDetails(fs, file.getCatalogFile().getResources());
         }
+        return zlibForkCompressionDetails;
+    }
 
-        while (dest.remaining() > 0) {
-            int chunk = FSUtils.checkedCast(fileOffset / ZLIB_FORK_CHUNK_SIZE);
-            int chunkLength = zlibForkCompressionDetails.getChunkLength(chunk);
-            long chunkOffset = zlibForkCompressionDetails.getChunkOffset(chunk);
-            ByteBuffer compressed = ByteBuffer.allocate(chunkLength);
-            file.getCatalogFile().getResources().read(fs, chunkOffset, compressed);
+    /**
+     * Inflates a chunk with a pooled inflater.
+     *
+     * @param compressed the compressed data.
+     * @param length the length of the compressed data.
+     * @param uncompressed the buffer to inflate into.
+     * @return the number of bytes inflated.
+     */
+    private static int inflate(byte[] compressed, int length, byte[] uncompressed) {
+        Inflater inflater;
+        synchronized (INFLATERS) {
+            inflater = INFLATERS.isEmpty() ? new Inflater() : INFLATERS.removeFirst();
+        }
 
-            ByteBuffer uncompressed = ByteBuffer.allocate(ZLIB_FORK_CHUNK_SIZE);
+        try {
+            inflater.setInput(compressed, 0, length);
 
-            if (compressed.array()[0] == (byte) 0xff) {
-                // 0xff seems to be a marker for uncompressed data. Skip this byte any just copy the data out.
-                compressed.position(1);
-                uncompressed.put(compressed);
-            } else {
-                Inflater inflater = new Inflater();
-                inflater.setInput(compressed.array());
-
-                try {
-                    inflater.inflate(uncompressed.array());
-                } catch (DataFormatException e) {
-                    throw new IllegalStateException("Error uncompressing data", e);
+            int inflated = 0;
+            while (inflated < uncompressed.length && !inflater.finished()) {
+                int count = inflater.inflate(uncompressed, inflated, uncompressed.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
                 }
+                inflated += count;
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Error uncompressing data", e);
+        } finally {
+            inflater.reset();
+            synchronized (INFLATERS) {
+                if (INFLATERS.size() < POOLED_INFLATERS) {
+                    INFLATERS.addFirst(inflater);
+                    inflater = null;
+                }
+            }
+            if (inflater != null) {
+                inflater.end();
             }
-
-            int copySize = Math.min(dest.remaining(), uncompressed.remaining());
-            uncompressed.position((int) fileOffset % ZLIB_FORK_CHUNK_SIZE);
-            uncompressed.limit(Math.min(uncompressed.capacity(), uncompressed.position() + dest.remaining()));
-            dest.put(uncompressed);
-
-            fileOffset += copySize;
         }
     }
 
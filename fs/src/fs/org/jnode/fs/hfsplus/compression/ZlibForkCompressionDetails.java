@@ -56,6 +56,15 @@ public class ZlibForkCompressionDetails {
         }
     }
 
+    /**
+     * Gets the number of compressed chunks.
+     *
+     * @return the number of chunks.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
     /**
      * Looks up the chunk length for the given chunk.
      *
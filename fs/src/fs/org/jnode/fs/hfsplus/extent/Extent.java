@@ -30,8 +30,11 @@ import org.jnode.fs.hfsplus.HFSPlusParams;
 import org.jnode.fs.hfsplus.HfsPlusFileSystem;
 import org.jnode.fs.hfsplus.HfsPlusForkData;
 import org.jnode.fs.hfsplus.SuperBlock;
+import org.jnode.fs.hfsplus.catalog.CatalogNodeId;
+import org.jnode.fs.hfsplus.tree.AbstractNode;
 import org.jnode.fs.hfsplus.tree.BTHeaderRecord;
 import org.jnode.fs.hfsplus.tree.IndexRecord;
+import org.jnode.fs.hfsplus.tree.NodeCache;
 import org.jnode.fs.hfsplus.tree.NodeDescriptor;
 import org.jnode.util.ByteBufferUtils;
 import org.jnode.util.NumberUtils;
@@ -116,17 +119,10 @@ public class Extent {
      */
     public final ExtentDescriptor[] getOverflowExtents(final ExtentKey key, long nodeNumber) throws IOException {
         try {
-            long currentNodeNumber = nodeNumber;
-            int nodeSize = bthr.getNodeSize();
-            ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
-            extentFile.read(fs, (currentNodeNumber * nodeSize), nodeData);
-            byte[] data = nodeData.array();
-            NodeDescriptor nd = new NodeDescriptor(data, 0);
+            AbstractNode<?, ?> node = getNode(nodeNumber);
 
-            if (nd.isIndexNode()) {
-                ExtentNode extentNode = new ExtentNode(data, nodeSize);
-
-                IndexRecord[] records = extentNode.findAll(key);
+            if (node instanceof ExtentNode) {
+                IndexRecord[] records = ((ExtentNode) node).findAll(key);
                 List<ExtentDescriptor> overflowExtents = new LinkedList<ExtentDescriptor>();
                 for (IndexRecord record : records) {
                     Collections.addAll(overflowExtents, getOverflowExtents(key, record.getIndex()));
@@ -134,12 +130,10 @@ public class Extent {
 
                 return overflowExtents.toArray(new ExtentDescriptor[overflowExtents.size()]);
 
-            } else if (nd.isLeafNode()) {
-                ExtentLeafNode node = new ExtentLeafNode(nodeData.array(), nodeSize);
-                return node.getOverflowExtents(key);
+            } else if (node instanceof ExtentLeafNode) {
+                return ((ExtentLeafNode) node).getOverflowExtents(key);
 
             } else {
-                log.info(String.format("Node %d wasn't a leaf or index: %s\n%s", nodeNumber, nd, NumberUtils.hex(data)));
                 return new ExtentDescriptor[0];
             }
 
@@ -148,4 +142,38 @@ public class Extent {
             throw new IOException(e);
         }
     }
+
+    /**
+     * Gets a node of the extents overflow tree from the file system's node cache, reading and decoding it on a miss.
+     *
+     * @param nodeNumber the node number.
+     * @return the index or leaf node, or {@code null} if the node is neither.
+     * @throws IOException if an error occurs.
+     */
+    private AbstractNode<?, ?> getNode(long nodeNumber) throws IOException {
+        final NodeCache cache = fs.getNodeCache();
+        final long treeId = CatalogNodeId.HFSPLUS_EXT_CNID.getId();
+        AbstractNode<?, ?> node = cache.get(treeId, nodeNumber);
+        if (node != null) {
+            return node;
+        }
+
+        int nodeSize = bthr.getNodeSize();
+        ByteBuffer nodeData = ByteBuffer.allocate(nodeSize);
+        extentFile.read(fs, (nodeNumber * nodeSize), nodeData);
+        byte[] data = nodeData.array();
+        NodeDescriptor nd = new NodeDescriptor(data, 0);
+
+        if (nd.isIndexNode()) {
+            node = new ExtentNode(data, nodeSize);
+        } else if (nd.isLeafNode()) {
+            node = new ExtentLeafNode(data, nodeSize);
+        } else {
+            log.info(String.format("Node %d wasn't a leaf or index: %s\n%s", nodeNumber, nd, NumberUtils.hex(data)));
+            return null;
+        }
+
+        cache.put(treeId, nodeNumber, node);
+        return node;
+    }
 }
@@ -60,23 +60,16 @@ public abstract class AbstractIndexNode<K extends Key> extends AbstractNode<K, I
      */
     public final IndexRecord[] findAll(final K key) {
         LinkedList<IndexRecord> result = new LinkedList<IndexRecord>();
-        IndexRecord largestMatchingRecord = null;
-        K largestMatchingKey = null;
+        int index = lowerBound(key);
 
-        for (IndexRecord record : records) {
-            K recordKey = (K) record.getKey();
-
-            if (recordKey.compareTo(key) < 0) {
-                // The keys/records should be sorted in this index record so take the highest key less than the parent
-                largestMatchingKey = recordKey;
-                largestMatchingRecord = record;
-            } else if (recordKey.equals(key)) {
-                result.addLast(record);
-            }
+        // The keys/records are sorted in this index record so the child of the highest key before the parent can
+        // hold the first matching records
+        if (index > 0) {
+            result.addLast(records.get(index - 1));
         }
 
-        if (largestMatchingKey != null) {
-            result.addFirst(largestMatchingRecord);
+        for (; index < records.size() && matches(index, key); index++) {
+            result.addLast(records.get(index));
         }
 
         return result.toArray(new IndexRecord[result.size()]);
@@ -55,12 +55,8 @@ public abstract class AbstractLeafNode<K extends Key> extends AbstractNode<K, Le
 
     public final LeafRecord[] findAll(K key) {
         List<LeafRecord> list = new LinkedList<LeafRecord>();
-        for (LeafRecord record : records) {
-            log.debug("Record: " + record.toString() + " Key: " + key);
-            K recordKey = (K) record.getKey();
-            if (recordKey != null && recordKey.equals(key)) {
-                list.add(record);
-            }
+        for (int index = lowerBound(key); index < records.size() && matches(index, key); index++) {
+            list.add(records.get(index));
         }
         return list.toArray(new LeafRecord[list.size()]);
     }
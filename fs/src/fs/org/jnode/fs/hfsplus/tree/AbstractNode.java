@@ -119,16 +119,50 @@ public abstract class AbstractNode<K extends Key, T extends NodeRecord> implemen
      * @return a NodeRecord or {@code null}
      */
     public final T find(K key) {
-        for (T record : records) {
-            log.debug("Record: " + record.toString() + " Key: " + key);
-            K recordKey = (K) record.getKey();
-            if (recordKey != null && recordKey.equals(key)) {
-                return record;
-            }
+        int index = lowerBound(key);
+        if (index < records.size() && matches(index, key)) {
+            return records.get(index);
         }
         return null;
     }
 
+    /**
+     * Binary searches the records for the first one that is not before the given key.
+     * <p>
+     * The records matching the key (same parent, same file, ...) are contiguous in a node and compare as equal, so
+     * only the part of the keys with a well defined order is relied on: names compared with
+     * {@link Key#compareTo(Key)} don't sort the way the tree does.
+     *
+     * @param key the key to search for.
+     * @return the index of the first record matching the key or after it, or the number of records.
+     */
+    protected final int lowerBound(K key) {
+        int low = 0;
+        int high = records.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Key recordKey = records.get(middle).getKey();
+            if (recordKey == null || (!recordKey.equals(key) && recordKey.compareTo(key) < 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Checks if a record matches the given key.
+     *
+     * @param index the index of the record.
+     * @param key the key.
+     * @return {@code true} if the record key equals the key.
+     */
+    protected final boolean matches(int index, K key) {
+        Key recordKey = records.get(index).getKey();
+        return recordKey != null && recordKey.equals(key);
+    }
+
     @Override
     public boolean addNodeRecord(T record) {
         int freeSpace = getFreeSize();
@@ -0,0 +1,83 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.fs.hfsplus.tree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least-recently-used cache of decoded B-tree nodes, shared by the catalog, extents overflow and attributes
+ * trees of a file system.
+ * <p>
+ * Nodes are keyed by the catalog node ID of the tree file and the node number in the tree.
+ */
+public final class NodeCache {
+
+    private final Map<Long, AbstractNode<?, ?>> nodes;
+
+    /**
+     * Creates a node cache.
+     *
+     * @param maxSize the maximum number of nodes held.
+     */
+    public NodeCache(final int maxSize) {
+        nodes = new LinkedHashMap<Long, AbstractNode<?, ?>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Long, AbstractNode<?, ?>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets a cached node.
+     *
+     * @param treeId the catalog node ID of the tree file.
+     * @param nodeNumber the node number.
+     * @return the node, or {@code null} if it is not cached.
+     */
+    public synchronized AbstractNode<?, ?> get(long treeId, long nodeNumber) {
+        return nodes.get(key(treeId, nodeNumber));
+    }
+
+    /**
+     * Caches a node.
+     *
+     * @param treeId the catalog node ID of the tree file.
+     * @param nodeNumber the node number.
+     * @param node the decoded node.
+     */
+    public synchronized void put(long treeId, long nodeNumber, AbstractNode<?, ?> node) {
+        nodes.put(key(treeId, nodeNumber), node);
+    }
+
+    /**
+     * Discards all the cached nodes.
+     */
+    public synchronized void clear() {
+        nodes.clear();
+    }
+
+    private static Long key(long treeId, long nodeNumber) {
+        return Long.valueOf((treeId << 32) | (nodeNumber & 0xFFFFFFFFL));
+    }
+}
@@ -386,6 +386,10 @@ public class BootSector {
         return BPB_NumFATs;
     }
 
+    public int getFSInfoSector() {
+        return BPB_FSInfo;
+    }
+
     public long getRootDirectoryStartCluster() {
         return BPB_RootClus;
     }
@@ -22,9 +22,19 @@ package org.jnode.fs.jfat;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.jnode.driver.block.BlockDeviceAPI;
 import org.jnode.fs.FileSystemException;
+import org.jnode.fs.FileSystemFullException;
 
 
 /**
@@ -32,6 +42,12 @@ import org.jnode.fs.FileSystemException;
  */
 public abstract class Fat {
 
+    /**
+     * The number of entries read from the table and scanned by a single task
+     * when the free cluster map is built, a multiple of 64.
+     */
+    private static final int FREEMAP_CHUNK = 64 * 1024;
+
     private final BlockDeviceAPI api;
     private final BootSector bs;
 
@@ -39,6 +55,12 @@ public abstract class Fat {
 
     private int lastfree;
 
+    private FatFreeMap freemap;
+
+    private FatFsInfo fsinfo;
+
+    private boolean fsinfoDirty;
+
     private final ByteBuffer clearbuf;
 
     protected Fat(BootSector bs, BlockDeviceAPI api) {
@@ -67,13 +89,42 @@ public abstract class Fat {
         clearbuf = ByteBuffer.wrap(cleardata).asReadOnlyBuffer();
     }
 
+    /**
+     * Reads the FSInfo sector of a FAT32 volume, and starts looking for free
+     * clusters from its next free hint.
+     */
+    private void readFsInfo() throws IOException {
+        if (!bs.isFat32() || bs.getFSInfoSector() == 0 || bs.getFSInfoSector() == 0xFFFF) {
+            return;
+        }
+
+        FatFsInfo info = new FatFsInfo(bs.getBytesPerSector());
+        info.read(api, getFsInfoPosition());
+        if (!info.isValid()) {
+            return;
+        }
+
+        fsinfo = info;
+
+        long next = info.getFsInfo_NextFree();
+        if (next >= firstCluster() && next < size()) {
+            lastfree = (int) next;
+        }
+    }
+
+    private long getFsInfoPosition() {
+        return (long) bs.getFSInfoSector() * bs.getBytesPerSector();
+    }
+
     public static Fat create(BlockDeviceAPI api) throws IOException, FileSystemException {
         BootSector bs = new BootSector(512);
 
         bs.read(api);
 
         if (bs.isFat32()) {
-            return new Fat32(bs, api);
+            Fat fat = new Fat32(bs, api);
+            fat.readFsInfo();
+            return fat;
         } else if (bs.isFat16()) {
             return new Fat16(bs, api);
         } else if (bs.isFat12()) {
@@ -156,6 +207,49 @@ public abstract class Fat {
         getApi().write(getClusterPosition(cluster) + offset, src);
     }
 
+    /**
+     * Reads from a run of physically contiguous clusters with a single device
+     * read.
+     *
+     * @param cluster the first cluster of the run.
+     * @param offset the offset in the first cluster.
+     * @param dst the buffer to read into, its remaining bytes may span several clusters.
+     * @throws IOException
+     */
+    public void readClusters(int cluster, int offset, ByteBuffer dst) throws IOException {
+        checkClusterRun(cluster, offset, dst.remaining());
+        getApi().read(getClusterPosition(cluster) + offset, dst);
+    }
+
+    /**
+     * Writes to a run of physically contiguous clusters with a single device
+     * write.
+     *
+     * @param cluster the first cluster of the run.
+     * @param offset the offset in the first cluster.
+     * @param src the buffer to write from, its remaining bytes may span several clusters.
+     * @throws IOException
+     */
+    public void writeClusters(int cluster, int offset, ByteBuffer src) throws IOException {
+        checkClusterRun(cluster, offset, src.remaining());
+        getApi().write(getClusterPosition(cluster) + offset, src);
+    }
+
+    private void checkClusterRun(int cluster, int offset, int length) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset<0");
+        }
+
+        if (cluster < firstCluster() || cluster >= size()) {
+            throw new IllegalArgumentException("illegal cluster # : " + cluster);
+        }
+
+        if ((offset + (long) length) > (long) (size() - cluster) * getClusterSize()) {
+            throw new IllegalArgumentException("length[" + (offset + length) + "] " +
+                "exceed the clusters from cluster[" + cluster + "]");
+        }
+    }
+
     public void clearCluster(int cluster, int start, int end) throws IOException {
         if (start < 0) {
             throw new IllegalArgumentException("start<0");
@@ -241,12 +335,48 @@ public abstract class Fat {
 
     public abstract int get(int index) throws IOException;
 
-    public abstract int set(int index, int element) throws IOException;
+    /**
+     * Sets an entry and keeps the free cluster map up to date.
+     *
+     * @return the previous value of the entry.
+     */
+    public final int set(int index, int element) throws IOException {
+        int old = setEntry(index, element);
+        if (freemap != null && isFree(old) != isFree(element)) {
+            freemap.setFree(index, isFree(element));
+            fsinfoDirty = true;
+        }
+        return old;
+    }
+
+    protected abstract int setEntry(int index, int element) throws IOException;
+
+    /**
+     * Decodes an entry from a raw copy of part of the table.
+     *
+     * @param table the table data, little endian.
+     * @param first the entry the table data starts with.
+     * @param index the entry to decode.
+     */
+    protected abstract int decode(ByteBuffer table, int first, int index);
 
     public void flush() throws IOException {
         cache.flush();
     }
 
+    /**
+     * Writes the free cluster count and next free hints of the FSInfo sector,
+     * if they changed since it was read or last written.
+     */
+    public void flushFsInfo() throws IOException {
+        if (fsinfo != null && fsinfoDirty) {
+            fsinfo.setFsInfo_FreeCount(freemap.getFreeCount());
+            fsinfo.setFsInfo_NextFree(getLastFree());
+            fsinfo.write(api, getFsInfoPosition());
+            fsinfoDirty = false;
+        }
+    }
+
     public final boolean isFreeEntry(int entry) throws IOException {
         return isFree(get(entry));
     }
@@ -264,6 +394,9 @@ public abstract class Fat {
     }
 
     public final int freeEntries() throws IOException {
+        if (freemap != null) {
+            return freemap.getFreeCount();
+        }
         int count = 0;
         for (int i = 0; i < size(); i++) {
             if (isFreeEntry(i)) {
@@ -273,6 +406,130 @@ public abstract class Fat {
         return count;
     }
 
+    /**
+     * Finds free clusters for a new chain tail, preferring a single run of
+     * contiguous clusters from the last free cluster on. The clusters stay
+     * free until they are linked with {@link #set(int, int)}.
+     *
+     * @param n the number of clusters.
+     * @return the clusters, in the order they are to be chained.
+     * @throws FileSystemFullException if there are less than n free clusters.
+     */
+    public final int[] findFreeClusters(int n) throws IOException {
+        buildFreeMap();
+
+        int[] clusters = freemap.find(getLastFree(), n);
+        if (clusters == null) {
+            throw new FileSystemFullException("no free clusters");
+        }
+
+        int next = freemap.nextFree(clusters[n - 1] + 1);
+        setLastFree((next < 0) ? firstCluster() : next);
+
+        return clusters;
+    }
+
+    /**
+     * Builds the free cluster map, if it was not built yet.
+     * <p>
+     * The table is read sequentially in large chunks, and the chunks are
+     * decoded in parallel, one task per available processor. The FSInfo hints
+     * are refreshed by the next {@link #flushFsInfo()} when they disagree with
+     * the map.
+     */
+    public final synchronized void buildFreeMap() throws IOException {
+        if (freemap != null) {
+            return;
+        }
+
+        cache.flush();
+
+        final FatFreeMap map = new FatFreeMap(firstCluster(), size());
+        final int chunks = (size() + FREEMAP_CHUNK - 1) / FREEMAP_CHUNK;
+        final int threads = Math.min(Runtime.getRuntime().availableProcessors(), chunks);
+
+        ExecutorService scanners = null;
+        if (threads > 1) {
+            scanners = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "fat-freemap");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        try {
+            List<Future<Integer>> pending = new ArrayList<Future<Integer>>();
+            for (int from = 0; from < size(); from += FREEMAP_CHUNK) {
+                Callable<Integer> scanner = createScanner(map, from, Math.min(from + FREEMAP_CHUNK, size()));
+                if (scanners == null) {
+                    map.filled(scanner.call());
+                    continue;
+                }
+
+                // bound the table data held by queued scanners
+                if (pending.size() >= 2 * threads) {
+                    map.filled(pending.remove(0).get());
+                }
+                pending.add(scanners.submit(scanner));
+            }
+            for (Future<Integer> f : pending) {
+                map.filled(f.get());
+            }
+        } catch (IOException ex) {
+            throw ex;
+        } catch (ExecutionException ex) {
+            throw new IOException("cannot scan the FAT", ex.getCause());
+        } catch (Exception ex) {
+            throw new IOException("cannot scan the FAT", ex);
+        } finally {
+            if (scanners != null) {
+                scanners.shutdownNow();
+            }
+        }
+
+        if (fsinfo != null && fsinfo.getFsInfo_FreeCount() != map.getFreeCount()) {
+            fsinfoDirty = true;
+        }
+        if (!map.isFree(getLastFree())) {
+            int next = map.nextFree(getLastFree());
+            setLastFree((next < 0) ? firstCluster() : next);
+        }
+
+        freemap = map;
+    }
+
+    /**
+     * Reads the entries [from, to) of the first table, and returns a task
+     * that marks the free ones in the map and counts them.
+     */
+    private Callable<Integer> createScanner(final FatFreeMap map, final int from, final int to)
+        throws IOException {
+        final long tableSize = getBootSector().getSectorsPerFat() * getBootSector().getBytesPerSector();
+        final long start = offset(from);
+        // enough for the widest entry at the end of the range
+        final int length = (int) (Math.min(offset(to - 1) + 4, tableSize) - start);
+
+        final ByteBuffer table = ByteBuffer.allocate(length);
+        getApi().read(getFirst(0) + start, table);
+        table.clear();
+        table.order(ByteOrder.LITTLE_ENDIAN);
+
+        return new Callable<Integer>() {
+            public Integer call() {
+                int count = 0;
+                for (int i = Math.max(from, firstCluster()); i < to; i++) {
+                    if (isFree(decode(table, from, i))) {
+                        map.fill(i);
+                        count++;
+                    }
+                }
+                return count;
+            }
+        };
+    }
+
     public final boolean isFat32() {
         return getBootSector().isFat32();
     }
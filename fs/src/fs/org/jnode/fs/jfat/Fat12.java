@@ -21,6 +21,7 @@
 package org.jnode.fs.jfat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.jnode.driver.block.BlockDeviceAPI;
 
 /**
@@ -50,10 +51,22 @@ public class Fat12 extends Fat {
         return value;
     }
 
-    public int set(int index, int element) throws IOException {
+    protected int setEntry(int index, int element) throws IOException {
         throw new UnsupportedOperationException("Can't write to FAT-12 yet");
     }
 
+    protected int decode(ByteBuffer table, int first, int index) {
+        int value = table.getShort((int) (offset(index) - offset(first))) & 0xFFFF;
+
+        if ((index % 2) == 0) {
+            value = value & 0xFFF;
+        } else {
+            value = value >> 4;
+        }
+
+        return value;
+    }
+
     public long getClusterPosition(int index) {
         BootSector bootSector = getBootSector();
 
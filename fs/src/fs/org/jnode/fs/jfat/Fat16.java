@@ -21,6 +21,7 @@
 package org.jnode.fs.jfat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.jnode.driver.block.BlockDeviceAPI;
 
 /**
@@ -41,7 +42,7 @@ public class Fat16 extends Fat {
         return (int) getUInt16(index);
     }
 
-    public int set(int index, int element) throws IOException {
+    protected int setEntry(int index, int element) throws IOException {
         long old = getUInt16(index);
 
         setInt16(index, element & 0xFFFF);
@@ -49,6 +50,10 @@ public class Fat16 extends Fat {
         return (int) (old & 0x0000FFFF);
     }
 
+    protected int decode(ByteBuffer table, int first, int index) {
+        return table.getShort((int) (offset(index) - offset(first))) & 0xFFFF;
+    }
+
     public long getClusterPosition(int index) {
         BootSector bootSector = getBootSector();
 
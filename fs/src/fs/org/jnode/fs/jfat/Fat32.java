@@ -21,6 +21,7 @@
 package org.jnode.fs.jfat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.jnode.driver.block.BlockDeviceAPI;
 
@@ -45,7 +46,7 @@ public class Fat32 extends Fat {
         return (int) (getUInt32(index) & 0x0FFFFFFF);
     }
 
-    public int set(int index, int element) throws IOException {
+    protected int setEntry(int index, int element) throws IOException {
         long old = getUInt32(index);
 
         setInt32(index, (int) ((element & 0x0FFFFFFF) | (old & 0xF0000000)));
@@ -53,6 +54,10 @@ public class Fat32 extends Fat {
         return (int) (old & 0x0FFFFFFF);
     }
 
+    protected int decode(ByteBuffer table, int first, int index) {
+        return table.getInt((int) (offset(index) - offset(first))) & 0x0FFFFFFF;
+    }
+
     public boolean isEofChain(int entry) {
         return (entry >= 0x0FFFFFF8);
     }
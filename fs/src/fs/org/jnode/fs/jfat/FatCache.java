@@ -398,7 +398,9 @@ public class FatCache {
             if (isFree())
                 throw new IllegalArgumentException("cannot write a free element");
 
+            // the extra FAT-12 byte belongs to the next element and is not written back
             elem.clear();
+            elem.limit(elementSize);
 
             long addr = address.get() * elementSize;
 
@@ -406,6 +408,7 @@ public class FatCache {
                 api.write(addr, elem);
                 addr += fatsize;
                 elem.clear();
+                elem.limit(elementSize);
             }
         }
 
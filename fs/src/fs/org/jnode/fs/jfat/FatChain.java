@@ -27,7 +27,6 @@ import java.nio.ByteBuffer;
 import java.util.NoSuchElementException;
 
 import org.apache.log4j.Logger;
-import org.jnode.fs.FileSystemFullException;
 
 /**
  * @author gvt
@@ -47,6 +46,16 @@ public class FatChain {
     private ChainPosition position;
     private ChainIterator iterator;
 
+    /*
+     * run-length map of the part of the chain that has been walked so far:
+     * run r starts at chain index runIndex[r] with cluster runCluster[r], and
+     * lasts up to the start of the next run, or up to mapped for the last run
+     */
+    private int[] runIndex = new int[8];
+    private int[] runCluster = new int[8];
+    private int runs;
+    private int mapped;
+
     public FatChain(FatFileSystem fs, int startEntry) {
         this.fs = fs;
         this.fat = fs.getFat();
@@ -77,6 +86,7 @@ public class FatChain {
 
         head = value;
 
+        clearMap();
         iterator.reset();
         position.setPosition(0);
 
@@ -100,28 +110,83 @@ public class FatChain {
     }
 
     private int getEndCluster() throws IOException {
-        int last = 0;
         /*
-         * not cheap: we have to follow the whole chain to get the last cluster
-         * value
+         * only the part of the chain that has not been mapped yet has to be
+         * followed to get the last cluster value
          */
-        for (ChainIterator i = listIterator(0); i.hasNext(); last = i.next())
-            ;
+        ChainIterator i = listIterator(mapped);
+        int last = (mapped > 0) ? i.address : 0;
+
+        while (i.hasNext())
+            last = i.next();
 
         return last;
     }
 
     public int size() throws IOException {
-        int count = 0;
         /*
-         * not cheap: we have to follow the whole chain to know the chain size
+         * only the part of the chain that has not been mapped yet has to be
+         * followed to know the chain size
          */
-        for (ChainIterator i = listIterator(0); i.hasNext(); i.next())
+        ChainIterator i = listIterator(mapped);
+        int count = mapped;
+
+        while (i.hasNext()) {
+            i.next();
             count++;
+        }
 
         return count;
     }
 
+    /*
+     * record the cluster at the given chain index in the run-length map, the
+     * map only grows at its end
+     */
+    private void mapCluster(int index, int cluster) {
+        if (index != mapped)
+            return;
+
+        if (runs == 0 || runCluster[runs - 1] + (index - runIndex[runs - 1]) != cluster) {
+            if (runs == runIndex.length) {
+                int[] newIndex = new int[runs * 2];
+                int[] newCluster = new int[runs * 2];
+                System.arraycopy(runIndex, 0, newIndex, 0, runs);
+                System.arraycopy(runCluster, 0, newCluster, 0, runs);
+                runIndex = newIndex;
+                runCluster = newCluster;
+            }
+            runIndex[runs] = index;
+            runCluster[runs] = cluster;
+            runs++;
+        }
+
+        mapped++;
+    }
+
+    /*
+     * the cluster at the given chain index, which must have been mapped
+     */
+    private int getMappedCluster(int index) {
+        int low = 0;
+        int high = runs - 1;
+
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (runIndex[mid] <= index)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+
+        return runCluster[low] + (index - runIndex[low]);
+    }
+
+    private void clearMap() {
+        runs = 0;
+        mapped = 0;
+    }
+
     private int allocateTail(int n, int m, int offset, boolean zero) throws IOException {
         if (n <= 0)
             throw new IllegalArgumentException("n<=0");
@@ -135,35 +200,15 @@ public class FatChain {
         if (dolog)
             mylog("n[" + n + "] m[" + m + "] offset[" + offset + "]");
 
-        final int last;
-        int i, found = 0, l = 0;
-        int k = (offset > 0) ? 2 : 1;
-
-        for (i = fat.getLastFree(); i < fat.size(); i++) {
-            if (fat.isFreeEntry(i)) {
-                l = i;
-                found++;
-            }
-            if (found == n)
-                break;
-        }
-
-        if (found < n) {
-            for (i = fat.firstCluster(); i < fat.getLastFree(); i++) {
-                if (fat.isFreeEntry(i))
-                    found++;
-                if (found == n)
-                    break;
-            }
-        }
-
-        if (found < n)
-            throw new FileSystemFullException("no free clusters");
-
-        last = l;
+        /*
+         * the clusters come from the free cluster map, as a single contiguous
+         * run whenever one is available
+         */
+        final int[] clusters = fat.findFreeClusters(n);
+        final int last = clusters[n - 1];
 
         if (dolog)
-            mylog("found[" + found + "] last[" + last + "]");
+            mylog("found[" + n + "] last[" + last + "]");
 
         fat.set(last, fat.eofChain());
         if (dolog)
@@ -173,63 +218,34 @@ public class FatChain {
             if (dolog)
                 mylog(n + "\t|ZERO|\t" + last + " " + fat.eofChain());
             fat.clearCluster(last);
+        } else if (offset > 0 && m == n - 1) {
+            fat.clearCluster(last, 0, offset);
         }
 
-        //
-        found = 0;
-        l = last;
-        i = last;
-        //
-        for (; found < (n - m - k); i--) {
-            if (fat.isFreeEntry(i)) {
-                fat.set(i, l);
+        /*
+         * the first m clusters are a hole and are zeroed, the next one is
+         * zeroed up to offset
+         */
+        for (int i = n - 2; i >= 0; i--) {
+            final int cluster = clusters[i];
+            if (i < m) {
+                fat.clearCluster(cluster);
                 if (dolog)
-                    mylog((n - found - 1) + "\t|allo|\t" + i + " " + l);
-                l = i;
-                found++;
-            }
-        }
-        //
-        if (offset > 0) {
-            for (;; i--) {
-                if (fat.isFreeEntry(i)) {
-                    fat.clearCluster(i, 0, offset);
-                    fat.set(i, l);
-                    if (dolog)
-                        mylog((n - found - 1) + "\t|part|\t" + i + " " + l);
-                    l = i;
-                    found++;
-                    break;
-                }
-
-            }
-        }
-        //
-        for (; found < (n - 1); i--) {
-            if (fat.isFreeEntry(i)) {
-                fat.clearCluster(i);
-                fat.set(i, l);
+                    mylog(i + "\t|zero|\t" + cluster + " " + clusters[i + 1]);
+            } else if (i == m && offset > 0) {
+                fat.clearCluster(cluster, 0, offset);
                 if (dolog)
-                    mylog((n - found - 1) + "\t|zero|\t" + i + " " + l);
-                l = i;
-                found++;
-            }
-        }
-
-        //
-        fat.rewindFree();
-        //
-        for (i = last; i < fat.size(); i++) {
-            if (fat.isFreeEntry(i)) {
-                fat.setLastFree(i);
-                break;
+                    mylog(i + "\t|part|\t" + cluster + " " + clusters[i + 1]);
+            } else if (dolog) {
+                mylog(i + "\t|allo|\t" + cluster + " " + clusters[i + 1]);
             }
+            fat.set(cluster, clusters[i + 1]);
         }
 
         if (dolog)
             mylog("LastFree: " + fat.getLastFree());
 
-        return l;
+        return clusters[0];
     }
 
     private int allocateTail(int n, int m, int offset) throws IOException {
@@ -301,6 +317,7 @@ public class FatChain {
                     mylog(l + ":" + fat.freeEntry());
             }
         } finally {
+            clearMap();
             fat.flush();
         }
 
@@ -350,27 +367,41 @@ public class FatChain {
             throw ioe;
         }
 
-        for (int l = dst.remaining(), sz = p.getPartial(), ofs = p.getOffset(), size; l > 0; l -=
-                size, sz = p.getSize(), ofs = 0) {
+        /*
+         * physically contiguous clusters are read with a single device read
+         */
+        for (int l = dst.remaining(), clsize = p.getSize(), ofs = p.getOffset(), size; l > 0; l -=
+                size, ofs = 0) {
 
-            int cluster = i.next();
+            int cluster = i.nextRun(clusterCount(ofs, l, clsize));
 
-            size = Math.min(sz, l);
+            size = (int) Math.min((long) i.getRunLength() * clsize - ofs, l);
 
             if (dolog)
-                mylog("read " + size + " bytes from cluster " + cluster + " at offset " + ofs);
+                mylog("read " + size + " bytes from " + i.getRunLength() + " clusters at " + cluster +
+                        " at offset " + ofs);
 
             int limit = dst.limit();
 
             try {
                 dst.limit(dst.position() + size);
-                fat.readCluster(cluster, ofs, dst);
+                if (i.getRunLength() > 1)
+                    fat.readClusters(cluster, ofs, dst);
+                else
+                    fat.readCluster(cluster, ofs, dst);
             } finally {
                 dst.limit(limit);
             }
         }
     }
 
+    /*
+     * the number of clusters touched by l bytes from offset ofs in a cluster
+     */
+    private static int clusterCount(int ofs, int l, int clsize) {
+        return (int) ((ofs + (long) l + clsize - 1) / clsize);
+    }
+
     /*
      * length is used to zero the last cluster allocated to a chain when this is
      * required i.e. from FatFile
@@ -441,8 +472,7 @@ public class FatChain {
             fat.flush();
         }
 
-        for (int l = src.remaining(), sz = p.getPartial(), ofs = p.getOffset(), size; l > 0; l -=
-                size, sz = clsize, ofs = 0) {
+        for (int l = src.remaining(), ofs = p.getOffset(), size; l > 0; l -= size, ofs = 0) {
 
             if (!i.hasNext()) {
                 int n = l / clsize;
@@ -464,18 +494,27 @@ public class FatChain {
                 }
             }
 
-            cluster = i.next();
+            /*
+             * physically contiguous clusters are written with a single device
+             * write
+             */
+            int first = i.nextRun(clusterCount(ofs, l, clsize));
+            cluster = i.address;
 
-            size = Math.min(sz, l);
+            size = (int) Math.min((long) i.getRunLength() * clsize - ofs, l);
 
             if (dolog)
-                mylog("write " + size + " bytes to cluster " + cluster + " at offset " + ofs);
+                mylog("write " + size + " bytes to " + i.getRunLength() + " clusters at " + first +
+                        " at offset " + ofs);
 
             int limit = src.limit();
 
             try {
                 src.limit(src.position() + size);
-                fat.writeCluster(cluster, ofs, src);
+                if (i.getRunLength() > 1)
+                    fat.writeClusters(first, ofs, src);
+                else
+                    fat.writeCluster(first, ofs, src);
             } finally {
                 src.limit(limit);
             }
@@ -624,6 +663,7 @@ public class FatChain {
         private int address;
         private int cursor;
         private int index;
+        private int runLength;
 
         private ChainIterator() {
             reset();
@@ -640,36 +680,52 @@ public class FatChain {
             index = 0;
         }
 
+        /*
+         * position the iterator after the cluster at chain index position-1,
+         * which must have been mapped: the FAT is not followed
+         */
+        private void jumpTo(int position) throws IOException {
+            address = getMappedCluster(position - 1);
+            cursor = (position < mapped) ? getMappedCluster(position) : fat.get(address);
+            index = position;
+        }
+
+        /*
+         * jump as close as possible to position using the run-length map, the
+         * FAT has to be followed only from there on
+         */
+        private boolean seek(int position) throws IOException {
+            if (position < index)
+                reset();
+
+            int known = Math.min(position, mapped);
+            if (known > index) {
+                jumpTo(known);
+                return true;
+            }
+            return false;
+        }
+
         private void setPosition(int position) throws IOException {
             if (position < 0)
                 throw new IllegalArgumentException("negative index: " + position);
 
-            if (position > index) {
-                for (int i = index; i < position; i++)
-                    next();
-            } else if (position < index) {
-                reset();
-                for (int i = 0; i < position; i++)
-                    next();
-            }
+            seek(position);
+            for (int i = index; i < position; i++)
+                next();
         }
 
         private int getCluster(int position) throws IOException {
             int cluster = 0;
 
-            if (position > index) {
+            if (position != index) {
+                if (seek(position))
+                    cluster = address;
                 for (int i = index; i < position; i++)
                     if (hasNext())
                         cluster = next();
                     else
                         break;
-            } else if (position < index) {
-                reset();
-                for (int i = 0; i < position; i++)
-                    if (hasNext())
-                        cluster = next();
-                    else
-                        break;
             } else
                 cluster = address;
 
@@ -710,11 +766,41 @@ public class FatChain {
             if (fat.isFree(cursor))
                 throw new IOException("free entry in chain at: " + address);
 
+            mapCluster(index, address);
             index++;
 
             return address;
         }
 
+        /**
+         * Move over a run of physically contiguous clusters.
+         * 
+         * @param maxCount the maximum number of clusters in the run
+         * @return the first cluster of the run, its length is given by
+         *         getRunLength()
+         * @throws IOException
+         */
+        public int nextRun(int maxCount) throws IOException {
+            int first = next();
+
+            runLength = 1;
+            if (first >= fat.firstCluster()) {
+                while (runLength < maxCount && hasNext() && cursor == address + 1) {
+                    next();
+                    runLength++;
+                }
+            }
+
+            return first;
+        }
+
+        /**
+         * The length of the run returned by the last call to nextRun().
+         */
+        public int getRunLength() {
+            return runLength;
+        }
+
         private boolean hasPrevious() {
             return !(cursor == head);
         }
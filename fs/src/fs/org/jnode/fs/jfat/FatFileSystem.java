@@ -44,6 +44,14 @@ public class FatFileSystem extends AbstractFileSystem<FatRootDirectory> {
 
         try {
             fat = Fat.create(getApi());
+
+            /*
+             * build the free cluster map now, so that the first write doesn't
+             * have to scan the whole FAT
+             */
+            if (!readOnly) {
+                fat.buildFreeMap();
+            }
         } catch (IOException ex) {
             throw new FileSystemException(ex);
         } catch (Exception e) {
@@ -88,6 +96,7 @@ public class FatFileSystem extends AbstractFileSystem<FatRootDirectory> {
     public void flush() throws IOException {
         super.flush();
         fat.flush();
+        fat.flushFsInfo();
         log.debug(getFat().getCacheStat());
     }
 
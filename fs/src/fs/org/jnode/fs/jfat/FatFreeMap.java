@@ -0,0 +1,179 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.fs.jfat;
+
+/**
+ * An in-memory bitmap of the free clusters of a FAT, with one bit set for
+ * each free entry.
+ * <p>
+ * The map is filled from the on-disk table when the file system is mounted
+ * and is then kept up to date by {@link Fat#set(int, int)}, so looking for
+ * free clusters never goes through the FAT cache.
+ */
+final class FatFreeMap {
+
+    private final long[] bits;
+    private final int first;
+    private final int size;
+    private int free;
+
+    FatFreeMap(int first, int size) {
+        this.first = first;
+        this.size = size;
+        this.bits = new long[(size + 63) >>> 6];
+    }
+
+    /**
+     * Marks a cluster free while the map is being filled. Fillers running in
+     * parallel must own disjoint ranges of 64 clusters.
+     */
+    void fill(int cluster) {
+        bits[cluster >>> 6] |= 1L << cluster;
+    }
+
+    /**
+     * Adds the free clusters counted by a filler.
+     */
+    synchronized void filled(int count) {
+        free += count;
+    }
+
+    synchronized int getFreeCount() {
+        return free;
+    }
+
+    synchronized boolean isFree(int cluster) {
+        return (bits[cluster >>> 6] & (1L << cluster)) != 0;
+    }
+
+    synchronized void setFree(int cluster, boolean value) {
+        if (cluster < first || cluster >= size) {
+            return;
+        }
+        final long mask = 1L << cluster;
+        final int word = cluster >>> 6;
+        if (value && (bits[word] & mask) == 0) {
+            bits[word] |= mask;
+            free++;
+        } else if (!value && (bits[word] & mask) != 0) {
+            bits[word] &= ~mask;
+            free--;
+        }
+    }
+
+    /**
+     * Gets the first free cluster at or after the given one, wrapping at the
+     * end of the table.
+     *
+     * @return the cluster, or -1 if there is no free cluster.
+     */
+    synchronized int nextFree(int cluster) {
+        if (cluster < first || cluster >= size) {
+            cluster = first;
+        }
+        int c = scan(cluster, size, true);
+        if (c < 0) {
+            c = scan(first, cluster, true);
+        }
+        return c;
+    }
+
+    /**
+     * Finds n free clusters, starting at goal and wrapping at the end of the
+     * table. The first run of at least n contiguous free clusters is taken if
+     * there is one, otherwise the free clusters following goal are gathered in
+     * order, which still yields runs as long as the free space allows.
+     *
+     * @return the clusters, in the order they are to be chained, or
+     *         {@code null} if there are less than n free clusters.
+     */
+    synchronized int[] find(int goal, int n) {
+        if (n > free) {
+            return null;
+        }
+        if (goal < first || goal >= size) {
+            goal = first;
+        }
+
+        int start = findRun(goal, size, n);
+        if (start < 0) {
+            start = findRun(first, goal, n);
+        }
+
+        final int[] clusters = new int[n];
+        if (start >= 0) {
+            for (int i = 0; i < n; i++) {
+                clusters[i] = start + i;
+            }
+            return clusters;
+        }
+
+        int found = 0;
+        int c = goal;
+        while (found < n) {
+            c = nextFree(c);
+            clusters[found++] = c;
+            c++;
+        }
+        return clusters;
+    }
+
+    private int findRun(int from, int limit, int n) {
+        while (from < limit) {
+            final int start = scan(from, limit, true);
+            if (start < 0) {
+                return -1;
+            }
+            int end = scan(start, limit, false);
+            if (end < 0) {
+                end = limit;
+            }
+            if (end - start >= n) {
+                return start;
+            }
+            from = end;
+        }
+        return -1;
+    }
+
+    /**
+     * Scans a word at a time for the first cluster in [from, limit) whose bit
+     * equals the given value.
+     */
+    private int scan(int from, int limit, boolean value) {
+        if (from >= limit) {
+            return -1;
+        }
+        int word = from >>> 6;
+        long w = value ? bits[word] : ~bits[word];
+        w &= -1L << from;
+        while (true) {
+            if (w != 0) {
+                final int c = (word << 6) + Long.numberOfTrailingZeros(w);
+                return (c < limit) ? c : -1;
+            }
+            if (++word >= bits.length || (word << 6) >= limit) {
+                return -1;
+            }
+            w = value ? bits[word] : ~bits[word];
+        }
+    }
+}
@@ -31,16 +31,39 @@ import org.jnode.util.LittleEndian;
  */
 public class FatFsInfo {
 
+    /**
+     * The value of the free count and next free fields when they are unknown.
+     */
+    public static final long UNKNOWN = 0xFFFFFFFFL;
+
+    private static final long LEAD_SIG = 0x41615252L;
+    private static final long STRUC_SIG = 0x61417272L;
+    private static final long TRAIL_SIG = 0xAA550000L;
+
     private byte[] sector;
 
     public FatFsInfo(int size) {
         sector = new byte[size];
     }
 
+    public void read(BlockDeviceAPI device, long offset) throws IOException {
+        device.read(offset, ByteBuffer.wrap(sector));
+    }
+
     public void write(BlockDeviceAPI device, long offset) throws IOException {
         device.write(offset, ByteBuffer.wrap(sector));
     }
 
+    /**
+     * Checks the three signatures of a sector read from the device.
+     *
+     * @return {@code true} if the sector is an FSInfo sector.
+     */
+    public boolean isValid() {
+        return sector.length >= 512 && get32(0) == LEAD_SIG && get32(484) == STRUC_SIG &&
+            get32(508) == TRAIL_SIG;
+    }
+
     protected int get8(int offset) {
         return LittleEndian.getUInt8(sector, offset);
     }
@@ -137,10 +160,22 @@ public class FatFsInfo {
         set32(488, FSI_FreeCount);
     }
 
+    public long getFsInfo_FreeCount() {
+        return get32(488);
+    }
+
     public void setFsInfo_NextFree(int FSI_Nxt_Free) {
         set32(492, FSI_Nxt_Free);
     }
 
+    /**
+     * The cluster number at which the driver should start looking for free
+     * clusters, or {@link #UNKNOWN} if there is no hint.
+     */
+    public long getFsInfo_NextFree() {
+        return get32(492);
+    }
+
     public void setReserve2() {
         byte[] reserve2 = new byte[12];
         setBytes(496, 12, reserve2);
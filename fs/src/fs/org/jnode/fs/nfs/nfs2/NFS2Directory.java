@@ -24,16 +24,19 @@ import java.io.IOException;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import org.jnode.fs.FSDirectory;
 import org.jnode.fs.FSEntry;
 import org.jnode.net.nfs.nfs2.CreateDirectoryResult;
 import org.jnode.net.nfs.nfs2.CreateFileResult;
 import org.jnode.net.nfs.nfs2.Entry;
-import org.jnode.net.nfs.nfs2.FileAttribute;
 import org.jnode.net.nfs.nfs2.ListDirectoryResult;
 import org.jnode.net.nfs.nfs2.LookupResult;
 import org.jnode.net.nfs.nfs2.NFS2Client;
@@ -68,6 +71,11 @@ public class NFS2Directory extends NFS2Object implements FSDirectory {
 
     private NFS2Entry directoryEntry;
 
+    /**
+     * The time the entries were listed from the server, 0 if they have not been listed
+     */
+    private long listTime;
+
     NFS2Directory(NFS2Entry entry) {
         super((NFS2FileSystem) entry.getFileSystem());
         this.directoryEntry = entry;
@@ -114,58 +122,30 @@ public class NFS2Directory extends NFS2Object implements FSDirectory {
      * All elements returned by the iterator must be instanceof FSEntry.
      */
     public Iterator<? extends NFS2Entry> iterator() throws IOException {
-        final NFS2Client nfsClient = getNFS2Client();
-
-        @SuppressWarnings("unused")
-        FileAttribute fileAttribute;
-        try {
-            fileAttribute =
-                AccessController.doPrivileged(new PrivilegedExceptionAction<FileAttribute>() {
-                    public FileAttribute run() throws Exception {
-                        return nfsClient.getAttribute(getNFS2Entry().getFileHandle());
-                    }
-                });
-
-        } catch (PrivilegedActionException e) {
-            Exception x = e.getException();
-            if (x instanceof NFS2Exception)
-                throw new IOException(
-                    "An error occurs when the nfs file system tried to retrieve " +
-                        "the file attributes for directory", (NFS2Exception) x);
-            else if (x instanceof IOException) {
-                throw (IOException) x;
-            } else {
-                throw new RuntimeException(x);
+        // The entries listed recently are still trusted; the entries added and
+        // removed through this directory since have updated the table
+        synchronized (this) {
+            if ((listTime != 0) && (System.currentTimeMillis() - listTime < NFS2FileSystem.LOOKUP_TIMEOUT)) {
+                return tableEntry.getEntrySet().iterator();
             }
         }
 
-        // check to see if the directory was modified
-        // TODO Check to see if is correct .
-
-        // System.out.println("FN" + fileAttribute.getLastModified());
-        // System.out.println("FO" +
-        // getEntry().getFileAttribute().getLastModified());
-        // System.out.println("size------------------" + tableEntry.size());
-        // if (fileAttribute.getLastModified().getSeconds() ==
-        // getEntry().getFileAttribute().getLastModified()
-        // .getSeconds()
-        // && tableEntry.size() != 0) {
-        // return tableEntry.getEntrySet().iterator();
-        // }
-
         // clear the cache
         tableEntry.clear();
 
         // fetch the entries
         Set<NFS2Entry> nfsEntrySet = getNFS2EntrySet();
 
-        if (nfsEntrySet.size() == 0) {
-            return EMPTY_NFSENTRY_ITERATOR;
-        }
-
         for (NFS2Entry nfsEntry : nfsEntrySet) {
             tableEntry.addEntry(nfsEntry);
         }
+        synchronized (this) {
+            listTime = System.currentTimeMillis();
+        }
+
+        if (nfsEntrySet.size() == 0) {
+            return EMPTY_NFSENTRY_ITERATOR;
+        }
         return nfsEntrySet.iterator();
     }
 
@@ -200,9 +180,20 @@ public class NFS2Directory extends NFS2Object implements FSDirectory {
                         Set<NFS2Entry> nfsEntrySet =
                             new LinkedHashSet<NFS2Entry>(entrySet.size());
 
+                        // Look up all entries at once
+                        NFS2FileSystem fileSystem = (NFS2FileSystem) getFileSystem();
+                        List<Future<LookupResult>> lookups = new ArrayList<Future<LookupResult>>(entrySet.size());
+                        for (final Entry entry : entrySet) {
+                            lookups.add(fileSystem.submit(new Callable<LookupResult>() {
+                                public LookupResult call() throws Exception {
+                                    return nfsClient.lookup(directoryEntry.getFileHandle(), entry.getName());
+                                }
+                            }));
+                        }
+
+                        int index = 0;
                         for (Entry entry : entrySet) {
-                            LookupResult lookupResult = nfsClient.lookup(
-                                directoryEntry.getFileHandle(), entry.getName());
+                            LookupResult lookupResult = NFS2FileSystem.waitFor(lookups.get(index++));
 
                             NFS2Entry nfsEntry = new NFS2Entry(
                                 (NFS2FileSystem) getFileSystem(),
@@ -301,6 +292,17 @@ public class NFS2Directory extends NFS2Object implements FSDirectory {
         tableEntry.removeEntry(name);
     }
 
+    /**
+     * Update the table after an entry of this directory has been renamed.
+     *
+     * @param oldName the name before the rename
+     * @param entry   the renamed entry
+     */
+    void entryRenamed(String oldName, NFS2Entry entry) {
+        tableEntry.removeEntry(oldName);
+        tableEntry.addEntry(entry);
+    }
+
     public NFS2Entry getNFS2Entry() {
         return directoryEntry;
     }
@@ -21,6 +21,7 @@
 package org.jnode.fs.nfs.nfs2;
 
 import java.io.IOException;
+import org.apache.log4j.Logger;
 import org.jnode.fs.FSAccessRights;
 import org.jnode.fs.FSDirectory;
 import org.jnode.fs.FSEntry;
@@ -35,6 +36,8 @@ import org.jnode.net.nfs.nfs2.Time;
  */
 public class NFS2Entry extends NFS2Object implements FSEntry {
 
+    private static final Logger log = Logger.getLogger(NFS2Entry.class);
+
     private NFS2Directory parent;
 
     private NFS2Directory directory;
@@ -45,6 +48,11 @@ public class NFS2Entry extends NFS2Object implements FSEntry {
 
     private FileAttribute fileAttribute;
 
+    /**
+     * The time the attributes were received from the server
+     */
+    private long attributeTime;
+
     private String name;
 
     @SuppressWarnings("unused")
@@ -58,6 +66,7 @@ public class NFS2Entry extends NFS2Object implements FSEntry {
         this.parent = parent;
         this.name = name;
         this.fileAttribute = fileAttribute;
+        this.attributeTime = System.currentTimeMillis();
         this.fileHandle = fileHandle;
 
         if (fileAttribute.getType() == FileAttribute.DIRECTORY) {
@@ -100,15 +109,15 @@ public class NFS2Entry extends NFS2Object implements FSEntry {
     }
 
     public long getLastChanged() throws IOException {
-        return fileAttribute.getLastStatusChanged().toJavaMillis();
+        return getFileAttribute().getLastStatusChanged().toJavaMillis();
     }
 
     public long getLastModified() throws IOException {
-        return fileAttribute.getLastModified().toJavaMillis();
+        return getFileAttribute().getLastModified().toJavaMillis();
     }
 
     public long getLastAccessed() throws IOException {
-        return fileAttribute.getLastAccessed().toJavaMillis();
+        return getFileAttribute().getLastAccessed().toJavaMillis();
     }
 
     public boolean isDirectory() {
@@ -133,8 +142,8 @@ public class NFS2Entry extends NFS2Object implements FSEntry {
     public void setLastModified(long lastModified) throws IOException {
         NFS2Client client = getNFS2Client();
         try {
-            client.setAttribute(getFileHandle(), -1, -1, -1, -1,
-                new Time(-1, -1), new Time(lastModified));
+            setFileAttribute(client.setAttribute(getFileHandle(), -1, -1, -1, -1,
+                new Time(-1, -1), new Time(lastModified)));
         } catch (NFS2Exception e) {
             throw new IOException(e.getMessage(), e);
         }
@@ -143,8 +152,8 @@ public class NFS2Entry extends NFS2Object implements FSEntry {
     public void setLastAccessed(long lastAccessed) throws IOException {
         NFS2Client client = getNFS2Client();
         try {
-            client.setAttribute(getFileHandle(), -1, -1, -1, -1,
-                new Time(lastAccessed), new Time(-1, -1));
+            setFileAttribute(client.setAttribute(getFileHandle(), -1, -1, -1, -1,
+                new Time(lastAccessed), new Time(-1, -1)));
         } catch (NFS2Exception e) {
             throw new IOException(e.getMessage(), e);
         }
@@ -160,10 +169,53 @@ public class NFS2Entry extends NFS2Object implements FSEntry {
         } catch (NFS2Exception e) {
             throw new IOException("Can not rename ." + e.getMessage(), e);
         }
+        String oldName = name;
+        name = newName;
+        parentDirectory.entryRenamed(oldName, this);
     }
 
+    /**
+     * Gets the attributes of this entry. They are fetched again from the server
+     * once they are older than {@link NFS2FileSystem#ATTRIBUTE_TIMEOUT}.
+     */
     public FileAttribute getFileAttribute() {
-        return fileAttribute;
+        synchronized (this) {
+            if (System.currentTimeMillis() - attributeTime < NFS2FileSystem.ATTRIBUTE_TIMEOUT) {
+                return fileAttribute;
+            }
+        }
+        try {
+            refreshFileAttribute();
+        } catch (IOException e) {
+            log.debug("Can not refresh the attributes of " + name + ", using the old ones", e);
+        }
+        synchronized (this) {
+            return fileAttribute;
+        }
+    }
+
+    /**
+     * Fetch the attributes of this entry from the server.
+     *
+     * @throws IOException
+     */
+    void refreshFileAttribute() throws IOException {
+        NFS2Client client = getNFS2Client();
+        try {
+            setFileAttribute(client.getAttribute(fileHandle));
+        } catch (NFS2Exception e) {
+            throw new IOException("Can not get the attributes of " + name + "." + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replace the attributes of this entry with attributes just received from the server.
+     *
+     * @param fileAttribute
+     */
+    synchronized void setFileAttribute(FileAttribute fileAttribute) {
+        this.fileAttribute = fileAttribute;
+        this.attributeTime = System.currentTimeMillis();
     }
 
     public byte[] getFileHandle() {
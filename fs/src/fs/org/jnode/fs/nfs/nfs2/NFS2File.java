@@ -21,24 +21,89 @@
 package org.jnode.fs.nfs.nfs2;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.jnode.fs.FSFile;
+import org.jnode.net.nfs.nfs2.FileAttribute;
 import org.jnode.net.nfs.nfs2.NFS2Client;
 import org.jnode.net.nfs.nfs2.NFS2Exception;
-import org.jnode.net.nfs.nfs2.ReadFileResult;
 import org.jnode.net.nfs.nfs2.Time;
 
 /**
  * A NFS2File model a NFS file .
+ * <p/>
+ * The file is read in blocks of {@link NFS2Client#MAX_DATA} bytes, which are
+ * fetched in parallel and kept for {@link NFS2FileSystem#ATTRIBUTE_TIMEOUT}
+ * milliseconds. When the file is read sequentially, the next blocks are read
+ * ahead. Writes are sent in the background; {@link #flush()} waits until the
+ * server has stored them and reports the errors.
  * 
  * @author Andrei Dore
  */
 public class NFS2File extends NFS2Object implements FSFile {
 
+    private static final int BLOCK_SIZE = NFS2Client.MAX_DATA;
+
+    /**
+     * The number of blocks read ahead of a sequential reader.
+     */
+    private static final int READ_AHEAD_BLOCKS = 8;
+
+    /**
+     * The maximum number of blocks kept for a file.
+     */
+    private static final int CACHED_BLOCKS = 32;
+
+    /**
+     * The maximum number of writes of a file in flight.
+     */
+    private static final int MAX_PENDING_WRITES = 2 * NFS2FileSystem.MAX_OUTSTANDING_RPCS;
+
     private NFS2Entry entry;
 
-    NFS2File(NFS2Entry entry) {
+    /**
+     * The blocks read or being read, the least recently used first.
+     */
+    private final Map<Long, CachedBlock> blocks = new LinkedHashMap<Long, CachedBlock>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CachedBlock> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    /**
+     * The writes in flight, the oldest first.
+     */
+    private final LinkedList<PendingWrite> writes = new LinkedList<PendingWrite>();
+
+    /**
+     * The first error of a write in the background, reported by the next write or flush.
+     */
+    private IOException writeError;
+
+    /**
+     * The end of the data written since the last flush.
+     */
+    private long writtenEnd;
+
+    /**
+     * The offset following the last read, used to detect sequential reads. Reading from the start of the file
+     * counts as sequential.
+     */
+    private long nextOffset;
+
+    public NFS2File(NFS2Entry entry) {
         super((NFS2FileSystem) entry.getFileSystem());
         this.entry = entry;
     }
@@ -49,46 +114,91 @@ public class NFS2File extends NFS2Object implements FSFile {
      * @return long
      */
     public long getLength() {
-        return entry.getFileAttribute().getSize();
+        final long size = entry.getFileAttribute().getSize();
+        synchronized (this) {
+            return Math.max(size, writtenEnd);
+        }
     }
 
     /**
      * Read <code>len</code> bytes from the given position. The read data is
      * read fom this file starting at offset <code>fileOffset</code> and
      * stored in <code>dest</code> starting at offset <code>ofs</code>.
+     * Reading stops at the end of the file.
      * 
      * @param fileOffset
      * @param dest
      * @throws java.io.IOException
      */
     public void read(long fileOffset, ByteBuffer dest) throws IOException {
-        NFS2Client client = getNFS2Client();
-        try {
-            int length;
-            while (true) {
-                length = Math.min(NFS2Client.MAX_DATA, dest.remaining());
-                if (length == 0) {
-                    return;
+        if (!dest.hasRemaining()) {
+            return;
+        }
+
+        // The data written before must be read back
+        waitForWrites();
+
+        final long length = getLength();
+        final long first = fileOffset / BLOCK_SIZE;
+        final long last = (fileOffset + dest.remaining() - 1) / BLOCK_SIZE;
+        final List<Future<byte[]>> pending = new ArrayList<Future<byte[]>>();
+        synchronized (this) {
+            for (long block = first; block <= last; block++) {
+                pending.add(getBlock(block));
+            }
+            if (fileOffset == nextOffset) {
+                for (long block = last + 1; (block <= last + READ_AHEAD_BLOCKS) && (block * BLOCK_SIZE < length);
+                     block++) {
+                    getBlock(block);
                 }
-                ReadFileResult result =
-                        client.readFile(entry.getFileHandle(), (int) fileOffset, length);
-                byte[] data = result.getData();
-                length = data.length;
-                fileOffset += length;
-                dest.put(data);
             }
-        } catch (NFS2Exception e) {
-            throw new IOException("Error reading file. Reason:" + e.getMessage(), e);
+            nextOffset = fileOffset + dest.remaining();
+        }
+
+        for (int i = 0; i < pending.size(); i++) {
+            final long block = first + i;
+            final byte[] data = getData(block, pending.get(i));
+            final int ofs = (int) (fileOffset - block * BLOCK_SIZE);
+            if (ofs >= data.length) {
+                // End of file
+                return;
+            }
+            final int count = Math.min(data.length - ofs, dest.remaining());
+            dest.put(data, ofs, count);
+            fileOffset += count;
+            if (data.length < BLOCK_SIZE) {
+                return;
+            }
         }
     }
 
     /**
-     * Flush any cached data to the disk.
+     * Wait until the server has stored all data written to this file.
      * 
-     * @throws java.io.IOException
+     * @throws java.io.IOException if a write failed
      */
     public void flush() throws IOException {
+        waitForWrites();
+
+        final IOException error;
+        final boolean written;
+        synchronized (this) {
+            error = writeError;
+            writeError = null;
+            written = writtenEnd > 0;
+        }
+        getNFS2FileSystem().setDirty(this, false);
+        if (error != null) {
+            throw error;
+        }
 
+        if (written) {
+            // The size and times have been changed by the writes
+            entry.refreshFileAttribute();
+            synchronized (this) {
+                writtenEnd = 0;
+            }
+        }
     }
 
     /**
@@ -98,37 +208,206 @@ public class NFS2File extends NFS2Object implements FSFile {
      * @throws java.io.IOException
      */
     public void setLength(long length) throws IOException {
+        flush();
         NFS2Client client = getNFS2Client();
         try {
-            client.setAttribute(entry.getFileHandle(), -1, -1, -1, (int) length, new Time(-1, -1),
-                    new Time(-1, -1));
+            entry.setFileAttribute(client.setAttribute(entry.getFileHandle(), -1, -1, -1, (int) length,
+                    new Time(-1, -1), new Time(-1, -1)));
         } catch (NFS2Exception e) {
             throw new IOException(e.getMessage(), e);
         }
+        synchronized (this) {
+            blocks.clear();
+        }
     }
 
     /**
      * Write <code>len</code> bytes to the given position. The data is read
      * from <code>src</code> starting at offset <code>ofs</code> and written
-     * to this file starting at offset <code>fileOffset</code>.
+     * to this file starting at offset <code>fileOffset</code>. The data is
+     * sent in the background; an error is reported by the next write or flush.
      * 
      * @param fileOffset
      * @param src
      * @throws java.io.IOException
      */
     public void write(long fileOffset, ByteBuffer src) throws IOException {
-        NFS2Client client = getNFS2Client();
+        synchronized (this) {
+            if (writeError != null) {
+                final IOException error = writeError;
+                writeError = null;
+                throw error;
+            }
+        }
+
+        final NFS2FileSystem fs = getNFS2FileSystem();
+        fs.setDirty(this, true);
+        while (src.remaining() > 0) {
+            final int count = Math.min(BLOCK_SIZE, src.remaining());
+            final byte[] data = new byte[count];
+            src.get(data);
+
+            // Writes to the same bytes must reach the server in order
+            PendingWrite overlapping;
+            while ((overlapping = findOverlappingWrite(fileOffset, count)) != null) {
+                complete(overlapping);
+            }
+
+            final int offset = (int) fileOffset;
+            final Future<FileAttribute> future = fs.submit(new Callable<FileAttribute>() {
+                public FileAttribute call() throws Exception {
+                    return getNFS2Client().writeFile(entry.getFileHandle(), offset, data);
+                }
+            });
+            final PendingWrite oldest;
+            synchronized (this) {
+                writes.add(new PendingWrite(fileOffset, count, future));
+                writtenEnd = Math.max(writtenEnd, fileOffset + count);
+                invalidate(fileOffset, count);
+                oldest = (writes.size() > MAX_PENDING_WRITES) ? writes.getFirst() : null;
+            }
+            if (oldest != null) {
+                complete(oldest);
+            }
+            fileOffset += count;
+        }
+    }
+
+    private NFS2FileSystem getNFS2FileSystem() {
+        return (NFS2FileSystem) getFileSystem();
+    }
+
+    /**
+     * Gets a block from the cache, or starts reading it. The caller must hold the lock of this file.
+     */
+    private Future<byte[]> getBlock(final long block) throws IOException {
+        final long now = System.currentTimeMillis();
+        final CachedBlock cached = blocks.get(block);
+        if ((cached != null) && (now - cached.time < NFS2FileSystem.ATTRIBUTE_TIMEOUT)) {
+            return cached.data;
+        }
+        final Future<byte[]> data = getNFS2FileSystem().submit(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return getNFS2Client().readFile(entry.getFileHandle(), (int) (block * BLOCK_SIZE), BLOCK_SIZE)
+                    .getData();
+            }
+        });
+        blocks.put(block, new CachedBlock(data, now));
+        return data;
+    }
+
+    /**
+     * Wait for the data of a block. A block that could not be read is removed from the cache.
+     */
+    private byte[] getData(long block, Future<byte[]> data) throws IOException {
         try {
-            byte[] data = new byte[NFS2Client.MAX_DATA];
-            int count;
-            while (src.remaining() > 0) {
-                count = Math.min(NFS2Client.MAX_DATA, src.remaining());
-                src.get(data, 0, count);
-                client.writeFile(entry.getFileHandle(), (int) fileOffset, data, 0, count);
-                fileOffset += count;
+            return NFS2FileSystem.waitFor(data);
+        } catch (IOException e) {
+            synchronized (this) {
+                final CachedBlock cached = blocks.get(block);
+                if ((cached != null) && (cached.data == data)) {
+                    blocks.remove(block);
+                }
             }
-        } catch (NFS2Exception e) {
-            throw new IOException("Error writing file . Reason: " + e.getMessage(), e);
+            throw new IOException("Error reading file. Reason:" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Remove the blocks that overlap with the given range from the cache. The caller must hold the lock of this file.
+     */
+    private void invalidate(long fileOffset, int count) {
+        final long first = fileOffset / BLOCK_SIZE;
+        final long last = (fileOffset + count - 1) / BLOCK_SIZE;
+        for (Iterator<Long> i = blocks.keySet().iterator(); i.hasNext();) {
+            final long block = i.next();
+            if ((block >= first) && (block <= last)) {
+                i.remove();
+            }
+        }
+    }
+
+    private synchronized PendingWrite findOverlappingWrite(long fileOffset, int count) {
+        for (PendingWrite w : writes) {
+            if ((w.offset < fileOffset + count) && (fileOffset < w.offset + w.count)) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait for all writes in flight.
+     *
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    private void waitForWrites() throws InterruptedIOException {
+        while (true) {
+            final PendingWrite oldest;
+            synchronized (this) {
+                if (writes.isEmpty()) {
+                    return;
+                }
+                oldest = writes.getFirst();
+            }
+            complete(oldest);
+        }
+    }
+
+    /**
+     * Wait for a write and remember its error. A write stays in flight when
+     * the wait is interrupted, since it may still reach the server.
+     *
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    private void complete(PendingWrite write) throws InterruptedIOException {
+        IOException error = null;
+        try {
+            NFS2FileSystem.waitFor(write.future);
+        } catch (IOException e) {
+            if ((e instanceof InterruptedIOException) && !write.future.isDone()) {
+                Thread.currentThread().interrupt();
+                throw (InterruptedIOException) e;
+            }
+            error = new IOException("Error writing file . Reason: " + e.getMessage(), e);
+        }
+        synchronized (this) {
+            writes.remove(write);
+            if ((error != null) && (writeError == null)) {
+                writeError = error;
+            }
+        }
+    }
+
+    /**
+     * A block of the file as read from the server.
+     */
+    private static class CachedBlock {
+        final Future<byte[]> data;
+
+        /**
+         * The time the block was read
+         */
+        final long time;
+
+        CachedBlock(Future<byte[]> data, long time) {
+            this.data = data;
+            this.time = time;
+        }
+    }
+
+    /**
+     * A write sent to the server, without a reply yet.
+     */
+    private static class PendingWrite {
+        final long offset;
+        final int count;
+        final Future<FileAttribute> future;
+
+        PendingWrite(long offset, int count, Future<FileAttribute> future) {
+            this.offset = offset;
+            this.count = count;
+            this.future = future;
         }
     }
 }
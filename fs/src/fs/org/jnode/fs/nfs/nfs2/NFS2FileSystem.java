@@ -21,6 +21,20 @@
 package org.jnode.fs.nfs.nfs2;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.jnode.driver.Device;
 import org.jnode.driver.DeviceListener;
 import org.jnode.fs.FileSystem;
@@ -38,6 +52,21 @@ import org.jnode.net.nfs.nfs2.mount.MountResult;
  */
 public class NFS2FileSystem implements FileSystem<NFS2RootEntry> {
 
+    /**
+     * The maximum number of rpc calls in flight for reads, writes and lookups.
+     */
+    static final int MAX_OUTSTANDING_RPCS = 8;
+
+    /**
+     * How long the attributes of a file or directory, and the data read from a file, are trusted in milliseconds.
+     */
+    static final long ATTRIBUTE_TIMEOUT = 3000;
+
+    /**
+     * How long the result of a lookup or a directory listing is trusted in milliseconds.
+     */
+    static final long LOOKUP_TIMEOUT = 30000;
+
     private NFS2Device device;
 
     private NFS2RootEntry root;
@@ -52,6 +81,16 @@ public class NFS2FileSystem implements FileSystem<NFS2RootEntry> {
 
     private final NFS2FileSystemType type;
 
+    /**
+     * The threads that run the rpc calls in the background, created when first needed.
+     */
+    private ExecutorService rpcExecutor;
+
+    /**
+     * The files with writes that have not been flushed.
+     */
+    private final Set<NFS2File> dirtyFiles = new HashSet<NFS2File>();
+
     public NFS2FileSystem(final NFS2Device device, boolean readOnly, NFS2FileSystemType type)
         throws FileSystemException {
         this.device = device;
@@ -116,6 +155,22 @@ public class NFS2FileSystem implements FileSystem<NFS2RootEntry> {
      * @throws java.io.IOException
      */
     public void close() throws IOException {
+        // Write the data of the files first, and report the first error once everything is closed
+        IOException flushError = null;
+        final List<NFS2File> files;
+        synchronized (this) {
+            files = new ArrayList<NFS2File>(dirtyFiles);
+        }
+        for (NFS2File file : files) {
+            try {
+                file.flush();
+            } catch (IOException e) {
+                if (flushError == null) {
+                    flushError = e;
+                }
+            }
+        }
+
         // FIXME ... we squash exceptions though the signature says they can be thrown.
         if (mountClient != null) {
             try {
@@ -138,7 +193,16 @@ public class NFS2FileSystem implements FileSystem<NFS2RootEntry> {
                 // ignore
             }
         }
-        closed = true;
+        synchronized (this) {
+            if (rpcExecutor != null) {
+                rpcExecutor.shutdown();
+                rpcExecutor = null;
+            }
+            closed = true;
+        }
+        if (flushError != null) {
+            throw flushError;
+        }
     }
 
     /**
@@ -202,7 +266,84 @@ public class NFS2FileSystem implements FileSystem<NFS2RootEntry> {
         return null;
     }
 
-    NFS2Client getNFSClient() {
+    public NFS2Client getNFSClient() {
         return nfsClient;
     }
+
+    /**
+     * Run a call on one of the rpc threads, so that many calls can be in flight at once.
+     *
+     * @param call the call, which runs with the permissions of this filesystem
+     * @return the result of the call
+     * @throws IOException if the filesystem is closed
+     */
+    public <T> Future<T> submit(final Callable<T> call) throws IOException {
+        final ExecutorService executor;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The file system is closed");
+            }
+            if (rpcExecutor == null) {
+                rpcExecutor = Executors.newFixedThreadPool(MAX_OUTSTANDING_RPCS, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "nfs-rpc");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            executor = rpcExecutor;
+        }
+        return executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                try {
+                    return AccessController.doPrivileged(new PrivilegedExceptionAction<T>() {
+                        public T run() throws Exception {
+                            return call.call();
+                        }
+                    });
+                } catch (PrivilegedActionException e) {
+                    throw e.getException();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for the result of a call started with {@link #submit(Callable)}.
+     *
+     * @param future the call
+     * @return the result of the call
+     * @throws IOException if the call failed
+     */
+    static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for the nfs server");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException("Error calling the nfs server. Reason: " + cause.getMessage(), cause);
+            }
+        }
+    }
+
+    /**
+     * Record whether a file has writes that have not been flushed, so they are flushed when the filesystem is closed.
+     *
+     * @param file  the file
+     * @param dirty true if the file has such writes
+     */
+    synchronized void setDirty(NFS2File file, boolean dirty) {
+        if (dirty) {
+            dirtyFiles.add(file);
+        } else {
+            dirtyFiles.remove(file);
+        }
+    }
 }
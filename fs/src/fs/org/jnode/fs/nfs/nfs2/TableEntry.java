@@ -20,6 +20,7 @@
  
 package org.jnode.fs.nfs.nfs2;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -45,7 +46,7 @@ public class TableEntry {
     }
 
     public synchronized void addEntry(NFS2Entry entry) {
-        entryMap.put(entry.getName(), new EntryInfo(entry, System.currentTimeMillis() + 30000));
+        entryMap.put(entry.getName(), new EntryInfo(entry, System.currentTimeMillis() + NFS2FileSystem.LOOKUP_TIMEOUT));
     }
 
     public synchronized void removeEntry(String name) {
@@ -58,7 +59,8 @@ public class TableEntry {
         }
 
         Set<NFS2Entry> entrySet = new HashSet<NFS2Entry>(entryMap.size());
-        for (String name : entryMap.keySet()) {
+        // getEntry removes the expired entries
+        for (String name : new ArrayList<String>(entryMap.keySet())) {
             NFS2Entry entry = getEntry(name);
             if (entry != null) {
                 entrySet.add(entry);
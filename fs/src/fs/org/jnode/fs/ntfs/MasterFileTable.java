@@ -124,11 +124,21 @@ public class MasterFileTable extends FileRecord {
         public static final int FIRST_USER = 16;
     }
 
+    /**
+     * The maximum number of decoded file records kept in the record cache.
+     */
+    private static final int RECORD_CACHE_SIZE = 1024;
+
     /**
      * The cached length of the MFT.
      */
     private long mftLength;
 
+    /**
+     * The recently used file records, with the attributes and data runs they have decoded so far.
+     */
+    private final RecordCache<Long, FileRecord> recordCache = new RecordCache<Long, FileRecord>(RECORD_CACHE_SIZE);
+
     /**
      * @param volume
      * @param buffer
@@ -194,11 +204,18 @@ public class MasterFileTable extends FileRecord {
     public FileRecord getRecordUnchecked(long index) throws IOException {
         log.debug("getRecord(" + index + ")");
 
+        FileRecord fileRecord = recordCache.get(index);
+        if (fileRecord != null) {
+            return fileRecord;
+        }
+
         final NTFSVolume volume = getVolume();
 
-        // read the buffer
+        // read the buffer, the fix-ups are applied once when the record is decoded
         final byte[] buffer = readRecord(index);
-        return new FileRecord(volume, index, buffer, 0);
+        fileRecord = new FileRecord(volume, index, buffer, 0);
+        recordCache.put(index, fileRecord);
+        return fileRecord;
     }
 
     /**
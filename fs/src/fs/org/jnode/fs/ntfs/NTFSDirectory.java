@@ -28,6 +28,8 @@ import org.jnode.fs.FSDirectoryId;
 import org.jnode.fs.FSEntry;
 import org.jnode.fs.FileSystem;
 import org.jnode.fs.ReadOnlyFileSystemException;
+import org.jnode.fs.ntfs.index.IndexEntry;
+import org.jnode.fs.ntfs.index.IndexSearchCallback;
 import org.jnode.fs.ntfs.index.NTFSIndex;
 
 /**
@@ -86,10 +88,44 @@ public class NTFSDirectory implements FSDirectory, FSDirectoryId {
     }
 
     /**
-     * Gets an entry with a given name.
+     * Gets an entry with a given name. The $I30 index is searched for the name, collating names the way NTFS does:
+     * upper cased through the volume's $UpCase table first, then as they are.
      */
-    public FSEntry getEntry(String name) {
+    public FSEntry getEntry(final String name) {
         log.debug("getEntry(" + name + ")");
+
+        final char[] upCase;
+        try {
+            upCase = fs.getNTFSVolume().getUpCase();
+        } catch (IOException e) {
+            log.error("Error reading $UpCase, searching the directory sequentially", e);
+            return findEntry(name);
+        }
+
+        final IndexEntry indexEntry = index.search(new IndexSearchCallback() {
+            @Override
+            public int visitAndCompareEntry(IndexEntry entry) {
+                FileNameAttribute.Structure fileName = new FileNameAttribute.Structure(entry, IndexEntry.CONTENT_OFFSET);
+                return compareFileNames(upCase, name, fileName.getFileName());
+            }
+        });
+
+        if (indexEntry == null) {
+            return null;
+        }
+
+        FileNameAttribute.Structure fileName = new FileNameAttribute.Structure(indexEntry, IndexEntry.CONTENT_OFFSET);
+        if (fileName.getNameSpace() == FileNameAttribute.NameSpace.DOS) {
+            // DOS filename entries are not listed by the iterator either
+            return null;
+        }
+        return new NTFSEntry(fs, indexEntry);
+    }
+
+    /**
+     * Gets an entry with a given name by iterating over all the entries of this directory.
+     */
+    private FSEntry findEntry(String name) {
         for (Iterator<FSEntry> it = this.iterator(); it.hasNext(); ) {
             final NTFSEntry entry = (NTFSEntry) it.next();
             if (entry.getName().equals(name)) {
@@ -99,6 +135,34 @@ public class NTFSDirectory implements FSDirectory, FSDirectoryId {
         return null;
     }
 
+    /**
+     * Compares two file names in the order of the $I30 index.
+     *
+     * @param upCase the upper case table of the volume.
+     * @param name1 the first name.
+     * @param name2 the second name.
+     * @return a negative number, zero or a positive number if the first name is before, equal to or after the second.
+     */
+    static int compareFileNames(char[] upCase, String name1, String name2) {
+        final int length = Math.min(name1.length(), name2.length());
+
+        for (int i = 0; i < length; i++) {
+            char c1 = upCase[name1.charAt(i)];
+            char c2 = upCase[name2.charAt(i)];
+            if (c1 != c2) {
+                return (c1 < c2) ? -1 : 1;
+            }
+        }
+
+        if (name1.length() != name2.length()) {
+            return (name1.length() < name2.length()) ? -1 : 1;
+        }
+
+        // Names which only differ by case (POSIX name space) are ordered as they are
+        int result = name1.compareTo(name2);
+        return (result < 0) ? -1 : (result > 0) ? 1 : 0;
+    }
+
     @Override
     public FSEntry getEntryById(String id) throws IOException {
         FileRecord fileRecord = fs.getNTFSVolume().getMFT().getRecord(Long.parseLong(id));
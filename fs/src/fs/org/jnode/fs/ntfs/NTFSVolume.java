@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import org.apache.log4j.Logger;
 import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.fs.ntfs.attribute.NTFSAttribute;
+import org.jnode.util.LittleEndian;
 
 /**
  * @author Chira
@@ -49,6 +51,22 @@ public class NTFSVolume {
 
     private FileRecord rootDirectory;
 
+    /**
+     * The maximum number of decoded index blocks kept in the index block cache.
+     */
+    private static final int INDEX_BLOCK_CACHE_SIZE = 256;
+
+    /**
+     * The recently used index blocks of all the indexes on this volume.
+     */
+    private final RecordCache<Object, NTFSRecord> indexBlockCache =
+        new RecordCache<Object, NTFSRecord>(INDEX_BLOCK_CACHE_SIZE);
+
+    /**
+     * The upper case equivalents of all unicode characters, from $UpCase.
+     */
+    private char[] upCase;
+
     /**
      * Initialize this instance.
      */
@@ -152,6 +170,38 @@ public class NTFSVolume {
         return rootDirectory;
     }
 
+    /**
+     * Gets the cache of decoded index blocks, shared by all the indexes on this volume.
+     *
+     * @return the index block cache.
+     */
+    public RecordCache<Object, NTFSRecord> getIndexBlockCache() {
+        return indexBlockCache;
+    }
+
+    /**
+     * Gets the upper case table used by this volume to collate file names.
+     *
+     * @return the upper case equivalents of all 65536 unicode characters.
+     * @throws IOException if an error occurs reading $UpCase.
+     */
+    public synchronized char[] getUpCase() throws IOException {
+        if (upCase == null) {
+            final FileRecord record = getMFT().getRecord(MasterFileTable.SystemFiles.UPCASE);
+            final int length = (int) Math.min(record.getAttributeTotalSize(NTFSAttribute.Types.DATA, null),
+                Character.MAX_VALUE * 2 + 2);
+            final byte[] data = new byte[length];
+            record.readData(0, data, 0, length);
+
+            final char[] table = new char[Character.MAX_VALUE + 1];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (2 * i + 1 < length) ? (char) LittleEndian.getUInt16(data, 2 * i) : (char) i;
+            }
+            upCase = table;
+        }
+        return upCase;
+    }
+
     /**
      * @return Returns the currentNameSpace.
      */
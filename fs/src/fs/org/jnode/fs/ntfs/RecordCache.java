@@ -0,0 +1,73 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.fs.ntfs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least-recently-used cache of decoded NTFS records.
+ * <p>
+ * The NTFS support is read-only, so cached records never have to be
+ * invalidated, they are only discarded when the cache is full.
+ *
+ * @param <K> the key type.
+ * @param <V> the record type.
+ */
+public final class RecordCache<K, V> {
+
+    private final Map<K, V> map;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the maximum number of records held.
+     */
+    public RecordCache(final int maxSize) {
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets a cached record.
+     *
+     * @param key the key of the record.
+     * @return the record, or {@code null} if it is not cached.
+     */
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * Caches a record.
+     *
+     * @param key the key of the record.
+     * @param record the record.
+     */
+    public synchronized void put(K key, V record) {
+        map.put(key, record);
+    }
+}
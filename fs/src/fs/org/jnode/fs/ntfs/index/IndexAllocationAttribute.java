@@ -23,6 +23,8 @@ package org.jnode.fs.ntfs.index;
 import java.io.IOException;
 
 import org.jnode.fs.ntfs.FileRecord;
+import org.jnode.fs.ntfs.NTFSRecord;
+import org.jnode.fs.ntfs.RecordCache;
 import org.jnode.fs.ntfs.attribute.NTFSNonResidentAttribute;
 
 /**
@@ -63,6 +65,13 @@ public final class IndexAllocationAttribute extends NTFSNonResidentAttribute {
         log.debug("getIndexBlock(..," + vcn + ")");
         final FileRecord fileRecord = getFileRecord();
 
+        final RecordCache<Object, NTFSRecord> cache = fileRecord.getVolume().getIndexBlockCache();
+        final IndexBlockKey key = new IndexBlockKey(fileRecord.getReferenceNumber(), getOffset(), vcn);
+        IndexBlock indexBlock = (IndexBlock) cache.get(key);
+        if (indexBlock != null) {
+            return indexBlock;
+        }
+
         // VCN passed in is relative to the size of index clusters, not filesystem clusters.
         // Calculate the actual offset we need in terms of filesystem clusters,
         // and how many actual clusters we will need to read.
@@ -82,6 +91,40 @@ public final class IndexAllocationAttribute extends NTFSNonResidentAttribute {
                                   fsNrClusters + ", read " + readClusters + ")");
         }
 
-        return new IndexBlock(fileRecord, data, offsetIntoVcn);
+        indexBlock = new IndexBlock(fileRecord, data, offsetIntoVcn);
+        cache.put(key, indexBlock);
+        return indexBlock;
+    }
+
+    /**
+     * The key of an index block in the index block cache: the index allocation attribute is identified by the file
+     * record holding it and its offset in that record.
+     */
+    private static final class IndexBlockKey {
+        private final long referenceNumber;
+        private final int offset;
+        private final long vcn;
+
+        private IndexBlockKey(long referenceNumber, int offset, long vcn) {
+            this.referenceNumber = referenceNumber;
+            this.offset = offset;
+            this.vcn = vcn;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof IndexBlockKey)) {
+                return false;
+            }
+            IndexBlockKey other = (IndexBlockKey) obj;
+            return referenceNumber == other.referenceNumber && offset == other.offset && vcn == other.vcn;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = referenceNumber * 31 + offset;
+            h = h * 31 + vcn;
+            return (int) (h ^ (h >>> 32));
+        }
     }
 }
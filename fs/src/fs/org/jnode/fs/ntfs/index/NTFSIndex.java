@@ -21,7 +21,9 @@
 package org.jnode.fs.ntfs.index;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import org.apache.log4j.Logger;
 import org.jnode.fs.ntfs.FileRecord;
@@ -86,78 +88,94 @@ public final class NTFSIndex {
     }
 
     /**
-     * Searches the index for a value.
+     * Searches the index for a value. The search descends the B+-tree from the root straight to the node that must
+     * hold the value, and does a binary search over the entries of each node on the way.
      *
-     * @param callback the callback to pass each entry in the search to check for a match.
+     * @param callback the callback to compare the entries in the search with the value.
      * @return the matching node, or {@code null} if no match is found.
      */
     public IndexEntry search(IndexSearchCallback callback) {
-        Iterator<IndexEntry> rootIterator = getIndexRootAttribute().iterator();
-
-        while (rootIterator.hasNext()) {
-            IndexEntry entry = rootIterator.next();
-
-            if (entry.isLastIndexEntryInSubnode()) {
-                return searchSubTree(entry, callback);
-            } else {
-                int compareResult = callback.visitAndCompareEntry(entry);
-
-                if (compareResult == 0) {
-                    return entry;
-                } else if (compareResult < 0) {
-                    return searchSubTree(entry, callback);
-                } else {
-                    // Maybe in a subsequent node, continue iterating
-                }
-            }
-        }
-
-        // No match
-        return null;
+        return searchNode(getIndexRootAttribute().iterator(), callback);
     }
 
     /**
      * Searches a sub-tree of the index for a value.
      *
      * @param topEntry the top entry in this sub-tree of the index.
-     * @param callback the callback to pass each entry in the search to check for a match.
+     * @param callback the callback to compare the entries in the search with the value.
      * @return the matching node, or {@code null} if no match is found.
      */
     public IndexEntry searchSubTree(IndexEntry topEntry, IndexSearchCallback callback) {
         if (!topEntry.hasSubNodes()) {
             return null;
         }
+        return searchNode(readSubNode(topEntry).iterator(), callback);
+    }
 
-        final IndexBlock indexBlock;
-        try {
-            IndexRoot indexRoot = getIndexRootAttribute().getRoot();
-            indexBlock = getIndexAllocationAttribute().getIndexBlock(indexRoot, topEntry.getSubnodeVCN());
-        } catch (IOException ex) {
-            throw new IllegalStateException("Cannot read next index block during search", ex);
-        }
-
-        Iterator<IndexEntry> iterator = indexBlock.iterator();
+    /**
+     * Searches the node iterated by the given iterator, then the sub-nodes the value must be in.
+     *
+     * @param iterator the iterator over the entries of the node.
+     * @param callback the callback to compare the entries in the search with the value.
+     * @return the matching node, or {@code null} if no match is found.
+     */
+    private IndexEntry searchNode(Iterator<IndexEntry> iterator, IndexSearchCallback callback) {
+        final List<IndexEntry> entries = new ArrayList<IndexEntry>();
+
+        while (true) {
+            entries.clear();
+            IndexEntry lastEntry = null;
+
+            while (iterator.hasNext()) {
+                IndexEntry entry = iterator.next();
+                if (entry.isLastIndexEntryInSubnode()) {
+                    lastEntry = entry;
+                    break;
+                }
+                entries.add(entry);
+            }
 
-        while (iterator.hasNext()) {
-            IndexEntry entry = iterator.next();
+            int low = 0;
+            int high = entries.size() - 1;
 
-            if (entry.isLastIndexEntryInSubnode()) {
-                return searchSubTree(entry, callback);
-            } else {
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                IndexEntry entry = entries.get(middle);
                 int compareResult = callback.visitAndCompareEntry(entry);
 
                 if (compareResult == 0) {
                     return entry;
                 } else if (compareResult < 0) {
-                    return searchSubTree(entry, callback);
+                    high = middle - 1;
                 } else {
-                    // Maybe in a subsequent node, continue iterating
+                    low = middle + 1;
                 }
             }
+
+            // The value can only be in the sub-node before the first entry that is greater than it
+            IndexEntry next = (low < entries.size()) ? entries.get(low) : lastEntry;
+            if (next == null || !next.hasSubNodes()) {
+                // No match
+                return null;
+            }
+
+            iterator = readSubNode(next).iterator();
         }
+    }
 
-        // No match
-        return null;
+    /**
+     * Reads the index block of the sub-node of the given entry.
+     *
+     * @param entry the entry.
+     * @return the index block.
+     */
+    private IndexBlock readSubNode(IndexEntry entry) {
+        try {
+            IndexRoot indexRoot = getIndexRootAttribute().getRoot();
+            return getIndexAllocationAttribute().getIndexBlock(indexRoot, entry.getSubnodeVCN());
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot read next index block during search", ex);
+        }
     }
 
     public Iterator<IndexEntry> iterator() {
@@ -20,51 +20,133 @@
  
 package org.jnode.fs.service.def;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jnode.fs.FSEntry;
 
 /**
+ * A cache of path to entry lookups (a dentry cache).
+ * <p/>
+ * The cache is a tree that mirrors the directory tree: every node holds the
+ * children that have been looked up by name, and a pointer to its parent.
+ * Lookups and updates walk the path one component at a time, so they take
+ * O(depth) and do not lock. Removing a path detaches its node from its
+ * parent, which drops everything below it at once.
+ * <p/>
+ * Paths that were looked up and not found are cached as negative entries, so
+ * repeated checks for a missing file don't read the directory each time.
+ * Negative entries expire after a short time, because a file may be created
+ * by code that uses the file system directly.
+ * <p/>
+ * When the cache holds more than the configured number of nodes, the least
+ * recently used quarter of them is dropped.
+ * 
  * @author epr
  */
-@SuppressWarnings("serial")
-final class FSEntryCache {
-
-    /** The actual cache */
-    private final Map<String, FSEntry> entries = new LinkedHashMap<String, FSEntry>() {
-        @Override
-        protected boolean removeEldestEntry(Entry<String, FSEntry> eldest) {
-            return size() > 100;
-        }
-    };
+public final class FSEntryCache {
+
+    /**
+     * The property that holds the maximum number of cached paths.
+     */
+    public static final String SIZE_PROPERTY = "jnode.fs.dcache.size";
+
+    /**
+     * The property that holds the time in milliseconds a negative entry stays valid.
+     */
+    public static final String NEGATIVE_TIMEOUT_PROPERTY = "jnode.fs.dcache.negative";
+
+    /**
+     * The default maximum number of cached paths.
+     */
+    public static final int DEFAULT_SIZE = 1024;
+
+    /**
+     * The default time a negative entry stays valid.
+     */
+    public static final int DEFAULT_NEGATIVE_TIMEOUT = 2000;
+
+    /** The maximum number of nodes */
+    private final int maxSize;
+
+    /** The time a negative entry stays valid */
+    private final long negativeTimeout;
+
+    /** The node of the root path */
+    private final Node root = new Node(null, "");
+
+    /** The number of nodes, an upper bound between prunings */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** The clock that orders the uses of the nodes */
+    private final AtomicLong clock = new AtomicLong();
 
     /**
      * Create a new instance
      * 
      */
     public FSEntryCache() {
+        this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE),
+            Integer.getInteger(NEGATIVE_TIMEOUT_PROPERTY, DEFAULT_NEGATIVE_TIMEOUT));
+    }
+
+    /**
+     * Create a new instance
+     * 
+     * @param maxSize the maximum number of cached paths
+     * @param negativeTimeout the time in milliseconds a negative entry stays valid
+     */
+    public FSEntryCache(int maxSize, long negativeTimeout) {
+        this.maxSize = Math.max(16, maxSize);
+        this.negativeTimeout = negativeTimeout;
     }
 
     /**
      * Gets a cached entry for a given path.
      * 
      * @param path must be an absolute path
+     * @return the entry, or null if it is not cached or is cached as missing
      */
-    public synchronized FSEntry getEntry(String path) {
-        final FSEntry entry = entries.get(path);
+    public FSEntry getEntry(String path) {
+        final Node node = find(path);
+        if (node == null) {
+            return null;
+        }
+        final FSEntry entry = node.entry;
         if (entry != null) {
             if (entry.isValid()) {
+                node.touch();
                 return entry;
             } else {
-                entries.remove(path);
-                return null;
+                node.detach();
             }
-        } else {
-            return null;
         }
+        return null;
+    }
+
+    /**
+     * Is the given path cached as missing?
+     * 
+     * @param path must be an absolute path
+     */
+    public boolean isMissing(String path) {
+        final Node node = find(path);
+        if ((node == null) || (node.missingSince == 0)) {
+            return false;
+        }
+        if (System.currentTimeMillis() - node.missingSince > negativeTimeout) {
+            node.missingSince = 0;
+            return false;
+        }
+        node.touch();
+        return true;
     }
 
     /**
@@ -74,8 +156,23 @@ final class FSEntryCache {
      * @param path must be an absolute path
      * @param entry
      */
-    public synchronized void setEntry(String path, FSEntry entry) {
-        entries.put(path, entry);
+    public void setEntry(String path, FSEntry entry) {
+        final Node node = findOrCreate(path);
+        node.entry = entry;
+        node.missingSince = 0;
+        node.touch();
+    }
+
+    /**
+     * Caches the given path as missing.
+     * 
+     * @param path must be an absolute path
+     */
+    public void setMissing(String path) {
+        final Node node = findOrCreate(path);
+        node.entry = null;
+        node.missingSince = Math.max(1, System.currentTimeMillis());
+        node.touch();
     }
 
     /**
@@ -83,16 +180,161 @@ final class FSEntryCache {
      * 
      * @param rootPathStr must be an absolute path
      */
-    public synchronized void removeEntries(String rootPathStr) {
-        entries.remove(rootPathStr);
-        final ArrayList<String> removePathList = new ArrayList<String>();
-        for (String pathStr : entries.keySet()) {
-            if (pathStr.startsWith(rootPathStr)) {
-                removePathList.add(pathStr);
+    public void removeEntries(String rootPathStr) {
+        final Node node = find(rootPathStr);
+        if (node == root) {
+            removeAll();
+        } else if (node != null) {
+            node.detach();
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void removeAll() {
+        root.children.clear();
+        root.entry = null;
+        root.missingSince = 0;
+        size.set(0);
+    }
+
+    /**
+     * Find the node of the given path.
+     * 
+     * @return the node, or null if the path is not cached
+     */
+    private Node find(String path) {
+        Node node = root;
+        int start = 0;
+        final int length = path.length();
+        while ((node != null) && (start < length)) {
+            int end = path.indexOf(File.separatorChar, start);
+            if (end < 0) {
+                end = length;
             }
+            if (end > start) {
+                node = node.children.get(path.substring(start, end));
+            }
+            start = end + 1;
         }
-        for (String path : removePathList) {
-            entries.remove(path);
+        return node;
+    }
+
+    /**
+     * Find the node of the given path, creating it and its parents if needed.
+     */
+    private Node findOrCreate(String path) {
+        Node node = root;
+        int start = 0;
+        final int length = path.length();
+        while (start < length) {
+            int end = path.indexOf(File.separatorChar, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                final String name = path.substring(start, end);
+                Node child = node.children.get(name);
+                if (child == null) {
+                    final Node created = new Node(node, name);
+                    child = node.children.putIfAbsent(name, created);
+                    if (child == null) {
+                        child = created;
+                        if (size.incrementAndGet() > maxSize) {
+                            prune();
+                        }
+                    }
+                }
+                node = child;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Drop the least recently used quarter of the nodes. Dropping a node drops
+     * the nodes below it as well.
+     */
+    private synchronized void prune() {
+        if (size.get() <= maxSize) {
+            return;
+        }
+
+        final List<Node> nodes = new ArrayList<Node>();
+        collect(root, nodes);
+        final Node[] sorted = nodes.toArray(new Node[nodes.size()]);
+        Arrays.sort(sorted, new Comparator<Node>() {
+            public int compare(Node n1, Node n2) {
+                return (n1.lastUsed < n2.lastUsed) ? -1 : ((n1.lastUsed == n2.lastUsed) ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < sorted.length / 4; i++) {
+            sorted[i].detach();
+        }
+
+        nodes.clear();
+        collect(root, nodes);
+        size.set(nodes.size());
+    }
+
+    /**
+     * Collect all nodes below the given node.
+     */
+    private static void collect(Node node, List<Node> nodes) {
+        for (Node child : node.children.values()) {
+            nodes.add(child);
+            collect(child, nodes);
+        }
+    }
+
+    /**
+     * A cached path.
+     */
+    private final class Node {
+
+        /** The parent node, null for the root */
+        private final Node parent;
+
+        /** The last component of the path */
+        private final String name;
+
+        /** The children that have been looked up */
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+
+        /** The entry, or null if it is not known */
+        private volatile FSEntry entry;
+
+        /** The time the path was found missing, 0 if it is not a negative entry */
+        private volatile long missingSince;
+
+        /** The clock value of the last use */
+        private volatile long lastUsed;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        /**
+         * Mark this node, and the nodes above it, as just used, so that a
+         * directory is never dropped before the paths below it.
+         */
+        void touch() {
+            final long now = clock.incrementAndGet();
+            for (Node node = this; node != null; node = node.parent) {
+                node.lastUsed = now;
+            }
+        }
+
+        /**
+         * Detach this node, and everything below it, from the tree.
+         */
+        void detach() {
+            if (parent != null) {
+                parent.children.remove(name, this);
+            }
         }
     }
 }
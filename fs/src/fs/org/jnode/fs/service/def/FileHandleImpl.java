@@ -45,6 +45,8 @@ final class FileHandleImpl implements VMFileHandle {
     private boolean closed;
     /** Position within this file */
     private long fileOffset;
+    /** Detects sequential reads, null if the file is not read ahead */
+    private final ReadAheadTracker readAhead;
 
     /**
      * Create a new instance
@@ -59,6 +61,7 @@ final class FileHandleImpl implements VMFileHandle {
         this.readOnly = (mode == VMOpenMode.READ);
         this.fhm = fhm;
         this.closed = false;
+        this.readAhead = ReadAheadTracker.create(file, mode);
 
         // WRITE only mode, i.e. NOT APPEND mode. Thus we have to set the
         // filesize to 0
@@ -158,6 +161,9 @@ final class FileHandleImpl implements VMFileHandle {
 
         // TODO file.read should return the number of read bytes
         // file.read(fileOffset, dest, off, nbRead);
+        if (readAhead != null) {
+            readAhead.reading(fileOffset, nbRead);
+        }
         file.read(fileOffset, dest);
         fileOffset += nbRead;
         return nbRead;
@@ -191,6 +197,9 @@ final class FileHandleImpl implements VMFileHandle {
      * Close this file.
      */
     public synchronized void close() throws IOException {
+        if (readAhead != null) {
+            readAhead.close();
+        }
         file.flush();
         closed = true;
         fhm.close(this);
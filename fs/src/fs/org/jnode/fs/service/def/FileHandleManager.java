@@ -20,6 +20,7 @@
  
 package org.jnode.fs.service.def;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.VMOpenMode;
 import java.util.HashMap;
@@ -70,6 +71,10 @@ final class FileHandleManager {
             fd.close(handle);
             if (!fd.hasHandles()) {
                 openFiles.remove(file);
+                if (file instanceof Closeable) {
+                    // Let the file release what it holds for reading, e.g. decompressed data
+                    ((Closeable) file).close();
+                }
             }
         } else {
             log.error("FileHandle tried to close an unknown file!!");
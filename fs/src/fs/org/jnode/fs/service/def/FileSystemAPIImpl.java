@@ -338,12 +338,16 @@ final class FileSystemAPIImpl implements VMFileSystemAPI {
             if (entry != null) {
                 return entry;
             }
+            if (entryCache.isMissing(path)) {
+                return null;
+            }
             final FSDirectory parentEntry = getParentDirectoryEntry(path);
             if (parentEntry != null) {
                 try {
                     entry = parentEntry.getEntry(stripParentPath(path));
 
                     if (entry == null) {
+                        entryCache.setMissing(path);
                         return null;
                     }
 
@@ -386,6 +390,7 @@ final class FileSystemAPIImpl implements VMFileSystemAPI {
 
                 // Ok, add the file
                 entry = parent.addFile(getName(file));
+                entryCache.setEntry(file, entry);
             } else {
                 throw new FileNotFoundException(file);
             }
@@ -412,6 +417,7 @@ final class FileSystemAPIImpl implements VMFileSystemAPI {
         }
         // Ok, add the dir
         entry = directory.addDirectory(getName(file));
+        entryCache.setEntry(file, entry);
         return true;
     }
 
@@ -431,6 +437,7 @@ final class FileSystemAPIImpl implements VMFileSystemAPI {
             return false;
         // Ok, make the file
         entry = directory.addFile(getName(file));
+        entryCache.setEntry(file, entry);
         return true;
     }
 
@@ -454,6 +461,7 @@ final class FileSystemAPIImpl implements VMFileSystemAPI {
         }
         final VirtualDirEntry vde = (VirtualDirEntry) entry;
         vde.addMount(name, fs, fsPath);
+        entryCache.removeEntries(fullPath);
 
         // transform fullPath to an absolute path
         if (fullPath.charAt(0) != File.separatorChar) {
@@ -491,6 +499,7 @@ final class FileSystemAPIImpl implements VMFileSystemAPI {
      */
     final void unregisterFileSystem(Device dev) {
         vfs.unregisterFileSystem(dev);
+        entryCache.removeAll();
     }
 
     /**
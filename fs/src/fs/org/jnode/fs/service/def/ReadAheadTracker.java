@@ -0,0 +1,271 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.fs.service.def;
+
+import java.io.IOException;
+import java.io.VMOpenMode;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.jnode.driver.Device;
+import org.jnode.fs.FSFile;
+import org.jnode.fs.FileSystem;
+import org.jnode.fs.spi.AbstractFileSystem;
+
+/**
+ * Detects sequential reads on an open file and reads ahead of them in the
+ * background, so that the data is in the buffer cache of the file system by
+ * the time it is asked for.
+ * <p/>
+ * The read-ahead window starts at {@link #MIN_WINDOW} bytes once two reads
+ * follow each other, and doubles for every further sequential read up to the
+ * maximum window size. A read at any other offset collapses the window.
+ * <p/>
+ * Only files of file systems that read through the buffer cache are tracked,
+ * on any other file system the prefetched data would be thrown away and read
+ * again. Only handles that are opened for reading only are tracked, so the
+ * prefetcher never reads a region that is being written through the same
+ * handle. Every device has its own prefetch thread, so a slow device does not
+ * hold up the read-ahead of the others.
+ */
+public final class ReadAheadTracker {
+
+    /**
+     * The property that holds the maximum read-ahead window in bytes, 0 disables read-ahead.
+     */
+    public static final String WINDOW_PROPERTY = "jnode.fs.readahead";
+
+    /**
+     * The default maximum read-ahead window.
+     */
+    public static final int DEFAULT_MAX_WINDOW = 512 * 1024;
+
+    /**
+     * The initial read-ahead window.
+     */
+    public static final int MIN_WINDOW = 16 * 1024;
+
+    /**
+     * The size of the reads issued by the prefetcher.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** My logger */
+    private static final Logger log = Logger.getLogger(ReadAheadTracker.class);
+
+    /** The maximum read-ahead window */
+    private static final int maxWindow = Math.max(0, Integer.getInteger(WINDOW_PROPERTY, DEFAULT_MAX_WINDOW));
+
+    /** The number of seconds an idle prefetch thread waits before it ends */
+    private static final int IDLE_SECONDS = 30;
+
+    /** The prefetch threads, one per device */
+    private static final Map<Device, Executor> prefetchers = new WeakHashMap<Device, Executor>();
+
+    /** The file to read ahead in */
+    private final FSFile file;
+
+    /** Runs the prefetches of the file */
+    private final Executor prefetcher;
+
+    /** The offset where the next read is expected for it to be sequential */
+    private long nextOffset = -1;
+
+    /** The current read-ahead window, 0 while the access is not sequential */
+    private int window;
+
+    /** The end of the region that has been read, or is scheduled to be read, ahead */
+    private long prefetchEnd;
+
+    /** Is a prefetch scheduled or running? */
+    private boolean prefetching;
+
+    /** Is the prefetcher reading the file? */
+    private boolean running;
+
+    /** Has the file been closed? */
+    private boolean closed;
+
+    /** Scratch buffer for the prefetcher */
+    private ByteBuffer scratch;
+
+    /**
+     * Create a new instance
+     *
+     * @param file
+     * @param prefetcher
+     */
+    public ReadAheadTracker(FSFile file, Executor prefetcher) {
+        this.file = file;
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Create a tracker for the given file.
+     *
+     * @param file the file that is opened.
+     * @param mode the mode the file is opened in.
+     * @return the tracker, or null if the file is not read ahead.
+     */
+    public static ReadAheadTracker create(FSFile file, VMOpenMode mode) {
+        if (!isEnabled() || (mode != VMOpenMode.READ)) {
+            return null;
+        }
+        final FileSystem<?> fs = file.getFileSystem();
+        if (!(fs instanceof AbstractFileSystem)) {
+            // No buffer cache to read into
+            return null;
+        }
+        return new ReadAheadTracker(file, getPrefetcher(fs.getDevice()));
+    }
+
+    /**
+     * Is read-ahead enabled?
+     */
+    public static boolean isEnabled() {
+        return (maxWindow > 0);
+    }
+
+    /**
+     * Record a read of the file and schedule a prefetch if the reads are sequential.
+     *
+     * @param offset the offset of the read.
+     * @param length the number of bytes read.
+     */
+    public synchronized void reading(long offset, int length) {
+        if (closed) {
+            return;
+        }
+        final long end = offset + length;
+        if (offset == nextOffset) {
+            window = (window == 0) ? MIN_WINDOW : Math.min(window * 2, maxWindow);
+        } else {
+            window = 0;
+            prefetchEnd = end;
+        }
+        nextOffset = end;
+
+        // Read ahead once less than half of the window is left
+        if ((window > 0) && !prefetching && (prefetchEnd - end < window / 2)) {
+            final long start = Math.max(prefetchEnd, end);
+            final long stop = Math.min(end + window, file.getLength());
+            if (start < stop) {
+                prefetchEnd = stop;
+                prefetching = true;
+                submit(start, stop);
+            }
+        }
+    }
+
+    /**
+     * Stop reading ahead, the file is closed. If the prefetcher is reading the
+     * file, wait until its current read has finished.
+     */
+    public synchronized void close() {
+        closed = true;
+        boolean interrupted = false;
+        while (running) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(final long start, final long stop) {
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                prefetch(start, stop);
+            }
+        });
+    }
+
+    /**
+     * Read the given region of the file into the cache.
+     */
+    final void prefetch(long start, long stop) {
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                running = true;
+            }
+            if (scratch == null) {
+                scratch = ByteBuffer.allocate(CHUNK_SIZE);
+            }
+            for (long ofs = start; ofs < stop; ofs += CHUNK_SIZE) {
+                synchronized (this) {
+                    if (closed || (nextOffset > stop)) {
+                        // Closed, or the reader has overtaken us
+                        break;
+                    }
+                }
+                scratch.clear();
+                scratch.limit((int) Math.min(CHUNK_SIZE, stop - ofs));
+                file.read(ofs, scratch);
+            }
+        } catch (IOException ex) {
+            log.debug("Read-ahead failed", ex);
+        } catch (RuntimeException ex) {
+            log.debug("Read-ahead failed", ex);
+        } finally {
+            synchronized (this) {
+                prefetching = false;
+                running = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gets the prefetch thread of the given device, its thread ends when it is idle.
+     */
+    private static synchronized Executor getPrefetcher(final Device device) {
+        Executor prefetcher = prefetchers.get(device);
+        if (prefetcher == null) {
+            final String name = "fs-readahead-" + device.getId();
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            pool.allowCoreThreadTimeOut(true);
+            prefetcher = pool;
+            prefetchers.put(device, prefetcher);
+        }
+        return prefetcher;
+    }
+}
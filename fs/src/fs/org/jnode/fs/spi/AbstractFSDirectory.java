@@ -109,12 +109,39 @@ public abstract class AbstractFSDirectory extends AbstractFSObject implements FS
      * @see org.jnode.fs.FSDirectory#getEntry(java.lang.String)
      */
     public final FSEntry getEntry(String name) throws IOException {
+        if (isEntriesLoaded()) {
+            return entries.get(name);
+        }
+        return findEntry(name);
+    }
+
+    /**
+     * Look up an entry while the entries of this directory are not loaded.
+     * The default implementation loads all entries. Directories that are
+     * indexed on the device can override this to look up a single name.
+     *
+     * @param name the name of the entry.
+     * @return the entry, or {@code null} if there is no entry with the given name.
+     * @throws IOException
+     */
+    protected FSEntry findEntry(String name) throws IOException {
         // ensure entries are loaded from BlockDevice
         checkEntriesLoaded();
 
         return entries.get(name);
     }
 
+    /**
+     * Are new entries written to the device by {@link #createFileEntry(String)}
+     * and {@link #createDirectoryEntry(String)}? If so, the entries do not
+     * have to be loaded to add a new one.
+     *
+     * @return {@code false} by default.
+     */
+    protected boolean isEntryWrittenOnCreate() {
+        return false;
+    }
+
     /**
      * Add a new directory with a given name
      * 
@@ -145,6 +172,7 @@ public abstract class AbstractFSDirectory extends AbstractFSObject implements FS
     public synchronized void remove(String name) throws IOException {
         if (!canWrite())
             throw new IOException("Filesystem or directory is mounted read-only!");
+        checkEntriesLoaded();
         if (entries.remove(name) >= 0) {
             setDirty();
             flush();
@@ -284,6 +312,10 @@ public abstract class AbstractFSDirectory extends AbstractFSObject implements FS
      * @throws IOException
      */
     private final void setFreeEntry(FSEntry newEntry) throws IOException {
+        if (!isEntriesLoaded() && isEntryWrittenOnCreate()) {
+            // the entry will be read from the device with the others
+            return;
+        }
         checkEntriesLoaded();
         if (entries.setFreeEntry(newEntry) >= 0) {
             log.debug("setFreeEntry: free entry found !");
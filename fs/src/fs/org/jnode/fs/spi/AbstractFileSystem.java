@@ -20,6 +20,7 @@
  
 package org.jnode.fs.spi;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.HashMap;
 
@@ -27,6 +28,7 @@ import org.apache.log4j.Logger;
 import org.jnode.driver.ApiNotFoundException;
 import org.jnode.driver.Device;
 import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.CachedBlockDeviceSupport;
 import org.jnode.driver.block.FSBlockDeviceAPI;
 import org.jnode.fs.FSDirectory;
 import org.jnode.fs.FSEntry;
@@ -45,8 +47,8 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
     private static final Logger log = Logger.getLogger(AbstractFileSystem.class);
     /** The device that contains the file system */
     private final Device device;
-    /** API of the block device */
-    private final BlockDeviceAPI api;
+    /** API of the block device, reading and writing through the buffer cache */
+    private final CachedBlockDeviceSupport api;
     /** Type of the file system */
     private final FileSystemType<? extends FileSystem<T>> type;
     /** Root enntry of the file system */
@@ -76,9 +78,18 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
         this.device = device;
 
         try {
-            api = device.getAPI(BlockDeviceAPI.class);
+            final BlockDeviceAPI blockApi = device.getAPI(BlockDeviceAPI.class);
+            final FSBlockDeviceAPI fsApi;
+            if (device.implementsAPI(FSBlockDeviceAPI.class)) {
+                fsApi = device.getAPI(FSBlockDeviceAPI.class);
+            } else {
+                fsApi = null;
+            }
+            api = new CachedBlockDeviceSupport(blockApi, fsApi);
         } catch (ApiNotFoundException e) {
             throw new FileSystemException("Device is not a partition!", e);
+        } catch (IOException e) {
+            throw new FileSystemException("Cannot get the device length", e);
         }
 
         this.closed = false;
@@ -121,7 +132,12 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
             if (!readOnly) {
                 flush();
             }
-            api.flush();
+            api.close();
+            for (FSFile f : files.values()) {
+                if (f instanceof Closeable) {
+                    ((Closeable) f).close();
+                }
+            }
             files.clear();
             directories.clear();
             rootEntry = null;
@@ -151,14 +167,27 @@ public abstract class AbstractFileSystem<T extends FSEntry> implements FileSyste
     }
 
     /**
-     * Return file system block device api.
+     * Return file system block device api. Like {@link #getApi()}, it reads and
+     * writes through the buffer cache.
      * 
      * @return {@link BlockDeviceAPI}
      * 
      * @throws ApiNotFoundException if no api found for this file system device.
      */
     public final FSBlockDeviceAPI getFSApi() throws ApiNotFoundException {
-        return device.getAPI(FSBlockDeviceAPI.class);
+        if (!device.implementsAPI(FSBlockDeviceAPI.class)) {
+            throw new ApiNotFoundException(FSBlockDeviceAPI.class.getName());
+        }
+        return api;
+    }
+
+    /**
+     * Returns the buffer cache statistics of this mount.
+     * 
+     * @return the cached view on the block device.
+     */
+    public final CachedBlockDeviceSupport getCacheStatistics() {
+        return api;
     }
 
     /*
@@ -0,0 +1,384 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.BufferCache;
+import org.jnode.driver.block.CachedBlockDeviceSupport;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferCacheTest {
+
+    private static final int BLOCK_SIZE = BufferCache.BLOCK_SIZE;
+
+    private static final int CACHED_BLOCKS = 8;
+
+    private BufferCache cache;
+
+    private TestDevice dev;
+
+    private CachedBlockDeviceSupport api;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new BufferCache(CACHED_BLOCKS * BLOCK_SIZE);
+        dev = new TestDevice(256);
+        api = new CachedBlockDeviceSupport(cache, dev, null);
+    }
+
+    @Test
+    public void testReadHit() throws Exception {
+        assertArrayEquals(dev.expected(0, 2 * BLOCK_SIZE), read(api, 0, 2 * BLOCK_SIZE));
+        assertEquals(1, dev.reads);
+        assertEquals(2, api.getMissCount());
+
+        assertArrayEquals(dev.expected(200, BLOCK_SIZE), read(api, 200, BLOCK_SIZE));
+        assertEquals(1, dev.reads);
+        assertEquals(2, api.getHitCount());
+    }
+
+    @Test
+    public void testScanDoesNotEvictFrequentBlock() throws Exception {
+        // Block 0 is read, evicted by blocks 1-8 and read again, so it moves to the main queue
+        read(api, 0, BLOCK_SIZE);
+        for (int block = 1; block <= CACHED_BLOCKS; block++) {
+            read(api, block * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        assertFalse(cache.contains(dev, 0));
+        read(api, 0, BLOCK_SIZE);
+        assertTrue(cache.contains(dev, 0));
+
+        // A long scan only cycles through the FIFO queue
+        for (int block = 100; block < 200; block++) {
+            read(api, (long) block * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        assertTrue(cache.contains(dev, 0));
+        assertFalse(cache.contains(dev, 100));
+        assertTrue(cache.getSize() <= CACHED_BLOCKS * BLOCK_SIZE);
+
+        final int reads = dev.reads;
+        assertArrayEquals(dev.expected(0, BLOCK_SIZE), read(api, 0, BLOCK_SIZE));
+        assertEquals(reads, dev.reads);
+    }
+
+    @Test
+    public void testWriteBackOnFlush() throws Exception {
+        final byte[] data = pattern(3 * BLOCK_SIZE, 7);
+        api.write(4 * BLOCK_SIZE, ByteBuffer.wrap(data));
+        assertEquals(0, dev.writes);
+        assertEquals(3, cache.getDirtyCount());
+        assertArrayEquals(data, read(api, 4 * BLOCK_SIZE, data.length));
+
+        api.flush();
+        // Contiguous dirty blocks are written with a single request
+        assertEquals(1, dev.writes);
+        assertEquals(0, cache.getDirtyCount());
+        assertEquals(3, cache.getWriteBackCount());
+        assertArrayEquals(data, dev.get(4 * BLOCK_SIZE, data.length));
+    }
+
+    @Test
+    public void testPartialWriteReadsBlock() throws Exception {
+        final byte[] data = pattern(100, 3);
+        api.write(BLOCK_SIZE + 10, ByteBuffer.wrap(data));
+        assertEquals(1, dev.reads);
+        api.flush();
+
+        final byte[] expected = dev.expected(BLOCK_SIZE, BLOCK_SIZE);
+        System.arraycopy(data, 0, expected, 10, data.length);
+        assertArrayEquals(expected, dev.get(BLOCK_SIZE, BLOCK_SIZE));
+    }
+
+    @Test
+    public void testDirtyBlocksAreNotEvicted() throws Exception {
+        final byte[] data = pattern(2 * BLOCK_SIZE, 5);
+        api.write(0, ByteBuffer.wrap(data));
+        for (int block = 100; block < 150; block++) {
+            read(api, (long) block * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        assertEquals(0, dev.writes);
+        assertTrue(cache.contains(dev, 0));
+        assertTrue(cache.contains(dev, 1));
+
+        api.flush();
+        assertArrayEquals(data, dev.get(0, data.length));
+    }
+
+    @Test
+    public void testWriteBackWhenHalfDirty() throws Exception {
+        for (int block = 0; block <= CACHED_BLOCKS / 2; block++) {
+            api.write((long) block * 2 * BLOCK_SIZE, ByteBuffer.wrap(pattern(BLOCK_SIZE, block)));
+        }
+        assertEquals(CACHED_BLOCKS / 2 + 1, dev.writes);
+        assertEquals(0, cache.getDirtyCount());
+        for (int block = 0; block <= CACHED_BLOCKS / 2; block++) {
+            assertArrayEquals(pattern(BLOCK_SIZE, block), dev.get((long) block * 2 * BLOCK_SIZE, BLOCK_SIZE));
+        }
+    }
+
+    @Test
+    public void testFailedWriteBackStaysDirty() throws Exception {
+        final byte[] data = pattern(BLOCK_SIZE, 9);
+        api.write(0, ByteBuffer.wrap(data));
+        dev.failWrites = true;
+        try {
+            api.flush();
+            fail("flush must fail");
+        } catch (IOException ex) {
+            // Expected
+        }
+        assertEquals(1, cache.getDirtyCount());
+
+        dev.failWrites = false;
+        api.flush();
+        assertArrayEquals(data, dev.get(0, BLOCK_SIZE));
+    }
+
+    @Test
+    public void testFailedReadIsNotCached() throws Exception {
+        dev.failReads = true;
+        try {
+            read(api, 0, BLOCK_SIZE);
+            fail("read must fail");
+        } catch (IOException ex) {
+            // Expected
+        }
+        assertFalse(cache.contains(dev, 0));
+
+        dev.failReads = false;
+        assertArrayEquals(dev.expected(0, BLOCK_SIZE), read(api, 0, BLOCK_SIZE));
+    }
+
+    @Test
+    public void testDiscardDropsDirtyBlock() throws Exception {
+        api.write(0, ByteBuffer.wrap(pattern(BLOCK_SIZE, 1)));
+        api.discard(0, BLOCK_SIZE);
+        assertFalse(cache.contains(dev, 0));
+        assertEquals(0, cache.getDirtyCount());
+        api.flush();
+        assertEquals(0, dev.writes);
+    }
+
+    @Test
+    public void testDiscardClearsPartOfCachedBlock() throws Exception {
+        final byte[] written = pattern(BLOCK_SIZE, 1);
+        api.write(0, ByteBuffer.wrap(written));
+        api.discard(512, 1024);
+        api.flush();
+        Arrays.fill(written, 512, 1536, (byte) 0);
+        assertArrayEquals(written, dev.get(0, BLOCK_SIZE));
+    }
+
+    @Test
+    public void testSlowDeviceDoesNotBlockOthers() throws Exception {
+        final TestDevice slow = new TestDevice(16);
+        final CachedBlockDeviceSupport slowApi = new CachedBlockDeviceSupport(cache, slow, null);
+        slow.block();
+
+        final Thread reader = startRead(slowApi, 0);
+        assertTrue(slow.entered.await(10, TimeUnit.SECONDS));
+
+        // The slow device is stuck in a read, the other device is not held up
+        assertArrayEquals(dev.expected(0, BLOCK_SIZE), read(api, 0, BLOCK_SIZE));
+        api.write(BLOCK_SIZE, ByteBuffer.wrap(pattern(BLOCK_SIZE, 2)));
+        api.flush();
+
+        slow.release.countDown();
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+    }
+
+    @Test
+    public void testConcurrentReadersShareLoad() throws Exception {
+        dev.block();
+        final Thread first = startRead(api, 0);
+        assertTrue(dev.entered.await(10, TimeUnit.SECONDS));
+        final Thread second = startRead(api, 0);
+
+        // The second reader waits for the page loaded by the first one
+        second.join(200);
+        assertTrue(second.isAlive());
+        dev.release.countDown();
+        first.join(10000);
+        second.join(10000);
+        assertFalse(first.isAlive());
+        assertFalse(second.isAlive());
+        assertEquals(1, dev.reads);
+        assertEquals(1, api.getHitCount());
+    }
+
+    @Test
+    public void testWriteThroughDuringWriteBack() throws Exception {
+        final byte[] small = pattern(BLOCK_SIZE, 3);
+        api.write(0, ByteBuffer.wrap(small));
+        dev.blockNextWrite();
+        final Thread flusher = new Thread() {
+            public void run() {
+                try {
+                    api.flush();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        flusher.start();
+        assertTrue(dev.writeEntered.await(10, TimeUnit.SECONDS));
+
+        // The write-back holds the old content of block 0 while the large write goes to the device
+        final byte[] large = pattern(64 * BLOCK_SIZE, 4);
+        api.write(0, ByteBuffer.wrap(large));
+        dev.writeRelease.countDown();
+        flusher.join(10000);
+        assertFalse(flusher.isAlive());
+
+        api.flush();
+        assertArrayEquals(large, dev.get(0, large.length));
+        assertArrayEquals(large, read(api, 0, large.length));
+    }
+
+    private Thread startRead(final CachedBlockDeviceSupport api, final long offset) {
+        final Thread t = new Thread() {
+            public void run() {
+                try {
+                    read(api, offset, BLOCK_SIZE);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private static byte[] read(BlockDeviceAPI api, long offset, int length) throws IOException {
+        final byte[] data = new byte[length];
+        api.read(offset, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    /**
+     * A device in memory that counts its requests, and can fail or block them.
+     */
+    private static class TestDevice implements BlockDeviceAPI {
+        private final byte[] data;
+        private volatile int reads;
+        private volatile int writes;
+        private volatile boolean failReads;
+        private volatile boolean failWrites;
+        private CountDownLatch entered;
+        private CountDownLatch release;
+        private volatile CountDownLatch writeEntered;
+        private volatile CountDownLatch writeRelease;
+        private volatile boolean blockWrite;
+
+        TestDevice(int blocks) {
+            data = new byte[blocks * BLOCK_SIZE];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i / 7);
+            }
+        }
+
+        void block() {
+            entered = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        void blockNextWrite() {
+            writeEntered = new CountDownLatch(1);
+            writeRelease = new CountDownLatch(1);
+            blockWrite = true;
+        }
+
+        byte[] expected(long offset, int length) {
+            return get(offset, length);
+        }
+
+        synchronized byte[] get(long offset, int length) {
+            final byte[] result = new byte[length];
+            System.arraycopy(data, (int) offset, result, 0, length);
+            return result;
+        }
+
+        public long getLength() {
+            return data.length;
+        }
+
+        public void read(long devOffset, ByteBuffer dest) throws IOException {
+            reads++;
+            if (failReads) {
+                throw new IOException("read failed");
+            }
+            if (release != null) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex.toString());
+                }
+            }
+            synchronized (this) {
+                dest.put(data, (int) devOffset, dest.remaining());
+            }
+        }
+
+        public void write(long devOffset, ByteBuffer src) throws IOException {
+            if (failWrites) {
+                throw new IOException("write failed");
+            }
+            writes++;
+            if (blockWrite) {
+                blockWrite = false;
+                writeEntered.countDown();
+                try {
+                    writeRelease.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex.toString());
+                }
+            }
+            synchronized (this) {
+                src.get(data, (int) devOffset, src.remaining());
+            }
+        }
+
+        public void flush() {
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.driver.block;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.jnode.driver.block.DeadlineIOScheduler;
+import org.jnode.driver.block.IORequest;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeadlineIOSchedulerTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private DeadlineIOScheduler scheduler;
+
+    private long sequence;
+
+    @Before
+    public void setUp() {
+        scheduler = new DeadlineIOScheduler();
+        sequence = 0;
+    }
+
+    @Test
+    public void testElevatorOrder() {
+        add(read(30, 1));
+        add(read(2, 1));
+        add(read(10, 1));
+
+        assertEquals(2, scheduler.next(16).getBlock());
+        assertEquals(10, scheduler.next(16).getBlock());
+
+        // A request behind the position waits until the elevator wraps around
+        add(read(5, 1));
+        add(read(40, 1));
+        assertEquals(30, scheduler.next(16).getBlock());
+        assertEquals(40, scheduler.next(16).getBlock());
+        assertEquals(5, scheduler.next(16).getBlock());
+        assertNull(scheduler.next(16));
+    }
+
+    @Test
+    public void testMergeAdjacent() {
+        final IORequest r1 = add(read(4, 2));
+        final IORequest r2 = add(read(0, 4));
+        final IORequest r3 = add(read(6, 2));
+        add(read(9, 1));
+        add(write(8, 1));
+
+        final IORequest merged = scheduler.next(16);
+        assertEquals(0, merged.getBlock());
+        assertEquals(8, merged.getCount());
+        assertEquals(3, merged.getParts().size());
+        assertEquals(r2, merged.getParts().get(0));
+        assertEquals(r1, merged.getParts().get(1));
+        assertEquals(r3, merged.getParts().get(2));
+
+        // Reads and writes are not merged with each other
+        final IORequest next = scheduler.next(16);
+        assertEquals(9, next.getBlock());
+        assertEquals(1, next.getCount());
+        assertTrue(scheduler.next(16).isWrite());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void testMergeUpToMaxBlocks() {
+        add(read(0, 4));
+        add(read(4, 4));
+        add(read(8, 4));
+
+        IORequest merged = scheduler.next(8);
+        assertEquals(0, merged.getBlock());
+        assertEquals(8, merged.getCount());
+        merged = scheduler.next(8);
+        assertEquals(8, merged.getBlock());
+        assertEquals(4, merged.getCount());
+    }
+
+    @Test
+    public void testMergedData() throws Exception {
+        final IORequest w1 = add(write(1, 1));
+        final IORequest w2 = add(write(0, 1));
+        fill(w1.getBuffer(), 1);
+        fill(w2.getBuffer(), 2);
+
+        // A driver asking for one buffer gets the data of the parts in block order
+        final IORequest merged = scheduler.next(16);
+        final ByteBuffer buf = merged.getBuffer();
+        assertEquals(2 * BLOCK_SIZE, buf.remaining());
+        assertEquals(2, buf.get(0));
+        assertEquals(1, buf.get(BLOCK_SIZE));
+
+        // The data read into a merged request is copied to its parts
+        final IORequest r1 = add(read(10, 1));
+        final IORequest r2 = add(read(11, 1));
+        final IORequest read = scheduler.next(16);
+        fill(read.getBuffer(), 3);
+        read.getBuffer().put(BLOCK_SIZE, (byte) 4);
+        read.complete(null);
+        assertTrue(r1.isDone());
+        assertTrue(r2.isDone());
+        assertEquals(3, r1.getBuffer().get(0));
+        assertEquals(4, r2.getBuffer().get(0));
+    }
+
+    @Test
+    public void testExpiredRequestFirst() {
+        final long now = System.nanoTime();
+        add(read(0, 1));
+        add(read(50, 1));
+        assertEquals(0, scheduler.next(16).getBlock());
+
+        // The elevator is past block 20, but the request at block 10 has waited too long
+        add(read(20, 1));
+        final IORequest old = read(10, 1);
+        old.submitted(sequence++, now - DeadlineIOScheduler.READ_EXPIRE - 1);
+        scheduler.add(old);
+        assertEquals(10, scheduler.next(16).getBlock());
+        assertEquals(20, scheduler.next(16).getBlock());
+        assertEquals(50, scheduler.next(16).getBlock());
+    }
+
+    @Test
+    public void testWritesNotStarved() {
+        add(write(100, 1));
+        for (int i = 0; i < 10; i++) {
+            add(read(i * 2, 1));
+        }
+
+        for (int i = 0; i < DeadlineIOScheduler.WRITES_STARVED; i++) {
+            assertFalse(scheduler.next(16).isWrite());
+        }
+        assertTrue(scheduler.next(16).isWrite());
+        assertFalse(scheduler.next(16).isWrite());
+    }
+
+    @Test
+    public void testRemoveAllInSubmissionOrder() {
+        final IORequest r1 = add(read(30, 1));
+        final IORequest r2 = add(write(10, 1));
+        final IORequest r3 = add(read(20, 1));
+
+        final List<IORequest> all = scheduler.removeAll();
+        assertEquals(3, all.size());
+        assertEquals(r1, all.get(0));
+        assertEquals(r2, all.get(1));
+        assertEquals(r3, all.get(2));
+        assertEquals(0, scheduler.size());
+        assertNull(scheduler.next(16));
+    }
+
+    @Test
+    public void testReadWaitsForOverlappingWrite() {
+        final IORequest w = add(write(10, 4));
+        final IORequest r = add(read(12, 2));
+
+        // Reads are preferred, but this one must see the data of the older write
+        assertEquals(w, scheduler.next(16));
+        assertEquals(r, scheduler.next(16));
+    }
+
+    @Test
+    public void testOverlappingWritesInSubmissionOrder() {
+        final IORequest w1 = add(write(50, 10));
+        final IORequest w2 = add(write(40, 20));
+
+        // The elevator would take block 40 first
+        assertEquals(w1, scheduler.next(64));
+        assertEquals(w2, scheduler.next(64));
+    }
+
+    @Test
+    public void testNoMergePastOverlappingRequest() {
+        final IORequest w1 = add(write(16, 2));
+        final IORequest w2 = add(write(10, 4));
+        final IORequest w3 = add(write(14, 4));
+
+        // w3 follows w2, but must not be written before w1 which it overlaps
+        assertEquals(w2, scheduler.next(16));
+        assertEquals(w1, scheduler.next(16));
+        assertEquals(w3, scheduler.next(16));
+        assertNull(scheduler.next(16));
+    }
+
+    private IORequest add(IORequest request) {
+        request.submitted(sequence++, System.nanoTime());
+        scheduler.add(request);
+        return request;
+    }
+
+    private static IORequest read(long block, int count) {
+        return new IORequest(block, count, BLOCK_SIZE, ByteBuffer.allocate(count * BLOCK_SIZE), false);
+    }
+
+    private static IORequest write(long block, int count) {
+        return new IORequest(block, count, BLOCK_SIZE, ByteBuffer.allocate(count * BLOCK_SIZE), true);
+    }
+
+    private static void fill(ByteBuffer buf, int value) {
+        for (int i = 0; i < buf.capacity(); i++) {
+            buf.put(i, (byte) value);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.driver.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jnode.driver.block.BlockRequest;
+import org.jnode.driver.block.DeadlineIOScheduler;
+import org.jnode.driver.block.IORequest;
+import org.jnode.driver.block.IORequestQueue;
+import org.jnode.system.resource.MemoryResource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class IORequestQueueTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int MAX_BLOCKS = 4;
+
+    private TestHandler handler;
+
+    private IORequestQueue queue;
+
+    @Before
+    public void setUp() {
+        handler = new TestHandler(64);
+        queue = new IORequestQueue("test", new DeadlineIOScheduler(), MAX_BLOCKS, handler);
+    }
+
+    @After
+    public void tearDown() {
+        handler.release.countDown();
+        queue.stop();
+    }
+
+    @Test
+    public void testSplitAtMaxBlocks() throws Exception {
+        handler.release.countDown();
+
+        final ByteBuffer buf = ByteBuffer.allocate(10 * BLOCK_SIZE);
+        final BlockRequest request = new BlockRequest(false);
+        request.add(2 * BLOCK_SIZE, buf);
+        queue.submit(request, BLOCK_SIZE);
+        request.waitUntilDone();
+
+        assertArrayEquals(handler.expected(2 * BLOCK_SIZE, 10 * BLOCK_SIZE), buf.array());
+        int blocks = 0;
+        for (IORequest performed : handler.performed) {
+            assertTrue(performed + " is too large", performed.getCount() <= MAX_BLOCKS);
+            blocks += performed.getCount();
+        }
+        assertEquals(10, blocks);
+    }
+
+    @Test
+    public void testMergeQueuedReads() throws Exception {
+        final IORequest first = read(0);
+        queue.submit(first);
+        assertTrue(handler.started.await(5, TimeUnit.SECONDS));
+
+        // Queued while the handler is busy, so they are dispatched as one request
+        final IORequest r1 = read(11);
+        final IORequest r2 = read(10);
+        final IORequest r3 = read(12);
+        queue.submit(r1);
+        queue.submit(r2);
+        queue.submit(r3);
+        handler.release.countDown();
+        r1.waitUntilDone();
+        r2.waitUntilDone();
+        r3.waitUntilDone();
+
+        assertEquals(2, handler.performed.size());
+        final IORequest merged = handler.performed.get(1);
+        assertEquals(10, merged.getBlock());
+        assertEquals(3, merged.getCount());
+        assertEquals(3, merged.getParts().size());
+        assertArrayEquals(handler.expected(10 * BLOCK_SIZE, BLOCK_SIZE), r2.getBuffer().array());
+        assertArrayEquals(handler.expected(11 * BLOCK_SIZE, BLOCK_SIZE), r1.getBuffer().array());
+        assertArrayEquals(handler.expected(12 * BLOCK_SIZE, BLOCK_SIZE), r3.getBuffer().array());
+    }
+
+    @Test
+    public void testMergeQueuedWrites() throws Exception {
+        queue.submit(read(0));
+        assertTrue(handler.started.await(5, TimeUnit.SECONDS));
+
+        final IORequest w1 = write(21, 1);
+        final IORequest w2 = write(20, 2);
+        final IORequest w3 = write(22, 3);
+        queue.submit(w1);
+        queue.submit(w2);
+        queue.submit(w3);
+        handler.release.countDown();
+        w1.waitUntilDone();
+        w2.waitUntilDone();
+        w3.waitUntilDone();
+
+        assertEquals(2, handler.performed.size());
+        assertEquals(20, handler.performed.get(1).getBlock());
+        assertEquals(3, handler.performed.get(1).getCount());
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            assertEquals(2, handler.disk[20 * BLOCK_SIZE + i]);
+            assertEquals(1, handler.disk[21 * BLOCK_SIZE + i]);
+            assertEquals(3, handler.disk[22 * BLOCK_SIZE + i]);
+        }
+    }
+
+    @Test
+    public void testErrorFailsMergedParts() throws Exception {
+        queue.submit(read(0));
+        assertTrue(handler.started.await(5, TimeUnit.SECONDS));
+
+        final IORequest r1 = read(30);
+        final IORequest r2 = read(31);
+        queue.submit(r1);
+        queue.submit(r2);
+        handler.failAt = 30;
+        handler.release.countDown();
+
+        for (IORequest request : new IORequest[]{r1, r2}) {
+            try {
+                request.waitUntilDone();
+                fail("The error of the merged request is not passed on");
+            } catch (IOException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        queue.submit(read(0));
+        assertTrue(handler.started.await(5, TimeUnit.SECONDS));
+
+        final IORequest queued = read(40);
+        queue.submit(queued);
+        queue.stop();
+        try {
+            queued.waitUntilDone();
+            fail("A queued request must fail when the queue stops");
+        } catch (IOException ex) {
+            // Expected
+        }
+        try {
+            queue.submit(read(41));
+            fail("A stopped queue must not accept requests");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    private static IORequest read(long block) {
+        return new IORequest(block, 1, BLOCK_SIZE, ByteBuffer.allocate(BLOCK_SIZE), false);
+    }
+
+    private static IORequest write(long block, int value) {
+        final byte[] data = new byte[BLOCK_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) value;
+        }
+        return new IORequest(block, 1, BLOCK_SIZE, ByteBuffer.wrap(data), true);
+    }
+
+    /**
+     * A handler transferring the data through memory, the way a DMA driver does.
+     */
+    private static class TestHandler implements IORequestQueue.Handler {
+
+        final byte[] disk;
+
+        final byte[] memory;
+
+        final MemoryResource mem;
+
+        final List<IORequest> performed = Collections.synchronizedList(new ArrayList<IORequest>());
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        volatile long failAt = -1;
+
+        TestHandler(int blocks) {
+            disk = new byte[blocks * BLOCK_SIZE];
+            for (int i = 0; i < disk.length; i++) {
+                disk[i] = (byte) (i * 7 + i / BLOCK_SIZE);
+            }
+            memory = new byte[MAX_BLOCKS * BLOCK_SIZE];
+            mem = mock(MemoryResource.class);
+            doAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    final Object[] args = invocation.getArguments();
+                    System.arraycopy(args[0], (Integer) args[1], memory, (Integer) args[2], (Integer) args[3]);
+                    return null;
+                }
+            }).when(mem).setBytes(any(byte[].class), anyInt(), anyInt(), anyInt());
+            doAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    final Object[] args = invocation.getArguments();
+                    System.arraycopy(memory, (Integer) args[0], args[1], (Integer) args[2], (Integer) args[3]);
+                    return null;
+                }
+            }).when(mem).getBytes(anyInt(), any(byte[].class), anyInt(), anyInt());
+        }
+
+        byte[] expected(int offset, int length) {
+            final byte[] data = new byte[length];
+            System.arraycopy(disk, offset, data, 0, length);
+            return data;
+        }
+
+        public void perform(IORequest request) throws IOException {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            performed.add(request);
+            if (request.getBlock() == failAt) {
+                throw new IOException("Test error");
+            }
+
+            final int offset = (int) request.getBlock() * BLOCK_SIZE;
+            final int length = request.getCount() * BLOCK_SIZE;
+            if (request.isWrite()) {
+                request.copyTo(0, mem, 0, length);
+                System.arraycopy(memory, 0, disk, offset, length);
+            } else {
+                System.arraycopy(disk, offset, memory, 0, length);
+                request.copyFrom(mem, 0, 0, length);
+            }
+        }
+    }
+}
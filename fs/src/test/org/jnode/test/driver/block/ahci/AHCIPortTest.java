@@ -0,0 +1,435 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.driver.block.ahci;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jnode.driver.block.DeadlineIOScheduler;
+import org.jnode.driver.block.IORequest;
+import org.jnode.driver.block.IORequestQueue;
+import org.jnode.driver.block.ahci.AHCIConstants;
+import org.jnode.driver.block.ahci.AHCIPort;
+import org.jnode.driver.bus.ide.IDEConstants;
+import org.jnode.system.resource.MemoryResource;
+import org.jnode.system.resource.ResourceManager;
+import org.jnode.system.resource.ResourceOwner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.vmmagic.unboxed.Address;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyByte;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AHCIPortTest implements AHCIConstants, IDEConstants {
+
+    /**
+     * Physical address of the port memory
+     */
+    private static final long BASE = 0x100000;
+
+    /**
+     * Offset of the command list in the port memory
+     */
+    private static final int CMD_LIST_OFFSET = 0;
+
+    private FakeHBA hba;
+
+    private IORequestQueue queue;
+
+    private AHCIPort port;
+
+    @Before
+    public void setUp() throws Exception {
+        hba = new FakeHBA();
+        queue = new IORequestQueue("test", new DeadlineIOScheduler(), 16, new IORequestQueue.Handler() {
+            public void perform(IORequest request) throws IOException {
+                throw new IOException("Not used");
+            }
+        });
+        final ResourceManager rm = mock(ResourceManager.class);
+        when(rm.claimMemoryResource((ResourceOwner) any(), (Address) any(), anyInt(), anyInt())).thenReturn(hba.mem);
+        port = new AHCIPort(hba.regs, 0, MAX_SLOTS, rm, mock(ResourceOwner.class));
+        assertTrue(port.start());
+    }
+
+    @After
+    public void tearDown() {
+        queue.stop();
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        port.enable(1, false, true);
+        port.flush();
+        assertEquals(CMD_FLUSH_CACHE_EXT, hba.lastPolled());
+
+        port.enable(1, false, false);
+        port.flush();
+        assertEquals(CMD_FLUSH_CACHE, hba.lastPolled());
+    }
+
+    @Test
+    public void testFlushWaitsForCommandsInFlight() throws Exception {
+        port.enable(4, true, true);
+        final IORequest write = request(0, true);
+        port.issue(write, queue);
+        // No forced unit access, the flush makes the write durable
+        assertEquals(FIS_DEVICE_LBA, hba.device(0));
+
+        final IOException[] error = new IOException[1];
+        final Thread flusher = new Thread() {
+            public void run() {
+                try {
+                    port.flush();
+                } catch (IOException ex) {
+                    error[0] = ex;
+                }
+            }
+        };
+        flusher.start();
+        Thread.sleep(250);
+        assertTrue(flusher.isAlive());
+        assertTrue(hba.polled.isEmpty());
+
+        hba.complete(0);
+        port.handleInterrupt();
+        flusher.join(5000);
+        assertFalse(flusher.isAlive());
+        assertEquals(null, error[0]);
+        assertEquals(CMD_FLUSH_CACHE_EXT, hba.lastPolled());
+        write.waitUntilDone();
+    }
+
+    @Test
+    public void testQueuedErrorReissuesOtherCommands() throws Exception {
+        port.enable(4, true, true);
+        final IORequest r0 = request(8, false);
+        final IORequest r1 = request(16, false);
+        final IORequest r2 = request(24, false);
+        port.issue(r0, queue);
+        port.issue(r1, queue);
+        port.issue(r2, queue);
+
+        hba.fail(1, 1);
+        port.handleInterrupt();
+
+        assertFailed(r1);
+        assertFalse(r0.isDone());
+        assertFalse(r2.isDone());
+        assertEquals(CMD_READ_LOG_EXT, hba.lastPolled());
+        assertEquals(0x5, hba.reg(RW32_PxCI));
+        assertEquals(0x5, hba.reg(RW32_PxSACT));
+        // The error log was read through slot 0, so its command must have been set up again
+        assertEquals(CMD_READ_FPDMA_QUEUED, hba.command(0));
+        assertEquals(CMD_READ_FPDMA_QUEUED, hba.command(2));
+
+        hba.complete(0);
+        hba.complete(2);
+        port.handleInterrupt();
+        r0.waitUntilDone();
+        r2.waitUntilDone();
+        assertData(r0, 8);
+        assertData(r2, 24);
+    }
+
+    @Test
+    public void testCommandsFinishedBeforeErrorSucceed() throws Exception {
+        port.enable(4, true, true);
+        final IORequest r0 = request(8, false);
+        final IORequest r1 = request(16, false);
+        port.issue(r0, queue);
+        port.issue(r1, queue);
+
+        hba.complete(0);
+        hba.fail(1, 1);
+        port.handleInterrupt();
+
+        r0.waitUntilDone();
+        assertData(r0, 8);
+        assertFailed(r1);
+        assertEquals(0, hba.reg(RW32_PxCI));
+    }
+
+    @Test
+    public void testUnknownQueuedErrorFailsAll() throws Exception {
+        port.enable(4, true, true);
+        final IORequest r0 = request(8, false);
+        final IORequest r1 = request(16, false);
+        port.issue(r0, queue);
+        port.issue(r1, queue);
+
+        hba.fail(1, NCQ_LOG_NQ);
+        port.handleInterrupt();
+
+        assertFailed(r0);
+        assertFailed(r1);
+        assertEquals(0, hba.reg(RW32_PxCI));
+    }
+
+    @Test
+    public void testErrorWithoutQueuing() throws Exception {
+        port.enable(1, false, true);
+        final IORequest r0 = request(8, false);
+        port.issue(r0, queue);
+        assertEquals(CMD_READDMA_EXT, hba.command(0));
+
+        hba.fail(0, 0);
+        port.handleInterrupt();
+        assertFailed(r0);
+        assertTrue(hba.polled.isEmpty());
+
+        final IORequest r1 = request(16, false);
+        port.issue(r1, queue);
+        hba.complete(0);
+        port.handleInterrupt();
+        r1.waitUntilDone();
+        assertData(r1, 16);
+    }
+
+    private static IORequest request(long block, boolean write) {
+        return new IORequest(block, 2, SECTOR_SIZE, ByteBuffer.allocate(2 * SECTOR_SIZE), write);
+    }
+
+    private static void assertFailed(IORequest request) {
+        assertTrue(request.isDone());
+        try {
+            request.waitUntilDone();
+            fail(request + " must fail");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    private static void assertData(IORequest request, long lba) {
+        final byte[] data = request.getBuffer().array();
+        for (int i = 0; i < data.length; i++) {
+            assertEquals("byte " + i, (byte) lba, data[i]);
+        }
+    }
+
+    /**
+     * A host bus adapter with a single port. The polled commands finish as soon
+     * as they are issued, the transfers when the test completes or fails them.
+     */
+    private static class FakeHBA {
+
+        final Map<Integer, Integer> registers = new HashMap<Integer, Integer>();
+
+        final ByteBuffer memory = ByteBuffer.allocate(0x4000 + 128 * 16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        final MemoryResource regs = mock(MemoryResource.class);
+
+        final MemoryResource mem = mock(MemoryResource.class);
+
+        final List<Integer> polled = new ArrayList<Integer>();
+
+        int errorLog;
+
+        FakeHBA() {
+            registers.put(R32_PxSSTS, PxSSTS_DET_PRESENT);
+            when(regs.getInt(anyInt())).thenAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    return reg((Integer) invocation.getArguments()[0] - PORT_OFFSET);
+                }
+            });
+            doAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    final Object[] args = invocation.getArguments();
+                    write((Integer) args[0] - PORT_OFFSET, (Integer) args[1]);
+                    return null;
+                }
+            }).when(regs).setInt(anyInt(), anyInt());
+
+            when(mem.getAddress()).thenReturn(Address.fromLong(BASE));
+            doAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    final Object[] args = invocation.getArguments();
+                    final int offset = (Integer) args[0];
+                    for (int i = 0; i < (Integer) args[1]; i++) {
+                        memory.put(offset + i, (byte) 0);
+                    }
+                    return null;
+                }
+            }).when(mem).clear(anyInt(), anyInt());
+            doAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    final Object[] args = invocation.getArguments();
+                    memory.put((Integer) args[0], (Byte) args[1]);
+                    return null;
+                }
+            }).when(mem).setByte(anyInt(), anyByte());
+            doAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    final Object[] args = invocation.getArguments();
+                    memory.putInt((Integer) args[0], (Integer) args[1]);
+                    return null;
+                }
+            }).when(mem).setInt(anyInt(), anyInt());
+            doAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    final Object[] args = invocation.getArguments();
+                    System.arraycopy(args[0], (Integer) args[1], memory.array(), (Integer) args[2], (Integer) args[3]);
+                    return null;
+                }
+            }).when(mem).setBytes(any(byte[].class), anyInt(), anyInt(), anyInt());
+            doAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    final Object[] args = invocation.getArguments();
+                    System.arraycopy(memory.array(), (Integer) args[0], args[1], (Integer) args[2], (Integer) args[3]);
+                    return null;
+                }
+            }).when(mem).getBytes(anyInt(), any(byte[].class), anyInt(), anyInt());
+        }
+
+        synchronized int reg(int reg) {
+            final Integer value = registers.get(reg);
+            return (value != null) ? value : 0;
+        }
+
+        synchronized void write(int reg, int value) {
+            switch (reg) {
+                case RW32_PxCMD:
+                    // The engines follow their enable bits at once
+                    value &= ~(PxCMD_CR | PxCMD_FR);
+                    if ((value & PxCMD_ST) != 0) {
+                        value |= PxCMD_CR;
+                    } else {
+                        registers.put(RW32_PxCI, 0);
+                        registers.put(RW32_PxSACT, 0);
+                    }
+                    if ((value & PxCMD_FRE) != 0) {
+                        value |= PxCMD_FR;
+                    }
+                    registers.put(reg, value);
+                    break;
+                case RW32_PxIS:
+                case RW32_PxSERR:
+                    registers.put(reg, reg(reg) & ~value);
+                    break;
+                case RW32_PxSACT:
+                    registers.put(reg, reg(reg) | value);
+                    break;
+                case RW32_PxCI:
+                    final int issued = value & ~reg(reg);
+                    registers.put(reg, reg(reg) | value);
+                    for (int slot = 0; slot < MAX_SLOTS; slot++) {
+                        if ((issued & (1 << slot)) != 0) {
+                            execute(slot);
+                        }
+                    }
+                    break;
+                default:
+                    registers.put(reg, value);
+            }
+        }
+
+        /**
+         * Execute the polled commands at once; the transfers stay in flight.
+         */
+        private void execute(int slot) {
+            final int command = command(slot);
+            if ((command == CMD_IDENTIFY) || (command == CMD_READ_LOG_EXT) || (command == CMD_FLUSH_CACHE) ||
+                (command == CMD_FLUSH_CACHE_EXT)) {
+                polled.add(command);
+                if (command == CMD_READ_LOG_EXT) {
+                    fill(slot, (byte) 0);
+                    memory.put(prd(slot), (byte) errorLog);
+                }
+                registers.put(RW32_PxCI, reg(RW32_PxCI) & ~(1 << slot));
+            }
+        }
+
+        int lastPolled() {
+            return polled.get(polled.size() - 1);
+        }
+
+        /**
+         * Gets the ATA command in a slot.
+         */
+        int command(int slot) {
+            return memory.get(table(slot) + CMDT_CFIS + 2) & 0xFF;
+        }
+
+        /**
+         * Gets the device register of the command in a slot.
+         */
+        int device(int slot) {
+            return memory.get(table(slot) + CMDT_CFIS + 7) & 0xFF;
+        }
+
+        /**
+         * Finish the transfer in a slot; a read returns the low byte of its address.
+         */
+        synchronized void complete(int slot) {
+            if (command(slot) != CMD_WRITE_FPDMA_QUEUED) {
+                fill(slot, memory.get(table(slot) + CMDT_CFIS + 4));
+            }
+            registers.put(RW32_PxCI, reg(RW32_PxCI) & ~(1 << slot));
+            registers.put(RW32_PxSACT, reg(RW32_PxSACT) & ~(1 << slot));
+            registers.put(RW32_PxIS, reg(RW32_PxIS) | PxIS_SDBS);
+        }
+
+        /**
+         * Fail the transfer in a slot, with the first byte of the NCQ error log to report.
+         */
+        synchronized void fail(int slot, int log) {
+            errorLog = log;
+            registers.put(RW32_PxIS, reg(RW32_PxIS) | PxIS_TFES);
+        }
+
+        private int table(int slot) {
+            return (int) ((memory.getInt(CMD_LIST_OFFSET + slot * CMD_HEADER_SIZE + 8) & 0xFFFFFFFFL) - BASE);
+        }
+
+        private int prd(int slot) {
+            return (int) ((memory.getInt(table(slot) + CMDT_PRDT) & 0xFFFFFFFFL) - BASE);
+        }
+
+        private void fill(int slot, byte value) {
+            final int header = memory.getInt(CMD_LIST_OFFSET + slot * CMD_HEADER_SIZE);
+            final int nrPRDs = header >>> CMDH_PRDTL_SHIFT;
+            for (int i = 0; i < nrPRDs; i++) {
+                final int prd = table(slot) + CMDT_PRDT + i * PRD_SIZE;
+                final int address = (int) ((memory.getInt(prd) & 0xFFFFFFFFL) - BASE);
+                final int count = (memory.getInt(prd + 12) & PRD_DBC_MASK) + 1;
+                for (int j = 0; j < count; j++) {
+                    memory.put(address + j, value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.driver.block.ide.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.jnode.driver.DriverException;
+import org.jnode.driver.block.IORequest;
+import org.jnode.driver.block.ide.disk.IDEDiskDriver;
+import org.jnode.driver.bus.ide.IDEBus;
+import org.jnode.driver.bus.ide.IDEBusMaster;
+import org.jnode.driver.bus.ide.IDECommand;
+import org.jnode.driver.bus.ide.IDEConstants;
+import org.jnode.driver.bus.ide.IDEDevice;
+import org.jnode.driver.bus.ide.IDEDriveDescriptor;
+import org.jnode.util.TimeoutException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IDEDiskDriverTest implements IDEConstants {
+
+    private IDEBus bus;
+
+    @Before
+    public void setUp() {
+        final IDEBusMaster busMaster = mock(IDEBusMaster.class);
+        bus = mock(IDEBus.class);
+        when(bus.getBusMaster()).thenReturn(busMaster);
+    }
+
+    @Test
+    public void testDMATransfer() throws Exception {
+        final TestDriver driver = new TestDriver(true);
+        driver.transfer(request(8));
+        verify(bus, times(1)).executeAndWait(any(IDECommand.class), anyLong());
+
+        // The bus master buffer splits the transfer
+        driver.transfer(request(IDEBusMaster.MAX_SECTORS + 8));
+        verify(bus, times(3)).executeAndWait(any(IDECommand.class), anyLong());
+        verify(bus, times(2)).getBusMaster();
+    }
+
+    @Test
+    public void testNoDMASupport() throws Exception {
+        final TestDriver driver = new TestDriver(false);
+        driver.transfer(request(8));
+        verify(bus, times(1)).executeAndWait(any(IDECommand.class), anyLong());
+        verify(bus, never()).getBusMaster();
+    }
+
+    @Test
+    public void testFallbackToPIO() throws Exception {
+        doThrow(new TimeoutException("DMA")).doNothing().when(bus).executeAndWait(any(IDECommand.class), anyLong());
+        final TestDriver driver = new TestDriver(true);
+
+        // The failed DMA command is repeated through the data port
+        driver.transfer(request(8));
+        verify(bus, times(2)).executeAndWait(any(IDECommand.class), anyLong());
+
+        // Later transfers use PIO at once
+        driver.transfer(request(8));
+        verify(bus, times(3)).executeAndWait(any(IDECommand.class), anyLong());
+        verify(bus, times(1)).getBusMaster();
+    }
+
+    @Test(expected = IOException.class)
+    public void testPIOError() throws Exception {
+        doThrow(new TimeoutException("DMA")).when(bus).executeAndWait(any(IDECommand.class), anyLong());
+        new TestDriver(true).transfer(request(8));
+    }
+
+    private static IORequest request(int count) {
+        return new IORequest(0, count, SECTOR_SIZE, ByteBuffer.allocate(count * SECTOR_SIZE), false);
+    }
+
+    /**
+     * A driver connected to a disk on the mocked bus, without starting it.
+     */
+    private class TestDriver extends IDEDiskDriver {
+
+        TestDriver(boolean dma) throws DriverException {
+            final int[] data = new int[256];
+            if (dma) {
+                data[49] = 0x0100;
+            }
+            connect(new IDEDevice(bus, true, true, "hda", new IDEDriveDescriptor(data, false), null));
+        }
+
+        void transfer(IORequest request) throws IOException {
+            performTransfer(request);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.driver.block.ramdisk;
+
+import java.nio.ByteBuffer;
+import org.jnode.driver.block.ramdisk.RamDiskPages;
+import org.jnode.system.resource.MemoryResource;
+import org.jnode.system.resource.ResourceManager;
+import org.jnode.system.resource.ResourceOwner;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.vmmagic.unboxed.Address;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RamDiskPagesTest {
+
+    private static final int PAGE_SIZE = RamDiskPages.PAGE_SIZE;
+
+    private static final int DISK_SIZE = 64 * PAGE_SIZE;
+
+    /**
+     * Number of memory blocks claimed and not yet released
+     */
+    private int claimed;
+
+    private RamDiskPages pages;
+
+    @Before
+    public void setUp() throws Exception {
+        final ResourceManager rm = mock(ResourceManager.class);
+        when(rm.claimMemoryResource((ResourceOwner) any(), (Address) any(), anyInt(), anyInt())).thenAnswer(
+            new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    claimed++;
+                    return memory((Integer) invocation.getArguments()[2]);
+                }
+            });
+        pages = new RamDiskPages(rm, mock(ResourceOwner.class), DISK_SIZE);
+    }
+
+    @Test
+    public void testZeroesDoNotAllocate() throws Exception {
+        pages.write(PAGE_SIZE + 10, ByteBuffer.allocate(2 * PAGE_SIZE));
+        assertEquals(0, pages.getAllocatedPages());
+        assertEquals(0, claimed);
+        assertArrayEquals(new byte[PAGE_SIZE], read(PAGE_SIZE, PAGE_SIZE));
+    }
+
+    @Test
+    public void testReadWriteAcrossPages() throws Exception {
+        final byte[] data = pattern(PAGE_SIZE + 200, 1);
+        pages.write(PAGE_SIZE - 100, ByteBuffer.wrap(data));
+        assertEquals(3, pages.getAllocatedPages());
+        assertEquals(1, claimed);
+        assertArrayEquals(data, read(PAGE_SIZE - 100, data.length));
+    }
+
+    @Test
+    public void testPartialZeroWriteFreesPage() throws Exception {
+        pages.write(10, ByteBuffer.wrap(pattern(100, 1)));
+        assertEquals(1, pages.getAllocatedPages());
+
+        pages.write(10, ByteBuffer.allocate(100));
+        assertEquals(0, pages.getAllocatedPages());
+        assertEquals(0, pages.getClaimedSize());
+        assertEquals(0, claimed);
+        assertArrayEquals(new byte[PAGE_SIZE], read(0, PAGE_SIZE));
+    }
+
+    @Test
+    public void testPartialZeroWriteKeepsData() throws Exception {
+        final byte[] data = pattern(100, 2);
+        pages.write(10, ByteBuffer.wrap(pattern(100, 1)));
+        pages.write(2000, ByteBuffer.wrap(data));
+
+        pages.write(10, ByteBuffer.allocate(100));
+        assertEquals(1, pages.getAllocatedPages());
+        assertArrayEquals(new byte[100], read(10, 100));
+        assertArrayEquals(data, read(2000, data.length));
+    }
+
+    @Test
+    public void testPartialDiscardFreesPage() throws Exception {
+        pages.write(PAGE_SIZE + 10, ByteBuffer.wrap(pattern(100, 1)));
+        pages.write(3 * PAGE_SIZE, ByteBuffer.wrap(pattern(100, 2)));
+        assertEquals(2, pages.getAllocatedPages());
+
+        pages.discard(PAGE_SIZE, 512);
+        assertEquals(1, pages.getAllocatedPages());
+        assertEquals(1, claimed);
+        assertArrayEquals(new byte[PAGE_SIZE], read(PAGE_SIZE, PAGE_SIZE));
+
+        pages.discard(3 * PAGE_SIZE + 50, 50);
+        assertEquals(1, pages.getAllocatedPages());
+        pages.discard(3 * PAGE_SIZE, 50);
+        assertEquals(0, pages.getAllocatedPages());
+        assertEquals(0, claimed);
+    }
+
+    @Test
+    public void testPartialDiscardKeepsData() throws Exception {
+        final byte[] data = pattern(2 * PAGE_SIZE, 3);
+        pages.write(0, ByteBuffer.wrap(data));
+
+        pages.discard(PAGE_SIZE - 512, 1024);
+        assertEquals(2, pages.getAllocatedPages());
+        for (int i = PAGE_SIZE - 512; i < PAGE_SIZE + 512; i++) {
+            data[i] = 0;
+        }
+        assertArrayEquals(data, read(0, data.length));
+    }
+
+    private byte[] read(long devOffset, int length) {
+        final ByteBuffer buf = ByteBuffer.allocate(length);
+        pages.read(devOffset, buf);
+        return buf.array();
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ((i * 7 + seed) | 1);
+        }
+        return data;
+    }
+
+    /**
+     * Create a memory block backed by a byte array, counting its release.
+     */
+    private MemoryResource memory(int size) {
+        final byte[] bytes = new byte[size];
+        final MemoryResource mem = mock(MemoryResource.class);
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                System.arraycopy(args[0], (Integer) args[1], bytes, (Integer) args[2], (Integer) args[3]);
+                return null;
+            }
+        }).when(mem).setBytes(any(byte[].class), anyInt(), anyInt(), anyInt());
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                System.arraycopy(bytes, (Integer) args[0], args[1], (Integer) args[2], (Integer) args[3]);
+                return null;
+            }
+        }).when(mem).getBytes(anyInt(), any(byte[].class), anyInt(), anyInt());
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                final int offset = (Integer) args[0];
+                for (int i = offset; i < offset + (Integer) args[1]; i++) {
+                    bytes[i] = 0;
+                }
+                return null;
+            }
+        }).when(mem).clear(anyInt(), anyInt());
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                claimed--;
+                return null;
+            }
+        }).when(mem).release();
+        return mem;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.driver.bus.ide;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.jnode.driver.bus.ide.IDEBusMaster;
+import org.jnode.driver.bus.ide.IDEConstants;
+import org.jnode.system.resource.IOResource;
+import org.jnode.system.resource.MemoryResource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.vmmagic.unboxed.Address;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IDEBusMasterTest implements IDEConstants {
+
+    /**
+     * Physical address of the bus master memory
+     */
+    private static final long BASE = 0x100000;
+
+    /**
+     * First bus master port of the channel
+     */
+    private static final int PORT_BASE = 0xC000;
+
+    private static final int REGION_SIZE = 64 * 1024;
+
+    private static final int PRD_EOT = 0x80000000;
+
+    private final ByteBuffer memory =
+        ByteBuffer.allocate(REGION_SIZE + IDEBusMaster.MAX_SECTORS * SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private IOResource ports;
+
+    private MemoryResource mem;
+
+    private IDEBusMaster busMaster;
+
+    @Before
+    public void setUp() {
+        ports = mock(IOResource.class);
+        mem = memory(BASE);
+        busMaster = new IDEBusMaster(ports, PORT_BASE, mem);
+    }
+
+    @Test
+    public void testPrdTableOfFullRegions() {
+        busMaster.prepare(ByteBuffer.allocate(2 * REGION_SIZE), 2 * REGION_SIZE, false);
+
+        // A byte count of 0 is 64Kb, the data buffer follows the region of the table
+        assertPrd(0, BASE + REGION_SIZE, 0);
+        assertPrd(1, BASE + 2 * REGION_SIZE, PRD_EOT);
+        // Read direction, table address, cleared error and interrupt bits
+        verify(ports).outPortByte(PORT_BASE, 0x08);
+        verify(ports).outPortDword(PORT_BASE + 4, (int) BASE);
+        verify(ports).outPortByte(PORT_BASE + 2, 0x06);
+    }
+
+    @Test
+    public void testPrdTableOfPartialRegion() {
+        final int length = REGION_SIZE + REGION_SIZE / 2;
+        final ByteBuffer buf = ByteBuffer.allocate(length + 1);
+        for (int i = 0; i < length + 1; i++) {
+            buf.put(i, (byte) (i + 1));
+        }
+        buf.position(1);
+        busMaster.prepare(buf, length, true);
+
+        assertPrd(0, BASE + REGION_SIZE, 0);
+        assertPrd(1, BASE + 2 * REGION_SIZE, PRD_EOT | (REGION_SIZE / 2));
+        verify(ports).outPortByte(PORT_BASE, 0);
+        // The data to write is copied from the position of the buffer
+        for (int i = 0; i < length; i += 997) {
+            assertEquals("byte " + i, (byte) (i + 2), memory.get(REGION_SIZE + i));
+        }
+    }
+
+    @Test
+    public void testPrdTableOfSingleSector() {
+        busMaster.prepare(ByteBuffer.allocate(SECTOR_SIZE), SECTOR_SIZE, false);
+        assertPrd(0, BASE + REGION_SIZE, PRD_EOT | SECTOR_SIZE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLongTransfer() {
+        final int length = IDEBusMaster.MAX_SECTORS * SECTOR_SIZE + SECTOR_SIZE;
+        busMaster.prepare(ByteBuffer.allocate(length), length, false);
+    }
+
+    @Test
+    public void testMemoryNotOnRegionBoundary() {
+        assertRefused(BASE + 0x1000);
+        assertRefused(BASE + REGION_SIZE / 2);
+        assertRefused(0x100000000L);
+        // The data buffer would end above 4Gb
+        assertRefused(0x100000000L - REGION_SIZE);
+    }
+
+    @Test
+    public void testStop() {
+        busMaster.start();
+        verify(ports).outPortByte(PORT_BASE, 0x01);
+
+        assertTrue(busMaster.stop());
+        when(ports.inPortByte(PORT_BASE + 2)).thenReturn(0x04);
+        assertTrue(busMaster.isInterrupted());
+        // Error bit
+        when(ports.inPortByte(PORT_BASE + 2)).thenReturn(0x06);
+        assertFalse(busMaster.stop());
+        // Still active, the device transferred less than the PRD table describes
+        when(ports.inPortByte(PORT_BASE + 2)).thenReturn(0x05);
+        assertFalse(busMaster.stop());
+    }
+
+    @Test
+    public void testCopyTo() {
+        for (int i = 0; i < SECTOR_SIZE; i++) {
+            memory.put(REGION_SIZE + i, (byte) i);
+        }
+        final ByteBuffer buf = ByteBuffer.allocateDirect(SECTOR_SIZE + 1);
+        buf.position(1);
+        busMaster.copyTo(buf, SECTOR_SIZE);
+        assertEquals(SECTOR_SIZE + 1, buf.position());
+        for (int i = 0; i < SECTOR_SIZE; i++) {
+            assertEquals("byte " + i, (byte) i, buf.get(i + 1));
+        }
+    }
+
+    private void assertPrd(int index, long address, int count) {
+        assertEquals("address of PRD " + index, (int) address, memory.getInt(index * 8));
+        assertEquals("count of PRD " + index, count, memory.getInt(index * 8 + 4));
+    }
+
+    private void assertRefused(long address) {
+        try {
+            new IDEBusMaster(ports, PORT_BASE, memory(address));
+            fail("Memory at 0x" + Long.toHexString(address) + " must be refused");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Create a memory resource at the given address, backed by {@link #memory}.
+     */
+    private MemoryResource memory(long address) {
+        final MemoryResource mem = mock(MemoryResource.class);
+        when(mem.getAddress()).thenReturn(Address.fromLong(address));
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                memory.putInt((Integer) args[0], (Integer) args[1]);
+                return null;
+            }
+        }).when(mem).setInt(anyInt(), anyInt());
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                System.arraycopy(args[0], (Integer) args[1], memory.array(), (Integer) args[2], (Integer) args[3]);
+                return null;
+            }
+        }).when(mem).setBytes(any(byte[].class), anyInt(), anyInt(), anyInt());
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                System.arraycopy(memory.array(), (Integer) args[0], args[1], (Integer) args[2], (Integer) args[3]);
+                return null;
+            }
+        }).when(mem).getBytes(anyInt(), any(byte[].class), anyInt(), anyInt());
+        return mem;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.driver.bus.virtio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import org.jnode.driver.bus.virtio.VirtioConstants;
+import org.jnode.driver.bus.virtio.VirtioPCITransport;
+import org.jnode.driver.bus.virtio.Virtqueue;
+import org.jnode.system.resource.MemoryResource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyShort;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class VirtqueueTest implements VirtioConstants {
+
+    private static final int SIZE = 8;
+
+    private static final int INDEX = 1;
+
+    /**
+     * Offset of the available ring
+     */
+    private static final int AVAIL = SIZE * DESC_SIZE;
+
+    /**
+     * Offset of the used ring, on the next page
+     */
+    private static final int USED = QUEUE_ALIGN;
+
+    private final ByteBuffer memory =
+        ByteBuffer.allocate(Virtqueue.getMemorySize(SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+
+    private MemoryResource mem;
+
+    private VirtioPCITransport transport;
+
+    private final List<Object> usedTokens = new ArrayList<Object>();
+
+    private final List<Integer> usedLengths = new ArrayList<Integer>();
+
+    private final Virtqueue.Handler handler = new Virtqueue.Handler() {
+        public void used(Object token, int length) {
+            usedTokens.add(token);
+            usedLengths.add(length);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        transport = mock(VirtioPCITransport.class);
+        mem = mock(MemoryResource.class);
+        when(mem.getShort(anyInt())).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                return memory.getShort((Integer) invocation.getArguments()[0]);
+            }
+        });
+        when(mem.getInt(anyInt())).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                return memory.getInt((Integer) invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                memory.putShort((Integer) args[0], (Short) args[1]);
+                return null;
+            }
+        }).when(mem).setShort(anyInt(), anyShort());
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                memory.putInt((Integer) args[0], (Integer) args[1]);
+                return null;
+            }
+        }).when(mem).setInt(anyInt(), anyInt());
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                memory.putLong((Integer) args[0], (Long) args[1]);
+                return null;
+            }
+        }).when(mem).setLong(anyInt(), anyLong());
+    }
+
+    @Test
+    public void testAdd() {
+        final Virtqueue queue = new Virtqueue(transport, INDEX, SIZE, mem, false);
+        assertTrue(queue.add(new long[]{0x1000, 0x2000, 0x3000}, new int[]{16, 512, 1}, 2, "a"));
+        assertEquals(SIZE - 3, queue.getFreeCount());
+
+        assertDesc(0, 0x1000, 16, DESC_F_NEXT);
+        assertEquals(1, next(0));
+        assertDesc(1, 0x2000, 512, DESC_F_NEXT);
+        assertEquals(2, next(1));
+        assertDesc(2, 0x3000, 1, DESC_F_WRITE);
+        assertEquals(0, memory.getShort(AVAIL + AVAIL_RING));
+        // Not visible before the kick
+        assertEquals(0, memory.getShort(AVAIL + AVAIL_IDX));
+
+        assertTrue(queue.add(new long[]{0x4000}, new int[]{4}, 1, "b"));
+        assertEquals(3, memory.getShort(AVAIL + AVAIL_RING + 2));
+        assertFalse(queue.add(new long[SIZE - 3], new int[SIZE - 3], 0, "c"));
+        assertEquals(SIZE - 4, queue.getFreeCount());
+    }
+
+    @Test
+    public void testKick() {
+        final Virtqueue queue = new Virtqueue(transport, INDEX, SIZE, mem, false);
+        add(queue, "a");
+        add(queue, "b");
+        queue.kick();
+        assertEquals(2, memory.getShort(AVAIL + AVAIL_IDX));
+
+        // The flags of the device may only be read once it can see the new index
+        final InOrder order = inOrder(mem, transport);
+        order.verify(mem).setShort(AVAIL + AVAIL_IDX, (short) 2);
+        order.verify(transport).memoryBarrier();
+        order.verify(mem).getShort(USED + USED_FLAGS);
+        order.verify(transport).notifyQueue(INDEX);
+
+        // Nothing new to tell
+        queue.kick();
+        verify(transport, times(1)).notifyQueue(INDEX);
+    }
+
+    @Test
+    public void testKickWithoutNotification() {
+        final Virtqueue queue = new Virtqueue(transport, INDEX, SIZE, mem, false);
+        memory.putShort(USED + USED_FLAGS, (short) USED_F_NO_NOTIFY);
+        add(queue, "a");
+        queue.kick();
+        assertEquals(1, memory.getShort(AVAIL + AVAIL_IDX));
+        verify(transport, never()).notifyQueue(INDEX);
+    }
+
+    @Test
+    public void testKickWithEventIndex() {
+        final Virtqueue queue = new Virtqueue(transport, INDEX, SIZE, mem, true);
+        final int availEvent = USED + USED_RING + SIZE * USED_ELEM_SIZE;
+
+        // The device waits for the first entry
+        add(queue, "a");
+        queue.kick();
+        verify(transport, times(1)).notifyQueue(INDEX);
+
+        // The device waits for an entry not added yet
+        memory.putShort(availEvent, (short) 3);
+        add(queue, "b");
+        queue.kick();
+        verify(transport, times(1)).notifyQueue(INDEX);
+
+        // Both entries added by a single kick pass the event
+        add(queue, "c");
+        add(queue, "d");
+        queue.kick();
+        verify(transport, times(2)).notifyQueue(INDEX);
+
+        final InOrder order = inOrder(mem, transport);
+        order.verify(mem).setShort(AVAIL + AVAIL_IDX, (short) 1);
+        order.verify(transport).memoryBarrier();
+        order.verify(mem).getShort(availEvent);
+    }
+
+    @Test
+    public void testProcessUsed() {
+        final Virtqueue queue = new Virtqueue(transport, INDEX, SIZE, mem, false);
+        assertTrue(queue.add(new long[]{0x1000, 0x2000}, new int[]{16, 512}, 1, "a"));
+        assertTrue(queue.add(new long[]{0x3000, 0x4000}, new int[]{16, 512}, 1, "b"));
+        queue.kick();
+        assertEquals(0, queue.processUsed(handler));
+
+        // The device may finish the chains in any order
+        use(0, 2, 100);
+        use(1, 0, 200);
+        assertEquals(2, queue.processUsed(handler));
+        assertEquals("b", usedTokens.get(0));
+        assertEquals("a", usedTokens.get(1));
+        assertEquals(100, (int) usedLengths.get(0));
+        assertEquals(200, (int) usedLengths.get(1));
+        assertEquals(SIZE, queue.getFreeCount());
+
+        // All descriptors can be used again
+        assertTrue(queue.add(new long[SIZE], new int[SIZE], 0, "c"));
+        assertEquals(0, queue.getFreeCount());
+    }
+
+    @Test
+    public void testEnableInterrupts() {
+        final Virtqueue queue = new Virtqueue(transport, INDEX, SIZE, mem, false);
+        add(queue, "a");
+        queue.kick();
+        queue.disableInterrupts();
+        assertEquals(AVAIL_F_NO_INTERRUPT, memory.getShort(AVAIL + AVAIL_FLAGS));
+        assertFalse(queue.enableInterrupts());
+        assertEquals(0, memory.getShort(AVAIL + AVAIL_FLAGS));
+
+        // A chain used while interrupts were disabled must be processed
+        use(0, 0, 1);
+        assertTrue(queue.enableInterrupts());
+        assertEquals(1, queue.processUsed(handler));
+        assertFalse(queue.enableInterrupts());
+
+        final InOrder order = inOrder(mem, transport);
+        order.verify(mem).setShort(AVAIL + AVAIL_FLAGS, (short) 0);
+        order.verify(transport).memoryBarrier();
+        order.verify(mem).getShort(USED + USED_IDX);
+    }
+
+    @Test
+    public void testEnableInterruptsWithEventIndex() {
+        final Virtqueue queue = new Virtqueue(transport, INDEX, SIZE, mem, true);
+        final int usedEvent = AVAIL + AVAIL_RING + SIZE * 2;
+        add(queue, "a");
+        add(queue, "b");
+        queue.kick();
+
+        // The flags stay 0, the used event tells the device when to interrupt
+        queue.disableInterrupts();
+        assertEquals(0, memory.getShort(AVAIL + AVAIL_FLAGS));
+        use(0, 0, 1);
+        assertTrue(queue.enableInterrupts());
+        assertEquals(0, memory.getShort(usedEvent));
+        assertEquals(1, queue.processUsed(handler));
+        assertFalse(queue.enableInterrupts());
+        assertEquals(1, memory.getShort(usedEvent));
+    }
+
+    private static void add(Virtqueue queue, Object token) {
+        assertTrue(queue.add(new long[]{0x1000}, new int[]{512}, 1, token));
+    }
+
+    /**
+     * Let the device finish a chain, as the given entry of the used ring.
+     */
+    private void use(int entry, int head, int length) {
+        final int elem = USED + USED_RING + entry * USED_ELEM_SIZE;
+        memory.putInt(elem, head);
+        memory.putInt(elem + 4, length);
+        memory.putShort(USED + USED_IDX, (short) (entry + 1));
+    }
+
+    private void assertDesc(int desc, long address, int length, int flags) {
+        assertEquals("address of descriptor " + desc, address, memory.getLong(desc * DESC_SIZE));
+        assertEquals("length of descriptor " + desc, length, memory.getInt(desc * DESC_SIZE + 8));
+        assertEquals("flags of descriptor " + desc, flags, memory.getShort(desc * DESC_SIZE + 12));
+    }
+
+    private int next(int desc) {
+        return memory.getShort(desc * DESC_SIZE + 14);
+    }
+}
@@ -22,7 +22,11 @@ package org.jnode.test.fs.driver.tests;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.jnode.driver.block.AsyncBlockDeviceAPI;
+import org.jnode.driver.block.AsyncBlockDeviceSupport;
 import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.driver.block.BlockRequest;
 import org.jnode.driver.block.floppy.FloppyDriver;
 import org.jnode.driver.block.ide.disk.IDEDiskDriver;
 import org.jnode.driver.bus.ide.IDEConstants;
@@ -104,6 +108,56 @@ public class BlockDeviceAPITest extends AbstractTest {
         doWrite(true, Bounds.AFTER_UPPER);
     }
 
+    public void testVectoredWriteAndRead() throws Exception {
+        AsyncBlockDeviceAPI api = AsyncBlockDeviceSupport.getAsyncAPI(getBlockDeviceAPI());
+        long length = api.getLength();
+        byte[] first = pattern(IDEConstants.SECTOR_SIZE, 1);
+        byte[] last = pattern(2 * IDEConstants.SECTOR_SIZE, 2);
+
+        BlockRequest write = new BlockRequest(true);
+        write.add(0, ByteBuffer.wrap(first.clone()));
+        write.add(length - last.length, ByteBuffer.wrap(last.clone()));
+        api.submit(write);
+        write.waitUntilDone();
+        assertTrue("request must be done", write.isDone());
+
+        ByteBuffer lastRead = ByteBuffer.allocate(last.length);
+        ByteBuffer firstRead = ByteBuffer.allocate(first.length);
+        BlockRequest read = new BlockRequest(false);
+        read.add(length - last.length, lastRead);
+        read.add(0, firstRead);
+        api.submit(read);
+        read.get();
+        assertNull("no error expected", read.getError());
+        assertTrue("first segment read back", Arrays.equals(first, firstRead.array()));
+        assertTrue("last segment read back", Arrays.equals(last, lastRead.array()));
+    }
+
+    public void testOutOfBoundsVectoredRead() throws Exception {
+        AsyncBlockDeviceAPI api = AsyncBlockDeviceSupport.getAsyncAPI(getBlockDeviceAPI());
+
+        BlockRequest read = new BlockRequest(false);
+        read.add(0, ByteBuffer.allocate(IDEConstants.SECTOR_SIZE));
+        read.add(api.getLength(), ByteBuffer.allocate(IDEConstants.SECTOR_SIZE));
+        boolean errorOccured;
+        try {
+            api.submit(read);
+            read.waitUntilDone();
+            errorOccured = false;
+        } catch (IOException e) {
+            errorOccured = true;
+        }
+        assertTrue("expected an error for a segment after the end", errorOccured);
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i * (seed + 2));
+        }
+        return data;
+    }
+
     private void doRead(boolean aligned, byte boundsType) throws Exception {
         Bounds bounds = new Bounds(true, aligned, boundsType);
         boolean errorOccured;
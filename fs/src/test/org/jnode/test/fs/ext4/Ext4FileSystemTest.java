@@ -20,16 +20,25 @@
  
 package org.jnode.test.fs.ext4;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import org.jnode.driver.Device;
+import org.jnode.driver.block.DiscardBlockDeviceAPI;
 import org.jnode.driver.block.FileDevice;
 import org.jnode.fs.FSDirectory;
 import org.jnode.fs.FSEntry;
+import org.jnode.fs.FSFile;
+import org.jnode.fs.ext2.Ext2Directory;
 import org.jnode.fs.ext2.Ext2FileSystem;
 import org.jnode.fs.ext2.Ext2FileSystemType;
 import org.jnode.fs.service.FileSystemService;
 import org.jnode.test.fs.DataStructureAsserts;
 import org.jnode.test.fs.FileSystemTestUtils;
+import org.jnode.util.FileUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -132,6 +141,224 @@ public class Ext4FileSystemTest {
         Assert.assertEquals(65001, childCount);
     }
 
+    @Test
+    public void testLookupExt4LargeDirectoryWithIndex() throws Exception {
+
+        // Filesystem created with the 'dir_index' feature, names are looked up through the hash tree
+        device = new FileDevice(FileSystemTestUtils.getTestFile("test/fs/ext4/ext4-large-dir-with-index.dd"), "r");
+        Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+        Ext2FileSystem fs = type.create(device, true);
+
+        FSDirectory rootDirectory = fs.getRootEntry().getDirectory();
+        FSDirectory largeDirectory = rootDirectory.getEntry("large-directory").getDirectory();
+
+        for (String name : new String[] {"2541.txt", "9834.txt", "52563.txt", "1.txt", "65000.txt"}) {
+            FSEntry entry = largeDirectory.getEntry(name);
+            Assert.assertNotNull(name, entry);
+            Assert.assertEquals(name, entry.getName());
+            Assert.assertEquals("b1946ac92492d2347c6235b4d2611184", DataStructureAsserts.getMD5Digest(entry.getFile()));
+        }
+
+        Assert.assertNull(largeDirectory.getEntry("65001.txt"));
+        Assert.assertNull(largeDirectory.getEntry("missing"));
+        Assert.assertEquals("..", largeDirectory.getEntry("..").getName());
+    }
+
+    @Test
+    public void testLookupReturnsSameEntry() throws Exception {
+
+        device = new FileDevice(FileSystemTestUtils.getTestFile("test/fs/ext4/ext2-dir-index.dd"), "r");
+        Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+        Ext2FileSystem fs = type.create(device, true);
+
+        FSDirectory indexed = fs.getRootEntry().getDirectory().getEntry("indexed").getDirectory();
+        FSEntry entry = indexed.getEntry("file-7.txt");
+        Assert.assertSame(entry, indexed.getEntry("file-7.txt"));
+        Assert.assertSame(entry.getFile(), indexed.getEntry("file-7.txt").getFile());
+
+        // Loading all entries keeps the instance that has been looked up
+        int count = 0;
+        for (Iterator<? extends FSEntry> it = indexed.iterator(); it.hasNext(); ) {
+            if (it.next() == entry) {
+                count++;
+            }
+        }
+        Assert.assertEquals(1, count);
+        Assert.assertSame(entry, indexed.getEntry("file-7.txt"));
+    }
+
+    @Test
+    public void testInsertIntoIndexedDirectory() throws Exception {
+
+        // ext2 with 1k blocks and a directory of 120 files indexed by e2fsck -D in three leaf blocks
+        File file = copyTestFile("test/fs/ext4/ext2-dir-index.dd");
+        device = new FileDevice(file, "rw");
+        Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+        Ext2FileSystem fs = type.create(device, false);
+        Assert.assertFalse(fs.isReadOnly());
+
+        FSDirectory indexed = fs.getRootEntry().getDirectory().getEntry("indexed").getDirectory();
+        long initialSize = ((Ext2Directory) indexed).getINode().getSize();
+
+        // Enough names to split every leaf block more than once
+        FSEntry[] added = new FSEntry[300];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = indexed.addFile("new-file-" + i + ".txt");
+        }
+        for (int i = 0; i < added.length; i++) {
+            Assert.assertSame(added[i], indexed.getEntry("new-file-" + i + ".txt"));
+        }
+        Assert.assertTrue(((Ext2Directory) indexed).getINode().getSize() > 2 * initialSize);
+        fs.close();
+        ((FileDevice) device).close();
+
+        // Mount again, every name is found through the index and listed once
+        device = new FileDevice(file, "r");
+        fs = type.create(device, true);
+        indexed = fs.getRootEntry().getDirectory().getEntry("indexed").getDirectory();
+        for (int i = 1; i <= 120; i++) {
+            Assert.assertNotNull("file-" + i + ".txt", indexed.getEntry("file-" + i + ".txt"));
+        }
+        for (int i = 0; i < added.length; i++) {
+            Assert.assertNotNull("new-file-" + i + ".txt", indexed.getEntry("new-file-" + i + ".txt"));
+        }
+        Assert.assertNull(indexed.getEntry("new-file-300.txt"));
+
+        int count = 0;
+        for (Iterator<? extends FSEntry> it = indexed.iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        Assert.assertEquals(2 + 120 + added.length, count);
+        ((FileDevice) device).close();
+    }
+
+    @Test
+    public void testWriteFragmentedExtentFile() throws Exception {
+
+        // ext4 with only the extents feature, its free space is in runs of 8 blocks
+        File file = copyTestFile("test/fs/ext4/ext4-extents-rw.dd");
+        device = new FileDevice(file, "rw");
+        Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+        Ext2FileSystem fs = type.create(device, false);
+        Assert.assertFalse(fs.isReadOnly());
+
+        // Needs about 90 extents, more than one leaf block holds
+        int length = 720 * 1024;
+        FSFile big = fs.getRootEntry().getDirectory().addFile("big.bin").getFile();
+        writePattern(big, length);
+        fs.close();
+        ((FileDevice) device).close();
+
+        device = new FileDevice(file, "rw");
+        fs = type.create(device, false);
+        big = fs.getRootEntry().getDirectory().getEntry("big.bin").getFile();
+        Assert.assertEquals(length, big.getLength());
+        assertPattern(big, length);
+
+        // Truncating frees the blocks and the tree nodes past the end
+        long free = fs.getFreeSpace();
+        big.setLength(100 * 1024);
+        Assert.assertTrue(fs.getFreeSpace() >= free + 600 * 1024);
+        fs.close();
+        ((FileDevice) device).close();
+
+        device = new FileDevice(file, "r");
+        fs = type.create(device, true);
+        big = fs.getRootEntry().getDirectory().getEntry("big.bin").getFile();
+        Assert.assertEquals(100 * 1024, big.getLength());
+        assertPattern(big, 100 * 1024);
+        ((FileDevice) device).close();
+    }
+
+    @Test
+    public void testDelayedBlocksKeptWhenFull() throws Exception {
+
+        File file = copyTestFile("test/fs/ext4/ext4-extents-rw.dd");
+        device = new FileDevice(file, "rw");
+        Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+        Ext2FileSystem fs = type.create(device, false);
+        FSDirectory root = fs.getRootEntry().getDirectory();
+
+        // More data than there are free blocks
+        int length = (int) fs.getFreeSpace() + 64 * 1024;
+        FSFile big = root.addFile("big.bin").getFile();
+        try {
+            writePattern(big, length);
+            big.flush();
+            Assert.fail("Expected the file system to be full");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        // Make room, the data that was written is allocated on the next flush
+        for (int i = 1; i <= 40; i += 2) {
+            root.getEntry("fill-" + i).getFile().setLength(0);
+        }
+        big.flush();
+        fs.close();
+        ((FileDevice) device).close();
+
+        device = new FileDevice(file, "r");
+        fs = type.create(device, true);
+        big = fs.getRootEntry().getDirectory().getEntry("big.bin").getFile();
+        assertPattern(big, (int) big.getLength());
+        Assert.assertTrue(big.getLength() > length - 128 * 1024);
+        ((FileDevice) device).close();
+    }
+
+    @Test
+    public void testAppendAfterUninitializedExtent() throws Exception {
+
+        // prealloc.bin has 4 written blocks followed by 4 preallocated (uninitialized) blocks of 1 KB
+        File file = copyTestFile("test/fs/ext4/ext4-uninit-extent.dd");
+        device = new FileDevice(file, "rw");
+        Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+        Ext2FileSystem fs = type.create(device, false);
+        FSFile prealloc = fs.getRootEntry().getDirectory().getEntry("prealloc.bin").getFile();
+        Assert.assertEquals(8192, prealloc.getLength());
+
+        byte[] data = new byte[2048];
+        for (int k = 0; k < data.length; k++) {
+            data[k] = patternByte(8192 + k);
+        }
+        prealloc.write(8192, ByteBuffer.wrap(data));
+        prealloc.flush();
+        fs.close();
+        ((FileDevice) device).close();
+
+        device = new FileDevice(file, "r");
+        fs = type.create(device, true);
+        prealloc = fs.getRootEntry().getDirectory().getEntry("prealloc.bin").getFile();
+        Assert.assertEquals(10240, prealloc.getLength());
+        ByteBuffer buf = ByteBuffer.allocate(10240);
+        prealloc.read(0, buf);
+        for (int offset = 0; offset < buf.capacity(); offset++) {
+            byte expected = (offset < 4096 || offset >= 8192) ? patternByte(offset) : 0;
+            Assert.assertEquals("Wrong data at offset " + offset, expected, buf.get(offset));
+        }
+        ((FileDevice) device).close();
+    }
+
+    @Test
+    public void testFreedBlocksAreNotWrittenBack() throws Exception {
+
+        File file = copyTestFile("test/fs/ext4/ext4-extents-rw.dd");
+        DiscardFileDevice discardDevice = new DiscardFileDevice(file);
+        device = discardDevice;
+        Ext2FileSystemType type = fss.getFileSystemType(Ext2FileSystemType.ID);
+        Ext2FileSystem fs = type.create(device, false);
+
+        // The 1 KB blocks of the file are still cached, and dirty, when they are freed;
+        // the buffer cache holds them in 4 KB blocks with data of other blocks
+        FSFile shortLived = fs.getRootEntry().getDirectory().addFile("short-lived.bin").getFile();
+        writePattern(shortLived, 8 * 1024);
+        shortLived.flush();
+        shortLived.setLength(0);
+        Assert.assertFalse(discardDevice.discarded.isEmpty());
+        fs.close();
+        discardDevice.close();
+    }
+
     @Test
     public void testReadExt4FlexBG() throws Exception {
 
@@ -169,5 +396,68 @@ public class Ext4FileSystemTest {
 
         DataStructureAsserts.assertStructure(fs, expectedStructure);
     }
-}
 
+    private static byte patternByte(int offset) {
+        return (byte) (offset * 31 + (offset >> 10));
+    }
+
+    private static void writePattern(FSFile file, int length) throws IOException {
+        byte[] data = new byte[10000];
+        for (int offset = 0; offset < length; offset += data.length) {
+            int count = Math.min(data.length, length - offset);
+            for (int k = 0; k < count; k++) {
+                data[k] = patternByte(offset + k);
+            }
+            file.write(offset, ByteBuffer.wrap(data, 0, count));
+        }
+    }
+
+    private static void assertPattern(FSFile file, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        file.read(0, data);
+        for (int offset = 0; offset < length; offset++) {
+            if (data.get(offset) != patternByte(offset)) {
+                Assert.fail("Wrong data at offset " + offset);
+            }
+        }
+    }
+
+    /**
+     * A file device that fails the writes of old data to a range it has been told to discard.
+     */
+    private static class DiscardFileDevice extends FileDevice implements DiscardBlockDeviceAPI {
+
+        private final List<long[]> discarded = new ArrayList<long[]>();
+
+        DiscardFileDevice(File file) throws IOException {
+            super(file, "rw");
+        }
+
+        public void discard(long devOffset, long length) {
+            discarded.add(new long[]{devOffset, devOffset + length});
+        }
+
+        public void write(long devOffset, ByteBuffer srcBuf) throws IOException {
+            for (long[] range : discarded) {
+                long from = Math.max(devOffset, range[0]);
+                long to = Math.min(devOffset + srcBuf.remaining(), range[1]);
+                for (long offset = from; offset < to; offset++) {
+                    if (srcBuf.get(srcBuf.position() + (int) (offset - devOffset)) != 0) {
+                        Assert.fail("Discarded range " + range[0] + "-" + range[1] + " written at " + offset);
+                    }
+                }
+            }
+            super.write(devOffset, srcBuf);
+        }
+    }
+
+    /**
+     * Copies a test image to a temporary file, so that it can be mounted read-write.
+     */
+    private File copyTestFile(String testFile) throws Exception {
+        File file = File.createTempFile("ext4-test", ".dd");
+        file.deleteOnExit();
+        FileUtils.copyFile(FileSystemTestUtils.getTestFile(testFile), file);
+        return file;
+    }
+}
@@ -93,6 +93,19 @@ public abstract class AbstractFSTest extends TestCase {
     public final void setUp() throws NameNotFoundException, FileSystemException, IOException,
         InstantiationException, IllegalAccessException, Exception {
         super.setUp();
+        setUpEnvironment();
+        this.device = config.getDeviceParam().createDevice();
+        this.fs = config.getFileSystem().format(this.device);
+        this.fs = config.getFileSystem().mount(this.device);
+    }
+
+    /**
+     * Emulate the parts of a JNode environment the filesystems need, unless we are
+     * running in JNode or have already done so.
+     *
+     * @throws Exception
+     */
+    public static synchronized void setUpEnvironment() throws Exception {
         if (!setup && !OsUtils.isJNode()) {
             // We are not running in JNode, emulate a JNode environment.
 
@@ -115,9 +128,6 @@ public abstract class AbstractFSTest extends TestCase {
             InitialNaming.bind(FileSystemService.class, fss);
         }
         setup = true;
-        this.device = config.getDeviceParam().createDevice();
-        this.fs = config.getFileSystem().format(this.device);
-        this.fs = config.getFileSystem().mount(this.device);
     }
 
     @After
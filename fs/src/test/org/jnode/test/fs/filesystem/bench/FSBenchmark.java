@@ -0,0 +1,318 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.fs.filesystem.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Random;
+import org.jnode.fs.FSDirectory;
+import org.jnode.fs.FSEntry;
+import org.jnode.fs.FSFile;
+import org.jnode.fs.FileSystem;
+import org.jnode.fs.spi.AbstractFileSystem;
+
+/**
+ * Measures the throughput and latency of a mounted filesystem.
+ * <p/>
+ * The workloads run in a new directory in the root of the filesystem, which is
+ * removed afterwards:
+ * <ul>
+ * <li>sequential write and flush of one large file</li>
+ * <li>sequential read of that file with cold caches, and with warm caches</li>
+ * <li>random reads and writes of single blocks in that file</li>
+ * <li>create, lookup, readdir and delete of many small files</li>
+ * </ul>
+ * The read and write workloads run {@link #WARMUP_PASSES} unmeasured passes
+ * and then {@link #ITERATIONS} measured ones. Every workload prints one line
+ * with its throughput and latency percentiles over the measured passes, so
+ * runs before and after a cache or I/O change can be compared.
+ */
+public class FSBenchmark {
+
+    public static final int DEFAULT_FILE_SIZE = 4 * 1024 * 1024;
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    public static final int DEFAULT_FILE_COUNT = 200;
+
+    /**
+     * Number of full directory listings in the readdir workload
+     */
+    private static final int READDIR_REPEAT = 10;
+
+    /**
+     * Number of unmeasured passes before a workload is measured
+     */
+    private static final int WARMUP_PASSES = 1;
+
+    /**
+     * Number of measured passes of a workload
+     */
+    private static final int ITERATIONS = 3;
+
+    private static final String DATA_FILE = "data";
+
+    /**
+     * Starts the cold reads of a filesystem that cannot be mounted again: it
+     * writes back and drops the blocks of the device in the buffer cache.
+     * Caches of the filesystem itself stay warm.
+     */
+    public static final Remounter DROP_CACHE = new Remounter() {
+        public FileSystem<?> remount(FileSystem<?> fs) throws IOException {
+            if (fs instanceof AbstractFileSystem) {
+                final AbstractFileSystem<?> afs = (AbstractFileSystem<?>) fs;
+                afs.flush();
+                afs.getCacheStatistics().invalidate();
+            }
+            return fs;
+        }
+    };
+
+    /**
+     * Mounts the filesystem under test again, so that reads start with cold caches.
+     */
+    public static interface Remounter {
+
+        /**
+         * Close the filesystem and mount it again.
+         *
+         * @param fs the mounted filesystem
+         * @return the new mount
+         * @throws IOException
+         */
+        public FileSystem<?> remount(FileSystem<?> fs) throws IOException;
+    }
+
+    private static final String FORMAT = "%-16s %-10s %7d %9.2f %10.1f %9.1f %9.1f %9.1f %9.1f%n";
+
+    private final PrintWriter out;
+
+    private final int fileSize;
+
+    private final int blockSize;
+
+    private final int fileCount;
+
+    /**
+     * Create a benchmark.
+     *
+     * @param out       receives the results
+     * @param fileSize  the size of the large file, rounded down to a multiple of blockSize
+     * @param blockSize the size of each read and write
+     * @param fileCount the number of files of the metadata workloads
+     */
+    public FSBenchmark(PrintWriter out, int fileSize, int blockSize, int fileCount) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.fileSize = Math.max(blockSize, fileSize - fileSize % blockSize);
+        this.fileCount = fileCount;
+    }
+
+    /**
+     * Print the column titles of the results.
+     */
+    public void printHeader() {
+        out.format("%-16s %-10s %7s %9s %10s %9s %9s %9s %9s%n", "filesystem", "workload", "ops", "MB/s",
+            "ops/s", "p50 us", "p90 us", "p99 us", "max us");
+    }
+
+    /**
+     * Run all workloads.
+     *
+     * @param label     the name of the filesystem in the results
+     * @param fs        the filesystem
+     * @param remounter starts the cold reads
+     * @return the filesystem, mounted again if the remounter did so; the caller closes it
+     * @throws IOException
+     */
+    public FileSystem<?> run(String label, FileSystem<?> fs, Remounter remounter) throws IOException {
+        final Random random = new Random(fileSize ^ blockSize);
+        final String dirName = "bench" + System.currentTimeMillis();
+        FSDirectory dir = fs.getRootEntry().getDirectory().addDirectory(dirName).getDirectory();
+
+        FSFile file = dir.addFile(DATA_FILE).getFile();
+        final byte[] data = new byte[blockSize];
+        random.nextBytes(data);
+        final int blocks = fileSize / blockSize;
+
+        // The first pass allocates the file, so it is measured on its own
+        LatencyRecorder rec = new LatencyRecorder();
+        for (int i = 0; i < blocks; i++) {
+            final long start = System.nanoTime();
+            file.write((long) i * blockSize, ByteBuffer.wrap(data));
+            rec.record(System.nanoTime() - start, blockSize);
+        }
+        print(label, "seq-write", rec);
+        flush(label, fs, file);
+
+        rec = new LatencyRecorder();
+        for (int pass = -WARMUP_PASSES; pass < ITERATIONS; pass++) {
+            fs = remounter.remount(fs);
+            dir = fs.getRootEntry().getDirectory().getEntry(dirName).getDirectory();
+            file = dir.getEntry(DATA_FILE).getFile();
+            readSequential(file, data, blocks, (pass >= 0) ? rec : null);
+        }
+        print(label, "seq-read", rec);
+
+        rec = new LatencyRecorder();
+        for (int pass = -WARMUP_PASSES; pass < ITERATIONS; pass++) {
+            readSequential(file, data, blocks, (pass >= 0) ? rec : null);
+        }
+        print(label, "seq-reread", rec);
+
+        rec = new LatencyRecorder();
+        for (int pass = -WARMUP_PASSES; pass < ITERATIONS; pass++) {
+            final LatencyRecorder measured = (pass >= 0) ? rec : null;
+            for (int i = 0; i < blocks; i++) {
+                final long ofs = (long) random.nextInt(blocks) * blockSize;
+                final long start = System.nanoTime();
+                file.read(ofs, ByteBuffer.wrap(data));
+                record(measured, start);
+            }
+        }
+        print(label, "rand-read", rec);
+
+        rec = new LatencyRecorder();
+        for (int pass = -WARMUP_PASSES; pass < ITERATIONS; pass++) {
+            final LatencyRecorder measured = (pass >= 0) ? rec : null;
+            for (int i = 0; i < blocks; i++) {
+                final long ofs = (long) random.nextInt(blocks) * blockSize;
+                final long start = System.nanoTime();
+                file.write(ofs, ByteBuffer.wrap(data));
+                record(measured, start);
+            }
+        }
+        print(label, "rand-write", rec);
+        flush(label, fs, file);
+
+        runMetadata(label, dir, random);
+
+        final FSDirectory parent = fs.getRootEntry().getDirectory();
+        dir.remove(DATA_FILE);
+        parent.remove(dirName);
+        parent.flush();
+
+        if (fs instanceof AbstractFileSystem) {
+            out.println(label + " cache: " + ((AbstractFileSystem<?>) fs).getCacheStatistics());
+        }
+        return fs;
+    }
+
+    /**
+     * Read a file from start to end.
+     *
+     * @param rec records the latencies, or null for an unmeasured pass
+     */
+    private void readSequential(FSFile file, byte[] data, int blocks, LatencyRecorder rec) throws IOException {
+        for (int i = 0; i < blocks; i++) {
+            final long start = System.nanoTime();
+            file.read((long) i * blockSize, ByteBuffer.wrap(data));
+            record(rec, start);
+        }
+    }
+
+    /**
+     * Record the latency of a block transfer.
+     *
+     * @param rec records the latencies, or null for an unmeasured pass
+     */
+    private void record(LatencyRecorder rec, long start) {
+        if (rec != null) {
+            rec.record(System.nanoTime() - start, blockSize);
+        }
+    }
+
+    /**
+     * Run the create, lookup, readdir and delete workloads.
+     */
+    private void runMetadata(String label, FSDirectory dir, Random random) throws IOException {
+        final String[] names = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            names[i] = "f" + i;
+        }
+
+        LatencyRecorder rec = new LatencyRecorder();
+        for (String name : names) {
+            final long start = System.nanoTime();
+            dir.addFile(name);
+            rec.record(System.nanoTime() - start, 0);
+        }
+        dir.flush();
+        print(label, "create", rec);
+
+        rec = new LatencyRecorder();
+        for (int i = 0; i < fileCount; i++) {
+            final String name = names[random.nextInt(fileCount)];
+            final long start = System.nanoTime();
+            final FSEntry entry = dir.getEntry(name);
+            rec.record(System.nanoTime() - start, 0);
+            if (entry == null) {
+                throw new IOException("Lookup of " + name + " failed");
+            }
+        }
+        print(label, "lookup", rec);
+
+        rec = new LatencyRecorder();
+        for (int i = 0; i < READDIR_REPEAT; i++) {
+            final long start = System.nanoTime();
+            for (Iterator<? extends FSEntry> it = dir.iterator(); it.hasNext();) {
+                it.next();
+            }
+            rec.record(System.nanoTime() - start, 0);
+        }
+        print(label, "readdir", rec);
+
+        rec = new LatencyRecorder();
+        for (String name : names) {
+            final long start = System.nanoTime();
+            dir.remove(name);
+            rec.record(System.nanoTime() - start, 0);
+        }
+        dir.flush();
+        print(label, "delete", rec);
+    }
+
+    /**
+     * Time writing the dirty data to the device, including the buffer cache if the filesystem has one.
+     */
+    private void flush(String label, FileSystem<?> fs, FSFile file) throws IOException {
+        final LatencyRecorder rec = new LatencyRecorder();
+        final long start = System.nanoTime();
+        if (fs instanceof AbstractFileSystem) {
+            final AbstractFileSystem<?> afs = (AbstractFileSystem<?>) fs;
+            afs.flush();
+            afs.getApi().flush();
+        } else {
+            file.flush();
+        }
+        rec.record(System.nanoTime() - start, 0);
+        print(label, "flush", rec);
+    }
+
+    private void print(String label, String workload, LatencyRecorder rec) {
+        out.format(FORMAT, label, workload, rec.getCount(), rec.getMBPerSecond(), rec.getOpsPerSecond(),
+            rec.getPercentile(50) / 1000.0, rec.getPercentile(90) / 1000.0, rec.getPercentile(99) / 1000.0,
+            rec.getPercentile(100) / 1000.0);
+        out.flush();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.fs.filesystem.bench;
+
+import java.io.PrintWriter;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.BlockDeviceAPI;
+import org.jnode.fs.FileSystem;
+import org.jnode.fs.service.FileSystemService;
+import org.jnode.naming.InitialNaming;
+import org.jnode.shell.AbstractCommand;
+import org.jnode.shell.syntax.Argument;
+import org.jnode.shell.syntax.DeviceArgument;
+import org.jnode.shell.syntax.IntegerArgument;
+import org.jnode.shell.syntax.SizeArgument;
+
+/**
+ * Runs the {@link FSBenchmark} in JNode on the filesystem of a device. The
+ * benchmark works in a new directory in the root of the filesystem, which is
+ * removed afterwards. The filesystem stays mounted, so the cold reads only
+ * start without the blocks of the device in the buffer cache.
+ */
+public class FSBenchmarkCommand extends AbstractCommand {
+
+    private static final String help_device = "the device of a mounted, writable filesystem";
+    private static final String help_size = "the size of the file of the throughput workloads";
+    private static final String help_block = "the size of each read and write";
+    private static final String help_files = "the number of files of the metadata workloads";
+    private static final String help_super = "Measure the throughput and latency of a filesystem";
+    private static final String fmt_err_nofs = "No filesystem found on %s%n";
+    private static final String fmt_err_ro = "The filesystem on %s is read-only%n";
+
+    private final DeviceArgument argDevice
+        = new DeviceArgument("device", Argument.MANDATORY, help_device, BlockDeviceAPI.class);
+    private final SizeArgument argSize = new SizeArgument("size", Argument.OPTIONAL, help_size);
+    private final SizeArgument argBlock = new SizeArgument("block", Argument.OPTIONAL, help_block);
+    private final IntegerArgument argFiles = new IntegerArgument("files", Argument.OPTIONAL, help_files);
+
+    public FSBenchmarkCommand() {
+        super(help_super);
+        registerArguments(argDevice, argSize, argBlock, argFiles);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new FSBenchmarkCommand().execute(args);
+    }
+
+    public void execute() throws Exception {
+        final FileSystemService fss = InitialNaming.lookup(FileSystemService.NAME);
+        final PrintWriter out = getOutput().getPrintWriter();
+        final PrintWriter err = getError().getPrintWriter();
+        final Device dev = argDevice.getValue();
+
+        final FileSystem<?> fs = fss.getFileSystem(dev);
+        if (fs == null) {
+            err.format(fmt_err_nofs, dev.getId());
+            exit(1);
+        } else if (fs.isReadOnly()) {
+            err.format(fmt_err_ro, dev.getId());
+            exit(1);
+        } else {
+            final int fileSize = argSize.isSet() ? argSize.getValue().intValue() : FSBenchmark.DEFAULT_FILE_SIZE;
+            final int blockSize = argBlock.isSet() ? argBlock.getValue().intValue() : FSBenchmark.DEFAULT_BLOCK_SIZE;
+            final int fileCount = argFiles.isSet() ? argFiles.getValue() : FSBenchmark.DEFAULT_FILE_COUNT;
+
+            final FSBenchmark benchmark = new FSBenchmark(out, fileSize, blockSize, fileCount);
+            benchmark.printHeader();
+            benchmark.run(fs.getType().getName() + "/" + dev.getId(), fs, FSBenchmark.DROP_CACHE);
+        }
+    }
+}
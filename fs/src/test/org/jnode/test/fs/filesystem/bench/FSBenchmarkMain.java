@@ -0,0 +1,142 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.fs.filesystem.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import org.jnode.driver.Device;
+import org.jnode.driver.block.ByteArrayDevice;
+import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.fs.FileSystem;
+import org.jnode.fs.ext2.BlockSize;
+import org.jnode.fs.ext2.Ext2FileSystemFormatter;
+import org.jnode.fs.fat.FatFileSystemFormatter;
+import org.jnode.fs.fat.FatType;
+import org.jnode.fs.jfat.ClusterSize;
+import org.jnode.partitions.PartitionTableEntry;
+import org.jnode.test.fs.filesystem.AbstractFSTest;
+import org.jnode.test.fs.filesystem.FSConfigurations;
+import org.jnode.test.fs.filesystem.config.DeviceParam;
+import org.jnode.test.fs.filesystem.config.FS;
+import org.jnode.test.fs.filesystem.config.FSType;
+import org.jnode.test.fs.filesystem.config.FileParam;
+import org.jnode.util.NumberUtils;
+
+/**
+ * Runs the {@link FSBenchmark} on the host, for every writable filesystem type,
+ * once on a disk image file and once on a disk in memory. The cold reads run
+ * on a new mount of the filesystem.
+ * <p/>
+ * Usage: FSBenchmarkMain [fileSize [blockSize [fileCount]]], where the sizes
+ * accept suffixes like 4M.
+ */
+public class FSBenchmarkMain {
+
+    /**
+     * Size of the test devices; large enough for a FAT32 volume with 1Kb clusters
+     */
+    private static final String DEVICE_SIZE = "128M";
+
+    public static void main(String[] args) throws Exception {
+        final int fileSize = (args.length > 0) ? (int) NumberUtils.getSize(args[0]) : FSBenchmark.DEFAULT_FILE_SIZE;
+        final int blockSize = (args.length > 1) ? (int) NumberUtils.getSize(args[1]) : FSBenchmark.DEFAULT_BLOCK_SIZE;
+        final int fileCount = (args.length > 2) ? Integer.parseInt(args[2]) : FSBenchmark.DEFAULT_FILE_COUNT;
+
+        AbstractFSTest.setUpEnvironment();
+
+        final PrintWriter out = new PrintWriter(System.out);
+        final FSBenchmark benchmark = new FSBenchmark(out, fileSize, blockSize, fileCount);
+        final FS[] filesystems = {
+            new FS(FSType.EXT2, false, new Ext2FileSystemFormatter(BlockSize._1Kb)),
+            new FS(FSType.EXT2, false, new Ext2FileSystemFormatter(BlockSize._4Kb)),
+            new FS(FSType.FAT, false, new FatFileSystemFormatter(FatType.FAT16)),
+            new FS(FSType.FAT, false, new FatFileSystemFormatter(FatType.FAT32)),
+            new FS(FSType.JFAT, false, new org.jnode.fs.jfat.FatFileSystemFormatter(ClusterSize._1Kb)),
+        };
+        final String[] labels = {"ext2-1k", "ext2-4k", "fat16", "fat32", "jfat32"};
+
+        benchmark.printHeader();
+        for (int i = 0; i < filesystems.length; i++) {
+            run(benchmark, labels[i] + "/file", filesystems[i],
+                new FileParam(FSConfigurations.DISK_FILE_NAME, DEVICE_SIZE));
+            run(benchmark, labels[i] + "/mem", filesystems[i], new MemoryParam());
+        }
+    }
+
+    private static void run(FSBenchmark benchmark, final String label, final FS fsConfig, DeviceParam param)
+        throws Exception {
+        final Device device = param.createDevice();
+        try {
+            fsConfig.format(device);
+            final FileSystem<?>[] mounted = {fsConfig.mount(device)};
+            try {
+                benchmark.run(label, mounted[0], new FSBenchmark.Remounter() {
+                    public FileSystem<?> remount(FileSystem<?> fs) throws IOException {
+                        fs.close();
+                        try {
+                            mounted[0] = fsConfig.mount(device);
+                        } catch (Exception ex) {
+                            throw new IOException("Cannot mount " + label + " again", ex);
+                        }
+                        return mounted[0];
+                    }
+                });
+            } finally {
+                mounted[0].close();
+            }
+        } finally {
+            param.tearDown(device);
+        }
+    }
+
+    /**
+     * A disk in a byte array, so the results do not depend on the host's disk.
+     */
+    private static class MemoryParam extends DeviceParam {
+
+        public Device createDevice() {
+            return new MemoryDevice(new byte[(int) NumberUtils.getSize(DEVICE_SIZE)]);
+        }
+
+        public void tearDown(Device device) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * A byte array device with the filesystem API the formatters need.
+     */
+    private static class MemoryDevice extends ByteArrayDevice implements FSBlockDeviceAPI {
+
+        public MemoryDevice(byte[] array) {
+            super(array);
+            registerAPI(FSBlockDeviceAPI.class, this);
+        }
+
+        public int getSectorSize() {
+            return 512;
+        }
+
+        public PartitionTableEntry getPartitionTableEntry() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.fs.filesystem.bench;
+
+import java.util.Arrays;
+
+/**
+ * Records the duration of the operations of one benchmark workload, and
+ * reports their throughput and latency percentiles.
+ */
+public class LatencyRecorder {
+
+    private long[] samples = new long[1024];
+
+    private int count;
+
+    private long bytes;
+
+    private long totalNanos;
+
+    /**
+     * Record one operation.
+     *
+     * @param nanos the duration of the operation in nanoseconds
+     * @param size  the number of bytes transferred by the operation, 0 for metadata operations
+     */
+    public void record(long nanos, long size) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+        bytes += size;
+        totalNanos += nanos;
+    }
+
+    /**
+     * Gets the number of recorded operations.
+     *
+     * @return the number of operations
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the total number of transferred bytes.
+     *
+     * @return the number of bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the number of operations per second.
+     *
+     * @return the operations per second, or 0 if nothing was recorded
+     */
+    public double getOpsPerSecond() {
+        return (totalNanos == 0) ? 0.0 : count * 1e9 / totalNanos;
+    }
+
+    /**
+     * Gets the throughput in megabytes (2^20 bytes) per second.
+     *
+     * @return the throughput, or 0 if nothing was recorded
+     */
+    public double getMBPerSecond() {
+        return (totalNanos == 0) ? 0.0 : bytes * 1e9 / totalNanos / (1024 * 1024);
+    }
+
+    /**
+     * Gets a latency percentile, using the nearest rank.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.max(0, Math.min(count, rank) - 1)];
+    }
+}
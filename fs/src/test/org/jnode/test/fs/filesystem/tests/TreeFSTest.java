@@ -70,6 +70,31 @@ public class TreeFSTest extends AbstractFSTest {
         doTestFSTreeWithRemount(config, "This is a Long FileName.extension");
     }
 
+    @Test
+    public void testSubDirectoryWithLongNamesAfterRemount() throws Exception {
+        if (!config.isReadOnly()) {
+            setUp();
+
+            final String dirName = "A Long Directory Name";
+            final String[] names = {"First long file name.txt", "Second long file name.txt"};
+            FSDirectory dir = getFs().getRootEntry().getDirectory().addDirectory(dirName).getDirectory();
+            for (String name : names) {
+                dir.addFile(name);
+            }
+
+            remountFS(config, getFs().isReadOnly());
+
+            FSEntry gotDir = getFs().getRootEntry().getDirectory().getEntry(dirName);
+            assertNotNull("'" + dirName + "' not saved", gotDir);
+            FSDirectory gotDirectory = gotDir.getDirectory();
+            for (String name : names) {
+                FSEntry entry = gotDirectory.getEntry(name);
+                assertNotNull("'" + name + "' not found after remount", entry);
+                assertEquals("returned bad entry", name, entry.getName());
+            }
+        }
+    }
+
     private void doTestFSTreeWithRemount(FSTestConfig config, String fileName) throws Exception {
         if (!config.isReadOnly()) {
             setUp();
@@ -22,12 +22,24 @@ package org.jnode.test.fs.hfsplus;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import org.jnode.driver.Device;
 import org.jnode.driver.block.FileDevice;
+import org.jnode.fs.FSEntry;
 import org.jnode.fs.hfsplus.HFSPlusParams;
+import org.jnode.fs.hfsplus.HfsPlusFile;
+import org.jnode.fs.hfsplus.HfsUnicodeString;
 import org.jnode.fs.hfsplus.HfsPlusFileSystem;
 import org.jnode.fs.hfsplus.HfsPlusFileSystemType;
 import org.jnode.fs.hfsplus.SuperBlock;
+import org.jnode.fs.hfsplus.catalog.Catalog;
+import org.jnode.fs.hfsplus.catalog.CatalogKey;
+import org.jnode.fs.hfsplus.catalog.CatalogNodeId;
+import org.jnode.fs.hfsplus.tree.BTHeaderRecord;
+import org.jnode.fs.hfsplus.tree.LeafRecord;
 import org.jnode.test.fs.DataStructureAsserts;
 import org.jnode.fs.FSDirectory;
 import org.jnode.test.fs.FileSystemTestUtils;
@@ -289,6 +301,69 @@ public class HfsPlusFileSystemTest {
         Assert.assertTrue("Must contains one directory", root.iterator().hasNext());
     }
 
+    @Test
+    public void testReadCompressedFileAfterClose() throws Exception {
+
+        device = new FileDevice(FileSystemTestUtils.getTestFile("test/fs/hfsplus/large-compressed.dmg"), "r");
+        HfsPlusFileSystemType type = fss.getFileSystemType(HfsPlusFileSystemType.ID);
+        HfsPlusFileSystem fs = type.create(device, true);
+
+        HfsPlusFile file = (HfsPlusFile) fs.getRootEntry().getDirectory().getEntry("large-useless-text.txt").getFile();
+        Assert.assertTrue(file.isCompressed());
+
+        // Read the two chunks with small reads, then again after closing the file
+        for (int pass = 0; pass < 2; pass++) {
+            byte[] data = new byte[(int) file.getLength()];
+            for (int offset = 0; offset < data.length; offset += 4096) {
+                file.read(offset, ByteBuffer.wrap(data, offset, Math.min(4096, data.length - offset)));
+            }
+            Assert.assertEquals("e33db0ee58f4f5413c721b3d99311215", DataStructureAsserts.getMD5Digest(data));
+            file.close();
+        }
+    }
+
+    @Test
+    public void testCatalogLookup() throws Exception {
+
+        device = new FileDevice(FileSystemTestUtils.getTestFile("test/fs/hfsplus/hard-linked-directories.dmg"), "r");
+        HfsPlusFileSystemType type = fss.getFileSystemType(HfsPlusFileSystemType.ID);
+        HfsPlusFileSystem fs = type.create(device, true);
+        Catalog catalog = fs.getCatalog();
+
+        // The root of the catalog is an index node over several leaves
+        BTHeaderRecord header = catalog.getBTHeaderRecord();
+        Assert.assertEquals(2, header.getTreeDepth());
+        Assert.assertTrue(header.getFirstLeafNode() != header.getLastLeafNode());
+
+        List<String> names = new ArrayList<String>();
+        for (Iterator<? extends FSEntry> it = fs.getRootEntry().getDirectory().iterator(); it.hasNext(); ) {
+            names.add(it.next().getName());
+        }
+
+        // Every name is found, looked up twice to go through the cached nodes as well
+        for (int pass = 0; pass < 2; pass++) {
+            for (String name : names) {
+                LeafRecord record = catalog.getRecord(CatalogNodeId.HFSPLUS_ROOT_CNID, new HfsUnicodeString(name));
+                Assert.assertNotNull("Record not found: " + name, record);
+                Assert.assertEquals(name, ((CatalogKey) record.getKey()).getNodeName().getUnicodeString());
+            }
+        }
+
+        // The name that sorts last with case folding (the NUL characters are ignored) is in the last leaf
+        String last = "\u0000\u0000\u0000\u0000HFS+ Private Data";
+        Assert.assertEquals(last, names.get(names.size() - 1));
+        LeafRecord record = catalog.getRecord(CatalogNodeId.HFSPLUS_ROOT_CNID, new HfsUnicodeString(last));
+        Assert.assertNotNull(record);
+
+        // Names which are not in the directory are not found
+        Assert.assertNull(catalog.getRecord(CatalogNodeId.HFSPLUS_ROOT_CNID, new HfsUnicodeString("zzz")));
+        Assert.assertNull(catalog.getRecord(CatalogNodeId.HFSPLUS_ROOT_CNID, new HfsUnicodeString("dir3")));
+        Assert.assertNull(catalog.getRecord(CatalogNodeId.HFSPLUS_ROOT_CNID, new HfsUnicodeString("!")));
+
+        // All the records of the root folder are found across the leaves
+        Assert.assertEquals(names.size() + 1, catalog.getRecords(CatalogNodeId.HFSPLUS_ROOT_CNID).length);
+    }
+
     private Device createTestDisk(boolean formatted) throws IOException {
         File file = TestUtils.makeTempFile("hfsDevice", "10M");
         Device device = new FileDevice(file, "rw");
@@ -20,13 +20,24 @@
  
 package org.jnode.test.fs.jfat;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import org.jnode.driver.Device;
 import org.jnode.driver.block.FileDevice;
+import org.jnode.fs.FSDirectory;
+import org.jnode.fs.FSFile;
+import org.jnode.fs.jfat.Fat;
+import org.jnode.fs.jfat.FatChain;
+import org.jnode.fs.jfat.FatEntry;
 import org.jnode.fs.jfat.FatFileSystem;
 import org.jnode.fs.jfat.FatFileSystemType;
 import org.jnode.fs.service.FileSystemService;
 import org.jnode.test.fs.DataStructureAsserts;
 import org.jnode.test.fs.FileSystemTestUtils;
+import org.jnode.util.FileUtils;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -78,5 +89,150 @@ public class FatFileSystemTest {
 
         DataStructureAsserts.assertStructure(fs, expectedStructure);
     }
-}
 
+    @Test
+    public void testReadFragmentedChain() throws Exception {
+
+        File file = copyTestFile("test/fs/jfat/test.fat32");
+        device = new FileDevice(file, "rw");
+        FatFileSystemType type = fss.getFileSystemType(FatFileSystemType.ID);
+        FatFileSystem fs = type.create(device, false);
+        int clusterSize = fs.getClusterSize();
+
+        // Appending to two files in turn interleaves their clusters
+        FSDirectory root = fs.getRootEntry().getDirectory();
+        FSFile a = root.addFile("a.bin").getFile();
+        FSFile b = root.addFile("b.bin").getFile();
+        int[] runs = {3, 1, 2, 4, 1, 2};
+        int length = 0;
+        for (int run : runs) {
+            writePattern(a, length, run * clusterSize);
+            length += run * clusterSize;
+            writePattern(b, (int) b.getLength(), clusterSize);
+        }
+        fs.close();
+        ((FileDevice) device).close();
+
+        device = new FileDevice(file, "r");
+        fs = type.create(device, true);
+        FatEntry entry = (FatEntry) fs.getRootEntry().getDirectory().getEntry("a.bin");
+        a = entry.getFile();
+        Assert.assertEquals(length, a.getLength());
+
+        // The chain is read back in the runs it was written in
+        FatChain.ChainIterator it = entry.getChain().listIterator();
+        int count = 0;
+        while (it.hasNext()) {
+            it.nextRun(Integer.MAX_VALUE);
+            Assert.assertEquals(runs[count], it.getRunLength());
+            count++;
+        }
+        Assert.assertEquals(runs.length, count);
+
+        // One read over all fragments, then reads across fragment boundaries
+        // backwards, which go through the map of the chain
+        assertPattern(a, 0, length);
+        for (int offset = length - clusterSize - 100; offset > 0; offset -= clusterSize) {
+            assertPattern(a, offset, 200);
+        }
+        assertPattern(a, 3 * clusterSize - 1, 3 * clusterSize + 2);
+        ((FileDevice) device).close();
+    }
+
+    @Test
+    public void testAllocateUpdatesFsInfo() throws Exception {
+
+        File file = copyTestFile("test/fs/jfat/test.fat32");
+        device = new FileDevice(file, "rw");
+        FatFileSystemType type = fss.getFileSystemType(FatFileSystemType.ID);
+        FatFileSystem fs = type.create(device, false);
+        Fat fat = fs.getFat();
+        int clusterSize = fs.getClusterSize();
+        int free = fat.freeEntries();
+
+        // A new file gets a single run of clusters from the free map
+        FSDirectory root = fs.getRootEntry().getDirectory();
+        FatEntry entry = (FatEntry) root.addFile("new.bin");
+        writePattern(entry.getFile(), 0, 10 * clusterSize);
+        Assert.assertEquals(free - 10, fat.freeEntries());
+
+        FatChain.ChainIterator it = entry.getChain().listIterator();
+        int first = it.nextRun(Integer.MAX_VALUE);
+        Assert.assertEquals(10, it.getRunLength());
+        Assert.assertFalse(it.hasNext());
+        fs.close();
+        ((FileDevice) device).close();
+
+        // The flush wrote the free count and the next free hint to the FSInfo sector
+        long[] fsInfo = readFsInfo(file);
+        Assert.assertEquals(free - 10, fsInfo[0]);
+        Assert.assertTrue(fsInfo[1] >= first + 10);
+
+        // Freeing the clusters updates the count again
+        device = new FileDevice(file, "rw");
+        fs = type.create(device, false);
+        fs.getRootEntry().getDirectory().remove("new.bin");
+        Assert.assertEquals(free, fs.getFat().freeEntries());
+        fs.close();
+        ((FileDevice) device).close();
+
+        Assert.assertEquals(free, readFsInfo(file)[0]);
+    }
+
+    /**
+     * Reads the free cluster count and the next free cluster from the FSInfo sector of a FAT32 image.
+     */
+    private static long[] readFsInfo(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] boot = new byte[512];
+            raf.readFully(boot);
+            int bytesPerSector = (boot[11] & 0xFF) | ((boot[12] & 0xFF) << 8);
+            int fsInfoSector = (boot[48] & 0xFF) | ((boot[49] & 0xFF) << 8);
+
+            byte[] fsInfo = new byte[512];
+            raf.seek((long) fsInfoSector * bytesPerSector);
+            raf.readFully(fsInfo);
+            return new long[] {getUInt32(fsInfo, 488), getUInt32(fsInfo, 492)};
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long getUInt32(byte[] data, int offset) {
+        return (data[offset] & 0xFFL) | ((data[offset + 1] & 0xFFL) << 8) | ((data[offset + 2] & 0xFFL) << 16) |
+            ((data[offset + 3] & 0xFFL) << 24);
+    }
+
+    private static byte patternByte(int offset) {
+        return (byte) (offset * 31 + (offset >> 9));
+    }
+
+    private static void writePattern(FSFile file, int offset, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        for (int k = 0; k < length; k++) {
+            data.put(k, patternByte(offset + k));
+        }
+        file.write(offset, data);
+    }
+
+    private static void assertPattern(FSFile file, int offset, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        file.read(offset, data);
+        for (int k = 0; k < length; k++) {
+            if (data.get(k) != patternByte(offset + k)) {
+                Assert.fail("Wrong data at offset " + (offset + k));
+            }
+        }
+    }
+
+    /**
+     * Copies a test image to a temporary file, so that it can be mounted read-write.
+     */
+    private File copyTestFile(String testFile) throws Exception {
+        File file = File.createTempFile("jfat-test", ".img");
+        file.deleteOnExit();
+        FileUtils.copyFile(FileSystemTestUtils.getTestFile(testFile), file);
+        return file;
+    }
+}
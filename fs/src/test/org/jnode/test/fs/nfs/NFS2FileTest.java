@@ -0,0 +1,314 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.fs.nfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.jnode.fs.nfs.nfs2.NFS2Entry;
+import org.jnode.fs.nfs.nfs2.NFS2File;
+import org.jnode.fs.nfs.nfs2.NFS2FileSystem;
+import org.jnode.net.nfs.nfs2.FileAttribute;
+import org.jnode.net.nfs.nfs2.NFS2Client;
+import org.jnode.net.nfs.nfs2.ReadFileResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class NFS2FileTest {
+
+    private static final int BLOCK_SIZE = NFS2Client.MAX_DATA;
+
+    private static final int FILE_BLOCKS = 20;
+
+    /**
+     * The contents of the file on the server
+     */
+    private final byte[] server = new byte[FILE_BLOCKS * BLOCK_SIZE];
+
+    /**
+     * The offsets of the reads sent to the server
+     */
+    private final List<Integer> reads = Collections.synchronizedList(new ArrayList<Integer>());
+
+    /**
+     * Holds back the writes until released
+     */
+    private volatile CountDownLatch writeGate = new CountDownLatch(0);
+
+    private volatile IOException writeError;
+
+    private ExecutorService executor;
+
+    private NFS2File file;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < server.length; i++) {
+            server[i] = (byte) (i / BLOCK_SIZE + i * 3);
+        }
+        executor = Executors.newCachedThreadPool();
+
+        final NFS2Client client = mock(NFS2Client.class);
+        when(client.readFile(any(byte[].class), anyInt(), anyInt())).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                final Object[] args = invocation.getArguments();
+                final int offset = (Integer) args[1];
+                final int count = Math.min((Integer) args[2], server.length - offset);
+                reads.add(offset);
+                final byte[] data = new byte[count];
+                synchronized (server) {
+                    System.arraycopy(server, offset, data, 0, count);
+                }
+                final ReadFileResult result = new ReadFileResult();
+                result.setData(data);
+                return result;
+            }
+        });
+        when(client.writeFile(any(byte[].class), anyInt(), any(byte[].class))).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Exception {
+                writeGate.await();
+                if (writeError != null) {
+                    throw writeError;
+                }
+                final Object[] args = invocation.getArguments();
+                final byte[] data = (byte[]) args[2];
+                synchronized (server) {
+                    System.arraycopy(data, 0, server, (Integer) args[1], data.length);
+                }
+                return new FileAttribute();
+            }
+        });
+
+        final NFS2FileSystem fs = mock(NFS2FileSystem.class);
+        when(fs.getNFSClient()).thenReturn(client);
+        when(fs.submit(any(Callable.class))).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                return executor.submit((Callable<?>) invocation.getArguments()[0]);
+            }
+        });
+
+        final FileAttribute attribute = new FileAttribute();
+        attribute.setSize(server.length);
+        final NFS2Entry entry = mock(NFS2Entry.class);
+        doReturn(fs).when(entry).getFileSystem();
+        when(entry.getFileAttribute()).thenReturn(attribute);
+        when(entry.getFileHandle()).thenReturn(new byte[32]);
+
+        file = new NFS2File(entry);
+    }
+
+    @After
+    public void tearDown() {
+        writeGate.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSequentialReadReadsAhead() throws Exception {
+        assertArrayEquals(expected(0, BLOCK_SIZE), read(0, BLOCK_SIZE));
+        awaitReads(9);
+        assertEquals(blockOffsets(0, 8), sortedReads());
+
+        // The next block comes from the read ahead, and the window moves on
+        assertArrayEquals(expected(BLOCK_SIZE, BLOCK_SIZE), read(BLOCK_SIZE, BLOCK_SIZE));
+        awaitReads(10);
+        assertEquals(blockOffsets(0, 9), sortedReads());
+    }
+
+    @Test
+    public void testRandomReadDoesNotReadAhead() throws Exception {
+        final int offset = 15 * BLOCK_SIZE + 100;
+        assertArrayEquals(expected(offset, 200), read(offset, 200));
+        Thread.sleep(100);
+        assertEquals(blockOffsets(15, 15), sortedReads());
+    }
+
+    @Test
+    public void testReadStopsAtEndOfFile() throws Exception {
+        final int offset = server.length - 100;
+        final ByteBuffer dest = ByteBuffer.allocate(BLOCK_SIZE);
+        file.read(offset, dest);
+        assertEquals(100, dest.position());
+    }
+
+    @Test
+    public void testCachedBlockIsNotReadAgain() throws Exception {
+        final int offset = 5 * BLOCK_SIZE;
+        read(offset, 100);
+        read(offset + 200, 100);
+        assertArrayEquals(expected(offset + 1000, 100), read(offset + 1000, 100));
+        assertEquals(blockOffsets(5, 5), sortedReads());
+    }
+
+    @Test
+    public void testWriteInvalidatesCachedBlock() throws Exception {
+        final int offset = 5 * BLOCK_SIZE;
+        read(offset, 100);
+
+        final byte[] data = pattern(100);
+        file.write(offset + 10, ByteBuffer.wrap(data));
+        assertArrayEquals(data, read(offset + 10, data.length));
+        assertEquals(2, reads.size());
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        writeGate = new CountDownLatch(1);
+        final byte[] data = pattern(3 * BLOCK_SIZE);
+        // Returns while the writes are in flight
+        file.write(BLOCK_SIZE, ByteBuffer.wrap(data));
+
+        final Thread flusher = flushInBackground();
+        Thread.sleep(100);
+        assertTrue("flush must wait for the writes", flusher.isAlive());
+
+        writeGate.countDown();
+        flusher.join(5000);
+        assertFalse(flusher.isAlive());
+        assertArrayEquals(data, expected(BLOCK_SIZE, data.length));
+    }
+
+    @Test
+    public void testWriteErrorIsReportedByFlush() throws Exception {
+        writeError = new IOException("Test error");
+        file.write(0, ByteBuffer.wrap(pattern(100)));
+        try {
+            file.flush();
+            fail("The error of the write must be reported");
+        } catch (IOException ex) {
+            // Expected
+        }
+        // Reported once
+        file.flush();
+    }
+
+    @Test
+    public void testInterruptedFlushKeepsWriteInFlight() throws Exception {
+        writeGate = new CountDownLatch(1);
+        final byte[] data = pattern(100);
+        file.write(0, ByteBuffer.wrap(data));
+
+        Thread.currentThread().interrupt();
+        try {
+            file.flush();
+            fail("An interrupted flush must not return normally");
+        } catch (InterruptedIOException ex) {
+            // Expected
+        }
+        assertTrue("the interrupt must be kept", Thread.interrupted());
+
+        // The write is still in flight, so the next flush waits for it
+        final Thread flusher = flushInBackground();
+        Thread.sleep(100);
+        assertTrue("flush must wait for the write", flusher.isAlive());
+
+        writeGate.countDown();
+        flusher.join(5000);
+        assertFalse(flusher.isAlive());
+        assertArrayEquals(data, expected(0, data.length));
+    }
+
+    private byte[] read(long offset, int length) throws IOException {
+        final ByteBuffer dest = ByteBuffer.allocate(length);
+        file.read(offset, dest);
+        return dest.array();
+    }
+
+    private byte[] expected(int offset, int length) {
+        final byte[] data = new byte[length];
+        synchronized (server) {
+            System.arraycopy(server, offset, data, 0, length);
+        }
+        return data;
+    }
+
+    private static byte[] pattern(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7 + 1);
+        }
+        return data;
+    }
+
+    private Thread flushInBackground() {
+        final Thread flusher = new Thread() {
+            public void run() {
+                try {
+                    file.flush();
+                } catch (IOException ex) {
+                    // Seen as a missing write
+                }
+            }
+        };
+        flusher.start();
+        return flusher;
+    }
+
+    /**
+     * Wait until the read ahead has sent the given number of reads.
+     */
+    private void awaitReads(int count) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while ((reads.size() < count) && (System.currentTimeMillis() < end)) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+    }
+
+    private List<Integer> sortedReads() {
+        final List<Integer> sorted;
+        synchronized (reads) {
+            sorted = new ArrayList<Integer>(reads);
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static List<Integer> blockOffsets(int first, int last) {
+        final List<Integer> offsets = new ArrayList<Integer>();
+        for (int block = first; block <= last; block++) {
+            offsets.add(block * BLOCK_SIZE);
+        }
+        return offsets;
+    }
+}
@@ -20,13 +20,21 @@
  
 package org.jnode.test.fs.ntfs;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import org.jnode.driver.Device;
 import org.jnode.driver.block.FileDevice;
+import org.jnode.fs.FSDirectory;
+import org.jnode.fs.FSEntry;
 import org.jnode.fs.FSFileSlackSpace;
 import org.jnode.fs.ntfs.FileRecord;
 import org.jnode.fs.ntfs.NTFSEntry;
 import org.jnode.fs.ntfs.NTFSFileSystem;
+import org.jnode.fs.ntfs.NTFSDirectory;
 import org.jnode.fs.ntfs.NTFSFileSystemType;
+import org.jnode.fs.ntfs.index.IndexEntry;
+import org.jnode.fs.ntfs.index.NTFSIndex;
 import org.jnode.fs.service.FileSystemService;
 import org.jnode.test.fs.DataStructureAsserts;
 import org.jnode.test.fs.FileSystemTestUtils;
@@ -268,6 +276,51 @@ public class NTFSFileSystemTest {
         DataStructureAsserts.assertStructure(fs, expectedStructure);
     }
 
+    @Test
+    public void testIndexLookup() throws Exception {
+
+        device = new FileDevice(FileSystemTestUtils.getTestFile("test/fs/ntfs/test.ntfs"), "r");
+        NTFSFileSystemType type = fss.getFileSystemType(NTFSFileSystemType.ID);
+        NTFSFileSystem fs = type.create(device, true);
+
+        NTFSDirectory root = (NTFSDirectory) fs.getRootEntry().getDirectory();
+
+        // The root index does not fit in the index root, so lookups have to descend into the index blocks
+        boolean hasSubNodes = false;
+        NTFSIndex index = new NTFSIndex(root.getFileRecord(), "$I30");
+        for (Iterator<IndexEntry> it = index.getIndexRootAttribute().iterator(); it.hasNext(); ) {
+            hasSubNodes |= it.next().hasSubNodes();
+        }
+        Assert.assertTrue("Root index has no sub-nodes", hasSubNodes);
+
+        // Every listed name is found, including the one that sorts last
+        List<String> names = new ArrayList<String>();
+        for (Iterator<FSEntry> it = root.iterator(); it.hasNext(); ) {
+            names.add(it.next().getName());
+        }
+        Assert.assertTrue(names.contains("test.txt"));
+        for (String name : names) {
+            FSEntry entry = root.getEntry(name);
+            Assert.assertNotNull("Entry not found: " + name, entry);
+            Assert.assertEquals(name, entry.getName());
+        }
+
+        // Names collate case insensitively, but only the exact name matches
+        Assert.assertNull(root.getEntry("TEST.TXT"));
+        Assert.assertNull(root.getEntry("Test.txt"));
+
+        // Names before the first, after the last and in between are not found
+        Assert.assertNull(root.getEntry("!"));
+        Assert.assertNull(root.getEntry("test.txu"));
+        Assert.assertNull(root.getEntry("zzz"));
+        Assert.assertNull(root.getEntry("dir3"));
+
+        // Lookups in a sub-directory
+        FSDirectory dir2 = root.getEntry("dir2").getDirectory();
+        Assert.assertNotNull(dir2.getEntry("test.txt"));
+        Assert.assertNull(dir2.getEntry("test.txt2"));
+    }
+
     @Test
     public void testFileSlackSpace() throws Exception {
 
@@ -0,0 +1,109 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.fs.service;
+
+import org.jnode.fs.FSEntry;
+import org.jnode.fs.service.def.FSEntryCache;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FSEntryCacheTest {
+
+    private static final long NEGATIVE_TIMEOUT = 100;
+
+    private FSEntryCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new FSEntryCache(16, NEGATIVE_TIMEOUT);
+    }
+
+    @Test
+    public void testNegativeEntryExpires() throws Exception {
+        cache.setMissing("/dev/hda0/missing.txt");
+        assertTrue(cache.isMissing("/dev/hda0/missing.txt"));
+        assertFalse(cache.isMissing("/dev/hda0/other.txt"));
+
+        Thread.sleep(2 * NEGATIVE_TIMEOUT);
+        assertFalse(cache.isMissing("/dev/hda0/missing.txt"));
+        assertNull(cache.getEntry("/dev/hda0/missing.txt"));
+    }
+
+    @Test
+    public void testEntryReplacesNegativeEntry() throws Exception {
+        final FSEntry entry = newEntry();
+        cache.setMissing("/dev/hda0/file.txt");
+        cache.setEntry("/dev/hda0/file.txt", entry);
+        assertFalse(cache.isMissing("/dev/hda0/file.txt"));
+        assertSame(entry, cache.getEntry("/dev/hda0/file.txt"));
+    }
+
+    @Test
+    public void testRemoveEntriesDropsSubtree() throws Exception {
+        final FSEntry dir = newEntry();
+        final FSEntry file = newEntry();
+        final FSEntry other = newEntry();
+        cache.setEntry("/dev/hda0/dir", dir);
+        cache.setEntry("/dev/hda0/dir/file.txt", file);
+        cache.setEntry("/dev/hda0/other", other);
+        cache.setMissing("/dev/hda0/dir/missing.txt");
+
+        cache.removeEntries("/dev/hda0/dir");
+        assertNull(cache.getEntry("/dev/hda0/dir"));
+        assertNull(cache.getEntry("/dev/hda0/dir/file.txt"));
+        assertFalse(cache.isMissing("/dev/hda0/dir/missing.txt"));
+        assertSame(other, cache.getEntry("/dev/hda0/other"));
+    }
+
+    @Test
+    public void testInvalidEntryIsDropped() throws Exception {
+        final FSEntry entry = mock(FSEntry.class);
+        when(entry.isValid()).thenReturn(false);
+        cache.setEntry("/dev/hda0/file.txt", entry);
+        assertNull(cache.getEntry("/dev/hda0/file.txt"));
+    }
+
+    @Test
+    public void testPruneKeepsRecentlyUsedEntries() throws Exception {
+        final FSEntry recent = newEntry();
+        cache.setEntry("/recent", recent);
+        for (int i = 0; i < 100; i++) {
+            cache.setEntry("/file" + i, newEntry());
+            // keep using the first entry
+            assertSame(recent, cache.getEntry("/recent"));
+        }
+        assertSame(recent, cache.getEntry("/recent"));
+        assertNull(cache.getEntry("/file0"));
+    }
+
+    private static FSEntry newEntry() {
+        final FSEntry entry = mock(FSEntry.class);
+        when(entry.isValid()).thenReturn(true);
+        return entry;
+    }
+}
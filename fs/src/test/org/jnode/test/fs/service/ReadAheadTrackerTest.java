@@ -0,0 +1,280 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.test.fs.service;
+
+import java.io.IOException;
+import java.io.VMOpenMode;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.jnode.driver.block.ByteArrayDevice;
+import org.jnode.fs.FSDirectory;
+import org.jnode.fs.FSEntry;
+import org.jnode.fs.FSFile;
+import org.jnode.fs.FileSystem;
+import org.jnode.fs.service.def.ReadAheadTracker;
+import org.jnode.fs.spi.AbstractFileSystem;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class ReadAheadTrackerTest {
+
+    private static final int READ_SIZE = 4096;
+
+    private TestFile file;
+
+    private List<Runnable> scheduled;
+
+    private ReadAheadTracker tracker;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new TestFile(null, 1024 * 1024);
+        scheduled = new ArrayList<Runnable>();
+        tracker = new ReadAheadTracker(file, new Executor() {
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        });
+    }
+
+    @Test
+    public void testNotTrackedWithoutBufferCache() throws Exception {
+        assertNull(ReadAheadTracker.create(new TestFile(mock(FileSystem.class), 4096), VMOpenMode.READ));
+    }
+
+    @Test
+    public void testTrackedOnCachedFileSystem() throws Exception {
+        final FileSystem<?> fs = new TestFileSystem();
+        assertNotNull(ReadAheadTracker.create(new TestFile(fs, 4096), VMOpenMode.READ));
+    }
+
+    @Test
+    public void testNotTrackedWhenWritable() throws Exception {
+        final FileSystem<?> fs = new TestFileSystem();
+        assertNull(ReadAheadTracker.create(new TestFile(fs, 4096), VMOpenMode.READ_WRITE));
+    }
+
+    @Test
+    public void testSequentialReadsPrefetch() throws Exception {
+        tracker.reading(0, READ_SIZE);
+        assertTrue(scheduled.isEmpty());
+
+        tracker.reading(READ_SIZE, READ_SIZE);
+        assertEquals(1, scheduled.size());
+        runScheduled();
+        assertEquals(2 * READ_SIZE, file.firstOffset);
+        assertEquals(2 * READ_SIZE + ReadAheadTracker.MIN_WINDOW, file.endOffset);
+    }
+
+    @Test
+    public void testWindowGrows() throws Exception {
+        long offset = 0;
+        for (int i = 0; i < 8; i++) {
+            tracker.reading(offset, READ_SIZE);
+            offset += READ_SIZE;
+            runScheduled();
+        }
+        assertTrue(file.endOffset - offset > ReadAheadTracker.MIN_WINDOW);
+        assertTrue(file.endOffset - offset <= ReadAheadTracker.DEFAULT_MAX_WINDOW);
+    }
+
+    @Test
+    public void testRandomReadsDoNotPrefetch() throws Exception {
+        tracker.reading(0, READ_SIZE);
+        tracker.reading(100 * READ_SIZE, READ_SIZE);
+        tracker.reading(10 * READ_SIZE, READ_SIZE);
+        assertTrue(scheduled.isEmpty());
+    }
+
+    @Test
+    public void testPrefetchStopsAtEndOfFile() throws Exception {
+        file = new TestFile(null, 3 * READ_SIZE);
+        tracker = new ReadAheadTracker(file, new Executor() {
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        });
+        tracker.reading(0, READ_SIZE);
+        tracker.reading(READ_SIZE, READ_SIZE);
+        runScheduled();
+        assertEquals(3 * READ_SIZE, file.endOffset);
+    }
+
+    @Test
+    public void testCloseStopsPrefetch() throws Exception {
+        tracker.reading(0, READ_SIZE);
+        tracker.reading(READ_SIZE, READ_SIZE);
+        tracker.close();
+        runScheduled();
+        assertEquals(0, file.reads);
+
+        tracker.reading(2 * READ_SIZE, READ_SIZE);
+        assertTrue(scheduled.isEmpty());
+    }
+
+    @Test
+    public void testCloseWaitsForRunningPrefetch() throws Exception {
+        file.block();
+        tracker = new ReadAheadTracker(file, new Executor() {
+            public void execute(Runnable command) {
+                new Thread(command).start();
+            }
+        });
+        tracker.reading(0, READ_SIZE);
+        tracker.reading(READ_SIZE, READ_SIZE);
+        assertTrue(file.entered.await(10, TimeUnit.SECONDS));
+
+        final Thread closer = new Thread() {
+            public void run() {
+                tracker.close();
+            }
+        };
+        closer.start();
+        closer.join(200);
+        assertTrue(closer.isAlive());
+
+        file.release.countDown();
+        closer.join(10000);
+        assertFalse(closer.isAlive());
+        assertEquals(1, file.reads);
+    }
+
+    private void runScheduled() {
+        final List<Runnable> commands = new ArrayList<Runnable>(scheduled);
+        scheduled.clear();
+        for (Runnable r : commands) {
+            r.run();
+        }
+    }
+
+    private static class TestFile implements FSFile {
+
+        private final FileSystem<?> fs;
+
+        private final long length;
+
+        private int reads;
+
+        private long firstOffset = -1;
+
+        private long endOffset;
+
+        private CountDownLatch entered;
+
+        private CountDownLatch release;
+
+        public TestFile(FileSystem<?> fs, long length) {
+            this.fs = fs;
+            this.length = length;
+        }
+
+        void block() {
+            entered = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public void setLength(long length) throws IOException {
+            throw new IOException("read-only");
+        }
+
+        public void read(long fileOffset, ByteBuffer dest) throws IOException {
+            reads++;
+            if (firstOffset < 0) {
+                firstOffset = fileOffset;
+            }
+            endOffset = Math.max(endOffset, fileOffset + dest.remaining());
+            if (release != null) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex.toString());
+                }
+            }
+            dest.position(dest.limit());
+        }
+
+        public void write(long fileOffset, ByteBuffer src) throws IOException {
+            throw new IOException("read-only");
+        }
+
+        public void flush() throws IOException {
+        }
+
+        public boolean isValid() {
+            return true;
+        }
+
+        public FileSystem<?> getFileSystem() {
+            return fs;
+        }
+    }
+
+    private static class TestFileSystem extends AbstractFileSystem<FSEntry> {
+
+        public TestFileSystem() throws Exception {
+            super(new ByteArrayDevice(new byte[64 * 1024]), true, null);
+        }
+
+        protected FSFile createFile(FSEntry entry) throws IOException {
+            throw new IOException("not implemented");
+        }
+
+        protected FSDirectory createDirectory(FSEntry entry) throws IOException {
+            throw new IOException("not implemented");
+        }
+
+        protected FSEntry createRootEntry() throws IOException {
+            throw new IOException("not implemented");
+        }
+
+        public long getTotalSpace() {
+            return 0;
+        }
+
+        public long getFreeSpace() {
+            return 0;
+        }
+
+        public long getUsableSpace() {
+            return 0;
+        }
+
+        public String getVolumeName() {
+            return "test";
+        }
+    }
+}
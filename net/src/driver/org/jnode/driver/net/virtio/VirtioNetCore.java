@@ -0,0 +1,362 @@
+/*
+ * $Id$
+ *
+ * Copyright (C) 2003-2015 JNode.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+ 
+package org.jnode.driver.net.virtio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.naming.NameNotFoundException;
+import org.jnode.driver.DriverException;
+import org.jnode.driver.bus.pci.PCIDevice;
+import org.jnode.driver.bus.virtio.VirtioConstants;
+import org.jnode.driver.bus.virtio.VirtioPCITransport;
+import org.jnode.driver.bus.virtio.Virtqueue;
+import org.jnode.driver.net.NetworkException;
+import org.jnode.driver.net.ethernet.spi.Flags;
+import org.jnode.driver.net.spi.AbstractDeviceCore;
+import org.jnode.naming.InitialNaming;
+import org.jnode.net.HardwareAddress;
+import org.jnode.net.SocketBuffer;
+import org.jnode.net.ethernet.EthernetAddress;
+import org.jnode.net.ethernet.EthernetConstants;
+import org.jnode.system.resource.IRQHandler;
+import org.jnode.system.resource.IRQResource;
+import org.jnode.system.resource.MemoryResource;
+import org.jnode.system.resource.ResourceManager;
+import org.jnode.system.resource.ResourceNotFreeException;
+import org.jnode.system.resource.ResourceOwner;
+import org.jnode.util.TimeoutException;
+
+/**
+ * The hardware handling of a virtio network device.
+ * <p/>
+ * All receive buffers are posted with a single notification, and the
+ * buffers taken back during an interrupt are posted again together. Used
+ * transmit buffers are reclaimed when a frame is transmitted, so transmit
+ * interrupts are only enabled while waiting for a free buffer.
+ */
+public class VirtioNetCore extends AbstractDeviceCore implements IRQHandler, VirtioConstants, EthernetConstants {
+
+    /* Features */
+    private static final int F_MAC = 1 << 5;
+
+    /* Device configuration */
+    private static final int CFG_MAC = 0;
+
+    /* Queues */
+    private static final int RX_QUEUE = 0;
+    private static final int TX_QUEUE = 1;
+
+    /**
+     * Size of the header preceding every frame, without mergeable receive buffers
+     */
+    private static final int NET_HDR_SIZE = 10;
+
+    /**
+     * Size of a buffer: the header followed by the frame
+     */
+    private static final int BUFFER_SIZE = 2048;
+
+    /**
+     * Offset of the frame in a buffer
+     */
+    private static final int FRAME = 16;
+
+    /**
+     * Maximum number of buffers of each queue
+     */
+    private static final int MAX_BUFFERS = 64;
+
+    private final VirtioNetDriver driver;
+
+    private final ResourceOwner owner;
+
+    private final ResourceManager rm;
+
+    private final VirtioPCITransport transport;
+
+    private final IRQResource irq;
+
+    /**
+     * My ethernet address
+     */
+    private final EthernetAddress hwAddress;
+
+    /**
+     * The receive and transmit buffers
+     */
+    private MemoryResource mem;
+
+    private long physicalBase;
+
+    private Virtqueue rxQueue;
+
+    private Virtqueue txQueue;
+
+    private int nrRxBuffers;
+
+    /**
+     * The free transmit buffers
+     */
+    private int[] freeTxBuffers;
+
+    private int nrFreeTxBuffers;
+
+    /**
+     * Create a new instance
+     *
+     * @param flags
+     */
+    public VirtioNetCore(VirtioNetDriver driver, ResourceOwner owner, PCIDevice device, Flags flags)
+        throws DriverException, ResourceNotFreeException {
+        if (!(flags instanceof VirtioNetFlags))
+            throw new DriverException("Wrong flags to the virtio network driver");
+
+        this.driver = driver;
+        this.owner = owner;
+        try {
+            rm = InitialNaming.lookup(ResourceManager.NAME);
+        } catch (NameNotFoundException ex) {
+            throw new DriverException("Cannot find ResourceManager");
+        }
+
+        this.transport = new VirtioPCITransport(device, owner);
+        transport.reset();
+        transport.addStatus(STATUS_ACKNOWLEDGE | STATUS_DRIVER);
+        final byte[] hwAddrArr = new byte[ETH_ALEN];
+        if ((transport.negotiateFeatures(F_MAC) & F_MAC) != 0) {
+            for (int i = 0; i < ETH_ALEN; i++) {
+                hwAddrArr[i] = (byte) transport.getConfig8(CFG_MAC + i);
+            }
+        } else {
+            // A random, locally administered unicast address
+            new Random().nextBytes(hwAddrArr);
+            hwAddrArr[0] = (byte) ((hwAddrArr[0] & 0xFC) | 0x02);
+        }
+        this.hwAddress = new EthernetAddress(hwAddrArr, 0);
+        transport.reset();
+
+        // The interrupt manager only delivers the legacy interrupt lines, not MSI-X
+        try {
+            this.irq = rm.claimIRQ(owner, transport.getIRQ(), this, true);
+        } catch (ResourceNotFreeException ex) {
+            transport.release();
+            throw ex;
+        }
+
+        log.debug("Found " + flags.getName() + " IRQ=" + transport.getIRQ() + ", MAC Address=" + hwAddress);
+    }
+
+    /**
+     * Gets the hardware address of this device
+     */
+    public HardwareAddress getHwAddress() {
+        return hwAddress;
+    }
+
+    /**
+     * Initialize the device
+     */
+    public void initialize() throws DriverException {
+        transport.reset();
+        transport.addStatus(STATUS_ACKNOWLEDGE | STATUS_DRIVER);
+        final int features = transport.negotiateFeatures(F_MAC | F_RING_EVENT_IDX);
+        final boolean eventIdx = (features & F_RING_EVENT_IDX) != 0;
+        try {
+            final Virtqueue rxq = transport.createQueue(RX_QUEUE, eventIdx);
+            final Virtqueue txq = transport.createQueue(TX_QUEUE, eventIdx);
+            // A frame takes two descriptors, one for the header and one for the data
+            nrRxBuffers = Math.min(MAX_BUFFERS, rxq.getSize() / 2);
+            final int nrTxBuffers = Math.min(MAX_BUFFERS, txq.getSize() / 2);
+            mem = rm.claimMemoryResource(owner, null, (nrRxBuffers + nrTxBuffers) * BUFFER_SIZE,
+                ResourceManager.MEMMODE_NORMAL);
+            physicalBase = mem.getAddress().toLong();
+
+            synchronized (this) {
+                rxQueue = rxq;
+                txQueue = txq;
+                freeTxBuffers = new int[nrTxBuffers];
+                for (int i = 0; i < nrTxBuffers; i++) {
+                    freeTxBuffers[i] = nrRxBuffers + i;
+                    // The headers of transmitted frames ask for no offloading
+                    mem.clear((nrRxBuffers + i) * BUFFER_SIZE, NET_HDR_SIZE);
+                }
+                nrFreeTxBuffers = nrTxBuffers;
+                txQueue.disableInterrupts();
+
+                for (int i = 0; i < nrRxBuffers; i++) {
+                    addRxBuffer(i);
+                }
+                rxQueue.kick();
+            }
+        } catch (ResourceNotFreeException ex) {
+            transport.releaseQueues();
+            throw new DriverException("Cannot claim virtio buffers", ex);
+        }
+        transport.addStatus(STATUS_DRIVER_OK);
+    }
+
+    /**
+     * Disable the device
+     */
+    public synchronized void disable() {
+        transport.releaseQueues();
+        rxQueue = null;
+        txQueue = null;
+        if (mem != null) {
+            mem.release();
+            mem = null;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Release all resources
+     */
+    public void release() {
+        disable();
+        irq.release();
+        transport.release();
+    }
+
+    /**
+     * Transmit the given buffer
+     *
+     * @param buf
+     * @param timeout
+     * @throws InterruptedException
+     * @throws TimeoutException
+     */
+    public synchronized void transmit(SocketBuffer buf, HardwareAddress destination, long timeout)
+        throws InterruptedException, TimeoutException {
+        // Set the source address
+        hwAddress.writeTo(buf, 6);
+        final int length = buf.getSize();
+        if (length > BUFFER_SIZE - FRAME) {
+            throw new IllegalArgumentException("Frame too large: " + length);
+        }
+
+        final long end = System.currentTimeMillis() + timeout;
+        reclaimTxBuffers();
+        while ((txQueue != null) && (nrFreeTxBuffers == 0)) {
+            // Have the device interrupt when it has sent a frame
+            if (txQueue.enableInterrupts()) {
+                reclaimTxBuffers();
+            } else {
+                final long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new TimeoutException("Timeout in transmit");
+                }
+                wait(remaining);
+            }
+        }
+        if (txQueue == null) {
+            throw new InterruptedException("Device is disabled");
+        }
+        txQueue.disableInterrupts();
+
+        final int index = freeTxBuffers[--nrFreeTxBuffers];
+        final int offset = index * BUFFER_SIZE;
+        mem.setBytes(buf.toByteArray(), 0, offset + FRAME, length);
+        txQueue.add(new long[]{physicalBase + offset, physicalBase + offset + FRAME},
+            new int[]{NET_HDR_SIZE, length}, 2, index);
+        txQueue.kick();
+    }
+
+    /**
+     * Handle a given hardware interrupt. This method is called from the kernel
+     * with interrupts disabled. So keep and handling here as short as possible!
+     */
+    public void handleInterrupt(int irq) {
+        final List<SocketBuffer> received = new ArrayList<SocketBuffer>();
+        synchronized (this) {
+            if ((rxQueue == null) || ((transport.getISRStatus() & ISR_QUEUE) == 0)) {
+                return;
+            }
+            receive(received);
+            if (reclaimTxBuffers()) {
+                notifyAll();
+            }
+        }
+
+        for (SocketBuffer skbuf : received) {
+            try {
+                driver.onReceive(skbuf);
+            } catch (NetworkException ex) {
+                log.debug("Error in onReceive", ex);
+            }
+        }
+    }
+
+    /**
+     * Take the received frames and post their buffers again. Called with the lock held.
+     *
+     * @param received the list to add the frames to
+     */
+    private void receive(final List<SocketBuffer> received) {
+        final Virtqueue.Handler handler = new Virtqueue.Handler() {
+            public void used(Object token, int length) {
+                final int index = (Integer) token;
+                final int frameLength = length - NET_HDR_SIZE;
+                if ((frameLength > 0) && (frameLength <= BUFFER_SIZE - FRAME)) {
+                    final byte[] data = new byte[frameLength];
+                    mem.getBytes(index * BUFFER_SIZE + FRAME, data, 0, frameLength);
+                    received.add(new SocketBuffer(data, 0, frameLength));
+                }
+                addRxBuffer(index);
+            }
+        };
+
+        int count = 0;
+        do {
+            rxQueue.disableInterrupts();
+            count += rxQueue.processUsed(handler);
+        } while (rxQueue.enableInterrupts());
+        if (count > 0) {
+            rxQueue.kick();
+        }
+    }
+
+    /**
+     * Post a receive buffer, without notifying the device.
+     */
+    private void addRxBuffer(int index) {
+        final long address = physicalBase + index * BUFFER_SIZE;
+        rxQueue.add(new long[]{address, address + FRAME}, new int[]{NET_HDR_SIZE, BUFFER_SIZE - FRAME}, 0,
+            index);
+    }
+
+    /**
+     * Take back the buffers of the transmitted frames. Called with the lock held.
+     *
+     * @return {@code true} if any buffer has been taken back
+     */
+    private boolean reclaimTxBuffers() {
+        if (txQueue == null) {
+            return false;
+        }
+        return txQueue.processUsed(new Virtqueue.Handler() {
+            public void used(Object token, int length) {
+                freeTxBuffers[nrFreeTxBuffers++] = (Integer) token;
+            }
+        }) > 0;
+    }
+}
@@ -160,19 +160,21 @@ public class NFS2Client {
         return client;
     }
 
-    // TODO This lock it is not good because we wait an IO operation before we
-    // free the lock . So the creation of the nfsclient must be outside of the
-    // lock
-    private synchronized OncRpcClient getRpcClient() throws OncRpcException, IOException {
-        if (closed) {
-            throw new IOException("The nfs client it is closed");
-        }
-        if (rpcClientPool.size() == 0) {
-            // TODO Improve this lock
-            return createRpcClient();
-        } else {
-            return rpcClientPool.remove(0);
+    /**
+     * Take an idle rpc client from the pool, or create a new one. Every caller
+     * gets its own client, so many calls can be outstanding at the same time.
+     */
+    private OncRpcClient getRpcClient() throws OncRpcException, IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The nfs client it is closed");
+            }
+            if (rpcClientPool.size() != 0) {
+                return rpcClientPool.remove(0);
+            }
         }
+        // Connect outside of the lock, so the other calls do not wait for the portmap lookup
+        return createRpcClient();
     }
 
     private synchronized void releaseRpcClient(OncRpcClient client) throws IOException {
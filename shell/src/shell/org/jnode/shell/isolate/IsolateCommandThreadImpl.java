@@ -142,7 +142,9 @@ public class IsolateCommandThreadImpl implements CommandThread {
     @Override
     public void start(ThreadExitListener listener) throws ShellInvocationException {
         try {
-            Link cl = Link.newLink(Isolate.currentIsolate(), isolate);
+            // Use an asynchronous link so that we don't have to wait for the
+            // new isolate to pick up the command runner.
+            Link cl = Link.newAsyncLink(Isolate.currentIsolate(), isolate, 1);
             sl = isolate.newStatusLink();
             isolate.start(cl);
             ObjectLinkMessage msg = ObjectLinkMessage.newMessage(this.cr);